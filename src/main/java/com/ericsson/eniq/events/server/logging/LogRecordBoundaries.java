@@ -0,0 +1,96 @@
+/*
+ * ---------------------------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * ---------------------------------------------------------------------------------------
+ */
+
+package com.ericsson.eniq.events.server.logging;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Finds the records in the bytes of an audit or performance trace log file.
+ *
+ * Both formatters write a record as "[#|timestamp|thread|level|message|#]\n", possibly followed by
+ * exception lines, so a record starts with "[#|" at the start of the file or of a line and runs
+ * up to the start of the next one.
+ */
+public final class LogRecordBoundaries {
+
+    /**
+     * Bytes at the start of every record
+     */
+    public static final int RECORD_START_LENGTH = 3;
+
+    /**
+     * Offset of the timestamp from the start of a record
+     */
+    public static final int TIMESTAMP_OFFSET = RECORD_START_LENGTH;
+
+    private static final byte OPEN = '[';
+
+    private static final byte HASH = '#';
+
+    private static final byte DELIMITER = '|';
+
+    private static final byte NEWLINE = '\n';
+
+    private LogRecordBoundaries() {
+    }
+
+    /**
+     * Find the next record start.
+     *
+     * @param buffer bytes to search
+     * @param from absolute index to start searching at
+     * @param limit absolute index to stop searching at
+     * @param lineStartAtFrom true if index from is known to be the start of a line,
+     *                        false if the byte before it has to be checked (or is not in the buffer)
+     * @return absolute index of the next "[#|" at the start of a line, or -1 if there is none before limit
+     */
+    public static int nextRecordStart(final ByteBuffer buffer, final int from, final int limit,
+            final boolean lineStartAtFrom) {
+        final int last = limit - RECORD_START_LENGTH;
+        for (int i = from; i <= last; i++) {
+            if (buffer.get(i) == OPEN && buffer.get(i + 1) == HASH && buffer.get(i + 2) == DELIMITER) {
+                if (i == from ? lineStartAtFrom || (i > 0 && buffer.get(i - 1) == NEWLINE)
+                        : buffer.get(i - 1) == NEWLINE) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Find the last record start.
+     *
+     * @param buffer bytes to search
+     * @param from absolute index to stop searching at, must be more than 0
+     * @param limit absolute index to search back from
+     * @return absolute index of the last "[#|" at the start of a line at or after from, or -1 if there is none
+     */
+    public static int lastRecordStart(final ByteBuffer buffer, final int from, final int limit) {
+        for (int i = limit - RECORD_START_LENGTH; i >= from; i--) {
+            if (buffer.get(i) == OPEN && buffer.get(i + 1) == HASH && buffer.get(i + 2) == DELIMITER
+                    && buffer.get(i - 1) == NEWLINE) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param buffer record bytes
+     * @param recordStart absolute index of the record start
+     * @param recordEnd absolute index after the last byte of the record
+     * @return index after the last byte of the record which is not a line break
+     */
+    public static int trimmedEnd(final ByteBuffer buffer, final int recordStart, final int recordEnd) {
+        int end = recordEnd;
+        while (end > recordStart && (buffer.get(end - 1) == NEWLINE || buffer.get(end - 1) == '\r')) {
+            end--;
+        }
+        return end;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * ---------------------------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * ---------------------------------------------------------------------------------------
+ */
+
+package com.ericsson.eniq.events.server.logging;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Sparse time index kept beside a log file, servicesaudit-2010_01_01.log.0 has its index in
+ * servicesaudit-2010_01_01.log.0.idx
+ *
+ * The index is an 8 byte header followed by 16 byte entries of (record timestamp, byte offset of the record in
+ * the log file). An entry is added for the first record of every second, and every
+ * {@link #DEFAULT_RECORDS_PER_ENTRY} records within a busy second, so the index stays a tiny fraction of
+ * the log size and is only written to a few times a second at most.
+ *
+ * Records are timestamped when they are created, not when they are written, so they can be slightly out of
+ * order in the file. Lookups allow for this by starting {@link #MAX_RECORD_SKEW_MILLIS} before the requested time.
+ */
+public final class LogTimeIndex {
+
+    /**
+     * Suffix added to the log file name for its index
+     */
+    public static final String INDEX_SUFFIX = ".idx";
+
+    /**
+     * Maximum number of records between two index entries
+     */
+    public static final int DEFAULT_RECORDS_PER_ENTRY = 1000;
+
+    /**
+     * How far out of timestamp order a record can be written
+     */
+    public static final long MAX_RECORD_SKEW_MILLIS = 1000;
+
+    /**
+     * "STIX" + format version
+     */
+    private static final int MAGIC = 0x53544958;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 8;
+
+    private static final int ENTRY_SIZE = 16;
+
+    private static final int MILLIS_IN_SECOND = 1000;
+
+    private LogTimeIndex() {
+    }
+
+    /**
+     * @param logFile a log file
+     * @return the index file for it, which may not exist
+     */
+    public static File indexFileFor(final File logFile) {
+        return new File(logFile.getPath() + INDEX_SUFFIX);
+    }
+
+    /**
+     * Find where to start reading a log file to get all records logged at or after a time.
+     *
+     * @param logFile the log file
+     * @param fromMillis start of the time range
+     * @return byte offset to start reading at, 0 if the file has no index or all of it is needed
+     * @throws IOException if the index cannot be read
+     */
+    public static long findStartOffset(final File logFile, final long fromMillis) throws IOException {
+        final File indexFile = indexFileFor(logFile);
+        if (!indexFile.isFile() || indexFile.length() < HEADER_SIZE + ENTRY_SIZE) {
+            return 0;
+        }
+        final RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            // only whole entries, the writer may be part way through the last one
+            final int entries = (int) ((channel.size() - HEADER_SIZE) / ENTRY_SIZE);
+            final MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE + (long) entries
+                    * ENTRY_SIZE);
+            if (index.getInt(0) != MAGIC) {
+                return 0;
+            }
+            final long target = fromMillis - MAX_RECORD_SKEW_MILLIS;
+            // last entry with a timestamp before the target
+            int low = 0;
+            int high = entries - 1;
+            int found = -1;
+            while (low <= high) {
+                final int mid = (low + high) >>> 1;
+                if (index.getLong(HEADER_SIZE + mid * ENTRY_SIZE) < target) {
+                    found = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return found < 0 ? 0 : index.getLong(HEADER_SIZE + found * ENTRY_SIZE + 8);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Appends entries to an index file as records are written to the log file
+     * Not thread safe, used under the log handler lock.
+     */
+    public static final class Writer implements Closeable {
+
+        private final DataOutputStream out;
+
+        private final int recordsPerEntry;
+
+        private int recordsSinceEntry;
+
+        private long lastEntrySecond = Long.MIN_VALUE;
+
+        /**
+         * @param indexFile the index file, any existing file is replaced
+         * @param recordsPerEntry maximum number of records between two entries
+         * @throws IOException if the file cannot be created
+         */
+        public Writer(final File indexFile, final int recordsPerEntry) throws IOException {
+            this.recordsPerEntry = recordsPerEntry;
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, false), HEADER_SIZE
+                    + ENTRY_SIZE));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.flush();
+        }
+
+        /**
+         * Called for every record written to the log file, only some are added to the index
+         *
+         * @param recordMillis timestamp of the record
+         * @param offset byte offset of the start of the record in the log file
+         * @throws IOException if the entry cannot be written
+         */
+        public void recordWritten(final long recordMillis, final long offset) throws IOException {
+            final long second = recordMillis / MILLIS_IN_SECOND;
+            if (second != lastEntrySecond || ++recordsSinceEntry >= recordsPerEntry) {
+                out.writeLong(recordMillis);
+                out.writeLong(offset);
+                out.flush();
+                lastEntrySecond = second;
+                recordsSinceEntry = 0;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * ---------------------------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * ---------------------------------------------------------------------------------------
+ */
+
+package com.ericsson.eniq.events.server.logging;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Reads the records logged in a time range from audit and performance trace log files.
+ *
+ * Uses the time index beside the file (see {@link LogTimeIndex}) to seek close to the start of the range, then
+ * memory maps the file from there and stops as soon as the records are past the end of the range, so only the
+ * matching part of the file is read. Files without an index are read from the start.
+ *
+ * Can be run from the command line:
+ * java com.ericsson.eniq.events.server.logging.LogTimeRangeReader "2010-01-01 14:02" "2010-01-01 14:05"
+ *     servicesaudit-2010_01_01.log.0 ...
+ */
+public final class LogTimeRangeReader {
+
+    /**
+     * Receives the records found
+     */
+    public interface RecordListener {
+
+        /**
+         * @param timestamp timestamp of the record
+         * @param record the record text, without the trailing line break
+         */
+        void onRecord(long timestamp, String record);
+    }
+
+    /**
+     * Size of the part of the file mapped at a time
+     */
+    private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private static final Charset CHARSET = Charset.defaultCharset();
+
+    private final int windowSize;
+
+    public LogTimeRangeReader() {
+        this(WINDOW_SIZE);
+    }
+
+    /**
+     * Used for testing purposes only, to force records across mapped windows
+     */
+    LogTimeRangeReader(final int windowSize) {
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * Read the records of a log file logged in a time range
+     *
+     * @param logFile the log file
+     * @param fromMillis start of the range, inclusive
+     * @param toMillis end of the range, inclusive
+     * @param listener receives the records, in file order
+     * @return number of records found
+     * @throws IOException if the file cannot be read
+     */
+    public int read(final File logFile, final long fromMillis, final long toMillis, final RecordListener listener)
+            throws IOException {
+        final long startOffset = LogTimeIndex.findStartOffset(logFile, fromMillis);
+        final long stopAfter = toMillis + LogTimeIndex.MAX_RECORD_SKEW_MILLIS;
+        int found = 0;
+        final RandomAccessFile raf = new RandomAccessFile(logFile, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            final long size = channel.size();
+            long position = Math.min(startOffset, size);
+            boolean aligned = true;
+            while (position < size) {
+                final int length = (int) Math.min(windowSize, size - position);
+                final boolean lastWindow = position + length == size;
+                final MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                int recordStart = LogRecordBoundaries.nextRecordStart(window, 0, length, aligned);
+                if (recordStart < 0) {
+                    if (lastWindow) {
+                        break;
+                    }
+                    position += Math.max(1, length - LogRecordBoundaries.RECORD_START_LENGTH);
+                    aligned = false;
+                    continue;
+                }
+                long nextPosition = size;
+                while (recordStart >= 0) {
+                    int recordEnd = LogRecordBoundaries.nextRecordStart(window, recordStart
+                            + LogRecordBoundaries.RECORD_START_LENGTH, length, false);
+                    if (recordEnd < 0) {
+                        if (!lastWindow && recordStart > 0) {
+                            // record runs into the next window, map again from its start
+                            nextPosition = position + recordStart;
+                            aligned = true;
+                            break;
+                        }
+                        // last record, or one bigger than a whole window which is cut short
+                        recordEnd = length;
+                        nextPosition = position + length;
+                        aligned = false;
+                    }
+                    final long timestamp = ServicesLogTimestamp.parse(window, recordStart
+                            + LogRecordBoundaries.TIMESTAMP_OFFSET);
+                    if (timestamp > stopAfter) {
+                        return found;
+                    }
+                    if (timestamp >= fromMillis && timestamp <= toMillis) {
+                        listener.onRecord(timestamp, decode(window, recordStart, recordEnd));
+                        found++;
+                    }
+                    recordStart = recordEnd == length ? -1 : recordEnd;
+                }
+                position = nextPosition;
+            }
+        } finally {
+            raf.close();
+        }
+        return found;
+    }
+
+    private static String decode(final ByteBuffer window, final int start, final int end) {
+        final ByteBuffer record = window.duplicate();
+        record.limit(LogRecordBoundaries.trimmedEnd(window, start, end));
+        record.position(start);
+        return CHARSET.decode(record).toString();
+    }
+
+    /**
+     * Command line entry point
+     *
+     * @param args from, to, log files
+     * @throws IOException if a file cannot be read
+     */
+    public static void main(final String[] args) throws IOException {
+        final PrintStream out = System.out;
+        if (args.length < 3) {
+            System.err.println("usage: LogTimeRangeReader <from yyyy-MM-dd HH:mm[:ss[.SSS]]> <to> <log file>...");
+            System.exit(1);
+        }
+        final long from = ServicesLogTimestamp.parse(args[0]);
+        final long to = ServicesLogTimestamp.parse(args[1]);
+        if (from < 0 || to < 0) {
+            System.err.println("Invalid time range " + args[0] + " - " + args[1]);
+            System.exit(1);
+        }
+        final LogTimeRangeReader reader = new LogTimeRangeReader();
+        final RecordListener printer = new RecordListener() {
+            @Override
+            public void onRecord(final long timestamp, final String record) {
+                out.println(record);
+            }
+        };
+        for (int i = 2; i < args.length; i++) {
+            reader.read(new File(args[i]), from, to, printer);
+        }
+        out.flush();
+    }
+}
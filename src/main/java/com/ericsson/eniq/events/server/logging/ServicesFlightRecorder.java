@@ -0,0 +1,487 @@
+/*
+ * ---------------------------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * ---------------------------------------------------------------------------------------
+ */
+
+package com.ericsson.eniq.events.server.logging;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Black box of the services log: the last records logged through ServicesLogger by all threads, at every
+ * level down to the recorder level whatever the logger level, kept in a ring in direct memory so a long
+ * history costs the heap and the garbage collector nothing.
+ *
+ * A record is encoded on the logging thread into a buffer of the thread, then its space in the ring is taken
+ * by adding its length to the ring head, an atomic add and no lock, and it is copied in. Records are framed by
+ * their position in the stream of all records written, at both ends, which is written last:
+ * position(8) length(4) millis(8) level(4) threadId(4) messageLength(4) message(UTF-8) position(8).
+ * Reading from the oldest possible position, a record is accepted only if both ends hold its own position,
+ * so the partly overwritten oldest record and records still being copied in are skipped. The dump is a best
+ * effort snapshot: a record being overwritten while it is read can, rarely, come out garbled.
+ *
+ * The ring is dumped, in the services log format, to servicesflightrecorder-yyyy_MM_dd_HH_mm_ss_SSS.log in
+ * the services log directory: on a SEVERE record, at most once a minute and on a background thread, on the
+ * JMX dump operation and at shutdown. Only the newest dumps are kept, older ones are deleted after each dump.
+ * {@link #stop()}, called by ServicesLogger.shutdown when the application is undeployed, removes the shutdown
+ * hook and the dump thread so the recorder and its ring can be collected.
+ *
+ * Configured with system properties:
+ * EniqEventsServices.flightRecorder=true to turn it on
+ * EniqEventsServices.flightRecorderMB size of the ring, default 16
+ * EniqEventsServices.flightRecorderLevel lowest level recorded, default FINEST
+ * EniqEventsServices.flightRecorderDumps number of dumps kept, default 10
+ */
+public final class ServicesFlightRecorder implements ServicesFlightRecorderMBean {
+
+    public static final String OBJECT_NAME = "com.ericsson.eniq.events.server.logging:type=ServicesFlightRecorder";
+
+    public static final String DUMP_PREFIX = "servicesflightrecorder-";
+
+    public static final int DEFAULT_CAPACITY_MB = 16;
+
+    public static final int DEFAULT_MAX_DUMPS = 10;
+
+    /**
+     * Longest record, longer messages are cut
+     */
+    static final int MAX_RECORD_BYTES = 16 * 1024;
+
+    static final long MIN_SEVERE_DUMP_INTERVAL_MILLIS = 60 * 1000L;
+
+    private static final int HEADER_BYTES = 8 + 4 + 8 + 4 + 4 + 4;
+
+    private static final int TRAILER_BYTES = 8;
+
+    private static final int LENGTH_OFFSET = 8;
+
+    private static final int MESSAGE_LENGTH_OFFSET = HEADER_BYTES - 4;
+
+    private static final int BYTES_IN_MB = 1024 * 1024;
+
+    private static final String PROPERTY_PREFIX = ServicesLogger.SERVICES_LOGGER_NAME + ".flightRecorder";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final Logger BACKUP_LOGGER = Logger.getLogger("");
+
+    private static volatile ServicesFlightRecorder instance;
+
+    private final ByteBuffer ring;
+
+    private final int capacity;
+
+    private final int maxRecordBytes;
+
+    private final File dir;
+
+    private volatile Level level;
+
+    private volatile int maxDumps = DEFAULT_MAX_DUMPS;
+
+    /**
+     * Bytes taken in the ring since the start, the position of the next record
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    private final AtomicLong recordCount = new AtomicLong();
+
+    private final AtomicLong dumpCount = new AtomicLong();
+
+    private final AtomicLong lastSevereDump = new AtomicLong(Long.MIN_VALUE / 2);
+
+    private final ThreadLocal<Encoder> encoders = new ThreadLocal<Encoder>() {
+        @Override
+        protected Encoder initialValue() {
+            return new Encoder();
+        }
+    };
+
+    private final ExecutorService dumper = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "ServicesFlightRecorder-dump");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Thread shutdownHook = new Thread("ServicesFlightRecorder-shutdown") {
+        @Override
+        public void run() {
+            dump();
+        }
+    };
+
+    /**
+     * Per thread encoding state and view of the ring
+     */
+    private final class Encoder {
+
+        private final ByteBuffer scratch = ByteBuffer.allocate(maxRecordBytes);
+
+        private final ByteBuffer view = ring.duplicate();
+
+        private final CharsetEncoder charsetEncoder = UTF8.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * @param capacity size of the ring in bytes
+     * @param level lowest level recorded
+     * @param dir directory of the dumps
+     */
+    ServicesFlightRecorder(final int capacity, final Level level, final File dir) {
+        this.capacity = capacity;
+        this.level = level;
+        this.dir = dir;
+        maxRecordBytes = Math.min(MAX_RECORD_BYTES, capacity / 4);
+        ring = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * @return the running recorder, or null
+     */
+    public static ServicesFlightRecorder getInstance() {
+        return instance;
+    }
+
+    /**
+     * Start or stop the recorder as the system properties say
+     *
+     * @param dir directory of the dumps
+     */
+    static void configure(final File dir) {
+        if (Boolean.valueOf(System.getProperty(PROPERTY_PREFIX, "false"))) {
+            int megabytes = DEFAULT_CAPACITY_MB;
+            try {
+                megabytes = Integer.parseInt(System.getProperty(PROPERTY_PREFIX + "MB",
+                        Integer.toString(DEFAULT_CAPACITY_MB)).trim());
+            } catch (final NumberFormatException e) {
+                BACKUP_LOGGER.log(Level.WARNING, "Invalid " + PROPERTY_PREFIX + "MB, using " + DEFAULT_CAPACITY_MB);
+            }
+            Level recordLevel = Level.FINEST;
+            try {
+                recordLevel = Level.parse(System.getProperty(PROPERTY_PREFIX + "Level", "FINEST").trim());
+            } catch (final IllegalArgumentException e) {
+                BACKUP_LOGGER.log(Level.WARNING, "Invalid " + PROPERTY_PREFIX + "Level, using FINEST");
+            }
+            int dumps = DEFAULT_MAX_DUMPS;
+            try {
+                dumps = Integer.parseInt(System.getProperty(PROPERTY_PREFIX + "Dumps",
+                        Integer.toString(DEFAULT_MAX_DUMPS)).trim());
+            } catch (final NumberFormatException e) {
+                BACKUP_LOGGER.log(Level.WARNING, "Invalid " + PROPERTY_PREFIX + "Dumps, using " + DEFAULT_MAX_DUMPS);
+            }
+            start(Math.max(1, megabytes) * BYTES_IN_MB, recordLevel, dir).setMaxDumps(dumps);
+        } else {
+            stop();
+        }
+    }
+
+    /**
+     * @param dumps number of dump files kept, at least one
+     */
+    void setMaxDumps(final int dumps) {
+        maxDumps = Math.max(1, dumps);
+    }
+
+    /**
+     * Start a recorder, stopping the running one
+     *
+     * @param capacity size of the ring in bytes
+     * @param level lowest level recorded
+     * @param dir directory of the dumps
+     * @return the recorder
+     */
+    public static synchronized ServicesFlightRecorder start(final int capacity, final Level level, final File dir) {
+        stop();
+        final ServicesFlightRecorder recorder = new ServicesFlightRecorder(capacity, level, dir);
+        recorder.register();
+        try {
+            Runtime.getRuntime().addShutdownHook(recorder.shutdownHook);
+        } catch (final IllegalStateException e) {
+            // shutting down already
+        }
+        instance = recorder;
+        return recorder;
+    }
+
+    /**
+     * Stop the running recorder, if any, without dumping it
+     */
+    public static synchronized void stop() {
+        final ServicesFlightRecorder recorder = instance;
+        if (recorder == null) {
+            return;
+        }
+        instance = null;
+        recorder.unregister();
+        try {
+            Runtime.getRuntime().removeShutdownHook(recorder.shutdownHook);
+        } catch (final IllegalStateException e) {
+            // shutting down already, the hook runs anyway
+        }
+        recorder.dumper.shutdown();
+    }
+
+    /**
+     * @param recordLevel level of a record
+     * @return true if records of the level are recorded
+     */
+    public boolean isRecording(final Level recordLevel) {
+        return recordLevel.intValue() >= level.intValue();
+    }
+
+    /**
+     * Remove the encoder of this thread, see ServicesLogger#removeThreadState
+     */
+    void removeThreadState() {
+        encoders.remove();
+    }
+
+    /**
+     * Append a record to the ring
+     *
+     * @param recordLevel level of the record
+     * @param message the message, cut if the record would be longer than the maximum
+     */
+    public void record(final Level recordLevel, final String message) {
+        final Encoder encoder = encoders.get();
+        final ByteBuffer scratch = encoder.scratch;
+        scratch.clear();
+        scratch.position(HEADER_BYTES);
+        scratch.limit(maxRecordBytes - TRAILER_BYTES);
+        encoder.charsetEncoder.reset();
+        // an overflow just cuts the message
+        encoder.charsetEncoder.encode(CharBuffer.wrap(message), scratch, true);
+        final int messageLength = scratch.position() - HEADER_BYTES;
+        final int length = scratch.position() + TRAILER_BYTES;
+        final long position = head.getAndAdd(length);
+        scratch.limit(length);
+        scratch.putLong(0, position);
+        scratch.putInt(LENGTH_OFFSET, length);
+        scratch.putLong(LENGTH_OFFSET + 4, System.currentTimeMillis());
+        scratch.putInt(LENGTH_OFFSET + 12, recordLevel.intValue());
+        scratch.putInt(LENGTH_OFFSET + 16, (int) Thread.currentThread().getId());
+        scratch.putInt(MESSAGE_LENGTH_OFFSET, messageLength);
+        scratch.putLong(length - TRAILER_BYTES, position);
+        // the leading position last, a reader takes the record only once it is there
+        copyIn(encoder.view, scratch.array(), 8, length - 8, position + 8);
+        copyIn(encoder.view, scratch.array(), 0, 8, position);
+        recordCount.incrementAndGet();
+    }
+
+    private void copyIn(final ByteBuffer view, final byte[] bytes, final int offset, final int length,
+            final long position) {
+        final int index = (int) (position % capacity);
+        final int first = Math.min(length, capacity - index);
+        view.clear();
+        view.position(index);
+        view.put(bytes, offset, first);
+        if (first < length) {
+            view.clear();
+            view.put(bytes, offset + first, length - first);
+        }
+    }
+
+    /**
+     * Called after a SEVERE record, dumps the ring on the dump thread unless it was dumped for one recently
+     */
+    public void severe() {
+        final long now = System.currentTimeMillis();
+        final long last = lastSevereDump.get();
+        if (now - last < MIN_SEVERE_DUMP_INTERVAL_MILLIS || !lastSevereDump.compareAndSet(last, now)) {
+            return;
+        }
+        try {
+            dumper.execute(new Runnable() {
+                @Override
+                public void run() {
+                    dump();
+                }
+            });
+        } catch (final RuntimeException e) {
+            // stopped
+        }
+    }
+
+    @Override
+    public synchronized String dump() {
+        final File file = new File(dir, DUMP_PREFIX
+                + new SimpleDateFormat("yyyy_MM_dd_HH_mm_ss_SSS").format(new Date()) + ".log");
+        try {
+            dir.mkdirs();
+            final Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), UTF8));
+            try {
+                write(out);
+            } finally {
+                out.close();
+            }
+            dumpCount.incrementAndGet();
+            pruneDumps();
+            return file.getPath();
+        } catch (final IOException e) {
+            BACKUP_LOGGER.log(Level.WARNING, "Failed to dump the services flight recorder to " + file, e);
+            return "Failed to write " + file + ": " + e;
+        }
+    }
+
+    /**
+     * Delete all but the newest dumps, the names sort by time
+     */
+    private void pruneDumps() {
+        final String[] names = dir.list();
+        if (names == null) {
+            return;
+        }
+        Arrays.sort(names);
+        int kept = 0;
+        for (int i = names.length - 1; i >= 0; i--) {
+            if (names[i].startsWith(DUMP_PREFIX) && names[i].endsWith(".log") && ++kept > maxDumps) {
+                final File old = new File(dir, names[i]);
+                if (!old.delete()) {
+                    BACKUP_LOGGER.log(Level.WARNING, "Failed to delete old services flight recorder dump " + old);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the records in the ring, oldest first, in the services log format
+     *
+     * @param out where to write them
+     * @throws IOException if they can't be written
+     */
+    void write(final Writer out) throws IOException {
+        final ServicesLogFormatter formatter = new ServicesLogFormatter();
+        // volatile read after the writers' counts, so the records counted are seen in full
+        recordCount.get();
+        final long end = head.get();
+        long position = Math.max(0, end - capacity);
+        while (position + HEADER_BYTES + TRAILER_BYTES <= end) {
+            final LogRecord record = readRecord(position, end);
+            if (record == null) {
+                // inside a record, overwritten or not complete
+                position++;
+            } else {
+                out.write(formatter.format(record));
+                position += getInt(position + LENGTH_OFFSET);
+            }
+        }
+    }
+
+    // setInstant and setLongThreadID would do, but they need Java 9 and 16 and the services run on Java 7
+    @SuppressWarnings("deprecation")
+    private LogRecord readRecord(final long position, final long end) {
+        if (getLong(position) != position) {
+            return null;
+        }
+        final int length = getInt(position + LENGTH_OFFSET);
+        if (length < HEADER_BYTES + TRAILER_BYTES || length > maxRecordBytes || position + length > end
+                || getLong(position + length - TRAILER_BYTES) != position) {
+            return null;
+        }
+        final int messageLength = getInt(position + MESSAGE_LENGTH_OFFSET);
+        if (messageLength != length - HEADER_BYTES - TRAILER_BYTES) {
+            return null;
+        }
+        final byte[] message = new byte[messageLength];
+        for (int i = 0; i < messageLength; i++) {
+            message[i] = ring.get(index(position + HEADER_BYTES + i));
+        }
+        final LogRecord record = new LogRecord(Level.parse(Integer.toString(getInt(position + LENGTH_OFFSET + 12))),
+                new String(message, UTF8));
+        record.setMillis(getLong(position + LENGTH_OFFSET + 4));
+        record.setThreadID(getInt(position + LENGTH_OFFSET + 16));
+        record.setLoggerName(ServicesLogger.SERVICES_LOGGER_NAME);
+        return record;
+    }
+
+    private int index(final long position) {
+        return (int) (position % capacity);
+    }
+
+    private long getLong(final long position) {
+        final int index = index(position);
+        if (index + 8 <= capacity) {
+            return ring.getLong(index);
+        }
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = value << 8 | ring.get(index(position + i)) & 0xFF;
+        }
+        return value;
+    }
+
+    private int getInt(final long position) {
+        final int index = index(position);
+        if (index + 4 <= capacity) {
+            return ring.getInt(index);
+        }
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = value << 8 | ring.get(index(position + i)) & 0xFF;
+        }
+        return value;
+    }
+
+    @Override
+    public int getCapacityBytes() {
+        return capacity;
+    }
+
+    @Override
+    public long getRecordedBytes() {
+        return head.get();
+    }
+
+    @Override
+    public long getRecordCount() {
+        return recordCount.get();
+    }
+
+    @Override
+    public long getDumpCount() {
+        return dumpCount.get();
+    }
+
+    @Override
+    public String getLevel() {
+        return level.getName();
+    }
+
+    @Override
+    public void setLevel(final String level) {
+        this.level = Level.parse(level);
+    }
+
+    private void register() {
+        ServicesMBeans.register(this, OBJECT_NAME);
+    }
+
+    private void unregister() {
+        ServicesMBeans.unregister(OBJECT_NAME);
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * ---------------------------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * ---------------------------------------------------------------------------------------
+ */
+
+package com.ericsson.eniq.events.server.logging;
+
+/**
+ * JMX view of the services log flight recorder, see {@link ServicesFlightRecorder}.
+ */
+public interface ServicesFlightRecorderMBean {
+
+    /**
+     * Write the records in the ring to a new file in the services log directory
+     *
+     * @return path of the file, or the reason it could not be written
+     */
+    String dump();
+
+    /**
+     * @return size of the ring in bytes
+     */
+    int getCapacityBytes();
+
+    /**
+     * @return bytes written to the ring since the start, the ring holds the last {@link #getCapacityBytes()}
+     */
+    long getRecordedBytes();
+
+    /**
+     * @return records written to the ring since the start
+     */
+    long getRecordCount();
+
+    /**
+     * @return number of dumps written
+     */
+    long getDumpCount();
+
+    /**
+     * @return lowest level recorded
+     */
+    String getLevel();
+
+    /**
+     * @param level lowest level recorded, e.g. FINEST or INFO
+     */
+    void setLevel(String level);
+}
@@ -14,6 +14,7 @@ import java.util.logging.LogRecord;
 /**
  * Eniq Services Log file formatter
  * Copy of Eniq Engine formatter.
+ * The request ID, when the record has one, is written as req=id after the logger name, see ServicesRequestId.
  */
 public class ServicesLogFormatter extends Formatter {
     /**
@@ -38,6 +39,12 @@ public class ServicesLogFormatter extends Formatter {
         res.append(logRecord.getLevel().getName());
         res.append(" ");
         res.append(logRecord.getLoggerName());
+        final ServicesRequestId requestId = ServicesRequestId.fromRecord(logRecord);
+        if (requestId != null) {
+            res.append(" ");
+            res.append(ServicesRequestId.FIELD_PREFIX);
+            res.append(requestId);
+        }
         res.append(" : ");
         res.append(logRecord.getMessage());
         res.append("\n");
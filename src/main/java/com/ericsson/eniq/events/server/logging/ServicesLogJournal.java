@@ -0,0 +1,305 @@
+/*
+ * ---------------------------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * ---------------------------------------------------------------------------------------
+ */
+
+package com.ericsson.eniq.events.server.logging;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Memory-mapped circular journal of the newest services log records, so the records ServicesLoggingHandler
+ * has written but not yet flushed to the log file survive the JVM being killed.
+ *
+ * The pages of a mapped file belong to the operating system, what is put in them reaches the file even if
+ * the process dies straight after (not if the machine does, the journal is not forced to disk). Each record
+ * is journaled before it is written to the log file. Once the log file is flushed, the journal position up to
+ * which records are in the file is stored in the header. On the next start {@link #recover()} returns the
+ * records after that position, for the handler to append to their daily log files. A crash between a flush
+ * and the header update can repeat a few records, none is lost.
+ *
+ * File layout: header magic(4) version(4) capacity(4) unused(4) flushedPosition(8) unused(8), then the ring.
+ * Record: position(8) length(4) stamp(10, yyyy_MM_dd of the log file) text(UTF-8) position(8), where position
+ * is the offset of the record in the stream of all records journaled, stored at both ends so a record that
+ * was being written, or was overwritten, is not taken for a whole one.
+ *
+ * The journal holds an exclusive lock on the file while it is open, like ServicesRollingFileHandler, so a
+ * second handler can't recover records the first still owns.
+ */
+public class ServicesLogJournal {
+
+    static final int MAGIC = 0x45534c4a;
+
+    static final int VERSION = 1;
+
+    static final int HEADER_BYTES = 32;
+
+    private static final int CAPACITY_OFFSET = 8;
+
+    private static final int FLUSHED_OFFSET = 16;
+
+    private static final int STAMP_BYTES = 10;
+
+    private static final int RECORD_HEADER_BYTES = 8 + 4 + STAMP_BYTES;
+
+    private static final int TRAILER_BYTES = 8;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final RandomAccessFile file;
+
+    private final MappedByteBuffer map;
+
+    private final int capacity;
+
+    private long head;
+
+    private long flushed;
+
+    /**
+     * A record found unflushed by {@link ServicesLogJournal#recover()}
+     */
+    public static final class Entry {
+
+        private final String stamp;
+
+        private final String text;
+
+        Entry(final String stamp, final String text) {
+            this.stamp = stamp;
+            this.text = text;
+        }
+
+        /**
+         * @return yyyy_MM_dd of the log file the record belongs to
+         */
+        public String getStamp() {
+            return stamp;
+        }
+
+        /**
+         * @return the formatted record
+         */
+        public String getText() {
+            return text;
+        }
+    }
+
+    /**
+     * Open the journal, creating it if needed. An existing journal keeps its own capacity.
+     *
+     * @param journalFile the file
+     * @param capacity size of the ring in bytes, for a new journal
+     * @throws IOException if the file can't be opened or mapped, or another journal has it open
+     */
+    public ServicesLogJournal(final File journalFile, final int capacity) throws IOException {
+        file = new RandomAccessFile(journalFile, "rw");
+        try {
+            if (!lock(file.getChannel())) {
+                throw new IOException(journalFile + " is locked by another journal");
+            }
+            int existing = 0;
+            if (file.length() >= HEADER_BYTES) {
+                file.seek(0);
+                if (file.readInt() == MAGIC && file.readInt() == VERSION) {
+                    existing = file.readInt();
+                    if (file.length() < HEADER_BYTES + (long) existing) {
+                        existing = 0;
+                    }
+                }
+            }
+            this.capacity = existing > 0 ? existing : capacity;
+            map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + (long) this.capacity);
+            if (existing > 0) {
+                flushed = map.getLong(FLUSHED_OFFSET);
+            } else {
+                map.putInt(0, MAGIC);
+                map.putInt(4, VERSION);
+                map.putInt(CAPACITY_OFFSET, this.capacity);
+                map.putLong(FLUSHED_OFFSET, 0);
+                flushed = 0;
+            }
+            head = flushed;
+        } catch (final IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return true if the channel is locked, or the file system can't lock
+     */
+    private static boolean lock(final FileChannel channel) {
+        try {
+            return channel.tryLock() != null;
+        } catch (final OverlappingFileLockException e) {
+            // held by another journal in this JVM
+            return false;
+        } catch (final IOException e) {
+            // as FileHandler, a file system without locking (e.g. some NFS mounts) is taken as not locked
+            return true;
+        }
+    }
+
+    /**
+     * The records journaled after the last flushed position, oldest first. The journal carries on after them,
+     * {@link #markFlushed()} should be called once they are in the log files.
+     *
+     * @return the records
+     */
+    public List<Entry> recover() {
+        final List<Entry> entries = new ArrayList<Entry>();
+        long position = flushed;
+        while (true) {
+            final int length = validLength(position);
+            if (length == 0) {
+                break;
+            }
+            final byte[] stamp = read(position + 12, STAMP_BYTES);
+            final byte[] text = read(position + RECORD_HEADER_BYTES, length - RECORD_HEADER_BYTES - TRAILER_BYTES);
+            entries.add(new Entry(new String(stamp, ASCII), new String(text, UTF8)));
+            position += length;
+        }
+        head = position;
+        return entries;
+    }
+
+    /**
+     * @return length of the whole record at the position, or 0 if there is none
+     */
+    private int validLength(final long position) {
+        if (getLong(position) != position) {
+            return 0;
+        }
+        final int length = getInt(position + 8);
+        if (length < RECORD_HEADER_BYTES + TRAILER_BYTES || length > capacity
+                || getLong(position + length - TRAILER_BYTES) != position) {
+            return 0;
+        }
+        return length;
+    }
+
+    /**
+     * @param text formatted record
+     * @return true if the record fits in the journal, at most half of it
+     */
+    public boolean fits(final String text) {
+        return RECORD_HEADER_BYTES + TRAILER_BYTES + text.length() * 3L <= capacity / 2;
+    }
+
+    /**
+     * Journal a record, which must fit
+     *
+     * @param stamp yyyy_MM_dd of the log file the record goes to
+     * @param text formatted record
+     */
+    public void append(final String stamp, final String text) {
+        final byte[] stampBytes = stamp.getBytes(ASCII);
+        final byte[] textBytes = text.getBytes(UTF8);
+        final int length = RECORD_HEADER_BYTES + textBytes.length + TRAILER_BYTES;
+        final long position = head;
+        putInt(position + 8, length);
+        write(position + 12, stampBytes, Math.min(stampBytes.length, STAMP_BYTES));
+        write(position + RECORD_HEADER_BYTES, textBytes, textBytes.length);
+        putLong(position + length - TRAILER_BYTES, position);
+        // the leading position last, a record is only taken once it is there
+        putLong(position, position);
+        head = position + length;
+    }
+
+    /**
+     * Everything journaled so far is in the log files
+     */
+    public void markFlushed() {
+        flushed = head;
+        map.putLong(FLUSHED_OFFSET, flushed);
+    }
+
+    /**
+     * @return bytes journaled since the last {@link #markFlushed()}
+     */
+    public long getUnflushedBytes() {
+        return head - flushed;
+    }
+
+    /**
+     * @return size of the ring in bytes
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Close the file and release its lock, the mapping stays until it is garbage collected
+     *
+     * @throws IOException if the file can't be closed
+     */
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private int index(final long position) {
+        return HEADER_BYTES + (int) (position % capacity);
+    }
+
+    private void write(final long position, final byte[] bytes, final int length) {
+        for (int i = 0; i < length;) {
+            final int index = index(position + i);
+            final int count = Math.min(length - i, HEADER_BYTES + capacity - index);
+            // absolute bulk puts are not available, a duplicate leaves the position of the map alone
+            final ByteBuffer duplicate = map.duplicate();
+            duplicate.position(index);
+            duplicate.put(bytes, i, count);
+            i += count;
+        }
+    }
+
+    private byte[] read(final long position, final int length) {
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = map.get(index(position + i));
+        }
+        return bytes;
+    }
+
+    private void putLong(final long position, final long value) {
+        for (int i = 0; i < 8; i++) {
+            map.put(index(position + i), (byte) (value >>> (56 - 8 * i)));
+        }
+    }
+
+    private void putInt(final long position, final int value) {
+        for (int i = 0; i < 4; i++) {
+            map.put(index(position + i), (byte) (value >>> (24 - 8 * i)));
+        }
+    }
+
+    private long getLong(final long position) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = value << 8 | map.get(index(position + i)) & 0xFF;
+        }
+        return value;
+    }
+
+    private int getInt(final long position) {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = value << 8 | map.get(index(position + i)) & 0xFF;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * ---------------------------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * ---------------------------------------------------------------------------------------
+ */
+
+package com.ericsson.eniq.events.server.logging;
+
+import java.nio.ByteBuffer;
+import java.util.Calendar;
+
+/**
+ * Parses the "yyyy-MM-dd HH:mm:ss.SSS" timestamps written by the audit and performance trace
+ * formatters straight from the bytes of a log file, without creating Strings or using SimpleDateFormat,
+ * and renders them the same way.
+ *
+ * The calendar arithmetic is only done once per minute of log, the start of the last minute seen is
+ * cached per thread and the seconds and milliseconds are added to it (or split off it when rendering).
+ */
+public final class ServicesLogTimestamp {
+
+    /**
+     * Length of a formatted timestamp, yyyy-MM-dd HH:mm:ss.SSS
+     */
+    public static final int LENGTH = 23;
+
+    /**
+     * Length of the yyyy-MM-dd HH:mm part
+     */
+    private static final int MINUTE_PREFIX_LENGTH = 16;
+
+    private static final int MILLIS_IN_SECOND = 1000;
+
+    private static final long MILLIS_IN_MINUTE = 60 * MILLIS_IN_SECOND;
+
+    private static final ThreadLocal<Cache> CACHE = new ThreadLocal<Cache>() {
+        @Override
+        protected Cache initialValue() {
+            return new Cache();
+        }
+    };
+
+    private ServicesLogTimestamp() {
+    }
+
+    /**
+     * Remove the cache of this thread, see ServicesLogger#removeThreadState
+     */
+    static void removeThreadState() {
+        CACHE.remove();
+    }
+
+    /**
+     * Parse a timestamp
+     *
+     * @param buffer bytes to read, the buffer position is not changed
+     * @param offset absolute index of the first character of the timestamp
+     * @return epoch milliseconds in the default time zone, or -1 if the bytes are not a timestamp
+     */
+    public static long parse(final ByteBuffer buffer, final int offset) {
+        if (offset < 0 || offset + LENGTH > buffer.limit()) {
+            return -1;
+        }
+        final Cache cache = CACHE.get();
+        long minuteStart;
+        if (cache.matches(buffer, offset)) {
+            minuteStart = cache.minuteStart;
+        } else {
+            final int year = digits(buffer, offset, 4);
+            final int month = digits(buffer, offset + 5, 2);
+            final int day = digits(buffer, offset + 8, 2);
+            final int hour = digits(buffer, offset + 11, 2);
+            final int minute = digits(buffer, offset + 14, 2);
+            if ((year | month | day | hour | minute) < 0 || buffer.get(offset + 4) != '-'
+                    || buffer.get(offset + 10) != ' ' || buffer.get(offset + 13) != ':') {
+                return -1;
+            }
+            final Calendar calendar = cache.calendar;
+            calendar.clear();
+            calendar.set(year, month - 1, day, hour, minute, 0);
+            minuteStart = calendar.getTimeInMillis();
+            cache.store(buffer, offset, minuteStart);
+        }
+        final int seconds = digits(buffer, offset + 17, 2);
+        final int millis = digits(buffer, offset + 20, 3);
+        if ((seconds | millis) < 0 || buffer.get(offset + 19) != '.') {
+            return -1;
+        }
+        return minuteStart + (long) seconds * MILLIS_IN_SECOND + millis;
+    }
+
+    /**
+     * Parse a timestamp held in a String, for command line arguments and the like
+     *
+     * @param timestamp yyyy-MM-dd HH:mm:ss.SSS, yyyy-MM-dd HH:mm:ss or yyyy-MM-dd HH:mm
+     * @return epoch milliseconds, or -1 if the String is not a timestamp
+     */
+    public static long parse(final String timestamp) {
+        String full = timestamp.trim();
+        if (full.length() == MINUTE_PREFIX_LENGTH) {
+            full += ":00.000";
+        } else if (full.length() == LENGTH - 4) {
+            full += ".000";
+        }
+        if (full.length() != LENGTH) {
+            return -1;
+        }
+        final byte[] bytes = new byte[LENGTH];
+        for (int i = 0; i < LENGTH; i++) {
+            bytes[i] = (byte) full.charAt(i);
+        }
+        return parse(ByteBuffer.wrap(bytes), 0);
+    }
+
+    /**
+     * Render a timestamp, same output as SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS") in the default time zone
+     *
+     * @param millis epoch milliseconds
+     * @param sb buffer to append to
+     */
+    public static void appendTo(final long millis, final StringBuilder sb) {
+        final Cache cache = CACHE.get();
+        if (!cache.rendered(millis)) {
+            final Calendar calendar = cache.calendar;
+            calendar.setTimeInMillis(millis);
+            calendar.set(Calendar.SECOND, 0);
+            calendar.set(Calendar.MILLISECOND, 0);
+            final char[] text = cache.renderedPrefix;
+            putDigits(text, 0, 4, calendar.get(Calendar.YEAR));
+            text[4] = '-';
+            putDigits(text, 5, 2, calendar.get(Calendar.MONTH) + 1);
+            text[7] = '-';
+            putDigits(text, 8, 2, calendar.get(Calendar.DAY_OF_MONTH));
+            text[10] = ' ';
+            putDigits(text, 11, 2, calendar.get(Calendar.HOUR_OF_DAY));
+            text[13] = ':';
+            putDigits(text, 14, 2, calendar.get(Calendar.MINUTE));
+            text[16] = ':';
+            cache.renderedMinuteStart = calendar.getTimeInMillis();
+        }
+        final int inMinute = (int) (millis - cache.renderedMinuteStart);
+        final int seconds = inMinute / MILLIS_IN_SECOND;
+        final int ms = inMinute % MILLIS_IN_SECOND;
+        sb.append(cache.renderedPrefix);
+        sb.append((char) ('0' + seconds / 10)).append((char) ('0' + seconds % 10)).append('.');
+        sb.append((char) ('0' + ms / 100)).append((char) ('0' + ms / 10 % 10)).append((char) ('0' + ms % 10));
+    }
+
+    /**
+     * Render a timestamp
+     *
+     * @param millis epoch milliseconds
+     * @return yyyy-MM-dd HH:mm:ss.SSS
+     */
+    public static String format(final long millis) {
+        final StringBuilder sb = new StringBuilder(LENGTH);
+        appendTo(millis, sb);
+        return sb.toString();
+    }
+
+    private static void putDigits(final char[] text, final int offset, final int count, final int value) {
+        int remaining = value;
+        for (int i = offset + count - 1; i >= offset; i--) {
+            text[i] = (char) ('0' + remaining % 10);
+            remaining /= 10;
+        }
+    }
+
+    private static int digits(final ByteBuffer buffer, final int offset, final int count) {
+        int value = 0;
+        for (int i = 0; i < count; i++) {
+            final int digit = buffer.get(offset + i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * Last minute parsed and last minute rendered by a thread
+     */
+    private static final class Cache {
+
+        private final Calendar calendar = Calendar.getInstance();
+
+        /**
+         * yyyy-MM-dd HH:mm: of the last minute rendered
+         */
+        private final char[] renderedPrefix = new char[MINUTE_PREFIX_LENGTH + 1];
+
+        private long renderedMinuteStart = Long.MAX_VALUE;
+
+        private final byte[] prefix = new byte[MINUTE_PREFIX_LENGTH];
+
+        private boolean valid;
+
+        private long minuteStart;
+
+        boolean matches(final ByteBuffer buffer, final int offset) {
+            if (!valid) {
+                return false;
+            }
+            for (int i = MINUTE_PREFIX_LENGTH - 1; i >= 0; i--) {
+                if (prefix[i] != buffer.get(offset + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean rendered(final long millis) {
+            return millis >= renderedMinuteStart && millis - renderedMinuteStart < MILLIS_IN_MINUTE;
+        }
+
+        void store(final ByteBuffer buffer, final int offset, final long start) {
+            for (int i = 0; i < MINUTE_PREFIX_LENGTH; i++) {
+                prefix[i] = buffer.get(offset + i);
+            }
+            minuteStart = start;
+            valid = true;
+        }
+    }
+}
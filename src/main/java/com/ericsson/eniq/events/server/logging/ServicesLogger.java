@@ -6,6 +6,7 @@
 
 package com.ericsson.eniq.events.server.logging;
 
+import java.io.File;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.Collection;
@@ -15,6 +16,7 @@ import java.util.Properties;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Handler;
 import java.util.logging.Level;
+import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 
 import javax.naming.InitialContext;
@@ -22,6 +24,7 @@ import javax.naming.NamingException;
 import javax.ws.rs.core.UriInfo;
 
 import com.ericsson.eniq.events.server.common.ApplicationConfigConstants;
+import com.ericsson.eniq.events.server.logging.performance.ServicesPerformanceThreadLocalHolder;
 
 /**
  * Eniq Services Logger class.
@@ -146,6 +149,38 @@ public class ServicesLogger {
             SERVICES_LOGGER.addHandler(consoleHandler);
         }
         setMaxMessageLengthProperty();
+        ServicesRequestTraceBuffer.configure();
+        ServicesFlightRecorder.configure(new File(getServicesLogDirectory()));
+    }
+
+    /**
+     * Start keeping the records of the request starting on this thread that the logger level drops, see
+     * ServicesRequestTraceBuffer. Does nothing unless the buffer is turned on.
+     */
+    public static void beginRequest() {
+        ServicesRequestTraceBuffer.begin();
+    }
+
+    /**
+     * End of the request on this thread: its kept records are written if it failed or was slow, else dropped
+     *
+     * @param failed true if the request failed
+     * @param durationMillis duration of the request, negative if not known
+     */
+    public static void endRequest(final boolean failed, final long durationMillis) {
+        ServicesRequestTraceBuffer.end(SERVICES_LOGGER, failed, durationMillis);
+    }
+
+    /**
+     * Remove the per-thread state of the services logger from this thread, once the request has ended
+     */
+    public static void removeThreadState() {
+        ServicesRequestTraceBuffer.removeThreadState();
+        ServicesLogTimestamp.removeThreadState();
+        final ServicesFlightRecorder recorder = ServicesFlightRecorder.getInstance();
+        if (recorder != null) {
+            recorder.removeThreadState();
+        }
     }
 
     /**
@@ -201,6 +236,8 @@ public class ServicesLogger {
         //Remove old handlers, if the app get redeployed the static{} initilizer will get called again.
         for (final Handler handler : SERVICES_LOGGER.getHandlers()) {
             SERVICES_LOGGER.removeHandler(handler);
+            // frees the journal and its flusher thread before the new handler opens them
+            handler.close();
         }
         logFileHandler = new ServicesLoggingHandler();
         SERVICES_LOGGER.addHandler(logFileHandler);
@@ -227,6 +264,18 @@ public class ServicesLogger {
         SERVICES_LOGGER.setLevel(logLevel);
     }
 
+    /**
+     * The application is being undeployed: stop the flight recorder and close the handlers, so no shutdown hook,
+     * thread or journal is left behind holding this class loader
+     */
+    public static void shutdown() {
+        ServicesFlightRecorder.stop();
+        for (final Handler handler : SERVICES_LOGGER.getHandlers()) {
+            SERVICES_LOGGER.removeHandler(handler);
+            handler.close();
+        }
+    }
+
     /**
      * Close any open log files.
      * Mainly used in tests.
@@ -309,9 +358,9 @@ public class ServicesLogger {
     }
 
     /**
-     * Log information at FINEST level. Should be used for information which will be useful in traces to evaluate what is going on
-     * in services. Should be limited to major events so that the trace is not overburdened, e.g. at significant
-     * branches in a program flow.
+     * Log information at FINEST level. Should be used for information which will be useful in traces to evaluate
+     * what is going on in services. Should be limited to major events so that the trace is not overburdened, e.g.
+     * at significant branches in a program flow.
      *
      * @param className  the name of the class or interface where the info applies
      * @param methodName the method name where the information applies
@@ -365,7 +414,11 @@ public class ServicesLogger {
     private static void log(final Level level, final String className, final String methodName,
             final String infoMessage, final Object... message) {
         final StringBuilder sb = new StringBuilder();
-        if (isLevelActive(level)) {
+        final boolean loggable = SERVICES_LOGGER.isLoggable(level);
+        final ServicesFlightRecorder recorder = ServicesFlightRecorder.getInstance();
+        final boolean recording = recorder != null && recorder.isRecording(level);
+        final boolean buffering = !loggable && ServicesRequestTraceBuffer.isBuffering(level);
+        if (loggable || recording || buffering) {
             sb.append(Thread.currentThread().getName());
             sb.append(SEMICOLON);
             sb.append("{").append(System.currentTimeMillis()).append("}");
@@ -375,7 +428,24 @@ public class ServicesLogger {
             sb.append(methodName);
             final String compiledInfoMessage = buildMessage(level, infoMessage, message);
             sb.append(compiledInfoMessage);
-            SERVICES_LOGGER.log(level, sb.toString());
+            final String text = sb.toString();
+            if (recording) {
+                recorder.record(level, text);
+            }
+            final LogRecord record = ServicesRequestId.newRecord(level, text, SERVICES_LOGGER_NAME,
+                    ServicesPerformanceThreadLocalHolder.getRequestId());
+            if (buffering) {
+                ServicesRequestTraceBuffer.add(record);
+            } else if (loggable) {
+                if (level == Level.SEVERE) {
+                    // the details leading up to the error first
+                    ServicesRequestTraceBuffer.flush(SERVICES_LOGGER, "SEVERE logged");
+                }
+                SERVICES_LOGGER.log(record);
+            }
+            if (recording && level == Level.SEVERE) {
+                recorder.severe();
+            }
         }
     }
 
@@ -534,9 +604,12 @@ public class ServicesLogger {
      * un-necessarily.
      *
      * @param level the level to check if logging is active for
-     * @return a boolean indication is the logging is active
+     * @return a boolean indication is the logging is active, or the level is kept in the
+     *         flight recorder or the request trace buffer
      */
     public static boolean isLevelActive(final Level level) {
-        return SERVICES_LOGGER.isLoggable(level);
+        final ServicesFlightRecorder recorder = ServicesFlightRecorder.getInstance();
+        return SERVICES_LOGGER.isLoggable(level) || recorder != null && recorder.isRecording(level)
+                || ServicesRequestTraceBuffer.isBuffering(level);
     }
 }
@@ -13,6 +13,11 @@ import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
@@ -21,7 +26,12 @@ import java.util.logging.Logger;
 /**
  * Services Logger File Handler
  * Logs to file in /eniq/log/sw_log/services by default
- * 
+ *
+ * With EniqEventsServices.journal=true each record is also put in a memory-mapped journal,
+ * services.journal in the log directory, see ServicesLogJournal. The log file is then flushed once a
+ * second, on SEVERE records and when the unflushed records fill half the journal, rather than after every
+ * record, and the records a killed JVM did not flush are appended to their log files when the next handler
+ * starts. EniqEventsServices.journalKB sets the journal size, default 4096.
  */
 public class ServicesLoggingHandler extends Handler {
     /**
@@ -48,11 +58,126 @@ public class ServicesLoggingHandler extends Handler {
     // Backup logger is something in here fails.
     private static final Logger BACKUP_LOGGER = Logger.getLogger("");
 
+    private static final String JOURNAL_PROPERTY = ServicesLogger.SERVICES_LOGGER_NAME + ".journal";
+
+    private static final String JOURNAL_FILE = "services.journal";
+
+    private static final int DEFAULT_JOURNAL_KB = 4096;
+
+    private static final long JOURNAL_FLUSH_INTERVAL_MILLIS = 1000;
+
+    /**
+     * Journal of the records not yet flushed, null if not journaling
+     */
+    private ServicesLogJournal journal;
+
+    private ScheduledExecutorService flusher;
+
     /**
      * Constructor
      */
     public ServicesLoggingHandler() {
+        this(journalCapacity(), JOURNAL_FLUSH_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param journalCapacity size of the journal in bytes, 0 for none
+     * @param flushIntervalMillis how often the log file is flushed when journaling
+     */
+    ServicesLoggingHandler(final int journalCapacity, final long flushIntervalMillis) {
         setFormatter(new ServicesLogFormatter());
+        if (journalCapacity > 0) {
+            openJournal(journalCapacity, flushIntervalMillis);
+        }
+    }
+
+    private static int journalCapacity() {
+        if (!Boolean.valueOf(System.getProperty(JOURNAL_PROPERTY, "false"))) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(System.getProperty(JOURNAL_PROPERTY + "KB", Integer.toString(DEFAULT_JOURNAL_KB))
+                    .trim()) * 1024;
+        } catch (final NumberFormatException e) {
+            return DEFAULT_JOURNAL_KB * 1024;
+        }
+    }
+
+    /**
+     * Open the journal and append the records it holds that were not flushed to their log files
+     */
+    private void openJournal(final int capacity, final long flushIntervalMillis) {
+        final File dir = new File(getLogDirectory());
+        if (!dir.exists() && !dir.mkdirs()) {
+            BACKUP_LOGGER.log(Level.WARNING, "Failed to create the directory tree " + getLogDirectory());
+        }
+        try {
+            journal = new ServicesLogJournal(new File(dir, JOURNAL_FILE), capacity);
+            final List<ServicesLogJournal.Entry> entries = journal.recover();
+            if (!entries.isEmpty()) {
+                recover(dir, entries);
+                BACKUP_LOGGER.log(Level.INFO, "Recovered " + entries.size()
+                        + " services log records not flushed before the last stop");
+            }
+            journal.markFlushed();
+        } catch (final IOException e) {
+            BACKUP_LOGGER.log(Level.WARNING, "Failed to open the services log journal, not journaling", e);
+            journal = null;
+            return;
+        }
+        flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "ServicesLoggingHandler-flush");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return true if records are journaled
+     */
+    synchronized boolean isJournaling() {
+        return journal != null;
+    }
+
+    /**
+     * Let go of the journal as a killed JVM would, without flushing, for tests
+     */
+    synchronized void abandonJournal() throws IOException {
+        if (journal != null) {
+            flusher.shutdownNow();
+            journal.close();
+            journal = null;
+        }
+    }
+
+    private static void recover(final File dir, final List<ServicesLogJournal.Entry> entries) throws IOException {
+        BufferedWriter writer = null;
+        String stamp = null;
+        try {
+            for (final ServicesLogJournal.Entry entry : entries) {
+                if (!entry.getStamp().equals(stamp)) {
+                    if (writer != null) {
+                        writer.close();
+                    }
+                    stamp = entry.getStamp();
+                    writer = new BufferedWriter(new FileWriter(new File(dir, "services-" + stamp + ".log"), true));
+                }
+                writer.write(entry.getText());
+            }
+        } finally {
+            if (writer != null) {
+                writer.close();
+            }
+        }
     }
 
     /**
@@ -72,6 +197,9 @@ public class ServicesLoggingHandler extends Handler {
         if(logWriter != null){
             try {
                 logWriter.flush();
+                if (journal != null) {
+                    journal.markFlushed();
+                }
             } catch (IOException e) {
                 BACKUP_LOGGER.log(Level.WARNING, "flush failed", e);
             }
@@ -94,11 +222,23 @@ public class ServicesLoggingHandler extends Handler {
         if(logWriter != null){
             try {
                 logWriter.close();
+                if (journal != null) {
+                    journal.markFlushed();
+                }
             } catch (IOException e) {
                 BACKUP_LOGGER.log(Level.WARNING, "close failed", e);
             }
             logWriter = null;
         }
+        if (journal != null) {
+            flusher.shutdown();
+            try {
+                journal.close();
+            } catch (IOException e) {
+                BACKUP_LOGGER.log(Level.WARNING, "journal close failed", e);
+            }
+            journal = null;
+        }
     }
 
     /**
@@ -126,9 +266,25 @@ public class ServicesLoggingHandler extends Handler {
             }
             if(logWriter == null){
                 BACKUP_LOGGER.log(record.getLevel(), record.getMessage());
-            } else {
+            } else if (journal == null) {
                 logWriter.write(getFormatter().format(record));
                 logWriter.flush();
+            } else {
+                final String text = getFormatter().format(record);
+                if (!journal.fits(text)) {
+                    // too big to journal, straight to the file
+                    logWriter.write(text);
+                    flush();
+                    return;
+                }
+                if (journal.getUnflushedBytes() >= journal.getCapacity() / 2) {
+                    flush();
+                }
+                journal.append(dstamp, text);
+                logWriter.write(text);
+                if (record.getLevel().intValue() >= Level.SEVERE.intValue()) {
+                    flush();
+                }
             }
         } catch (Exception ex) {
             BACKUP_LOGGER.log(Level.WARNING, "public failed", ex);
@@ -145,6 +301,9 @@ public class ServicesLoggingHandler extends Handler {
             if(logWriter != null){
                 logWriter.close();
                 logWriter = null;
+                if (journal != null) {
+                    journal.markFlushed();
+                }
             }
             final File dir = new File(getLogDirectory());
             if (!dir.exists()) {
@@ -0,0 +1,63 @@
+/*
+ * ---------------------------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * ---------------------------------------------------------------------------------------
+ */
+
+package com.ericsson.eniq.events.server.logging;
+
+import java.lang.management.ManagementFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Registers the logging MBeans with the platform MBean server. Failures are logged and otherwise ignored,
+ * the logging carries on without its MBean.
+ */
+public final class ServicesMBeans {
+
+    private static final Logger BACKUP_LOGGER = Logger.getLogger("");
+
+    private ServicesMBeans() {
+    }
+
+    /**
+     * Register the MBean, replacing any registered under the name, e.g. by an earlier deployment
+     *
+     * @param mbean the MBean
+     * @param objectName its object name
+     */
+    public static void register(final Object mbean, final String objectName) {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(objectName);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(mbean, name);
+        } catch (final JMException e) {
+            BACKUP_LOGGER.log(Level.WARNING, "Failed to register " + objectName, e);
+        }
+    }
+
+    /**
+     * Unregister the MBean registered under the name, if there is one
+     *
+     * @param objectName its object name
+     */
+    public static void unregister(final String objectName) {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(objectName);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (final JMException e) {
+            BACKUP_LOGGER.log(Level.WARNING, "Failed to unregister " + objectName, e);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * ---------------------------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * ---------------------------------------------------------------------------------------
+ */
+
+package com.ericsson.eniq.events.server.logging;
+
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Request correlation ID, shared by the services, audit and performance trace log records of a request.
+ *
+ * Assigned as the request starts, see ServicesPerformanceThreadLocalHolder, from a counter of the JVM
+ * behind the JVM start time, both in base 36, e.g. kx3f9a1b-2s: unique on the node across restarts,
+ * increasing within a run, and costing an atomic increment rather than a random UUID.
+ *
+ * The loggers log records made by {@link #newRecord(Level, String, String, ServicesRequestId)}, which carry the ID
+ * of the current request in a {@link Record}, the formatters then write it as a {@link #FIELD_PREFIX} field, only
+ * when there is one. The ID is not a record parameter: handlers such as ConsoleHandler run MessageFormat over the
+ * message of a record with parameters, which would put the ID in place of any {0} in a URI and drop quotes.
+ */
+public final class ServicesRequestId implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Start of the field holding the ID in the log lines
+     */
+    public static final String FIELD_PREFIX = "req=";
+
+    private static final int RADIX = 36;
+
+    private static final String NODE_PREFIX = Long.toString(ManagementFactory.getRuntimeMXBean().getStartTime(),
+            RADIX) + '-';
+
+    private static final AtomicLong COUNTER = new AtomicLong();
+
+    private final String value;
+
+    private ServicesRequestId(final String value) {
+        this.value = value;
+    }
+
+    /**
+     * @return a new ID
+     */
+    public static ServicesRequestId next() {
+        return new ServicesRequestId(NODE_PREFIX + Long.toString(COUNTER.incrementAndGet(), RADIX));
+    }
+
+    /**
+     * @param value an ID as written to a log, see {@link #toString()}
+     * @return the ID, or null if the value is null or empty
+     */
+    public static ServicesRequestId valueOf(final String value) {
+        return value == null || value.length() == 0 ? null : new ServicesRequestId(value);
+    }
+
+    /**
+     * @param level level of the record
+     * @param message the message, logged as it is
+     * @param loggerName name of the logger the record is logged to
+     * @param requestId ID of the request, may be null
+     * @return a {@link Record} with the ID, or a plain LogRecord if there is none
+     */
+    public static LogRecord newRecord(final Level level, final String message, final String loggerName,
+            final ServicesRequestId requestId) {
+        final LogRecord record = requestId == null ? new LogRecord(level, message) : new Record(level, message,
+                requestId);
+        record.setLoggerName(loggerName);
+        return record;
+    }
+
+    /**
+     * @param record a log record
+     * @return the request ID the logger gave the record, or null
+     */
+    public static ServicesRequestId fromRecord(final LogRecord record) {
+        return record instanceof Record ? ((Record) record).getRequestId() : null;
+    }
+
+    /**
+     * Log record of a request, its parameters stay null
+     */
+    public static final class Record extends LogRecord {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ServicesRequestId requestId;
+
+        /**
+         * @param level level of the record
+         * @param message the message
+         * @param requestId ID of the request
+         */
+        public Record(final Level level, final String message, final ServicesRequestId requestId) {
+            super(level, message);
+            this.requestId = requestId;
+        }
+
+        /**
+         * @return ID of the request
+         */
+        public ServicesRequestId getRequestId() {
+            return requestId;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return value;
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * ---------------------------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * ---------------------------------------------------------------------------------------
+ */
+
+package com.ericsson.eniq.events.server.logging;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.ericsson.eniq.events.server.logging.performance.ServicePeformanceContextInformation;
+import com.ericsson.eniq.events.server.logging.performance.ServicesPerformanceBinaryReader;
+import com.ericsson.eniq.events.server.logging.performance.ServicesPerformanceTraceLogFormatter;
+
+/**
+ * Merges the services, audit and performance trace log records of one request, found by its correlation ID,
+ * see ServicesRequestId, into one list ordered by time.
+ *
+ * Looks in the services, servicesaudit and servicesperformancetrace directories under the base log directory,
+ * and in the base directory itself, at every services-*, servicesaudit-* and servicesperformancetrace-*
+ * log file and generation. A record is its first line and the lines after it up to the next record, so
+ * multi-line messages and stack traces come whole. The services log has its times to the second, without the
+ * year, which is taken from the file name, so its records come before the others of the same second.
+ * The binary performance trace, servicesperformancetrace-*.bin, is read too, its records written as the trace
+ * log lines. Binary traces written before the request ID was added to the format have no records to find.
+ *
+ * Command line: ServicesRequestJoin baseLogDir requestId
+ */
+public final class ServicesRequestJoin {
+
+    private static final String[] DIRECTORIES = { "services", "servicesaudit", "servicesperformancetrace" };
+
+    private static final Pattern LOG_FILE = Pattern
+            .compile("(?:services|servicesaudit|servicesperformancetrace)-(\\d{4})_\\d{2}_\\d{2}\\.log(?:\\.\\d+)?");
+
+    private static final Pattern BINARY_TRACE_FILE = Pattern
+            .compile("servicesperformancetrace-\\d{4}_\\d{2}_\\d{2}\\.bin");
+
+    /**
+     * "dd.MM HH:mm:ss " at the start of a services log record
+     */
+    private static final Pattern SERVICES_RECORD_START = Pattern
+            .compile("(\\d{2})\\.(\\d{2}) (\\d{2}:\\d{2}:\\d{2}) .*");
+
+    private static final String RECORD_START = "[#|";
+
+    private static final long NOT_A_RECORD = -2;
+
+    private final File baseDir;
+
+    /**
+     * One record of the request
+     */
+    public static final class Entry {
+
+        private final String file;
+
+        private final long millis;
+
+        private final String text;
+
+        Entry(final String file, final long millis, final String text) {
+            this.file = file;
+            this.millis = millis;
+            this.text = text;
+        }
+
+        /**
+         * @return name of the log file
+         */
+        public String getFile() {
+            return file;
+        }
+
+        /**
+         * @return time of the record, -1 if it could not be read
+         */
+        public long getMillis() {
+            return millis;
+        }
+
+        /**
+         * @return the lines of the record, without the last line end
+         */
+        public String getText() {
+            return text;
+        }
+    }
+
+    /**
+     * @param baseDir base log directory, LOG_DIR
+     */
+    public ServicesRequestJoin(final File baseDir) {
+        this.baseDir = baseDir;
+    }
+
+    /**
+     * @param requestId correlation ID of the request
+     * @return its records in all the logs, oldest first
+     * @throws IOException if a log can't be read
+     */
+    public List<Entry> join(final String requestId) throws IOException {
+        final List<Entry> entries = new ArrayList<Entry>();
+        joinDirectory(baseDir, requestId, entries);
+        for (final String name : DIRECTORIES) {
+            joinDirectory(new File(baseDir, name), requestId, entries);
+        }
+        // stable, records of the same time stay in file order
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(final Entry first, final Entry second) {
+                return first.millis < second.millis ? -1 : first.millis == second.millis ? 0 : 1;
+            }
+        });
+        return entries;
+    }
+
+    private static void joinDirectory(final File dir, final String requestId, final List<Entry> entries)
+            throws IOException {
+        final String[] names = dir.list();
+        if (names == null) {
+            return;
+        }
+        final String token = ServicesRequestId.FIELD_PREFIX + requestId;
+        Arrays.sort(names);
+        for (final String name : names) {
+            final Matcher matcher = LOG_FILE.matcher(name);
+            if (matcher.matches()) {
+                joinFile(new File(dir, name), matcher.group(1), token, entries);
+            } else if (BINARY_TRACE_FILE.matcher(name).matches()) {
+                joinBinaryFile(new File(dir, name), requestId, entries);
+            }
+        }
+    }
+
+    private static void joinBinaryFile(final File file, final String requestId, final List<Entry> entries)
+            throws IOException {
+        final ServicesPerformanceBinaryReader reader = new ServicesPerformanceBinaryReader(new FileInputStream(file));
+        try {
+            final ServicesPerformanceTraceLogFormatter formatter = new ServicesPerformanceTraceLogFormatter();
+            final ServicePeformanceContextInformation context = new ServicePeformanceContextInformation();
+            while (reader.next(context)) {
+                final ServicesRequestId id = context.getRequestId();
+                if (id != null && requestId.equals(id.toString())) {
+                    String text = formatter.format(reader.toLogRecord(context));
+                    while (text.endsWith("\n") || text.endsWith("\r")) {
+                        text = text.substring(0, text.length() - 1);
+                    }
+                    entries.add(new Entry(file.getName(), reader.getLogTime(), text));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void joinFile(final File file, final String year, final String token, final List<Entry> entries)
+            throws IOException {
+        final boolean servicesLog = file.getName().startsWith("services-");
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file)));
+        try {
+            StringBuilder record = null;
+            long millis = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final long start = servicesLog ? servicesRecordStart(line, year) : recordStart(line);
+                if (start != NOT_A_RECORD) {
+                    if (record != null) {
+                        entries.add(new Entry(file.getName(), millis, record.toString()));
+                    }
+                    record = hasToken(line, token) ? new StringBuilder(line) : null;
+                    millis = start;
+                } else if (record != null) {
+                    record.append('\n').append(line);
+                }
+            }
+            if (record != null) {
+                entries.add(new Entry(file.getName(), millis, record.toString()));
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @return time of the audit or performance trace record the line starts, -1 if unreadable, or
+     *         NOT_A_RECORD if it is a continuation line
+     */
+    private static long recordStart(final String line) {
+        if (!line.startsWith(RECORD_START)) {
+            return NOT_A_RECORD;
+        }
+        final int end = RECORD_START.length() + ServicesLogTimestamp.LENGTH;
+        return line.length() < end ? -1 : ServicesLogTimestamp.parse(line.substring(RECORD_START.length(), end));
+    }
+
+    /**
+     * @return time of the services log record the line starts, or NOT_A_RECORD if it is a continuation line
+     */
+    private static long servicesRecordStart(final String line, final String year) {
+        final Matcher matcher = SERVICES_RECORD_START.matcher(line);
+        if (!matcher.matches()) {
+            return NOT_A_RECORD;
+        }
+        return ServicesLogTimestamp.parse(year + '-' + matcher.group(2) + '-' + matcher.group(1) + ' '
+                + matcher.group(3));
+    }
+
+    /**
+     * @return true if the line holds the request ID field, not just the start of a longer ID
+     */
+    private static boolean hasToken(final String line, final String token) {
+        int index = line.indexOf(token);
+        while (index >= 0) {
+            final int end = index + token.length();
+            if (end == line.length() || line.charAt(end) == ' ' || line.charAt(end) == '|') {
+                return true;
+            }
+            index = line.indexOf(token, end);
+        }
+        return false;
+    }
+
+    /**
+     * @param out where to write the records
+     * @param entries the records
+     */
+    public static void write(final PrintStream out, final List<Entry> entries) {
+        for (final Entry entry : entries) {
+            out.print(entry.getFile());
+            out.print(": ");
+            out.println(entry.getText());
+        }
+    }
+
+    public static void main(final String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: ServicesRequestJoin baseLogDir requestId");
+            System.exit(1);
+        }
+        write(System.out, new ServicesRequestJoin(new File(args[0])).join(args[1]));
+    }
+}
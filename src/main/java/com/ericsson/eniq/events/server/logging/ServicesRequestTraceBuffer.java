@@ -0,0 +1,305 @@
+/*
+ * ---------------------------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * ---------------------------------------------------------------------------------------
+ */
+
+package com.ericsson.eniq.events.server.logging;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the detailed services log records of the current request in memory, to be written only if the
+ * request turns out to need them.
+ *
+ * While a request runs, see {@link ServicesLogger#beginRequest()}, records at or above the buffer level
+ * (default FINEST) that the logger level would drop are built and kept in a buffer of the thread. At the end
+ * of the request they are thrown away, unless the request failed or took at least the threshold, then they
+ * are written to the services log handlers after a line saying why. A SEVERE record writes the buffered
+ * records straight away, before itself. Flushed records keep their own time and thread, they show up in
+ * the log after records of the same request logged at the logger level.
+ *
+ * The memory is capped per thread, the oldest records are dropped first, and over all threads, records that
+ * don't fit are dropped. A record the total cap rejects evicts nothing, the thread keeps its older records.
+ * The size of a record is counted as two bytes per character of its message plus a fixed overhead.
+ *
+ * Configured with system properties:
+ * EniqEventsServices.requestBuffer=true to turn it on
+ * EniqEventsServices.requestBufferLevel lowest level kept, default FINEST
+ * EniqEventsServices.requestBufferThresholdMillis requests this slow are flushed, default 5000
+ * EniqEventsServices.requestBufferMaxThreadKB per thread cap, default 256
+ * EniqEventsServices.requestBufferMaxTotalMB cap over all threads, default 32
+ */
+public final class ServicesRequestTraceBuffer {
+
+    public static final long DEFAULT_THRESHOLD_MILLIS = 5000;
+
+    public static final long DEFAULT_MAX_THREAD_BYTES = 256 * 1024L;
+
+    public static final long DEFAULT_MAX_TOTAL_BYTES = 32 * 1024 * 1024L;
+
+    private static final long RECORD_OVERHEAD_BYTES = 96;
+
+    private static final long BYTES_IN_KB = 1024L;
+
+    private static final long BYTES_IN_MB = 1024 * 1024L;
+
+    private static final String PROPERTY_PREFIX = ServicesLogger.SERVICES_LOGGER_NAME + ".requestBuffer";
+
+    private static volatile boolean enabled;
+
+    private static volatile Level level = Level.FINEST;
+
+    private static volatile long thresholdMillis = DEFAULT_THRESHOLD_MILLIS;
+
+    private static volatile long maxThreadBytes = DEFAULT_MAX_THREAD_BYTES;
+
+    private static volatile long maxTotalBytes = DEFAULT_MAX_TOTAL_BYTES;
+
+    private static final AtomicLong TOTAL_BYTES = new AtomicLong();
+
+    private static final AtomicLong DROPPED_RECORDS = new AtomicLong();
+
+    private static final AtomicLong FLUSHED_REQUESTS = new AtomicLong();
+
+    private static final ThreadLocal<ServicesRequestTraceBuffer> BUFFERS =
+            new ThreadLocal<ServicesRequestTraceBuffer>() {
+        @Override
+        protected ServicesRequestTraceBuffer initialValue() {
+            return new ServicesRequestTraceBuffer();
+        }
+    };
+
+    private final ArrayDeque<LogRecord> records = new ArrayDeque<LogRecord>();
+
+    private boolean active;
+
+    private long bytes;
+
+    private int dropped;
+
+    private ServicesRequestTraceBuffer() {
+    }
+
+    /**
+     * Read the configuration from the system properties
+     */
+    static void configure() {
+        level = parseLevel(System.getProperty(PROPERTY_PREFIX + "Level"), Level.FINEST);
+        thresholdMillis = longProperty("ThresholdMillis", DEFAULT_THRESHOLD_MILLIS);
+        maxThreadBytes = longProperty("MaxThreadKB", DEFAULT_MAX_THREAD_BYTES / BYTES_IN_KB) * BYTES_IN_KB;
+        maxTotalBytes = longProperty("MaxTotalMB", DEFAULT_MAX_TOTAL_BYTES / BYTES_IN_MB) * BYTES_IN_MB;
+        enabled = Boolean.valueOf(System.getProperty(PROPERTY_PREFIX, "false"));
+    }
+
+    private static Level parseLevel(final String value, final Level defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Level.parse(value.trim());
+        } catch (final IllegalArgumentException e) {
+            return defaultValue;
+        }
+    }
+
+    private static long longProperty(final String suffix, final long defaultValue) {
+        final String value = System.getProperty(PROPERTY_PREFIX + suffix);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (final NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Turn the buffering on or off, buffers of requests already running are dropped at their end
+     *
+     * @param on true to buffer
+     * @param lowestLevel lowest level kept
+     * @param slowMillis requests this slow are flushed
+     * @param threadBytes per thread cap
+     * @param totalBytes cap over all threads
+     */
+    public static void setEnabled(final boolean on, final Level lowestLevel, final long slowMillis,
+            final long threadBytes, final long totalBytes) {
+        level = lowestLevel;
+        thresholdMillis = slowMillis;
+        maxThreadBytes = threadBytes;
+        maxTotalBytes = totalBytes;
+        enabled = on;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Start buffering for the request starting on this thread
+     */
+    static void begin() {
+        if (!enabled) {
+            return;
+        }
+        final ServicesRequestTraceBuffer buffer = BUFFERS.get();
+        buffer.clear();
+        buffer.active = true;
+    }
+
+    /**
+     * @param recordLevel level of a record the logger level drops
+     * @return true if the record should be built and given to {@link #add(LogRecord)}
+     */
+    static boolean isBuffering(final Level recordLevel) {
+        return enabled && recordLevel.intValue() >= level.intValue() && BUFFERS.get().active;
+    }
+
+    /**
+     * Keep a record of the current request
+     */
+    static void add(final LogRecord record) {
+        final ServicesRequestTraceBuffer buffer = BUFFERS.get();
+        if (!buffer.active) {
+            return;
+        }
+        final long size = sizeOf(record);
+        if (size > maxThreadBytes) {
+            buffer.drop();
+            return;
+        }
+        // the oldest records to drop to keep under the thread cap, only dropped once the record is sure to be kept
+        int evicted = 0;
+        long evictedBytes = 0;
+        final Iterator<LogRecord> oldest = buffer.records.iterator();
+        while (buffer.bytes - evictedBytes + size > maxThreadBytes && oldest.hasNext()) {
+            evictedBytes += sizeOf(oldest.next());
+            evicted++;
+        }
+        final long growth = size - evictedBytes;
+        if (TOTAL_BYTES.addAndGet(growth) > maxTotalBytes && growth > 0) {
+            TOTAL_BYTES.addAndGet(-growth);
+            buffer.drop();
+            return;
+        }
+        for (int i = 0; i < evicted; i++) {
+            buffer.records.removeFirst();
+            buffer.drop();
+        }
+        buffer.bytes -= evictedBytes;
+        buffer.records.addLast(record);
+        buffer.bytes += size;
+    }
+
+    /**
+     * Write the buffered records of the current request now, buffering carries on
+     *
+     * @param logger logger whose handlers get the records
+     * @param reason why, written before them
+     */
+    static void flush(final Logger logger, final String reason) {
+        final ServicesRequestTraceBuffer buffer = BUFFERS.get();
+        if (!buffer.active || buffer.records.isEmpty() && buffer.dropped == 0) {
+            return;
+        }
+        FLUSHED_REQUESTS.incrementAndGet();
+        final Handler[] handlers = logger.getHandlers();
+        final LogRecord header = new LogRecord(Level.INFO, Thread.currentThread().getName()
+                + "; Request trace buffer flushed, " + reason + ", " + buffer.records.size() + " records"
+                + (buffer.dropped > 0 ? ", " + buffer.dropped + " records dropped" : ""));
+        header.setLoggerName(logger.getName());
+        publish(handlers, header);
+        LogRecord record;
+        while ((record = buffer.records.pollFirst()) != null) {
+            buffer.release(record);
+            publish(handlers, record);
+        }
+        buffer.dropped = 0;
+    }
+
+    private static void publish(final Handler[] handlers, final LogRecord record) {
+        for (final Handler handler : handlers) {
+            handler.publish(record);
+        }
+    }
+
+    /**
+     * End of the request on this thread: flush the buffer if it failed or was slow, drop it otherwise
+     *
+     * @param logger logger whose handlers get the records
+     * @param failed true if the request failed
+     * @param durationMillis duration of the request, negative if not known
+     */
+    static void end(final Logger logger, final boolean failed, final long durationMillis) {
+        final ServicesRequestTraceBuffer buffer = BUFFERS.get();
+        if (!buffer.active) {
+            return;
+        }
+        if (failed) {
+            flush(logger, "request failed");
+        } else if (durationMillis >= thresholdMillis) {
+            flush(logger, "request took " + durationMillis + "ms");
+        }
+        buffer.clear();
+    }
+
+    private static long sizeOf(final LogRecord record) {
+        final String message = record.getMessage();
+        return RECORD_OVERHEAD_BYTES + (message == null ? 0 : 2L * message.length());
+    }
+
+    private void release(final LogRecord record) {
+        final long size = sizeOf(record);
+        bytes -= size;
+        TOTAL_BYTES.addAndGet(-size);
+    }
+
+    private void drop() {
+        dropped++;
+        DROPPED_RECORDS.incrementAndGet();
+    }
+
+    private void clear() {
+        TOTAL_BYTES.addAndGet(-bytes);
+        records.clear();
+        bytes = 0;
+        dropped = 0;
+        active = false;
+    }
+
+    /**
+     * Remove the buffer of this thread, see ServicesLogger#removeThreadState
+     */
+    static void removeThreadState() {
+        BUFFERS.remove();
+    }
+
+    /**
+     * @return bytes held by the buffers of all threads
+     */
+    public static long getTotalBytes() {
+        return TOTAL_BYTES.get();
+    }
+
+    /**
+     * @return records dropped for the caps since the start
+     */
+    public static long getDroppedRecords() {
+        return DROPPED_RECORDS.get();
+    }
+
+    /**
+     * @return requests whose buffer was written since the start
+     */
+    public static long getFlushedRequests() {
+        return FLUSHED_REQUESTS.get();
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * ---------------------------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * ---------------------------------------------------------------------------------------
+ */
+
+package com.ericsson.eniq.events.server.logging;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.logging.ErrorManager;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.StreamHandler;
+
+/**
+ * Rolling file handler used by the audit and performance trace loggers.
+ *
+ * Names and rotates files the same way as java.util.logging.FileHandler with a count greater than one and
+ * append off: the current file is &lt;fileName&gt;.0, when it reaches the limit (or a new handler is opened on the
+ * same name) it is renamed to .1, .1 to .2 and so on, and the oldest is deleted.
+ *
+ * Like FileHandler the handler holds an exclusive lock on &lt;fileName&gt;.0.lck while it is open. If another handler,
+ * in this or another process, has the name locked the handler adds a unique number instead of rotating the other
+ * handler's files: &lt;fileName&gt;.0.1, .1.1 and so on, locked by &lt;fileName&gt;.0.1.lck.
+ *
+ * If indexing is on, every file also gets a sparse time index, see {@link LogTimeIndex}, which is rotated with it.
+ * The handler tracks how many bytes it has written so the index costs nothing more than an occasional 16 byte write.
+ */
+public class ServicesRollingFileHandler extends StreamHandler {
+
+    /**
+     * Same as FileHandler, the number of unique names tried before giving up
+     */
+    private static final int MAX_LOCKS = 100;
+
+    private static final String LOCK_SUFFIX = ".lck";
+
+    private final String fileName;
+
+    private final int limit;
+
+    private final int count;
+
+    private final boolean indexed;
+
+    private final int recordsPerIndexEntry;
+
+    private MeteredStream meter;
+
+    private LogTimeIndex.Writer index;
+
+    private int unique;
+
+    private FileChannel lockChannel;
+
+    private FileLock lock;
+
+    /**
+     * @param fileName base file name, the generation number is added to it
+     * @param limit maximum number of bytes to write to a file before rotating, 0 for no limit
+     * @param count number of files to keep
+     * @param indexed true to keep a time index beside each file
+     * @throws IOException if the file cannot be opened
+     */
+    public ServicesRollingFileHandler(final String fileName, final int limit, final int count, final boolean indexed)
+            throws IOException {
+        this(fileName, limit, count, indexed, LogTimeIndex.DEFAULT_RECORDS_PER_ENTRY);
+    }
+
+    /**
+     * @param fileName base file name, the generation number is added to it
+     * @param limit maximum number of bytes to write to a file before rotating, 0 for no limit
+     * @param count number of files to keep
+     * @param indexed true to keep a time index beside each file
+     * @param recordsPerIndexEntry maximum number of records between two index entries
+     * @throws IOException if the file cannot be opened
+     */
+    public ServicesRollingFileHandler(final String fileName, final int limit, final int count, final boolean indexed,
+            final int recordsPerIndexEntry) throws IOException {
+        if (limit < 0 || count < 1 || recordsPerIndexEntry < 1) {
+            throw new IllegalArgumentException("limit=" + limit + ", count=" + count + ", recordsPerIndexEntry="
+                    + recordsPerIndexEntry);
+        }
+        this.fileName = fileName;
+        this.limit = limit;
+        this.count = count;
+        this.indexed = indexed;
+        this.recordsPerIndexEntry = recordsPerIndexEntry;
+        // same default as FileHandler, the logger level does the filtering
+        setLevel(Level.ALL);
+        lock();
+        try {
+            rotate();
+        } catch (final IOException e) {
+            unlock();
+            throw e;
+        }
+    }
+
+    /**
+     * @param generation 0 for the current file
+     * @return the file for the generation
+     */
+    public File getFile(final int generation) {
+        return new File(fileName + "." + generation + (unique == 0 ? "" : "." + unique));
+    }
+
+    /**
+     * @return number of bytes written to the current file
+     */
+    public synchronized long getBytesWritten() {
+        return meter == null ? 0 : meter.written;
+    }
+
+    @Override
+    public synchronized void publish(final LogRecord record) {
+        if (!isLoggable(record) || meter == null) {
+            return;
+        }
+        // the previous record was flushed, so the meter is at the start of this one
+        final long offset = meter.written;
+        super.publish(record);
+        flush();
+        if (index != null && meter.written > offset) {
+            try {
+                index.recordWritten(record.getMillis(), offset);
+            } catch (final IOException e) {
+                reportError("Failed to write time index, indexing stopped", e, ErrorManager.WRITE_FAILURE);
+                closeIndex();
+            }
+        }
+        if (limit > 0 && meter.written >= limit) {
+            try {
+                rotate();
+            } catch (final IOException e) {
+                reportError("Failed to rotate " + fileName, e, ErrorManager.OPEN_FAILURE);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        super.close();
+        meter = null;
+        closeIndex();
+        unlock();
+    }
+
+    /**
+     * Lock the first unique number not locked by another handler
+     */
+    private void lock() throws IOException {
+        for (unique = 0; unique < MAX_LOCKS; unique++) {
+            final File lockFile = new File(getFile(0).getPath() + LOCK_SUFFIX);
+            final FileChannel channel = new RandomAccessFile(lockFile, "rw").getChannel();
+            boolean locked;
+            try {
+                lock = channel.tryLock();
+                locked = lock != null;
+            } catch (final OverlappingFileLockException e) {
+                // held by another handler in this JVM
+                locked = false;
+            } catch (final IOException e) {
+                // as FileHandler, a file system without locking (e.g. some NFS mounts) is taken as not locked
+                locked = true;
+            }
+            if (locked) {
+                lockChannel = channel;
+                return;
+            }
+            channel.close();
+        }
+        throw new IOException("Couldn't get lock for " + fileName);
+    }
+
+    private void unlock() {
+        if (lockChannel == null) {
+            return;
+        }
+        try {
+            if (lock != null) {
+                lock.release();
+            }
+            lockChannel.close();
+        } catch (final IOException e) {
+            reportError("Failed to release lock of " + fileName, e, ErrorManager.CLOSE_FAILURE);
+        }
+        deleteIfExists(new File(getFile(0).getPath() + LOCK_SUFFIX));
+        lock = null;
+        lockChannel = null;
+    }
+
+    /**
+     * Move every file (and its index) up one generation and start a new current file
+     */
+    private synchronized void rotate() throws IOException {
+        if (meter != null) {
+            super.close();
+            meter = null;
+        }
+        closeIndex();
+        for (int generation = count - 2; generation >= 0; generation--) {
+            moveUp(getFile(generation), getFile(generation + 1));
+            moveUp(LogTimeIndex.indexFileFor(getFile(generation)), LogTimeIndex.indexFileFor(getFile(generation + 1)));
+        }
+        final File current = getFile(0);
+        meter = new MeteredStream(new BufferedOutputStream(new FileOutputStream(current, false)));
+        setOutputStream(meter);
+        if (indexed) {
+            index = new LogTimeIndex.Writer(LogTimeIndex.indexFileFor(current), recordsPerIndexEntry);
+        } else {
+            // an index left from an indexed handler would no longer match the file
+            deleteIfExists(LogTimeIndex.indexFileFor(current));
+        }
+    }
+
+    private void moveUp(final File from, final File to) {
+        if (from.exists()) {
+            deleteIfExists(to);
+            if (!from.renameTo(to)) {
+                reportError("Failed to rename " + from + " to " + to, null, ErrorManager.GENERIC_FAILURE);
+            }
+        } else {
+            // don't leave an index for an older file beside the newer one
+            if (to.getName().endsWith(LogTimeIndex.INDEX_SUFFIX)) {
+                deleteIfExists(to);
+            }
+        }
+    }
+
+    private void deleteIfExists(final File file) {
+        if (file.exists() && !file.delete()) {
+            reportError("Failed to delete " + file, null, ErrorManager.GENERIC_FAILURE);
+        }
+    }
+
+    private void closeIndex() {
+        if (index != null) {
+            try {
+                index.close();
+            } catch (final IOException e) {
+                reportError("Failed to close time index", e, ErrorManager.CLOSE_FAILURE);
+            }
+            index = null;
+        }
+    }
+
+    /**
+     * Counts the bytes written to the file
+     */
+    private static final class MeteredStream extends OutputStream {
+
+        private final OutputStream out;
+
+        private long written;
+
+        MeteredStream(final OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            out.write(b);
+            written++;
+        }
+
+        @Override
+        public void write(final byte[] buff, final int off, final int len) throws IOException {
+            out.write(buff, off, len);
+            written += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * ---------------------------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * ---------------------------------------------------------------------------------------
+ */
+
+package com.ericsson.eniq.events.server.logging.audit;
+
+import java.util.Arrays;
+
+/**
+ * HyperLogLog distinct count sketch (Flajolet et al.) with the small range correction.
+ *
+ * Uses 2^precision one byte registers, precision 12 is 4KB with a standard error of about 1.6%.
+ * Not thread safe.
+ */
+public final class HyperLogLog {
+
+    private static final int HASH_BITS = 64;
+
+    private final int precision;
+
+    private final byte[] registers;
+
+    private final double alphaMM;
+
+    /**
+     * @param precision number of index bits, 4 to 16
+     */
+    public HyperLogLog(final int precision) {
+        if (precision < 4 || precision > 16) {
+            throw new IllegalArgumentException("precision " + precision);
+        }
+        this.precision = precision;
+        final int m = 1 << precision;
+        this.registers = new byte[m];
+        this.alphaMM = 0.7213 / (1 + 1.079 / m) * m * m;
+    }
+
+    /**
+     * Count a value
+     */
+    public void add(final String value) {
+        if (value != null) {
+            addHash(hash(value));
+        }
+    }
+
+    void addHash(final long hash) {
+        final int index = (int) (hash >>> (HASH_BITS - precision));
+        final long rest = hash << precision;
+        final int rank = rest == 0 ? HASH_BITS - precision + 1 : Long.numberOfLeadingZeros(rest) + 1;
+        if (rank > registers[index]) {
+            registers[index] = (byte) rank;
+        }
+    }
+
+    /**
+     * @return estimated number of distinct values added
+     */
+    public long estimate() {
+        final int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (final byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        final double estimate = alphaMM / sum;
+        if (estimate <= 2.5 * m && zeros > 0) {
+            return Math.round(m * Math.log((double) m / zeros));
+        }
+        return Math.round(estimate);
+    }
+
+    /**
+     * Forget everything
+     */
+    public void clear() {
+        Arrays.fill(registers, (byte) 0);
+    }
+
+    /**
+     * 64 bit FNV-1a over the characters, finished with the MurmurHash3 mixer so all the bits are usable
+     */
+    static long hash(final String value) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * ---------------------------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * ---------------------------------------------------------------------------------------
+ */
+
+package com.ericsson.eniq.events.server.logging.audit;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import com.ericsson.eniq.events.server.logging.ServicesMBeans;
+import com.ericsson.eniq.events.server.logging.performance.ServicesUriNormaliser;
+
+/**
+ * Live audit analytics: top URIs, users and query templates and the number of distinct users and URIs,
+ * over tumbling one minute and one hour windows. The URIs are the templates ServicesUriNormaliser reduces them
+ * to, the same as the rollup's, so ids and times in them don't make every request a different URI.
+ *
+ * Fed by a {@link ServicesAuditTap}, so all the counting is done off the request threads. Memory is fixed:
+ * each window has a {@link SpaceSavingTopK} of {@link #TRACKED_KEYS} keys per dimension and a {@link HyperLogLog}
+ * per distinct count, which are cleared and reused when the window closes. Readable over JMX as
+ * com.ericsson.eniq.events.server.logging:type=ServicesAuditAnalytics
+ */
+public class ServicesAuditAnalytics implements ServicesAuditConsumer, ServicesAuditAnalyticsMBean {
+
+    /**
+     * Name the MBean is registered under
+     */
+    public static final String OBJECT_NAME = "com.ericsson.eniq.events.server.logging:type=ServicesAuditAnalytics";
+
+    /**
+     * Number of keys tracked per dimension, more than are reported so the reported counts are accurate
+     */
+    static final int TRACKED_KEYS = 100;
+
+    /**
+     * Number of keys reported per dimension
+     */
+    static final int REPORTED_KEYS = 10;
+
+    private static final int HLL_PRECISION = 12;
+
+    private static final long MINUTE = 60 * 1000L;
+
+    private static final long HOUR = 60 * MINUTE;
+
+    /**
+     * Longest query template kept, long queries differ in the select list long before the end
+     */
+    private static final int MAX_TEMPLATE_LENGTH = 256;
+
+    private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+
+    private static final Pattern NUMBER_LITERAL = Pattern.compile("\\b\\d+(?:\\.\\d+)?\\b");
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private final Window minute = new Window("minute", MINUTE);
+
+    private final Window hour = new Window("hour", HOUR);
+
+    private final ServicesAuditTap tap;
+
+    private final ServicesUriNormaliser uriNormaliser;
+
+    /**
+     * @param tap the tap feeding these analytics, for the dropped event count
+     */
+    public ServicesAuditAnalytics(final ServicesAuditTap tap) {
+        this(tap, ServicesUriNormaliser.fromSystemProperty());
+    }
+
+    /**
+     * @param tap the tap feeding these analytics, for the dropped event count
+     * @param uriNormaliser reduces the URIs to the templates they are counted under
+     */
+    public ServicesAuditAnalytics(final ServicesAuditTap tap, final ServicesUriNormaliser uriNormaliser) {
+        this.tap = tap;
+        this.uriNormaliser = uriNormaliser;
+    }
+
+    @Override
+    public void onEvent(final ServicesAuditEvent event) {
+        final String template = queryTemplate(event.getQuery());
+        final String uri = event.getUri() == null ? null : uriNormaliser.normalise(event.getUri());
+        minute.add(event, uri, template);
+        hour.add(event, uri, template);
+    }
+
+    @Override
+    public void onTick(final long nowMillis) {
+        minute.roll(nowMillis);
+        hour.roll(nowMillis);
+    }
+
+    @Override
+    public void close() {
+        // nothing to release, the sketches are plain memory
+    }
+
+    @Override
+    public String[] getCurrentMinute() {
+        return minute.report();
+    }
+
+    @Override
+    public String[] getLastMinute() {
+        return minute.lastReport();
+    }
+
+    @Override
+    public String[] getCurrentHour() {
+        return hour.report();
+    }
+
+    @Override
+    public String[] getLastHour() {
+        return hour.lastReport();
+    }
+
+    @Override
+    public long getDroppedEvents() {
+        return tap == null ? 0 : tap.getDroppedEvents();
+    }
+
+    /**
+     * Register with the platform MBean server
+     */
+    public void register() {
+        ServicesMBeans.register(this, OBJECT_NAME);
+    }
+
+    /**
+     * Unregister from the platform MBean server
+     */
+    public void unregister() {
+        ServicesMBeans.unregister(OBJECT_NAME);
+    }
+
+    /**
+     * Reduce a query to its template: literals replaced by ?, whitespace collapsed, cut to a maximum length
+     *
+     * @param query SQL query
+     * @return the template, or null if there was no query
+     */
+    static String queryTemplate(final String query) {
+        if (query == null) {
+            return null;
+        }
+        String template = STRING_LITERAL.matcher(query).replaceAll("?");
+        template = NUMBER_LITERAL.matcher(template).replaceAll("?");
+        template = WHITESPACE.matcher(template).replaceAll(" ").trim();
+        return template.length() > MAX_TEMPLATE_LENGTH ? template.substring(0, MAX_TEMPLATE_LENGTH) : template;
+    }
+
+    /**
+     * One tumbling window. Written on the tap thread, reports are read over JMX, so both synchronize on the window.
+     */
+    private static final class Window {
+
+        private final String name;
+
+        private final long size;
+
+        private long start = -1;
+
+        private long records;
+
+        private final SpaceSavingTopK topUris = new SpaceSavingTopK(TRACKED_KEYS);
+
+        private final SpaceSavingTopK topUsers = new SpaceSavingTopK(TRACKED_KEYS);
+
+        private final SpaceSavingTopK topQueries = new SpaceSavingTopK(TRACKED_KEYS);
+
+        private final HyperLogLog distinctUsers = new HyperLogLog(HLL_PRECISION);
+
+        private final HyperLogLog distinctUris = new HyperLogLog(HLL_PRECISION);
+
+        private String[] lastReport = new String[0];
+
+        Window(final String name, final long size) {
+            this.name = name;
+            this.size = size;
+        }
+
+        synchronized void add(final ServicesAuditEvent event, final String uri, final String template) {
+            roll(event.getTimestamp());
+            records++;
+            topUris.add(uri);
+            topUsers.add(event.getUser());
+            topQueries.add(template);
+            distinctUsers.add(event.getUser());
+            distinctUris.add(uri);
+        }
+
+        /**
+         * Close the window if the time is past its end
+         */
+        synchronized void roll(final long now) {
+            final long windowStart = now - now % size;
+            if (start < 0) {
+                start = windowStart;
+            } else if (windowStart > start) {
+                lastReport = report();
+                topUris.clear();
+                topUsers.clear();
+                topQueries.clear();
+                distinctUsers.clear();
+                distinctUris.clear();
+                records = 0;
+                start = windowStart;
+            }
+        }
+
+        synchronized String[] lastReport() {
+            return lastReport.clone();
+        }
+
+        synchronized String[] report() {
+            final List<String> lines = new ArrayList<String>();
+            lines.add(name + " starting " + new Date(start) + ", records=" + records);
+            lines.add("distinctUsers=" + distinctUsers.estimate());
+            lines.add("distinctUris=" + distinctUris.estimate());
+            addTop(lines, "uri", topUris);
+            addTop(lines, "user", topUsers);
+            addTop(lines, "query", topQueries);
+            return lines.toArray(new String[lines.size()]);
+        }
+
+        private static void addTop(final List<String> lines, final String dimension, final SpaceSavingTopK sketch) {
+            for (final SpaceSavingTopK.Entry entry : sketch.top(REPORTED_KEYS)) {
+                lines.add("top " + dimension + " " + entry.getCount() + " (+/-" + entry.getError() + ") "
+                        + entry.getKey());
+            }
+        }
+    }
+}
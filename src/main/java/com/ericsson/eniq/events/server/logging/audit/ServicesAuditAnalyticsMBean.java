@@ -0,0 +1,39 @@
+/*
+ * ---------------------------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * ---------------------------------------------------------------------------------------
+ */
+
+package com.ericsson.eniq.events.server.logging.audit;
+
+/**
+ * JMX view of the live audit analytics, see {@link ServicesAuditAnalytics}.
+ * Each window report lists the distinct users and URIs, then the top URIs, users and query templates.
+ */
+public interface ServicesAuditAnalyticsMBean {
+
+    /**
+     * @return report for the minute in progress
+     */
+    String[] getCurrentMinute();
+
+    /**
+     * @return report for the last complete minute
+     */
+    String[] getLastMinute();
+
+    /**
+     * @return report for the hour in progress
+     */
+    String[] getCurrentHour();
+
+    /**
+     * @return report for the last complete hour
+     */
+    String[] getLastHour();
+
+    /**
+     * @return number of audit records not analysed because the analytics fell behind
+     */
+    long getDroppedEvents();
+}
@@ -0,0 +1,32 @@
+/*
+ * ---------------------------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * ---------------------------------------------------------------------------------------
+ */
+
+package com.ericsson.eniq.events.server.logging.audit;
+
+/**
+ * Receives the audit events from a {@link ServicesAuditTap}.
+ * All calls are made on the tap thread, so implementations don't need to be thread safe for these two methods.
+ */
+public interface ServicesAuditConsumer {
+
+    /**
+     * @param event an audit record that was logged
+     */
+    void onEvent(ServicesAuditEvent event);
+
+    /**
+     * Called about once a second, also when there are no events, so time based work (closing windows,
+     * flushing files) gets done on a quiet system
+     *
+     * @param nowMillis current time
+     */
+    void onTick(long nowMillis);
+
+    /**
+     * Called on the tap thread when the tap is stopped
+     */
+    void close();
+}
@@ -0,0 +1,79 @@
+/*
+ * ---------------------------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * ---------------------------------------------------------------------------------------
+ */
+
+package com.ericsson.eniq.events.server.logging.audit;
+
+/**
+ * Immutable copy of a {@link ServicesAuditRecord}, handed from the request thread to the
+ * {@link ServicesAuditTap} thread. The record itself is reused by the request thread so it can't be passed on.
+ */
+public final class ServicesAuditEvent {
+
+    private final long timestamp;
+
+    private final String user;
+
+    private final String uri;
+
+    private final String query;
+
+    private final long rowCount;
+
+    private final long duration;
+
+    private final boolean failed;
+
+    public ServicesAuditEvent(final long timestamp, final String user, final String uri, final String query,
+            final long rowCount, final long duration, final boolean failed) {
+        this.timestamp = timestamp;
+        this.user = user;
+        this.uri = uri;
+        this.query = query;
+        this.rowCount = rowCount;
+        this.duration = duration;
+        this.failed = failed;
+    }
+
+    /**
+     * @return when the record was logged, epoch milliseconds
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public String getUri() {
+        return uri;
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    /**
+     * @return number of rows, or -1 if not known
+     */
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * @return request duration in milliseconds, or -1 if not known
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * @return true if the request failed
+     */
+    public boolean isFailed() {
+        return failed;
+    }
+}
@@ -11,9 +11,12 @@ import java.util.Date;
 import java.util.logging.Formatter;
 import java.util.logging.LogRecord;
 
+import com.ericsson.eniq.events.server.logging.ServicesRequestId;
+
 /**
  * Eniq Services Audit Log file formatter
  * Copy of Eniq Engine formatter.
+ * The request ID, when the record has one, is written as a last req= field, see ServicesRequestId.
  */
 public class ServicesAuditLogFormatter extends Formatter {
 
@@ -49,6 +52,12 @@ public class ServicesAuditLogFormatter extends Formatter {
         res.append(DELIMITER);
         res.append(logRecord.getMessage());
         res.append(DELIMITER);
+        final ServicesRequestId requestId = ServicesRequestId.fromRecord(logRecord);
+        if (requestId != null) {
+            res.append(ServicesRequestId.FIELD_PREFIX);
+            res.append(requestId);
+            res.append(DELIMITER);
+        }
         res.append("#]");
         res.append("\n");
 
@@ -0,0 +1,337 @@
+/*
+ * ---------------------------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * ---------------------------------------------------------------------------------------
+ */
+
+package com.ericsson.eniq.events.server.logging.audit;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.ericsson.eniq.events.server.logging.LogRecordBoundaries;
+import com.ericsson.eniq.events.server.logging.LogTimeIndex;
+import com.ericsson.eniq.events.server.logging.LogTimeRangeReader.RecordListener;
+import com.ericsson.eniq.events.server.logging.ServicesLogTimestamp;
+
+/**
+ * Searches the audit log files for records matching a {@link ServicesAuditSearchCriteria}.
+ *
+ * Each servicesaudit-*.log.N file is memory mapped, in windows of up to 1GB starting on record boundaries as a
+ * buffer can't map more than 2GB, and split into chunks on record boundaries. The chunks are
+ * scanned in parallel on a fork join pool, a few at a time, and the matching records of each group of chunks are
+ * passed to the listener in file order before the next group is scanned. Files are searched oldest first, so the
+ * records come back in time order.
+ *
+ * Heap use depends only on the chunk size and the pool parallelism, not on how much log there is: the file bytes
+ * are mapped, not read, and a chunk only keeps the offsets of its matches until they are passed on.
+ */
+public class ServicesAuditLogSearch {
+
+    /**
+     * Default size of the part of a file scanned by one task
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Default size of the part of a file mapped at once
+     */
+    static final int DEFAULT_WINDOW_SIZE = 1024 * 1024 * 1024;
+
+    /**
+     * servicesaudit-yyyy_MM_dd.log.N
+     */
+    private static final Pattern AUDIT_FILE_NAME = Pattern
+            .compile("servicesaudit-(\\d{4}_\\d{2}_\\d{2})\\.log\\.(\\d+)");
+
+    private static final Charset CHARSET = Charset.defaultCharset();
+
+    private final ForkJoinPool pool;
+
+    private final int chunkSize;
+
+    private final int chunksPerRound;
+
+    private final int windowSize;
+
+    /**
+     * Search using a pool with one thread per core
+     */
+    public ServicesAuditLogSearch() {
+        this(new ForkJoinPool(), DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param pool pool to scan the chunks on
+     * @param chunkSize approximate number of bytes scanned by one task
+     */
+    public ServicesAuditLogSearch(final ForkJoinPool pool, final int chunkSize) {
+        this(pool, chunkSize, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * @param pool pool to scan the chunks on
+     * @param chunkSize approximate number of bytes scanned by one task
+     * @param windowSize maximum number of bytes of a file mapped at once
+     */
+    ServicesAuditLogSearch(final ForkJoinPool pool, final int chunkSize, final int windowSize) {
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+        this.chunksPerRound = pool.getParallelism() * 2;
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * Stop the pool threads
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * List the audit log files in a directory, oldest first: by date, then from the highest generation
+     * (the oldest file of the day) down to .0
+     *
+     * @param directory the audit log directory
+     * @return the audit log files
+     */
+    public static List<File> findLogFiles(final File directory) {
+        final File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(final File dir, final String name) {
+                return AUDIT_FILE_NAME.matcher(name).matches();
+            }
+        });
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(final File f1, final File f2) {
+                final Matcher m1 = AUDIT_FILE_NAME.matcher(f1.getName());
+                final Matcher m2 = AUDIT_FILE_NAME.matcher(f2.getName());
+                m1.matches();
+                m2.matches();
+                final int byDate = m1.group(1).compareTo(m2.group(1));
+                if (byDate != 0) {
+                    return byDate;
+                }
+                return Long.valueOf(m2.group(2)).compareTo(Long.valueOf(m1.group(2)));
+            }
+        });
+        return Arrays.asList(files);
+    }
+
+    /**
+     * Search all the audit log files in a directory
+     *
+     * @param directory the audit log directory
+     * @param criteria what to look for
+     * @param listener receives the matching records in time order
+     * @return number of records found
+     * @throws IOException if a file cannot be read
+     */
+    public int search(final File directory, final ServicesAuditSearchCriteria criteria, final RecordListener listener)
+            throws IOException {
+        return search(findLogFiles(directory), criteria, listener);
+    }
+
+    /**
+     * Search audit log files
+     *
+     * @param logFiles files to search, in the order to search them
+     * @param criteria what to look for
+     * @param listener receives the matching records
+     * @return number of records found
+     * @throws IOException if a file cannot be read
+     */
+    public int search(final List<File> logFiles, final ServicesAuditSearchCriteria criteria,
+            final RecordListener listener) throws IOException {
+        int found = 0;
+        for (final File logFile : logFiles) {
+            found += searchFile(logFile, criteria, listener);
+        }
+        return found;
+    }
+
+    private int searchFile(final File logFile, final ServicesAuditSearchCriteria criteria,
+            final RecordListener listener) throws IOException {
+        final long startOffset = criteria.hasTimeRange() ? LogTimeIndex.findStartOffset(logFile, criteria.getFrom())
+                : 0;
+        int found = 0;
+        final RandomAccessFile raf = new RandomAccessFile(logFile, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            final long size = channel.size();
+            // index offsets are always record starts
+            long windowStart = startOffset;
+            while (windowStart < size) {
+                final long windowEnd = Math.min(size, windowStart + windowSize);
+                final MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowEnd
+                        - windowStart);
+                int end = (int) (windowEnd - windowStart);
+                if (windowEnd < size) {
+                    // the last record may go on past the window, the next window starts with it
+                    final int lastStart = LogRecordBoundaries.lastRecordStart(window, 1, end);
+                    if (lastStart > 0) {
+                        end = lastStart;
+                    }
+                }
+                int chunkStart = LogRecordBoundaries.nextRecordStart(window, 0, end, true);
+                while (chunkStart >= 0) {
+                    final List<ChunkScan> round = new ArrayList<ChunkScan>(chunksPerRound);
+                    while (chunkStart >= 0 && round.size() < chunksPerRound) {
+                        final int chunkEnd = chunkEnd(window, chunkStart, end);
+                        round.add(new ChunkScan(window, chunkStart, chunkEnd, criteria));
+                        chunkStart = chunkEnd < end ? chunkEnd : -1;
+                    }
+                    pool.invoke(new Round(round));
+                    for (final ChunkScan chunk : round) {
+                        found += chunk.deliver(listener);
+                        if (chunk.pastTimeRange) {
+                            return found;
+                        }
+                    }
+                }
+                windowStart += end;
+            }
+        } finally {
+            raf.close();
+        }
+        return found;
+    }
+
+    /**
+     * @return the start of the first record after chunkStart + chunkSize, or the end of the file
+     */
+    private int chunkEnd(final ByteBuffer file, final int chunkStart, final int end) {
+        final long nominal = (long) chunkStart + chunkSize;
+        if (nominal >= end) {
+            return end;
+        }
+        final int next = LogRecordBoundaries.nextRecordStart(file, (int) nominal, end, false);
+        return next < 0 ? end : next;
+    }
+
+    /**
+     * Scans a group of chunks in parallel
+     */
+    private static final class Round extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<ChunkScan> chunks;
+
+        Round(final List<ChunkScan> chunks) {
+            this.chunks = chunks;
+        }
+
+        @Override
+        protected void compute() {
+            invokeAll(chunks);
+        }
+    }
+
+    /**
+     * Scans one chunk of a file, keeping the start and end offsets of the matching records
+     */
+    private static final class ChunkScan extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient ByteBuffer file;
+
+        private final int start;
+
+        private final int end;
+
+        private final transient ServicesAuditSearchCriteria criteria;
+
+        private int[] matches = new int[16];
+
+        private int matchCount;
+
+        private boolean pastTimeRange;
+
+        ChunkScan(final ByteBuffer file, final int start, final int end, final ServicesAuditSearchCriteria criteria) {
+            this.file = file;
+            this.start = start;
+            this.end = end;
+            this.criteria = criteria;
+        }
+
+        @Override
+        protected void compute() {
+            final int[] fieldBounds = new int[ServicesAuditRecord.FIELD_COUNT + 1];
+            final boolean timeRange = criteria.hasTimeRange();
+            final long stopAfter = criteria.getTo() == Long.MAX_VALUE ? Long.MAX_VALUE : criteria.getTo()
+                    + LogTimeIndex.MAX_RECORD_SKEW_MILLIS;
+            int recordStart = start;
+            while (recordStart >= 0 && recordStart < end) {
+                int recordEnd = LogRecordBoundaries.nextRecordStart(file, recordStart
+                        + LogRecordBoundaries.RECORD_START_LENGTH, end, false);
+                if (recordEnd < 0) {
+                    recordEnd = end;
+                }
+                if (timeRange) {
+                    final long timestamp = ServicesLogTimestamp.parse(file, recordStart
+                            + LogRecordBoundaries.TIMESTAMP_OFFSET);
+                    if (timestamp > stopAfter) {
+                        pastTimeRange = true;
+                        return;
+                    }
+                    if (timestamp < criteria.getFrom() || timestamp > criteria.getTo()) {
+                        recordStart = recordEnd;
+                        continue;
+                    }
+                }
+                if (criteria.matches(file, recordStart, recordEnd, fieldBounds)) {
+                    addMatch(recordStart, recordEnd);
+                }
+                recordStart = recordEnd;
+            }
+        }
+
+        private void addMatch(final int recordStart, final int recordEnd) {
+            if (matchCount + 2 > matches.length) {
+                matches = Arrays.copyOf(matches, matches.length * 2);
+            }
+            matches[matchCount++] = recordStart;
+            matches[matchCount++] = recordEnd;
+        }
+
+        /**
+         * Pass the matches on and let go of them
+         * @return number of records passed on
+         */
+        int deliver(final RecordListener listener) {
+            for (int i = 0; i < matchCount; i += 2) {
+                final ByteBuffer record = file.duplicate();
+                record.limit(LogRecordBoundaries.trimmedEnd(file, matches[i], matches[i + 1]));
+                record.position(matches[i]);
+                final long timestamp = ServicesLogTimestamp.parse(file, matches[i]
+                        + LogRecordBoundaries.TIMESTAMP_OFFSET);
+                listener.onRecord(timestamp, CHARSET.decode(record).toString());
+            }
+            final int delivered = matchCount / 2;
+            matches = null;
+            matchCount = 0;
+            return delivered;
+        }
+    }
+}
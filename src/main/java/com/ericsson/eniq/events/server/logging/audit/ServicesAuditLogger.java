@@ -16,7 +16,6 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Properties;
 import java.util.logging.ConsoleHandler;
-import java.util.logging.FileHandler;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -34,6 +33,10 @@ import javax.naming.NamingException;
 import javax.ws.rs.core.UriInfo;
 
 import com.ericsson.eniq.events.server.common.ApplicationConfigConstants;
+import com.ericsson.eniq.events.server.logging.ServicesRequestId;
+import com.ericsson.eniq.events.server.logging.ServicesRollingFileHandler;
+import com.ericsson.eniq.events.server.logging.performance.ServicesPerformanceThreadLocalHolder;
+import com.ericsson.eniq.events.server.logging.performance.ServicesUriNormaliser;
 
 /**
  * Eniq Services Audit Logger class.
@@ -46,6 +49,9 @@ import com.ericsson.eniq.events.server.common.ApplicationConfigConstants;
  *
  * FINE : intended for use in logging the DB query called for a given URI request
  *
+ * With analytics or rollups on, every record is also passed to the audit tap. A typed ServicesAuditRecord gives
+ * all its fields. The Object... version has no fixed fields: a call with a UriInfo argument gives the URI, and
+ * the argument before it the user, as in the typed field order. A call without a UriInfo is not passed on.
  */
 @Singleton
 @Startup
@@ -119,6 +125,13 @@ public class ServicesAuditLogger {
 
     private boolean redirectToStdout = false;
 
+    /**
+     * Passes typed records to the in-process consumers, null if analytics and rollups are off
+     */
+    private ServicesAuditTap auditTap = null;
+
+    private ServicesAuditAnalytics auditAnalytics = null;
+
     @PostConstruct
     public void staticInit() {
         resetHandlers();
@@ -128,16 +141,76 @@ public class ServicesAuditLogger {
             consoleHandler.setLevel(Level.FINE);
             SERVICES_AUDIT_LOGGER.addHandler(consoleHandler);
         }
+        final boolean analytics = Boolean.valueOf(System.getProperty(SERVICES_AUDIT_LOGGER_NAME + ".analytics",
+                "false"));
+        final boolean rollups = Boolean.valueOf(System.getProperty(SERVICES_AUDIT_LOGGER_NAME + ".rollup", "false"));
+        if (analytics || rollups) {
+            startAuditTap(analytics, rollups);
+        }
     }
 
     @PreDestroy
     public void applicationDestroy() {
+        stopAuditTap();
         for (final Handler handler : SERVICES_AUDIT_LOGGER.getHandlers()) {
             handler.close();
             SERVICES_AUDIT_LOGGER.removeHandler(handler);
         }
     }
 
+    /**
+     * Start passing the typed audit records to the in-process consumers.
+     * Records are passed on whatever the log level, the consumers don't write to the audit log file.
+     *
+     * @param analytics true for the live analytics, see ServicesAuditAnalytics
+     * @param rollups true for the per minute rollup files, see ServicesAuditRollup
+     */
+    public void startAuditTap(final boolean analytics, final boolean rollups) {
+        if (auditTap == null) {
+            auditTap = new ServicesAuditTap();
+            final ServicesUriNormaliser uriNormaliser = ServicesUriNormaliser.fromSystemProperty();
+            if (analytics) {
+                auditAnalytics = new ServicesAuditAnalytics(auditTap, uriNormaliser);
+                auditTap.addConsumer(auditAnalytics);
+                auditAnalytics.register();
+            }
+            if (rollups) {
+                auditTap.addConsumer(new ServicesAuditRollup(new File(getServicesLogDirectory()),
+                        ServicesAuditRollup.DEFAULT_MAX_KEYS, uriNormaliser));
+            }
+            auditTap.start();
+        }
+    }
+
+    /**
+     * Start the live analytics only
+     */
+    public void startAnalytics() {
+        startAuditTap(true, false);
+    }
+
+    /**
+     * Stop the audit tap, the rollup of the current minute is written out
+     */
+    public void stopAuditTap() {
+        if (auditTap != null) {
+            auditTap.stop();
+            if (auditAnalytics != null) {
+                auditAnalytics.unregister();
+            }
+            auditTap = null;
+            auditAnalytics = null;
+        }
+    }
+
+    /**
+     * Used for testing purposes only.
+     * @return the analytics, null if they are off
+     */
+    ServicesAuditAnalytics getAnalytics() {
+        return auditAnalytics;
+    }
+
     /**
      * The method returns the log file rollover limit stored in glassfish / JNDI if available,
      * or hard-coded default if not available
@@ -218,8 +291,8 @@ public class ServicesAuditLogger {
             timeStamp = LOGFILE_TSTAMP_FORMATTER.format(date);
             final int rolloverLimit = lookupRolloverLimitPropertyInJNDI();
 
-            logFileHandler = new FileHandler(dir + File.separator + SERVICESAUDIT + "-" + timeStamp + ".log",
-                    rolloverLimit, fileLimit, false);
+            logFileHandler = new ServicesRollingFileHandler(dir + File.separator + SERVICESAUDIT + "-" + timeStamp
+                    + ".log", rolloverLimit, fileLimit, true);
 
             logFileHandler.setFormatter(new ServicesAuditLogFormatter());
         } catch (final SecurityException e) {
@@ -279,6 +352,17 @@ public class ServicesAuditLogger {
         log(logLevel, info);
     }
 
+    /**
+     * Log a typed audit record. Cheaper than the Object... version, the fields are written
+     * straight into the output buffer in a fixed order, see {@link ServicesAuditRecord}
+     *
+     * @param logLevel The level to log at
+     * @param record the audit record, normally from ServicesAuditRecord.get()
+     */
+    public void detailed(final Level logLevel, final ServicesAuditRecord record) {
+        log(logLevel, record);
+    }
+
     /**
      * Log the info
      * protected access modifier for testing purposes
@@ -287,7 +371,71 @@ public class ServicesAuditLogger {
      * @param message     additional information to add to the trace.
      */
     protected void log(final Level level, final Object... message) {
+        if (auditTap != null) {
+            final ServicesAuditEvent event = toEvent(System.currentTimeMillis(), message);
+            if (event != null) {
+                auditTap.offer(event);
+            }
+        }
+        checkHandlers();
+        if (isLevelActive(level)) {
+            logWithRequestId(level, buildMessage(message));
+        }
+    }
+
+    /**
+     * Log the typed record
+     * protected access modifier for testing purposes
+     *
+     * @param level       The level to log at
+     * @param record      the audit record to log
+     */
+    protected void log(final Level level, final ServicesAuditRecord record) {
+        if (auditTap != null) {
+            auditTap.offer(record.toEvent(System.currentTimeMillis()));
+        }
+        checkHandlers();
+        if (isLevelActive(level)) {
+            logWithRequestId(level, record.toMessage());
+        }
+    }
 
+    /**
+     * Event for the audit tap from the untyped arguments, see the class comment
+     *
+     * @param timestamp when the record was logged
+     * @param info the arguments
+     * @return the event, or null if there is no UriInfo argument
+     */
+    static ServicesAuditEvent toEvent(final long timestamp, final Object... info) {
+        for (int i = 0; i < info.length; i++) {
+            if (info[i] instanceof UriInfo) {
+                String uri;
+                try {
+                    uri = String.valueOf(((UriInfo) info[i]).getRequestUri());
+                } catch (final Exception e) {
+                    uri = null;
+                }
+                final String user = i > 0 && info[i - 1] instanceof String ? ((String) info[i - 1]).trim() : null;
+                return new ServicesAuditEvent(timestamp, user, uri, null, ServicesAuditRecord.NOT_SET,
+                        ServicesAuditRecord.NOT_SET, false);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Log the message with the correlation ID of the request on this thread, if there is one
+     */
+    private void logWithRequestId(final Level level, final String message) {
+        SERVICES_AUDIT_LOGGER.log(ServicesRequestId.newRecord(level, message, SERVICES_AUDIT_LOGGER_NAME,
+                ServicesPerformanceThreadLocalHolder.getRequestId()));
+    }
+
+    /**
+     * Make sure there is a file handler and that it writes to today's file
+     */
+    private void checkHandlers() {
         final Date date = new Date();
         final String dstamp = LOGFILE_TSTAMP_FORMATTER.format(date);
 
@@ -299,13 +447,6 @@ public class ServicesAuditLogger {
         if (!dstamp.equals(timeStamp)) {
             resetHandlers();
         }
-
-        final StringBuilder sb = new StringBuilder();
-        if (isLevelActive(level)) {
-            final String compiledInfoMessage = buildMessage(message);
-            sb.append(compiledInfoMessage);
-            SERVICES_AUDIT_LOGGER.log(level, sb.toString());
-        }
     }
 
     /**
@@ -316,12 +457,13 @@ public class ServicesAuditLogger {
     */
     private String buildMessage(final Object... info) {
         final StringBuilder sb = new StringBuilder();
-        for (final Object o : info) {
-            final String objInfo = getObjectInfo(o);
-            sb.append(objInfo);
-            sb.append(DELIMITER);
+        for (int i = 0; i < info.length; i++) {
+            if (i > 0) {
+                sb.append(DELIMITER);
+            }
+            sb.append(getObjectInfo(info[i]));
         }
-        return sb.toString().substring(0, sb.length() - 1); // trim the last DELIMITER
+        return sb.toString();
     }
 
     /**
@@ -0,0 +1,365 @@
+/*
+ * ---------------------------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * ---------------------------------------------------------------------------------------
+ */
+
+package com.ericsson.eniq.events.server.logging.audit;
+
+import javax.ws.rs.core.UriInfo;
+
+/**
+ * Typed audit record, used instead of the untyped ServicesAuditLogger.detailed(Level, Object...) varargs.
+ *
+ * The fields are always written in the same order, so the audit line can be parsed by position:
+ * user|uri|query|timeFrom|timeTo|rowCount|duration|status
+ *
+ * Values are escaped as they are copied into the output buffer, a '|' inside a value is written as '\|',
+ * a '\' as '\\' and line breaks as '\n' / '\r', so a record is always exactly one line.
+ * Missing values are written as <Null>.
+ *
+ * One instance is pooled per thread, get one with {@link #get()}, fill it in and pass it to
+ * {@link ServicesAuditLogger#detailed(java.util.logging.Level, ServicesAuditRecord)}.
+ * The instance must not be kept or passed to another thread.
+ */
+public final class ServicesAuditRecord {
+
+    /**
+     * Number of fields in a record, and their positions in the audit line.
+     */
+    public static final int FIELD_COUNT = 8;
+
+    public static final int USER_FIELD = 0;
+
+    public static final int URI_FIELD = 1;
+
+    public static final int QUERY_FIELD = 2;
+
+    public static final int TIME_FROM_FIELD = 3;
+
+    public static final int TIME_TO_FIELD = 4;
+
+    public static final int ROW_COUNT_FIELD = 5;
+
+    public static final int DURATION_FIELD = 6;
+
+    public static final int STATUS_FIELD = 7;
+
+    /**
+     * Status field values
+     */
+    public static final String STATUS_OK = "OK";
+
+    public static final String STATUS_ERROR = "ERROR";
+
+    /**
+     * Value used for a field that was not set.
+     */
+    static final long NOT_SET = -1L;
+
+    /**
+     * String used in building log messages.
+     */
+    private static final char DELIMITER = '|';
+
+    /**
+     * Escape character used for delimiters and line breaks inside a value.
+     */
+    private static final char ESCAPE = '\\';
+
+    /**
+     * String used in building log messages.
+     */
+    private static final String NULL = "<Null>";
+
+    /**
+     * Initial size of the per thread output buffer, big enough for most URIs and queries.
+     */
+    private static final int INITIAL_BUFFER_SIZE = 512;
+
+    /**
+     * Buffers bigger than this are not kept between records, one very long query
+     * should not pin a large buffer to a pooled thread forever.
+     */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 16384;
+
+    private static final ThreadLocal<ServicesAuditRecord> RECORDS = new ThreadLocal<ServicesAuditRecord>() {
+        @Override
+        protected ServicesAuditRecord initialValue() {
+            return new ServicesAuditRecord();
+        }
+    };
+
+    private StringBuilder buffer = new StringBuilder(INITIAL_BUFFER_SIZE);
+
+    private String user;
+
+    private String uri;
+
+    private UriInfo uriInfo;
+
+    private String query;
+
+    private long timeFrom;
+
+    private long timeTo;
+
+    private long rowCount;
+
+    private long duration;
+
+    private Boolean failed;
+
+    /**
+     * Use {@link #get()}
+     */
+    ServicesAuditRecord() {
+        reset();
+    }
+
+    /**
+     * Get the record for the calling thread, cleared of any values from a previous use.
+     * @return empty audit record
+     */
+    public static ServicesAuditRecord get() {
+        final ServicesAuditRecord record = RECORDS.get();
+        record.reset();
+        return record;
+    }
+
+    /**
+     * Remove the record of the calling thread, once the request has ended and reuse is stopped,
+     * see ServicesPerformanceThreadLocalHolder#stopReuse
+     */
+    public static void removeThreadState() {
+        RECORDS.remove();
+    }
+
+    /**
+     * Clear all the fields
+     * @return this record
+     */
+    public ServicesAuditRecord reset() {
+        user = null;
+        uri = null;
+        uriInfo = null;
+        query = null;
+        timeFrom = NOT_SET;
+        timeTo = NOT_SET;
+        rowCount = NOT_SET;
+        duration = NOT_SET;
+        failed = null;
+        return this;
+    }
+
+    public ServicesAuditRecord user(final String userName) {
+        this.user = userName;
+        return this;
+    }
+
+    /**
+     * The request URI, only resolved to a String if the record is written
+     */
+    public ServicesAuditRecord uri(final UriInfo requestUriInfo) {
+        this.uriInfo = requestUriInfo;
+        this.uri = null;
+        return this;
+    }
+
+    public ServicesAuditRecord uri(final String requestUri) {
+        this.uri = requestUri;
+        this.uriInfo = null;
+        return this;
+    }
+
+    public ServicesAuditRecord query(final String sqlQuery) {
+        this.query = sqlQuery;
+        return this;
+    }
+
+    /**
+     * @param from start of the queried time range, epoch milliseconds
+     * @param to end of the queried time range, epoch milliseconds
+     */
+    public ServicesAuditRecord timeRange(final long from, final long to) {
+        this.timeFrom = from;
+        this.timeTo = to;
+        return this;
+    }
+
+    public ServicesAuditRecord rowCount(final long rows) {
+        this.rowCount = rows;
+        return this;
+    }
+
+    /**
+     * @param durationMillis time taken to serve the request, in milliseconds
+     */
+    public ServicesAuditRecord duration(final long durationMillis) {
+        this.duration = durationMillis;
+        return this;
+    }
+
+    /**
+     * @param requestFailed true if the request failed
+     */
+    public ServicesAuditRecord failed(final boolean requestFailed) {
+        this.failed = Boolean.valueOf(requestFailed);
+        return this;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    /**
+     * @return the request URI, resolving the UriInfo if that was what was set
+     */
+    public String getUri() {
+        if (uri == null && uriInfo != null) {
+            try {
+                uri = String.valueOf(uriInfo.getRequestUri());
+            } catch (final Exception e) {
+                uri = null;
+            }
+            uriInfo = null;
+        }
+        return uri;
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    public long getTimeFrom() {
+        return timeFrom;
+    }
+
+    public long getTimeTo() {
+        return timeTo;
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * @return true if the request was marked as failed
+     */
+    public boolean isFailed() {
+        return failed != null && failed.booleanValue();
+    }
+
+    /**
+     * Copy the record for the audit tap
+     * @param timestamp when the record was logged
+     * @return immutable copy of the record
+     */
+    ServicesAuditEvent toEvent(final long timestamp) {
+        return new ServicesAuditEvent(timestamp, user, getUri(), query, rowCount, duration, isFailed());
+    }
+
+    /**
+     * Write the record into the supplied buffer, fields in the fixed order separated by '|'.
+     * No trailing delimiter is written.
+     *
+     * @param sb buffer to write to
+     */
+    public void appendTo(final StringBuilder sb) {
+        appendEscaped(sb, user);
+        sb.append(DELIMITER);
+        appendEscaped(sb, getUri());
+        sb.append(DELIMITER);
+        appendEscaped(sb, query);
+        sb.append(DELIMITER);
+        appendLong(sb, timeFrom);
+        sb.append(DELIMITER);
+        appendLong(sb, timeTo);
+        sb.append(DELIMITER);
+        appendLong(sb, rowCount);
+        sb.append(DELIMITER);
+        appendLong(sb, duration);
+        sb.append(DELIMITER);
+        if (failed == null) {
+            sb.append(NULL);
+        } else {
+            sb.append(failed.booleanValue() ? STATUS_ERROR : STATUS_OK);
+        }
+    }
+
+    /**
+     * Build the audit log message for this record, reusing the per thread buffer.
+     * @return the message to log
+     */
+    String toMessage() {
+        if (buffer.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+            buffer = new StringBuilder(INITIAL_BUFFER_SIZE);
+        }
+        buffer.setLength(0);
+        appendTo(buffer);
+        return buffer.toString();
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        appendTo(sb);
+        return sb.toString();
+    }
+
+    private static void appendLong(final StringBuilder sb, final long value) {
+        if (value == NOT_SET) {
+            sb.append(NULL);
+        } else {
+            sb.append(value);
+        }
+    }
+
+    /**
+     * Copy the value into the buffer, escaping the delimiter, the escape character and line breaks.
+     * Values are trimmed, the same as the Object... audit log
+     */
+    private static void appendEscaped(final StringBuilder sb, final String value) {
+        if (value == null) {
+            sb.append(NULL);
+            return;
+        }
+        int start = 0;
+        int end = value.length();
+        while (start < end && value.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && value.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        int copyFrom = start;
+        for (int i = start; i < end; i++) {
+            final char c = value.charAt(i);
+            final char escaped;
+            switch (c) {
+            case DELIMITER:
+                escaped = DELIMITER;
+                break;
+            case ESCAPE:
+                escaped = ESCAPE;
+                break;
+            case '\n':
+                escaped = 'n';
+                break;
+            case '\r':
+                escaped = 'r';
+                break;
+            default:
+                continue;
+            }
+            sb.append(value, copyFrom, i);
+            sb.append(ESCAPE).append(escaped);
+            copyFrom = i + 1;
+        }
+        sb.append(value, copyFrom, end);
+    }
+}
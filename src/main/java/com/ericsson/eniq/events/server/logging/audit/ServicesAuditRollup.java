@@ -0,0 +1,314 @@
+/*
+ * ---------------------------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * ---------------------------------------------------------------------------------------
+ */
+
+package com.ericsson.eniq.events.server.logging.audit;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.ericsson.eniq.events.server.logging.performance.ServicesUriNormaliser;
+
+/**
+ * Per minute audit rollups, small enough to keep for months after the detailed audit files are deleted.
+ *
+ * For each minute there is one line per URI template, per user and one for all requests, with the request
+ * count, the failed request count and the total and maximum duration. The URI templates are the URIs reduced by
+ * ServicesUriNormaliser, the same keys as the performance trace aggregates, values in the path become {n} or
+ * {id} and only the whitelisted query parameters are kept:
+ * minute|dimension|key|count|errors|totalMillis|maxMillis
+ * e.g. 2010-06-01 10:15|uri|/EniqEventsServices/NETWORK/EVENT_ANALYSIS|12|1|3400|900
+ *
+ * Every value is a sum or a max, and the bucket is a prefix of the minute, so files can be merged into hourly,
+ * daily or monthly totals by cutting the bucket short and adding up, see {@link ServicesAuditRollupMerger}.
+ *
+ * Fed by a {@link ServicesAuditTap}, a minute is appended to servicesaudit-rollup-yyyy_MM_dd.log once it is over.
+ * The number of keys per dimension per minute is capped, keys over the cap are counted under {@link #OTHER_KEY}.
+ */
+public class ServicesAuditRollup implements ServicesAuditConsumer {
+
+    /**
+     * Dimensions
+     */
+    public static final String DIMENSION_ALL = "all";
+
+    public static final String DIMENSION_URI = "uri";
+
+    public static final String DIMENSION_USER = "user";
+
+    /**
+     * Key for the all dimension, and for keys over the per minute cap
+     */
+    public static final String ALL_KEY = "*";
+
+    public static final String OTHER_KEY = "<Other>";
+
+    /**
+     * Key used when the event has no value for the dimension
+     */
+    public static final String NULL_KEY = "<Null>";
+
+    /**
+     * Default maximum number of distinct keys per dimension per minute
+     */
+    public static final int DEFAULT_MAX_KEYS = 1000;
+
+    static final String ROLLUP_FILE_PREFIX = "servicesaudit-rollup-";
+
+    static final String ROLLUP_FILE_SUFFIX = ".log";
+
+    static final char DELIMITER = '|';
+
+    private static final char ESCAPE = '\\';
+
+    private static final long MINUTE = 60 * 1000L;
+
+    /**
+     * A minute is written this long after it ends, so late events still go in the right minute
+     */
+    private static final long FLUSH_DELAY_MILLIS = 2000L;
+
+    private static final Logger BACKUP_LOGGER = Logger.getLogger("");
+
+    private final File directory;
+
+    private final int maxKeys;
+
+    private final ServicesUriNormaliser uriNormaliser;
+
+    /**
+     * Start of the minute being collected, -1 before the first event
+     */
+    private long minuteStart = -1;
+
+    private final Map<String, Aggregate> uris = new HashMap<String, Aggregate>();
+
+    private final Map<String, Aggregate> users = new HashMap<String, Aggregate>();
+
+    private final Aggregate all = new Aggregate();
+
+    /**
+     * Only used on the tap thread
+     */
+    private final SimpleDateFormat minuteFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+
+    private final SimpleDateFormat fileDateFormat = new SimpleDateFormat("yyyy_MM_dd");
+
+    /**
+     * @param directory where the rollup files are written
+     */
+    public ServicesAuditRollup(final File directory) {
+        this(directory, DEFAULT_MAX_KEYS);
+    }
+
+    /**
+     * @param directory where the rollup files are written
+     * @param maxKeys maximum number of distinct keys per dimension per minute
+     */
+    public ServicesAuditRollup(final File directory, final int maxKeys) {
+        this(directory, maxKeys, ServicesUriNormaliser.fromSystemProperty());
+    }
+
+    /**
+     * @param directory where the rollup files are written
+     * @param maxKeys maximum number of distinct keys per dimension per minute
+     * @param uriNormaliser reduces the URIs to the templates they are counted under
+     */
+    public ServicesAuditRollup(final File directory, final int maxKeys, final ServicesUriNormaliser uriNormaliser) {
+        this.directory = directory;
+        this.maxKeys = maxKeys;
+        this.uriNormaliser = uriNormaliser;
+    }
+
+    @Override
+    public void onEvent(final ServicesAuditEvent event) {
+        final long eventMinute = event.getTimestamp() - event.getTimestamp() % MINUTE;
+        if (minuteStart < 0) {
+            minuteStart = eventMinute;
+        } else if (eventMinute > minuteStart) {
+            flush();
+            minuteStart = eventMinute;
+        }
+        // an event older than the minute being collected is late, counted in the current minute
+        all.add(event);
+        add(uris, uriTemplate(event.getUri()), event);
+        add(users, event.getUser(), event);
+    }
+
+    @Override
+    public void onTick(final long nowMillis) {
+        if (minuteStart >= 0 && nowMillis >= minuteStart + MINUTE + FLUSH_DELAY_MILLIS) {
+            flush();
+            minuteStart = -1;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (minuteStart >= 0) {
+            flush();
+            minuteStart = -1;
+        }
+    }
+
+    /**
+     * @param date any time in the day
+     * @return the rollup file for that day
+     */
+    File getRollupFile(final long date) {
+        return new File(directory, ROLLUP_FILE_PREFIX + fileDateFormat.format(new Date(date)) + ROLLUP_FILE_SUFFIX);
+    }
+
+    /**
+     * @param uri request URI
+     * @return the URI template, see ServicesUriNormaliser, or null if there was no URI
+     */
+    String uriTemplate(final String uri) {
+        return uri == null || uri.length() == 0 ? null : uriNormaliser.normalise(uri);
+    }
+
+    private void add(final Map<String, Aggregate> aggregates, final String value, final ServicesAuditEvent event) {
+        final String key = value == null ? NULL_KEY : value;
+        Aggregate aggregate = aggregates.get(key);
+        if (aggregate == null) {
+            if (aggregates.size() >= maxKeys) {
+                aggregate = aggregates.get(OTHER_KEY);
+            }
+            if (aggregate == null) {
+                aggregate = new Aggregate();
+                aggregates.put(aggregates.size() >= maxKeys ? OTHER_KEY : key, aggregate);
+            }
+        }
+        aggregate.add(event);
+    }
+
+    /**
+     * Append the minute to the day's rollup file and clear it. The file is opened per minute, so there is
+     * nothing to roll over at midnight and nothing held open between minutes.
+     */
+    private void flush() {
+        if (all.count == 0) {
+            return;
+        }
+        final String minute = minuteFormat.format(new Date(minuteStart));
+        final File file = getRollupFile(minuteStart);
+        Writer out = null;
+        try {
+            if (!directory.exists() && !directory.mkdirs()) {
+                throw new IOException("Could not create " + directory.getAbsolutePath());
+            }
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+            final StringBuilder sb = new StringBuilder();
+            writeLine(out, sb, minute, DIMENSION_ALL, ALL_KEY, all);
+            for (final Map.Entry<String, Aggregate> entry : uris.entrySet()) {
+                writeLine(out, sb, minute, DIMENSION_URI, entry.getKey(), entry.getValue());
+            }
+            for (final Map.Entry<String, Aggregate> entry : users.entrySet()) {
+                writeLine(out, sb, minute, DIMENSION_USER, entry.getKey(), entry.getValue());
+            }
+        } catch (final IOException e) {
+            BACKUP_LOGGER.log(Level.WARNING, "Failed to write audit rollup " + file.getAbsolutePath(), e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (final IOException e) {
+                    BACKUP_LOGGER.log(Level.WARNING, "Failed to close audit rollup " + file.getAbsolutePath(), e);
+                }
+            }
+            all.clear();
+            uris.clear();
+            users.clear();
+        }
+    }
+
+    private static void writeLine(final Writer out, final StringBuilder sb, final String bucket,
+            final String dimension, final String key, final Aggregate aggregate) throws IOException {
+        sb.setLength(0);
+        sb.append(bucket).append(DELIMITER).append(dimension).append(DELIMITER);
+        appendEscaped(sb, key);
+        sb.append(DELIMITER);
+        aggregate.appendTo(sb);
+        sb.append('\n');
+        out.write(sb.toString());
+    }
+
+    /**
+     * Same escaping as {@link ServicesAuditRecord}, so the key never contains an unescaped delimiter or line break
+     */
+    static void appendEscaped(final StringBuilder sb, final String value) {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+            case DELIMITER:
+            case ESCAPE:
+                sb.append(ESCAPE).append(c);
+                break;
+            case '\n':
+                sb.append(ESCAPE).append('n');
+                break;
+            case '\r':
+                sb.append(ESCAPE).append('r');
+                break;
+            default:
+                sb.append(c);
+            }
+        }
+    }
+
+    /**
+     * Counters for one key. Also used by the merger.
+     */
+    static final class Aggregate {
+
+        long count;
+
+        long errors;
+
+        long totalDuration;
+
+        long maxDuration;
+
+        void add(final ServicesAuditEvent event) {
+            count++;
+            if (event.isFailed()) {
+                errors++;
+            }
+            if (event.getDuration() >= 0) {
+                totalDuration += event.getDuration();
+                maxDuration = Math.max(maxDuration, event.getDuration());
+            }
+        }
+
+        void merge(final long otherCount, final long otherErrors, final long otherTotal, final long otherMax) {
+            count += otherCount;
+            errors += otherErrors;
+            totalDuration += otherTotal;
+            maxDuration = Math.max(maxDuration, otherMax);
+        }
+
+        void clear() {
+            count = 0;
+            errors = 0;
+            totalDuration = 0;
+            maxDuration = 0;
+        }
+
+        void appendTo(final StringBuilder sb) {
+            sb.append(count).append(DELIMITER).append(errors).append(DELIMITER).append(totalDuration)
+                    .append(DELIMITER).append(maxDuration);
+        }
+    }
+}
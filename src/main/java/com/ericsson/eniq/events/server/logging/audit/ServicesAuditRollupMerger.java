@@ -0,0 +1,154 @@
+/*
+ * ---------------------------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * ---------------------------------------------------------------------------------------
+ */
+
+package com.ericsson.eniq.events.server.logging.audit;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Merges {@link ServicesAuditRollup} files into coarser buckets, e.g. a month of daily files into one line per
+ * day or one line per month for each URI and user. The output is in the same format, so merged files can be
+ * merged again.
+ *
+ * Usage: ServicesAuditRollupMerger MINUTE|HOUR|DAY|MONTH outputFile rollupFile...
+ */
+public final class ServicesAuditRollupMerger {
+
+    /**
+     * Bucket sizes. The bucket is the leading part of the minute, yyyy-MM-dd HH:mm
+     */
+    public enum Granularity {
+        MINUTE(16), HOUR(13), DAY(10), MONTH(7);
+
+        private final int bucketLength;
+
+        private Granularity(final int bucketLength) {
+            this.bucketLength = bucketLength;
+        }
+
+        String bucket(final String minute) {
+            return minute.length() > bucketLength ? minute.substring(0, bucketLength) : minute;
+        }
+    }
+
+    private ServicesAuditRollupMerger() {
+    }
+
+    /**
+     * Merge rollup files
+     *
+     * @param inputs rollup files, at this granularity or finer
+     * @param granularity bucket size of the output
+     * @param out where the merged lines are written, sorted by bucket, dimension and key
+     * @return number of lines written
+     * @throws IOException if a file can't be read or a line can't be parsed
+     */
+    public static int merge(final List<File> inputs, final Granularity granularity, final Writer out)
+            throws IOException {
+        final Map<String, ServicesAuditRollup.Aggregate> merged = new TreeMap<String, ServicesAuditRollup.Aggregate>();
+        for (final File input : inputs) {
+            final BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(input), "UTF-8"));
+            try {
+                String line;
+                int lineNumber = 0;
+                while ((line = in.readLine()) != null) {
+                    lineNumber++;
+                    if (line.length() > 0) {
+                        addLine(merged, granularity, line, input, lineNumber);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (final Map.Entry<String, ServicesAuditRollup.Aggregate> entry : merged.entrySet()) {
+            sb.setLength(0);
+            sb.append(entry.getKey()).append(ServicesAuditRollup.DELIMITER);
+            entry.getValue().appendTo(sb);
+            sb.append('\n');
+            out.write(sb.toString());
+        }
+        out.flush();
+        return merged.size();
+    }
+
+    /**
+     * Parse a line from the right, the four counters have no delimiters in them and the key may have
+     * escaped ones. The key is kept escaped, it is written back out as it was read.
+     */
+    private static void addLine(final Map<String, ServicesAuditRollup.Aggregate> merged,
+            final Granularity granularity, final String line, final File input, final int lineNumber)
+            throws IOException {
+        final int[] delimiters = new int[4];
+        int end = line.length();
+        for (int i = delimiters.length - 1; i >= 0; i--) {
+            end = line.lastIndexOf(ServicesAuditRollup.DELIMITER, end - 1);
+            if (end < 0) {
+                throw badLine(input, lineNumber);
+            }
+            delimiters[i] = end;
+        }
+        final int bucketEnd = line.indexOf(ServicesAuditRollup.DELIMITER);
+        final int dimensionEnd = line.indexOf(ServicesAuditRollup.DELIMITER, bucketEnd + 1);
+        if (dimensionEnd < 0 || dimensionEnd > delimiters[0]) {
+            throw badLine(input, lineNumber);
+        }
+        final String key = granularity.bucket(line.substring(0, bucketEnd)) + line.substring(bucketEnd, delimiters[0]);
+        try {
+            final long count = Long.parseLong(line.substring(delimiters[0] + 1, delimiters[1]));
+            final long errors = Long.parseLong(line.substring(delimiters[1] + 1, delimiters[2]));
+            final long total = Long.parseLong(line.substring(delimiters[2] + 1, delimiters[3]));
+            final long max = Long.parseLong(line.substring(delimiters[3] + 1));
+            ServicesAuditRollup.Aggregate aggregate = merged.get(key);
+            if (aggregate == null) {
+                aggregate = new ServicesAuditRollup.Aggregate();
+                merged.put(key, aggregate);
+            }
+            aggregate.merge(count, errors, total, max);
+        } catch (final NumberFormatException e) {
+            throw badLine(input, lineNumber);
+        }
+    }
+
+    private static IOException badLine(final File input, final int lineNumber) {
+        return new IOException("Not an audit rollup line: " + input.getAbsolutePath() + ":" + lineNumber);
+    }
+
+    /**
+     * @param args granularity, output file, rollup files
+     */
+    public static void main(final String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: ServicesAuditRollupMerger MINUTE|HOUR|DAY|MONTH outputFile rollupFile...");
+            System.exit(1);
+        }
+        final Granularity granularity = Granularity.valueOf(args[0].toUpperCase());
+        final List<File> inputs = new ArrayList<File>();
+        for (int i = 2; i < args.length; i++) {
+            inputs.add(new File(args[i]));
+        }
+        final Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(args[1]), "UTF-8"));
+        try {
+            final int lines = merge(inputs, granularity, out);
+            System.out.println(lines + " lines written to " + args[1]);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * ---------------------------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * ---------------------------------------------------------------------------------------
+ */
+
+package com.ericsson.eniq.events.server.logging.audit;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import com.ericsson.eniq.events.server.logging.ServicesRequestId;
+
+/**
+ * What to look for with {@link ServicesAuditLogSearch}. All the criteria set must match.
+ *
+ * Records written with a {@link ServicesAuditRecord} are matched field by field: the user must be equal to the
+ * user field, the URI text must be in the URI field and the table name in the query field (ignoring case).
+ * Records written with the Object... API have no fixed fields, so each criterion is matched against the whole
+ * message instead.
+ *
+ * Matching is done on the raw bytes of the log file, so the values are compared with the escaped field text.
+ */
+public final class ServicesAuditSearchCriteria {
+
+    private static final Charset CHARSET = Charset.defaultCharset();
+
+    private static final byte DELIMITER = '|';
+
+    private static final byte ESCAPE = '\\';
+
+    /**
+     * Number of '|' before the message, "[#|timestamp|thread|level|"
+     */
+    private static final int DELIMITERS_BEFORE_MESSAGE = 4;
+
+    /**
+     * Start of the request ID field the formatter writes after the message, see ServicesRequestId
+     */
+    private static final byte[] REQUEST_ID_FIELD = ("|" + ServicesRequestId.FIELD_PREFIX).getBytes(CHARSET);
+
+    private byte[] user;
+
+    private byte[] uriText;
+
+    private byte[] table;
+
+    private long from = Long.MIN_VALUE;
+
+    private long to = Long.MAX_VALUE;
+
+    public ServicesAuditSearchCriteria user(final String userName) {
+        this.user = userName == null ? null : userName.getBytes(CHARSET);
+        return this;
+    }
+
+    public ServicesAuditSearchCriteria uriContains(final String text) {
+        this.uriText = text == null ? null : text.getBytes(CHARSET);
+        return this;
+    }
+
+    /**
+     * @param tableName SQL table name to look for in the query, case is ignored
+     */
+    public ServicesAuditSearchCriteria table(final String tableName) {
+        this.table = tableName == null ? null : tableName.toUpperCase().getBytes(CHARSET);
+        return this;
+    }
+
+    /**
+     * @param fromMillis start of the time range, inclusive
+     * @param toMillis end of the time range, inclusive
+     */
+    public ServicesAuditSearchCriteria timeRange(final long fromMillis, final long toMillis) {
+        this.from = fromMillis;
+        this.to = toMillis;
+        return this;
+    }
+
+    boolean hasTimeRange() {
+        return from != Long.MIN_VALUE || to != Long.MAX_VALUE;
+    }
+
+    long getFrom() {
+        return from;
+    }
+
+    long getTo() {
+        return to;
+    }
+
+    /**
+     * Check the text criteria against one record
+     *
+     * @param buffer log file bytes
+     * @param start absolute index of the record start
+     * @param end absolute index after the record
+     * @param fieldBounds scratch array of at least (FIELD_COUNT + 1) entries, owned by the calling thread
+     * @return true if the record matches
+     */
+    boolean matches(final ByteBuffer buffer, final int start, final int end, final int[] fieldBounds) {
+        if (user == null && uriText == null && table == null) {
+            return true;
+        }
+        int messageStart = start;
+        for (int delimiters = 0; delimiters < DELIMITERS_BEFORE_MESSAGE; delimiters++) {
+            messageStart = indexOf(buffer, DELIMITER, messageStart, end);
+            if (messageStart < 0) {
+                return false;
+            }
+            messageStart++;
+        }
+        final int messageEnd = messageEnd(buffer, messageStart, end);
+        final int fields = splitFields(buffer, messageStart, messageEnd, fieldBounds);
+        if (fields == ServicesAuditRecord.FIELD_COUNT) {
+            return fieldEquals(buffer, fieldBounds, ServicesAuditRecord.USER_FIELD, user)
+                    && fieldContains(buffer, fieldBounds, ServicesAuditRecord.URI_FIELD, uriText, false)
+                    && fieldContains(buffer, fieldBounds, ServicesAuditRecord.QUERY_FIELD, table, true);
+        }
+        return (user == null || contains(buffer, messageStart, messageEnd, user, false))
+                && (uriText == null || contains(buffer, messageStart, messageEnd, uriText, false))
+                && (table == null || contains(buffer, messageStart, messageEnd, table, true));
+    }
+
+    /**
+     * @return index of the "|#]" closing the message, or of the request ID field before it, or end if there
+     *         isn't one
+     */
+    private static int messageEnd(final ByteBuffer buffer, final int messageStart, final int end) {
+        for (int i = messageStart; i + 2 < end; i++) {
+            if (buffer.get(i) == DELIMITER && buffer.get(i + 1) == '#' && buffer.get(i + 2) == ']') {
+                return requestIdStart(buffer, messageStart, i);
+            }
+        }
+        return end;
+    }
+
+    /**
+     * @return index of the '|' starting a "|req=" field that ends at close, or close if the last field is not one
+     */
+    private static int requestIdStart(final ByteBuffer buffer, final int messageStart, final int close) {
+        int i = close - 1;
+        while (i >= messageStart && buffer.get(i) != DELIMITER) {
+            i--;
+        }
+        if (i < messageStart || i > messageStart && buffer.get(i - 1) == ESCAPE
+                || close - i < REQUEST_ID_FIELD.length) {
+            return close;
+        }
+        for (int j = 0; j < REQUEST_ID_FIELD.length; j++) {
+            if (buffer.get(i + j) != REQUEST_ID_FIELD[j]) {
+                return close;
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Find the fields in the message, fieldBounds[i] is the start of field i and fieldBounds[i + 1] - 1 its end
+     *
+     * @return number of fields, or more than FIELD_COUNT if there are too many to be a typed record
+     */
+    private static int splitFields(final ByteBuffer buffer, final int messageStart, final int messageEnd,
+            final int[] fieldBounds) {
+        int fields = 0;
+        fieldBounds[0] = messageStart;
+        for (int i = messageStart; i < messageEnd; i++) {
+            final byte b = buffer.get(i);
+            if (b == ESCAPE) {
+                i++;
+            } else if (b == DELIMITER) {
+                fields++;
+                if (fields >= ServicesAuditRecord.FIELD_COUNT) {
+                    return fields + 1;
+                }
+                fieldBounds[fields] = i + 1;
+            }
+        }
+        fields++;
+        fieldBounds[fields] = messageEnd + 1;
+        return fields;
+    }
+
+    private static boolean fieldEquals(final ByteBuffer buffer, final int[] fieldBounds, final int field,
+            final byte[] value) {
+        if (value == null) {
+            return true;
+        }
+        final int start = fieldBounds[field];
+        final int end = fieldBounds[field + 1] - 1;
+        if (end - start != value.length) {
+            return false;
+        }
+        for (int i = 0; i < value.length; i++) {
+            if (buffer.get(start + i) != value[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean fieldContains(final ByteBuffer buffer, final int[] fieldBounds, final int field,
+            final byte[] value, final boolean ignoreCase) {
+        return value == null || contains(buffer, fieldBounds[field], fieldBounds[field + 1] - 1, value, ignoreCase);
+    }
+
+    /**
+     * Byte level substring search, case folding is ASCII only, which is all SQL table names need
+     */
+    static boolean contains(final ByteBuffer buffer, final int start, final int end, final byte[] value,
+            final boolean ignoreCase) {
+        final int last = end - value.length;
+        if (value.length == 0) {
+            return true;
+        }
+        final byte first = value[0];
+        for (int i = start; i <= last; i++) {
+            if (byteAt(buffer, i, ignoreCase) != first) {
+                continue;
+            }
+            int j = 1;
+            while (j < value.length && byteAt(buffer, i + j, ignoreCase) == value[j]) {
+                j++;
+            }
+            if (j == value.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte byteAt(final ByteBuffer buffer, final int index, final boolean upperCase) {
+        final byte b = buffer.get(index);
+        return upperCase && b >= 'a' && b <= 'z' ? (byte) (b - ('a' - 'A')) : b;
+    }
+
+    private static int indexOf(final ByteBuffer buffer, final byte value, final int start, final int end) {
+        for (int i = start; i < end; i++) {
+            if (buffer.get(i) == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
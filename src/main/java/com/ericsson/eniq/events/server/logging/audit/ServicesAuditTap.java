@@ -0,0 +1,164 @@
+/*
+ * ---------------------------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * ---------------------------------------------------------------------------------------
+ */
+
+package com.ericsson.eniq.events.server.logging.audit;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Passes audit events from the request threads to in-process consumers (analytics, rollups) on its own thread.
+ *
+ * The request thread only does a non blocking offer to a bounded queue. If the consumers fall behind and the
+ * queue is full the event is dropped and counted, a slow consumer never holds up a request.
+ */
+public class ServicesAuditTap implements Runnable {
+
+    /**
+     * Default maximum number of events waiting for the tap thread
+     */
+    public static final int DEFAULT_QUEUE_SIZE = 10000;
+
+    private static final long TICK_MILLIS = 1000;
+
+    private static final Logger BACKUP_LOGGER = Logger.getLogger("");
+
+    private final BlockingQueue<ServicesAuditEvent> queue;
+
+    private final List<ServicesAuditConsumer> consumers = new CopyOnWriteArrayList<ServicesAuditConsumer>();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private volatile boolean running;
+
+    private Thread thread;
+
+    public ServicesAuditTap() {
+        this(DEFAULT_QUEUE_SIZE);
+    }
+
+    /**
+     * @param queueSize maximum number of events waiting for the tap thread
+     */
+    public ServicesAuditTap(final int queueSize) {
+        queue = new ArrayBlockingQueue<ServicesAuditEvent>(queueSize);
+    }
+
+    /**
+     * Add a consumer, should be done before the tap is started
+     */
+    public void addConsumer(final ServicesAuditConsumer consumer) {
+        consumers.add(consumer);
+    }
+
+    /**
+     * Start the tap thread
+     */
+    public synchronized void start() {
+        if (thread == null) {
+            running = true;
+            thread = new Thread(this, "ServicesAuditTap");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stop the tap thread, events already queued are passed on first
+     */
+    public synchronized void stop() {
+        if (thread != null) {
+            running = false;
+            thread.interrupt();
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+    }
+
+    /**
+     * Called on the request thread, never blocks
+     *
+     * @param event the event
+     * @return false if the queue was full and the event dropped
+     */
+    public boolean offer(final ServicesAuditEvent event) {
+        if (queue.offer(event)) {
+            return true;
+        }
+        dropped.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * @return number of events dropped because the queue was full
+     */
+    public long getDroppedEvents() {
+        return dropped.get();
+    }
+
+    @Override
+    public void run() {
+        long nextTick = System.currentTimeMillis() + TICK_MILLIS;
+        while (running) {
+            try {
+                final ServicesAuditEvent event = queue.poll(Math.max(1, nextTick - System.currentTimeMillis()),
+                        TimeUnit.MILLISECONDS);
+                if (event != null) {
+                    dispatch(event);
+                }
+            } catch (final InterruptedException e) {
+                // stop() was called
+            }
+            final long now = System.currentTimeMillis();
+            if (now >= nextTick) {
+                tick(now);
+                nextTick = now + TICK_MILLIS;
+            }
+        }
+        ServicesAuditEvent event;
+        while ((event = queue.poll()) != null) {
+            dispatch(event);
+        }
+        tick(System.currentTimeMillis());
+        for (final ServicesAuditConsumer consumer : consumers) {
+            try {
+                consumer.close();
+            } catch (final RuntimeException e) {
+                BACKUP_LOGGER.log(Level.WARNING, "Audit consumer close failed", e);
+            }
+        }
+    }
+
+    private void dispatch(final ServicesAuditEvent event) {
+        for (final ServicesAuditConsumer consumer : consumers) {
+            try {
+                consumer.onEvent(event);
+            } catch (final RuntimeException e) {
+                BACKUP_LOGGER.log(Level.WARNING, "Audit consumer failed", e);
+            }
+        }
+    }
+
+    private void tick(final long now) {
+        for (final ServicesAuditConsumer consumer : consumers) {
+            try {
+                consumer.onTick(now);
+            } catch (final RuntimeException e) {
+                BACKUP_LOGGER.log(Level.WARNING, "Audit consumer failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * ---------------------------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * ---------------------------------------------------------------------------------------
+ */
+
+package com.ericsson.eniq.events.server.logging.audit;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Space-Saving heavy hitter sketch (Metwally, Agrawal, El Abbadi).
+ *
+ * Tracks at most capacity keys. A new key, when the sketch is full, replaces the key with the lowest count and
+ * takes over its count plus one, so a count can be over-estimated by at most the count it took over, which is kept
+ * as the error of the entry. Any key seen more than total/capacity times is guaranteed to be tracked.
+ *
+ * The counters are kept in a min-heap, so every add is O(log capacity). Not thread safe.
+ */
+public final class SpaceSavingTopK {
+
+    /**
+     * One tracked key
+     */
+    public static final class Entry {
+
+        private String key;
+
+        private long count;
+
+        private long error;
+
+        private int heapIndex;
+
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * @return estimated count, never lower than the real count
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return maximum over-estimation of the count
+         */
+        public long getError() {
+            return error;
+        }
+    }
+
+    private static final Comparator<Entry> BY_COUNT_DESCENDING = new Comparator<Entry>() {
+        @Override
+        public int compare(final Entry e1, final Entry e2) {
+            return e1.count == e2.count ? 0 : e1.count > e2.count ? -1 : 1;
+        }
+    };
+
+    private final int capacity;
+
+    private final Map<String, Entry> entries;
+
+    private final Entry[] heap;
+
+    private int size;
+
+    private long total;
+
+    /**
+     * @param capacity number of keys to track
+     */
+    public SpaceSavingTopK(final int capacity) {
+        this.capacity = capacity;
+        this.entries = new HashMap<String, Entry>(capacity * 2);
+        this.heap = new Entry[capacity];
+    }
+
+    /**
+     * Count one occurrence of a key
+     */
+    public void add(final String key) {
+        if (key == null) {
+            return;
+        }
+        total++;
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            if (size < capacity) {
+                entry = new Entry();
+                entry.key = key;
+                entry.heapIndex = size;
+                heap[size++] = entry;
+            } else {
+                entry = heap[0];
+                entries.remove(entry.key);
+                entry.key = key;
+                entry.error = entry.count;
+            }
+            entries.put(key, entry);
+        }
+        entry.count++;
+        siftDown(entry.heapIndex);
+    }
+
+    /**
+     * @param k number of keys wanted
+     * @return the k keys with the highest counts, highest first
+     */
+    public Entry[] top(final int k) {
+        final Entry[] sorted = Arrays.copyOf(heap, size);
+        Arrays.sort(sorted, BY_COUNT_DESCENDING);
+        return Arrays.copyOf(sorted, Math.min(k, size));
+    }
+
+    /**
+     * @return number of keys counted since the last clear
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * Forget everything, the memory is kept for reuse
+     */
+    public void clear() {
+        entries.clear();
+        Arrays.fill(heap, null);
+        size = 0;
+        total = 0;
+    }
+
+    private void siftDown(final int start) {
+        int index = start;
+        final Entry entry = heap[index];
+        while (true) {
+            final int left = index * 2 + 1;
+            if (left >= size) {
+                break;
+            }
+            final int right = left + 1;
+            final int smallest = right < size && heap[right].count < heap[left].count ? right : left;
+            if (heap[smallest].count >= entry.count) {
+                break;
+            }
+            heap[index] = heap[smallest];
+            heap[index].heapIndex = index;
+            index = smallest;
+        }
+        heap[index] = entry;
+        entry.heapIndex = index;
+    }
+}
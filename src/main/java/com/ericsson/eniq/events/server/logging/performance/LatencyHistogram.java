@@ -0,0 +1,165 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.logging.performance;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear latency histogram, in the style of HdrHistogram.
+ *
+ * Values below 64 get a bucket each, above that every power of two is split into 32 buckets, so any
+ * recorded value is reported to within about 3%. Values are clamped to {@link #MAX_VALUE}.
+ * 1024 buckets in all, 8KB per histogram whatever is recorded.
+ *
+ * {@link #record(long)} is lock-free and can be called from any number of threads. Reading the
+ * percentiles while values are being recorded gives approximate answers, readers should work on a
+ * histogram that is no longer being written to, see {@link ServicesPerformanceHistograms}.
+ *
+ * @author echchik
+ */
+public class LatencyHistogram {
+
+    /**
+     * Largest value that can be recorded, about 19 hours in microseconds
+     */
+    public static final long MAX_VALUE = (1L << 36) - 1;
+
+    private static final int SUB_BUCKET_BITS = 5;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private static final int LINEAR_BUCKETS = SUB_BUCKETS * 2;
+
+    private static final int LINEAR_BITS = SUB_BUCKET_BITS + 1;
+
+    static final int BUCKET_COUNT = LINEAR_BUCKETS + (36 - LINEAR_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a value
+     *
+     * @param value the value, negative values are ignored
+     */
+    public void record(final long value) {
+        if (value < 0) {
+            return;
+        }
+        final long clamped = value > MAX_VALUE ? MAX_VALUE : value;
+        counts.incrementAndGet(bucketIndex(clamped));
+        long currentMax = max.get();
+        while (clamped > currentMax && !max.compareAndSet(currentMax, clamped)) {
+            currentMax = max.get();
+        }
+    }
+
+    /**
+     * Record a value a number of times, e.g. a sampled request standing for several
+     *
+     * @param value the value, negative values are ignored
+     * @param count number of times to record it
+     */
+    public void record(final long value, final long count) {
+        if (value < 0 || count <= 0) {
+            return;
+        }
+        final long clamped = value > MAX_VALUE ? MAX_VALUE : value;
+        counts.addAndGet(bucketIndex(clamped), count);
+        long currentMax = max.get();
+        while (clamped > currentMax && !max.compareAndSet(currentMax, clamped)) {
+            currentMax = max.get();
+        }
+    }
+
+    /**
+     * Add the values of another histogram to this one
+     *
+     * @param other histogram not being recorded into
+     */
+    public void add(final LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            final long count = other.counts.get(i);
+            if (count != 0) {
+                counts.addAndGet(i, count);
+            }
+        }
+        final long otherMax = other.max.get();
+        long currentMax = max.get();
+        while (otherMax > currentMax && !max.compareAndSet(currentMax, otherMax)) {
+            currentMax = max.get();
+        }
+    }
+
+    /**
+     * @return number of values recorded
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @return largest value recorded, exact
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile 0 to 100
+     * @return value that the percentile of values are at or below, 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(final double percentile) {
+        final long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        final long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestValueInBucket(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Clear the histogram. Not safe while values are being recorded.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.lazySet(i, 0);
+        }
+        max.set(0);
+    }
+
+    static int bucketIndex(final long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS));
+        return LINEAR_BUCKETS + (exponent - LINEAR_BITS) * SUB_BUCKETS + subBucket - SUB_BUCKETS;
+    }
+
+    static long highestValueInBucket(final int index) {
+        if (index < LINEAR_BUCKETS) {
+            return index;
+        }
+        final int offset = index - LINEAR_BUCKETS;
+        final int shift = offset / SUB_BUCKETS + LINEAR_BITS - SUB_BUCKET_BITS;
+        final long subBucket = SUB_BUCKETS + offset % SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
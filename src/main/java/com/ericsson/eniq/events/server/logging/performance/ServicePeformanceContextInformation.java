@@ -5,76 +5,882 @@
  */
 package com.ericsson.eniq.events.server.logging.performance;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.ericsson.eniq.events.server.logging.ServicesLogTimestamp;
+import com.ericsson.eniq.events.server.logging.ServicesRequestId;
 
 /**
  * This class holds the context information related to logging performance info
+ *
+ * The times are kept as epoch milliseconds, with the System.nanoTime() of each call for precise
+ * durations, and only rendered as text when {@link #getContextInformation(String)} is called by
+ * an enabled logger.
+ *
+ * Fields of the trace line, in order, see {@link #getContextInformation(String)}:
+ * - pool: name of the pool the request ran against
+ * - reqStart, reqEnd: request start and end
+ * - qStart, qEnd: start and end of the last query timed with setQueryExecutionStartTime/EndTime
+ * - interval: the time interval of the request
+ * - uri: the request URI
+ * - phases: named, nested phases, see {@link #beginPhase(String)}, name=micros separated by ',', nested
+ *   phases prefixed by one '>' per level, name=micros:cpuMicros:allocatedBytes when resources are captured,
+ *   e.g. query:imsi-agg=80512,>fetch=61003,transform=1204. Phases timed on other threads, see
+ *   ServicesPerformanceExecutors, are merged in under the phase open when the work was handed over
+ * - sampleWeight: number of requests the line stands for, 1 unless the logger is sampling
+ * - queries: up to {@link #MAX_QUERIES} executions, see {@link #addQueryExecution}, separated by ',',
+ *   pool/templateId=connectionWait:execution:fetch:rows in microseconds, unknown values empty,
+ *   e.g. reader/5d1f03a2=120:80512:61003:200,reader/=:1500::
+ * - connections: acquires:waitMicros:waiting:active, see {@link #beginConnectionAcquire}, empty if no
+ *   connection was taken this way
+ * - resources: cpuMicros:allocatedBytes:captureNanos of the request, other threads' work included, empty
+ *   unless ServicesThreadResources is enabled
+ * - gcPauseMillis: GC pause time inside the request, empty unless the logger tracks GC pauses, see
+ *   ServicesGcPauses
+ * The fields after the uri are left off from the last one with a value, so with none of those features in use
+ * the line ends at the uri.
  * 
  * @author echchik
  *
  */
 public class ServicePeformanceContextInformation{
 
+    /**
+     * Value of a time that has not been set
+     */
+    public static final long NOT_SET = -1L;
+
+    /**
+     * Maximum number of phases recorded per request, phases after this are counted but not timed
+     */
+    public static final int MAX_PHASES = 32;
+
+    /**
+     * Maximum number of query executions recorded per request, queries after this are counted only
+     */
+    public static final int MAX_QUERIES = 64;
+
     private static final String EMPTY_STRING = "";
 
+    private static final long NANOS_IN_MICRO = 1000L;
+
+    private static final long NANOS_IN_MILLI = 1000000L;
+
+    private static final char PHASE_SEPARATOR = ',';
+
+    private static final char PHASE_NESTING = '>';
+
+    private static final char PHASE_VALUE = '=';
+
+    private static final char QUERY_POOL = '/';
+
+    private static final char QUERY_VALUE = ':';
+
+    private static final int FNV_OFFSET_BASIS = 0x811c9dc5;
+
+    private static final int FNV_PRIME = 0x01000193;
+
     /**
-     * Default date format
+     * Maximum number of connections a request holds at once that are tracked in the pool gauges
      */
-    private final SimpleDateFormat simpleDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+    private static final int MAX_HELD_CONNECTIONS = 8;
 
     private long interval ;
 
     private String poolName ;
 
-    private String reqStartTime ;
+    private long reqStartTime ;
+
+    private long reqEndTime ;
 
-    private String reqEndTime ;
+    private long queryExecStartTime ;
 
-    private String queryExecStartTime ;
+    private long queryExecEndTime ;
 
-    private String queryExecEndTime ;
+    private long reqStartNanos ;
+
+    private long reqEndNanos ;
+
+    private long queryExecStartNanos ;
+
+    private long queryExecEndNanos ;
 
     private String uriInfo ;
 
+    private boolean failed ;
+
+    /**
+     * True from the request start to its end, while it counts in ServicesPerformanceMetrics#getInFlight
+     */
+    private boolean inFlight;
+
+    private long sampleWeight = 1 ;
+
+    private final String[] phaseNames = new String[MAX_PHASES];
+
+    private final long[] phaseStartNanos = new long[MAX_PHASES];
+
+    private final long[] phaseDurationNanos = new long[MAX_PHASES];
+
+    private final int[] phaseDepths = new int[MAX_PHASES];
+
+    private final long[] phaseStartCpuNanos = new long[MAX_PHASES];
+
+    private final long[] phaseStartAllocatedBytes = new long[MAX_PHASES];
+
+    private final long[] phaseCpuNanos = new long[MAX_PHASES];
+
+    private final long[] phaseAllocatedBytes = new long[MAX_PHASES];
+
+    /**
+     * Stack of open phases, index into the phase arrays or -1 for a phase that wasn't recorded
+     */
+    private final int[] openPhases = new int[MAX_PHASES];
+
+    private int phaseCount ;
+
+    private int openPhaseCount ;
+
+    private int droppedPhases ;
+
+    private final String[] queryPools = new String[MAX_QUERIES];
+
+    private final int[] queryTemplateIds = new int[MAX_QUERIES];
+
+    private final long[] queryWaitNanos = new long[MAX_QUERIES];
+
+    private final long[] queryExecutionNanos = new long[MAX_QUERIES];
+
+    private final long[] queryFetchNanos = new long[MAX_QUERIES];
+
+    private final long[] queryRows = new long[MAX_QUERIES];
+
+    private int queryCount ;
+
+    private int droppedQueries ;
+
+    /**
+     * Gauge of the pool a connection is being acquired from, null when not acquiring
+     */
+    private ServicesPoolGauges.PoolGauge acquiringFrom ;
+
+    private long acquireStartNanos ;
+
+    private final ServicesPoolGauges.PoolGauge[] heldConnections =
+            new ServicesPoolGauges.PoolGauge[MAX_HELD_CONNECTIONS];
+
+    private int heldConnectionCount ;
+
+    private int connectionAcquires ;
+
+    private long connectionWaitNanos ;
+
+    /**
+     * Wait of the last connection acquired, given to the next query recorded by setQueryExecutionEndTime
+     */
+    private long pendingConnectionWaitNanos ;
+
+    private int maxPoolWaiting ;
+
+    private int maxPoolActive ;
+
+    /**
+     * Whether the CPU time and allocated bytes are captured, decided on reset
+     */
+    private boolean captureResources ;
+
+    private long reqStartCpuNanos ;
+
+    private long reqStartAllocatedBytes ;
+
+    private long reqCpuNanos ;
+
+    private long reqAllocatedBytes ;
+
+    /**
+     * Values read by the last {@link #sampleResources()}
+     */
+    private long sampledCpuNanos ;
+
+    private long sampledAllocatedBytes ;
+
+    private int resourceCaptures ;
+
+    private long resourceCaptureNanos ;
+
+    private long gcPauseMillis ;
+
+    private ServicesRequestId requestId ;
+
+    /**
+     * Incremented on every reset, so phases from work handed over by an earlier request are not merged
+     */
+    private long generation ;
+
+    private final AtomicReference<ChildPhases> childPhases = new AtomicReference<ChildPhases>();
+
     /**
      * Constructor
      */
     public ServicePeformanceContextInformation(){
+        reset();
+    }
+
+    /**
+     * Clear all the fields so the context can be reused for the next request on the thread.
+     * Only the phases that were used are cleared, the arrays are kept. Connections still held
+     * or being acquired are taken off the pool gauges.
+     */
+    public void reset() {
+        releaseConnections();
+        endInFlight();
+        if (resourceCaptures > 0) {
+            ServicesThreadResources.addCaptureCost(resourceCaptures, resourceCaptureNanos);
+        }
+        resourceCaptures = 0;
+        resourceCaptureNanos = 0;
+        captureResources = ServicesThreadResources.isEnabled();
+        reqStartCpuNanos = NOT_SET;
+        reqStartAllocatedBytes = NOT_SET;
+        reqCpuNanos = NOT_SET;
+        reqAllocatedBytes = NOT_SET;
+        gcPauseMillis = NOT_SET;
+        requestId = null;
         //Set the String fields to empty string as it may be null and string builder will
         //throw null pointer exception
         poolName = EMPTY_STRING ;
-        reqStartTime = EMPTY_STRING;
-        reqEndTime = EMPTY_STRING;
-        queryExecEndTime = EMPTY_STRING;
-        queryExecStartTime = EMPTY_STRING ;
         uriInfo = EMPTY_STRING ;
+        interval = 0;
+        reqStartTime = NOT_SET;
+        reqEndTime = NOT_SET;
+        queryExecStartTime = NOT_SET;
+        queryExecEndTime = NOT_SET;
+        reqStartNanos = 0;
+        reqEndNanos = 0;
+        queryExecStartNanos = 0;
+        queryExecEndNanos = 0;
+        failed = false;
+        sampleWeight = 1;
+        for (int i = 0; i < phaseCount; i++) {
+            phaseNames[i] = null;
+        }
+        phaseCount = 0;
+        openPhaseCount = 0;
+        droppedPhases = 0;
+        for (int i = 0; i < queryCount; i++) {
+            queryPools[i] = null;
+        }
+        queryCount = 0;
+        droppedQueries = 0;
+        connectionAcquires = 0;
+        connectionWaitNanos = 0;
+        pendingConnectionWaitNanos = NOT_SET;
+        maxPoolWaiting = 0;
+        maxPoolActive = 0;
+        generation++;
+        childPhases.set(null);
+    }
+
+    /**
+     * @return true if nothing has been set since the last reset
+     */
+    public boolean isClear() {
+        return reqStartTime == NOT_SET && reqEndTime == NOT_SET && queryExecStartTime == NOT_SET
+                && queryExecEndTime == NOT_SET && phaseCount == 0 && queryCount == 0 && connectionAcquires == 0
+                && acquiringFrom == null && heldConnectionCount == 0;
     }
 
     public void setRequestStartTime(final long reqStartTime) {
-        final String timeStr = simpleDateFormat.format(new Date(reqStartTime));
-        this.reqStartTime = timeStr;
+        this.reqStartTime = reqStartTime;
+        this.reqStartNanos = System.nanoTime();
+        if (!inFlight) {
+            inFlight = true;
+            ServicesPerformanceMetrics.requestStarted();
+        }
+        if (captureResources) {
+            sampleResources();
+            reqStartCpuNanos = sampledCpuNanos;
+            reqStartAllocatedBytes = sampledAllocatedBytes;
+        }
+    }
+
+    private void endInFlight() {
+        if (inFlight) {
+            inFlight = false;
+            ServicesPerformanceMetrics.requestEnded();
+        }
     }
 
     public void setRequestEndTime(final long reqEndTime) {
-        final String timeStr = simpleDateFormat.format(new Date(reqEndTime));
-        this.reqEndTime = timeStr;
+        this.reqEndTime = reqEndTime;
+        this.reqEndNanos = System.nanoTime();
+        endInFlight();
+        if (captureResources && reqStartTime != NOT_SET) {
+            sampleResources();
+            reqCpuNanos = delta(reqStartCpuNanos, sampledCpuNanos);
+            reqAllocatedBytes = delta(reqStartAllocatedBytes, sampledAllocatedBytes);
+        }
+    }
+
+    /**
+     * Read the thread's CPU time and allocated bytes into the sampled fields, timing the read
+     */
+    private void sampleResources() {
+        final long before = System.nanoTime();
+        sampledCpuNanos = ServicesThreadResources.currentThreadCpuNanos();
+        sampledAllocatedBytes = ServicesThreadResources.currentThreadAllocatedBytes();
+        resourceCaptureNanos += System.nanoTime() - before;
+        resourceCaptures++;
+    }
+
+    private static long delta(final long start, final long end) {
+        return start == NOT_SET || end == NOT_SET ? NOT_SET : end - start;
+    }
+
+    /**
+     * @return CPU time of the request in nanoseconds, work on other threads included, or NOT_SET
+     *         if it was not captured
+     */
+    public long getRequestCpuNanos() {
+        return reqCpuNanos;
+    }
+
+    /**
+     * @return bytes allocated by the request, work on other threads included, or NOT_SET if they were not captured
+     */
+    public long getRequestAllocatedBytes() {
+        return reqAllocatedBytes;
+    }
+
+    /**
+     * @return time the request thread spent reading its CPU time and allocated bytes, in nanoseconds
+     */
+    public long getResourceCaptureNanos() {
+        return resourceCaptureNanos;
     }
 
     public void setQueryExecutionStartTime(final long queryExecStartTime) {
-        final String timeStr = simpleDateFormat.format(new Date(queryExecStartTime));
-        this.queryExecStartTime = timeStr;
+        this.queryExecStartTime = queryExecStartTime;
+        this.queryExecStartNanos = System.nanoTime();
     }
 
     public void setQueryExecutionEndTime(final long queryExecEndTime) {
-        final String timeStr = simpleDateFormat.format(new Date(queryExecEndTime));
-        this.queryExecEndTime = timeStr;
+        this.queryExecEndTime = queryExecEndTime;
+        this.queryExecEndNanos = System.nanoTime();
+        if (queryExecStartTime != NOT_SET) {
+            addQueryExecution(poolName, 0, pendingConnectionWaitNanos, queryExecEndNanos - queryExecStartNanos,
+                    NOT_SET, NOT_SET);
+            pendingConnectionWaitNanos = NOT_SET;
+        }
+    }
+
+    /**
+     * Called just before a connection is taken from a pool, the request counts as waiting on the pool
+     * until {@link #endConnectionAcquire()} or {@link #failConnectionAcquire()}. Sets the pool name.
+     *
+     * @param pool name of the connection pool
+     */
+    public void beginConnectionAcquire(final String pool) {
+        if (acquiringFrom != null) {
+            failConnectionAcquire();
+        }
+        poolName = pool;
+        final ServicesPoolGauges.PoolGauge gauge = ServicesPoolGauges.getInstance().getGauge(pool);
+        final int waiting = gauge.acquireStarted();
+        final int active = gauge.getActive();
+        if (waiting > maxPoolWaiting) {
+            maxPoolWaiting = waiting;
+        }
+        if (active > maxPoolActive) {
+            maxPoolActive = active;
+        }
+        acquiringFrom = gauge;
+        acquireStartNanos = System.nanoTime();
+    }
+
+    /**
+     * Called when the connection has been taken from the pool, the request counts as holding a connection
+     * of the pool until {@link #releaseConnection()} or the context is reset
+     */
+    public void endConnectionAcquire() {
+        final long now = System.nanoTime();
+        final ServicesPoolGauges.PoolGauge gauge = acquiringFrom;
+        if (gauge == null) {
+            return;
+        }
+        acquiringFrom = null;
+        final long wait = now - acquireStartNanos;
+        gauge.acquired(wait);
+        connectionAcquires++;
+        connectionWaitNanos += wait;
+        pendingConnectionWaitNanos = wait;
+        if (heldConnectionCount < MAX_HELD_CONNECTIONS) {
+            heldConnections[heldConnectionCount++] = gauge;
+        } else {
+            // can't be released later, keep the gauge right
+            gauge.released();
+        }
+    }
+
+    /**
+     * Called instead of {@link #endConnectionAcquire()} when no connection was got
+     */
+    public void failConnectionAcquire() {
+        if (acquiringFrom != null) {
+            acquiringFrom.acquireAbandoned();
+            acquiringFrom = null;
+        }
+    }
+
+    /**
+     * Called when the last connection acquired and not released is given back to its pool
+     */
+    public void releaseConnection() {
+        if (heldConnectionCount > 0) {
+            heldConnections[--heldConnectionCount].released();
+            heldConnections[heldConnectionCount] = null;
+        }
+    }
+
+    private void releaseConnections() {
+        failConnectionAcquire();
+        while (heldConnectionCount > 0) {
+            releaseConnection();
+        }
+    }
+
+    /**
+     * @return number of connections acquired from pools by the request
+     */
+    public int getConnectionAcquireCount() {
+        return connectionAcquires;
+    }
+
+    /**
+     * @return total time the request waited for connections, in nanoseconds
+     */
+    public long getConnectionWaitNanos() {
+        return connectionWaitNanos;
+    }
+
+    /**
+     * @return most requests seen waiting on a pool, this one included, when this request asked for a connection
+     */
+    public int getMaxPoolWaiting() {
+        return maxPoolWaiting;
+    }
+
+    /**
+     * @return most connections seen held from a pool when this request asked for a connection
+     */
+    public int getMaxPoolActive() {
+        return maxPoolActive;
+    }
+
+    /**
+     * Record a query execution
+     *
+     * @param pool connection pool the query ran on
+     * @param templateId id of the query template, see {@link #queryTemplateId(String)}, 0 if not known
+     * @param connectionWaitNanos time waiting for a connection from the pool, or NOT_SET
+     * @param executionNanos time executing the statement, or NOT_SET
+     * @param fetchNanos time fetching the results, or NOT_SET
+     * @param rows number of rows fetched, or NOT_SET
+     */
+    public void addQueryExecution(final String pool, final int templateId, final long connectionWaitNanos,
+            final long executionNanos, final long fetchNanos, final long rows) {
+        if (queryCount == MAX_QUERIES) {
+            droppedQueries++;
+            return;
+        }
+        final int index = queryCount++;
+        queryPools[index] = pool;
+        queryTemplateIds[index] = templateId;
+        queryWaitNanos[index] = connectionWaitNanos;
+        queryExecutionNanos[index] = executionNanos;
+        queryFetchNanos[index] = fetchNanos;
+        queryRows[index] = rows;
+    }
+
+    /**
+     * @return number of query executions recorded
+     */
+    public int getQueryCount() {
+        return queryCount;
+    }
+
+    public String getQueryPool(final int index) {
+        return queryPools[index];
+    }
+
+    public int getQueryTemplateId(final int index) {
+        return queryTemplateIds[index];
+    }
+
+    public long getQueryWaitNanos(final int index) {
+        return queryWaitNanos[index];
+    }
+
+    public long getQueryExecutionNanos(final int index) {
+        return queryExecutionNanos[index];
+    }
+
+    public long getQueryFetchNanos(final int index) {
+        return queryFetchNanos[index];
+    }
+
+    public long getQueryRows(final int index) {
+        return queryRows[index];
+    }
+
+    /**
+     * Id of a query's template: a 32 bit FNV-1a hash of the SQL with string and number literals left out
+     * and whitespace collapsed, so the same statement with different values gets the same id.
+     * Nothing is allocated.
+     *
+     * @param sql the query
+     * @return template id, never 0, or 0 if there was no query
+     */
+    public static int queryTemplateId(final String sql) {
+        if (sql == null) {
+            return 0;
+        }
+        int hash = FNV_OFFSET_BASIS;
+        boolean inString = false;
+        boolean inNumber = false;
+        boolean inWord = false;
+        boolean lastWasSpace = true;
+        for (int i = 0; i < sql.length(); i++) {
+            final char c = sql.charAt(i);
+            if (inString) {
+                if (c == '\'') {
+                    // '' is a quote inside the string
+                    if (i + 1 < sql.length() && sql.charAt(i + 1) == '\'') {
+                        i++;
+                    } else {
+                        inString = false;
+                    }
+                }
+                continue;
+            }
+            if (c == '\'') {
+                inString = true;
+                hash = fnv(hash, '?');
+                inNumber = false;
+                inWord = false;
+                lastWasSpace = false;
+            } else if (c >= '0' && c <= '9' && !inWord || inNumber && c == '.') {
+                if (!inNumber) {
+                    hash = fnv(hash, '?');
+                    inNumber = true;
+                }
+                lastWasSpace = false;
+            } else if (c <= ' ') {
+                if (!lastWasSpace) {
+                    hash = fnv(hash, ' ');
+                }
+                inNumber = false;
+                inWord = false;
+                lastWasSpace = true;
+            } else {
+                hash = fnv(hash, Character.toLowerCase(c));
+                inNumber = false;
+                inWord = Character.isLetterOrDigit(c) || c == '_';
+                lastWasSpace = false;
+            }
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    private static int fnv(final int hash, final char c) {
+        return (hash ^ c) * FNV_PRIME;
+    }
+
+    /**
+     * Start a phase of the request, nested inside any phase that is still open.
+     * Each beginPhase must be matched by an {@link #endPhase()}, in a finally block.
+     *
+     * @param name phase name, e.g. query:imsi-agg, best a constant so nothing is allocated
+     */
+    public void beginPhase(final String name) {
+        final int depth = openPhaseCount;
+        if (phaseCount == MAX_PHASES || depth == MAX_PHASES) {
+            droppedPhases++;
+            if (depth < MAX_PHASES) {
+                openPhases[openPhaseCount++] = -1;
+            }
+            return;
+        }
+        final int index = phaseCount++;
+        phaseNames[index] = name;
+        phaseDepths[index] = depth;
+        phaseDurationNanos[index] = NOT_SET;
+        phaseCpuNanos[index] = NOT_SET;
+        phaseAllocatedBytes[index] = NOT_SET;
+        openPhases[openPhaseCount++] = index;
+        if (captureResources) {
+            sampleResources();
+            phaseStartCpuNanos[index] = sampledCpuNanos;
+            phaseStartAllocatedBytes[index] = sampledAllocatedBytes;
+        }
+        phaseStartNanos[index] = System.nanoTime();
+    }
+
+    /**
+     * End the phase started by the last unmatched {@link #beginPhase(String)}
+     */
+    public void endPhase() {
+        final long now = System.nanoTime();
+        if (openPhaseCount == 0) {
+            return;
+        }
+        final int index = openPhases[--openPhaseCount];
+        if (index >= 0) {
+            phaseDurationNanos[index] = now - phaseStartNanos[index];
+            if (captureResources) {
+                sampleResources();
+                phaseCpuNanos[index] = delta(phaseStartCpuNanos[index], sampledCpuNanos);
+                phaseAllocatedBytes[index] = delta(phaseStartAllocatedBytes[index], sampledAllocatedBytes);
+            }
+        }
+    }
+
+    long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return number of phases open now, the depth work handed over now is nested at
+     */
+    int getOpenPhaseDepth() {
+        return openPhaseCount;
+    }
+
+    /**
+     * Called on a worker thread when work handed over by this context's request finishes.
+     * The phases are copied, the child context can be reused as soon as this returns.
+     *
+     * @param parentGeneration generation of this context when the work was handed over
+     * @param baseDepth open phase depth of this context when the work was handed over
+     * @param child context the work was timed in
+     */
+    void addChildPhases(final long parentGeneration, final int baseDepth,
+            final ServicePeformanceContextInformation child) {
+        final ChildPhases phases = new ChildPhases(parentGeneration, baseDepth, child);
+        ChildPhases head;
+        do {
+            head = childPhases.get();
+            phases.next = head;
+        } while (!childPhases.compareAndSet(head, phases));
+    }
+
+    /**
+     * Merge the phases of work handed over to other threads into this context's phases, in the order
+     * the work finished. Called on the request thread once the request has ended, the trace logger calls it
+     * before the request is recorded.
+     */
+    public void mergeChildPhases() {
+        ChildPhases phases = childPhases.getAndSet(null);
+        if (phases == null) {
+            return;
+        }
+        // the stack is newest first, reverse it
+        ChildPhases ordered = null;
+        while (phases != null) {
+            final ChildPhases next = phases.next;
+            phases.next = ordered;
+            ordered = phases;
+            phases = next;
+        }
+        for (ChildPhases child = ordered; child != null; child = child.next) {
+            if (child.generation != generation) {
+                continue;
+            }
+            for (int i = 0; i < child.names.length; i++) {
+                if (phaseCount == MAX_PHASES) {
+                    droppedPhases++;
+                    continue;
+                }
+                final int index = phaseCount++;
+                phaseNames[index] = child.names[i];
+                phaseDepths[index] = child.baseDepth + child.depths[i];
+                phaseDurationNanos[index] = child.durations[i];
+                phaseCpuNanos[index] = child.cpuNanos[i];
+                phaseAllocatedBytes[index] = child.allocatedBytes[i];
+            }
+            // the task phase of the child covers all the work it did
+            if (child.names.length > 0 && child.depths[0] == 0) {
+                reqCpuNanos = add(reqCpuNanos, child.cpuNanos[0]);
+                reqAllocatedBytes = add(reqAllocatedBytes, child.allocatedBytes[0]);
+            }
+            droppedPhases += child.dropped;
+            for (int i = 0; i < child.queryPools.length; i++) {
+                addQueryExecution(child.queryPools[i], child.queryTemplateIds[i], child.queryWaitNanos[i],
+                        child.queryExecutionNanos[i], child.queryFetchNanos[i], child.queryRows[i]);
+            }
+            droppedQueries += child.droppedQueries;
+            connectionAcquires += child.connectionAcquires;
+            connectionWaitNanos += child.connectionWaitNanos;
+            maxPoolWaiting = Math.max(maxPoolWaiting, child.maxPoolWaiting);
+            maxPoolActive = Math.max(maxPoolActive, child.maxPoolActive);
+        }
+    }
+
+    private static long add(final long total, final long value) {
+        return total == NOT_SET || value == NOT_SET ? total : total + value;
+    }
+
+    /**
+     * @return number of phases recorded
+     */
+    public int getPhaseCount() {
+        return phaseCount;
+    }
+
+    public String getPhaseName(final int index) {
+        return phaseNames[index];
+    }
+
+    /**
+     * @return how many levels the phase is nested, 0 for a top level phase
+     */
+    public int getPhaseDepth(final int index) {
+        return phaseDepths[index];
+    }
+
+    /**
+     * @return phase duration in nanoseconds, or NOT_SET if the phase was not ended
+     */
+    public long getPhaseDurationNanos(final int index) {
+        return phaseDurationNanos[index];
+    }
+
+    /**
+     * @return CPU time of the phase in nanoseconds, or NOT_SET if it was not captured or the phase was not ended
+     */
+    public long getPhaseCpuNanos(final int index) {
+        return phaseCpuNanos[index];
+    }
+
+    /**
+     * @return bytes allocated in the phase, or NOT_SET if they were not captured or the phase was not ended
+     */
+    public long getPhaseAllocatedBytes(final int index) {
+        return phaseAllocatedBytes[index];
+    }
+
+    public long getRequestStartTime() {
+        return reqStartTime;
+    }
+
+    public long getRequestEndTime() {
+        return reqEndTime;
+    }
+
+    public long getQueryExecutionStartTime() {
+        return queryExecStartTime;
+    }
+
+    public long getQueryExecutionEndTime() {
+        return queryExecEndTime;
+    }
+
+    /**
+     * Measured between the setRequestStartTime and setRequestEndTime calls, so only meaningful
+     * when they are called as the request starts and ends
+     *
+     * @return request duration in nanoseconds, or NOT_SET
+     */
+    public long getRequestDurationNanos() {
+        return duration(reqStartTime, reqStartNanos, reqEndTime, reqEndNanos);
+    }
+
+    /**
+     * @return query execution duration in nanoseconds, or NOT_SET
+     */
+    public long getQueryExecutionDurationNanos() {
+        return duration(queryExecStartTime, queryExecStartNanos, queryExecEndTime, queryExecEndNanos);
+    }
+
+    private static long duration(final long start, final long startNanos, final long end, final long endNanos) {
+        if (start == NOT_SET || end == NOT_SET) {
+            return NOT_SET;
+        }
+        return endNanos - startNanos;
     }
 
     public void setInterval(final long interval) {
         this.interval = interval;
     }
 
+    public long getInterval() {
+        return interval;
+    }
+
+    /**
+     * @return number of phases counted but not recorded
+     */
+    int getDroppedPhaseCount() {
+        return droppedPhases;
+    }
+
+    /**
+     * @return number of query executions counted but not recorded
+     */
+    int getDroppedQueryCount() {
+        return droppedQueries;
+    }
+
+    /**
+     * Set the times of a record read back from a file, see ServicesPerformanceBinaryReader.
+     * The durations are taken from the millisecond times.
+     */
+    void restoreTimes(final long requestStart, final long requestEnd, final long queryStart, final long queryEnd) {
+        reqStartTime = requestStart;
+        reqEndTime = requestEnd;
+        queryExecStartTime = queryStart;
+        queryExecEndTime = queryEnd;
+        reqStartNanos = requestStart * NANOS_IN_MILLI;
+        reqEndNanos = requestEnd * NANOS_IN_MILLI;
+        queryExecStartNanos = queryStart * NANOS_IN_MILLI;
+        queryExecEndNanos = queryEnd * NANOS_IN_MILLI;
+    }
+
+    /**
+     * Add a phase of a record read back from a file
+     */
+    void restorePhase(final String name, final int depth, final long durationNanos, final long cpuNanos,
+            final long allocatedBytes) {
+        if (phaseCount == MAX_PHASES) {
+            droppedPhases++;
+            return;
+        }
+        final int index = phaseCount++;
+        phaseNames[index] = name;
+        phaseDepths[index] = depth;
+        phaseDurationNanos[index] = durationNanos;
+        phaseCpuNanos[index] = cpuNanos;
+        phaseAllocatedBytes[index] = allocatedBytes;
+    }
+
+    void restoreDropped(final int phases, final int queries) {
+        droppedPhases += phases;
+        droppedQueries += queries;
+    }
+
+    void restoreConnections(final int acquires, final long waitNanos, final int waiting, final int active) {
+        connectionAcquires = acquires;
+        connectionWaitNanos = waitNanos;
+        maxPoolWaiting = waiting;
+        maxPoolActive = active;
+    }
+
+    void restoreResources(final long cpuNanos, final long allocatedBytes, final long captureNanos) {
+        reqCpuNanos = cpuNanos;
+        reqAllocatedBytes = allocatedBytes;
+        resourceCaptureNanos = captureNanos;
+    }
+
     public void setUriInfo(final String uriInfo) {
         this.uriInfo = uriInfo;
     }
@@ -83,21 +889,310 @@ public class ServicePeformanceContextInformation{
         this.poolName = poolName;
     }
 
+    /**
+     * @param failed true if the request failed, failed requests are always kept by the sampler
+     */
+    public void setFailed(final boolean failed) {
+        this.failed = failed;
+    }
+
+    public boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * @param sampleWeight number of requests this trace line stands for, set by the logger when sampling
+     */
+    void setSampleWeight(final long sampleWeight) {
+        this.sampleWeight = sampleWeight;
+    }
+
+    public long getSampleWeight() {
+        return sampleWeight;
+    }
+
+    /**
+     * @param gcPauseMillis GC pause time inside the request, set by the logger when tracking GC pauses
+     */
+    void setGcPauseMillis(final long gcPauseMillis) {
+        this.gcPauseMillis = gcPauseMillis;
+    }
+
+    /**
+     * @return GC pause time inside the request in milliseconds, or NOT_SET if it is not known
+     */
+    public long getGcPauseMillis() {
+        return gcPauseMillis;
+    }
+
+    /**
+     * @param requestId correlation ID of the request, see ServicesRequestId
+     */
+    void setRequestId(final ServicesRequestId requestId) {
+        this.requestId = requestId;
+    }
+
+    /**
+     * @return correlation ID of the request, or null if it has not started
+     */
+    public ServicesRequestId getRequestId() {
+        return requestId;
+    }
+
+    public String getPoolName() {
+        return poolName;
+    }
+
+    public String getUriInfo() {
+        return uriInfo;
+    }
+
     public String getContextInformation(final String delimeter) {
         final StringBuilder contextInfo = new StringBuilder(poolName);
         contextInfo.append(delimeter);
-        contextInfo.append(reqStartTime);
+        appendTime(contextInfo, reqStartTime);
         contextInfo.append(delimeter);
-        contextInfo.append(reqEndTime);
+        appendTime(contextInfo, reqEndTime);
         contextInfo.append(delimeter);
-        contextInfo.append(queryExecStartTime);
+        appendTime(contextInfo, queryExecStartTime);
         contextInfo.append(delimeter);
-        contextInfo.append(queryExecEndTime);
+        appendTime(contextInfo, queryExecEndTime);
         contextInfo.append(delimeter);
         contextInfo.append(interval);
         contextInfo.append(delimeter);
         contextInfo.append(uriInfo);
+        final int optionalFields = getOptionalFieldCount();
+        if (optionalFields > 0) {
+            contextInfo.append(delimeter);
+            appendPhases(contextInfo);
+        }
+        if (optionalFields > 1) {
+            contextInfo.append(delimeter);
+            contextInfo.append(sampleWeight);
+        }
+        if (optionalFields > 2) {
+            contextInfo.append(delimeter);
+            appendQueries(contextInfo);
+        }
+        if (optionalFields > 3) {
+            contextInfo.append(delimeter);
+            appendConnections(contextInfo);
+        }
+        if (optionalFields > 4) {
+            contextInfo.append(delimeter);
+            appendResources(contextInfo);
+        }
+        if (optionalFields > 5) {
+            contextInfo.append(delimeter);
+            appendValue(contextInfo, gcPauseMillis);
+        }
         return contextInfo.toString();
     }
 
+    /**
+     * @return number of the fields after the uri up to the last one with a value
+     */
+    private int getOptionalFieldCount() {
+        if (gcPauseMillis != NOT_SET) {
+            return 6;
+        }
+        if (reqCpuNanos != NOT_SET || reqAllocatedBytes != NOT_SET) {
+            return 5;
+        }
+        if (connectionAcquires > 0) {
+            return 4;
+        }
+        if (queryCount > 0 || droppedQueries > 0) {
+            return 3;
+        }
+        if (sampleWeight != 1) {
+            return 2;
+        }
+        return phaseCount > 0 || droppedPhases > 0 ? 1 : 0;
+    }
+
+    /**
+     * Phases not ended are written with a duration of -1, phases over MAX_PHASES as a final +count entry.
+     * Characters in a name that would break the line format are written as '_'.
+     */
+    private void appendPhases(final StringBuilder contextInfo) {
+        for (int i = 0; i < phaseCount; i++) {
+            if (i > 0) {
+                contextInfo.append(PHASE_SEPARATOR);
+            }
+            for (int depth = phaseDepths[i]; depth > 0; depth--) {
+                contextInfo.append(PHASE_NESTING);
+            }
+            appendName(contextInfo, phaseNames[i]);
+            contextInfo.append(PHASE_VALUE);
+            final long duration = phaseDurationNanos[i];
+            contextInfo.append(duration == NOT_SET ? NOT_SET : duration / NANOS_IN_MICRO);
+            if (phaseCpuNanos[i] != NOT_SET || phaseAllocatedBytes[i] != NOT_SET) {
+                contextInfo.append(QUERY_VALUE);
+                appendMicros(contextInfo, phaseCpuNanos[i]);
+                contextInfo.append(QUERY_VALUE);
+                appendValue(contextInfo, phaseAllocatedBytes[i]);
+            }
+        }
+        if (droppedPhases > 0) {
+            contextInfo.append(PHASE_SEPARATOR).append('+').append(droppedPhases);
+        }
+    }
+
+    private void appendQueries(final StringBuilder contextInfo) {
+        for (int i = 0; i < queryCount; i++) {
+            if (i > 0) {
+                contextInfo.append(PHASE_SEPARATOR);
+            }
+            appendName(contextInfo, queryPools[i]);
+            contextInfo.append(QUERY_POOL);
+            if (queryTemplateIds[i] != 0) {
+                contextInfo.append(Integer.toHexString(queryTemplateIds[i]));
+            }
+            contextInfo.append(PHASE_VALUE);
+            appendMicros(contextInfo, queryWaitNanos[i]);
+            contextInfo.append(QUERY_VALUE);
+            appendMicros(contextInfo, queryExecutionNanos[i]);
+            contextInfo.append(QUERY_VALUE);
+            appendMicros(contextInfo, queryFetchNanos[i]);
+            contextInfo.append(QUERY_VALUE);
+            appendValue(contextInfo, queryRows[i]);
+        }
+        if (droppedQueries > 0) {
+            contextInfo.append(PHASE_SEPARATOR).append('+').append(droppedQueries);
+        }
+    }
+
+    private void appendConnections(final StringBuilder contextInfo) {
+        if (connectionAcquires == 0) {
+            return;
+        }
+        contextInfo.append(connectionAcquires).append(QUERY_VALUE);
+        contextInfo.append(connectionWaitNanos / NANOS_IN_MICRO).append(QUERY_VALUE);
+        contextInfo.append(maxPoolWaiting).append(QUERY_VALUE);
+        contextInfo.append(maxPoolActive);
+    }
+
+    private void appendResources(final StringBuilder contextInfo) {
+        if (reqCpuNanos == NOT_SET && reqAllocatedBytes == NOT_SET) {
+            return;
+        }
+        appendMicros(contextInfo, reqCpuNanos);
+        contextInfo.append(QUERY_VALUE);
+        appendValue(contextInfo, reqAllocatedBytes);
+        contextInfo.append(QUERY_VALUE);
+        contextInfo.append(resourceCaptureNanos);
+    }
+
+    private static void appendValue(final StringBuilder contextInfo, final long value) {
+        if (value != NOT_SET) {
+            contextInfo.append(value);
+        }
+    }
+
+    private static void appendMicros(final StringBuilder contextInfo, final long nanos) {
+        if (nanos != NOT_SET) {
+            contextInfo.append(nanos / NANOS_IN_MICRO);
+        }
+    }
+
+    /**
+     * Characters in a name that would break the line format are written as '_'
+     */
+    private static void appendName(final StringBuilder contextInfo, final String name) {
+        if (name != null) {
+            for (int c = 0; c < name.length(); c++) {
+                final char ch = name.charAt(c);
+                contextInfo.append(ch == '|' || ch == PHASE_SEPARATOR || ch == PHASE_VALUE || ch == QUERY_POOL
+                        || ch < ' ' ? '_' : ch);
+            }
+        }
+    }
+
+    private static void appendTime(final StringBuilder contextInfo, final long time) {
+        if (time != NOT_SET) {
+            ServicesLogTimestamp.appendTo(time, contextInfo);
+        }
+    }
+
+    /**
+     * Immutable copy of the phases and queries timed on a worker thread, an entry in the lock-free stack
+     */
+    private static final class ChildPhases {
+
+        private final long generation;
+
+        private final int baseDepth;
+
+        private final String[] names;
+
+        private final int[] depths;
+
+        private final long[] durations;
+
+        private final long[] cpuNanos;
+
+        private final long[] allocatedBytes;
+
+        private final int dropped;
+
+        private final String[] queryPools;
+
+        private final int[] queryTemplateIds;
+
+        private final long[] queryWaitNanos;
+
+        private final long[] queryExecutionNanos;
+
+        private final long[] queryFetchNanos;
+
+        private final long[] queryRows;
+
+        private final int droppedQueries;
+
+        private final int connectionAcquires;
+
+        private final long connectionWaitNanos;
+
+        private final int maxPoolWaiting;
+
+        private final int maxPoolActive;
+
+        private ChildPhases next;
+
+        ChildPhases(final long generation, final int baseDepth, final ServicePeformanceContextInformation child) {
+            this.generation = generation;
+            this.baseDepth = baseDepth;
+            final int count = child.phaseCount;
+            names = new String[count];
+            depths = new int[count];
+            durations = new long[count];
+            System.arraycopy(child.phaseNames, 0, names, 0, count);
+            System.arraycopy(child.phaseDepths, 0, depths, 0, count);
+            System.arraycopy(child.phaseDurationNanos, 0, durations, 0, count);
+            cpuNanos = new long[count];
+            allocatedBytes = new long[count];
+            System.arraycopy(child.phaseCpuNanos, 0, cpuNanos, 0, count);
+            System.arraycopy(child.phaseAllocatedBytes, 0, allocatedBytes, 0, count);
+            dropped = child.droppedPhases;
+            final int queries = child.queryCount;
+            queryPools = new String[queries];
+            queryTemplateIds = new int[queries];
+            queryWaitNanos = new long[queries];
+            queryExecutionNanos = new long[queries];
+            queryFetchNanos = new long[queries];
+            queryRows = new long[queries];
+            System.arraycopy(child.queryPools, 0, queryPools, 0, queries);
+            System.arraycopy(child.queryTemplateIds, 0, queryTemplateIds, 0, queries);
+            System.arraycopy(child.queryWaitNanos, 0, queryWaitNanos, 0, queries);
+            System.arraycopy(child.queryExecutionNanos, 0, queryExecutionNanos, 0, queries);
+            System.arraycopy(child.queryFetchNanos, 0, queryFetchNanos, 0, queries);
+            System.arraycopy(child.queryRows, 0, queryRows, 0, queries);
+            droppedQueries = child.droppedQueries;
+            connectionAcquires = child.connectionAcquires;
+            connectionWaitNanos = child.connectionWaitNanos;
+            maxPoolWaiting = child.maxPoolWaiting;
+            maxPoolActive = child.maxPoolActive;
+        }
+    }
 }
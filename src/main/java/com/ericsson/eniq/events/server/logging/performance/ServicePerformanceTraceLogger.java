@@ -10,10 +10,16 @@ import java.io.File;
 import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.Calendar;
 import java.util.Date;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.ConsoleHandler;
-import java.util.logging.FileHandler;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -30,6 +36,9 @@ import javax.naming.InitialContext;
 import javax.naming.NamingException;
 
 import com.ericsson.eniq.events.server.common.ApplicationConfigConstants;
+import com.ericsson.eniq.events.server.logging.ServicesLogger;
+import com.ericsson.eniq.events.server.logging.ServicesRequestId;
+import com.ericsson.eniq.events.server.logging.ServicesRollingFileHandler;
 
 /**
  * Eniq Services performance trace Logger class.
@@ -42,6 +51,44 @@ import com.ericsson.eniq.events.server.common.ApplicationConfigConstants;
  *
  * INFO,FINE : performance data will be logged
  *
+ * With -DEniqEventsServicesPerformanceTrace.histograms=true the request and query durations are also
+ * aggregated per pool and URI, and a SUMMARY line with the percentiles is logged for each one every
+ * interval (-DEniqEventsServicesPerformanceTrace.histogramInterval, seconds, default 60), see
+ * ServicesPerformanceHistograms. The per request lines can then be turned off with
+ * -DEniqEventsServicesPerformanceTrace.requestLines=false, or sampled with
+ * -DEniqEventsServicesPerformanceTrace.sampling=true, see startSampling
+ *
+ * The URIs are normalised before they are used as keys, see ServicesUriNormaliser. The query parameters
+ * kept are set with -DEniqEventsServicesPerformanceTrace.uriParameters=name,name...
+ *
+ * The live connection pool gauges, see ServicesPoolGauges, are registered over JMX while the logger is up.
+ *
+ * With -DEniqEventsServicesPerformanceTrace.resources=true, or setResourceCaptureEnabled at runtime, the CPU
+ * time and allocated bytes of each request and phase are captured too, see ServicesThreadResources.
+ *
+ * With -DEniqEventsServicesPerformanceTrace.gcPauses=true each request line gets the GC pause time inside
+ * the request, and a GC summary line is logged with the histogram summaries, see ServicesGcPauses.
+ *
+ * With -DEniqEventsServicesPerformanceTrace.alerts=true the request p95 of each interval is compared with a
+ * moving baseline per pool and URI, and an ALERT line is logged and a JMX notification sent when it is
+ * -DEniqEventsServicesPerformanceTrace.alertFactor times over it, default 2, see ServicesLatencyAlerts.
+ *
+ * With -DEniqEventsServicesPerformanceTrace.binary=true the per request records are written in a binary
+ * format to servicesperformancetrace-yyyy_MM_dd.bin next to the log, see ServicesPerformanceBinaryWriter,
+ * and ServicesPerformanceBinaryReader turns them back into log lines or CSV. The summaries stay in the log.
+ *
+ * With -DEniqEventsServicesPerformanceTrace.columnar=true the trace files of each day are converted, once the
+ * day is over, into a columnar file servicesperformancetrace-yyyy_MM_dd.col on a background thread, see
+ * ServicesPerformanceColumnarExport, for queries over many days with ServicesPerformanceColumnarReader.
+ *
+ * With -DEniqEventsServicesPerformanceTrace.metricsFile=path live request counters, latency histograms and
+ * gauges are written to the file in the OpenMetrics text format every
+ * -DEniqEventsServicesPerformanceTrace.metricsInterval seconds, default 15, see ServicesPerformanceMetrics.
+ *
+ * detailed is called by every request thread, so it takes the container's READ lock: the GC overlap, histograms,
+ * metrics and sampler are recorded concurrently, they are all lock-free. Only the day rollover of the log files
+ * and the binary writer, which is not thread safe, are behind a lock of their own, handlerLock.
+ *
  */
 @Singleton
 @Startup
@@ -52,14 +99,19 @@ public class ServicePerformanceTraceLogger {
     protected int fileLimit = 10000;
 
     /**
-     * Timestamp formatter for the output log file
+     * Current timestamp.
      */
-    private final DateFormat logfileTimeStampFormatter = new SimpleDateFormat("yyyy_MM_dd");
+    protected volatile String timeStamp;
 
     /**
-     * Current timestamp.
+     * The day now, so the timestamp is only formatted once a day
      */
-    protected String timeStamp;
+    private volatile LogDay currentDay = null;
+
+    /**
+     * Held to replace the log handlers and the binary writer, and to write to the binary writer
+     */
+    private final Object handlerLock = new Object();
 
     /**
      * Services logger name, same as module name in Glassfish
@@ -97,8 +149,65 @@ public class ServicePerformanceTraceLogger {
 
     private boolean redirectToStdout = false;
 
+    /**
+     * Per request records in the binary format, null when they are logged as text, guarded by handlerLock
+     */
+    private ServicesPerformanceBinaryWriter binaryWriter = null;
+
+    private boolean binaryEnabled = false;
+
+    private static final long DEFAULT_HISTOGRAM_INTERVAL_SECONDS = 60;
+
+    /**
+     * Latency histograms, null if they are off
+     */
+    private volatile ServicesPerformanceHistograms histograms = null;
+
+    private ScheduledExecutorService histogramScheduler = null;
+
+    private volatile boolean requestLinesEnabled = true;
+
+    /**
+     * Recent GC pauses, null if they are not tracked
+     */
+    private volatile ServicesGcPauses gcPauses = null;
+
+    /**
+     * Request latency anomaly detection, null if it is off
+     */
+    private ServicesLatencyAlerts latencyAlerts = null;
+
+    private static final long DEFAULT_SAMPLE_THRESHOLD_MILLIS = 1000;
+
+    private static final int DEFAULT_SAMPLE_RATE = 100;
+
+    /**
+     * Tail sampler for the per request lines, null to log every request
+     */
+    private volatile ServicesPerformanceSampler sampler = null;
+
+    private final ServicesUriNormaliser uriNormaliser = ServicesUriNormaliser.fromSystemProperty();
+
+    private static final long DEFAULT_METRICS_INTERVAL_SECONDS = 15;
+
+    /**
+     * Live metrics written to a file for scraping, null if they are off
+     */
+    private volatile ServicesPerformanceMetrics metrics = null;
+
+    private ScheduledExecutorService metricsScheduler = null;
+
+    private Runnable writeMetrics = null;
+
+    /**
+     * Converts the trace files of past days to columnar files, null if they are not converted
+     */
+    private ExecutorService columnarExecutor = null;
+
     @PostConstruct
     public void init() {
+        binaryEnabled = Boolean.valueOf(System.getProperty(SERVICES_PERFORMANCE_TRACE_LOGGER_NAME + ".binary",
+                "false"));
         resetHandlers();
         redirectToStdout = Boolean.valueOf(System.getProperty(SERVICES_PERFORMANCE_TRACE_LOGGER_NAME + ".stdout",
                 "false"));
@@ -107,14 +216,401 @@ public class ServicePerformanceTraceLogger {
             consoleHandler.setLevel(Level.FINE);
             servicesPerformanceTraceLogger.addHandler(consoleHandler);
         }
+        requestLinesEnabled = Boolean.valueOf(System.getProperty(SERVICES_PERFORMANCE_TRACE_LOGGER_NAME
+                + ".requestLines", "true"));
+        ServicesPoolGauges.getInstance().register();
+        if (Boolean.valueOf(System.getProperty(SERVICES_PERFORMANCE_TRACE_LOGGER_NAME + ".resources", "false"))) {
+            setResourceCaptureEnabled(true);
+        }
+        if (Boolean.valueOf(System.getProperty(SERVICES_PERFORMANCE_TRACE_LOGGER_NAME + ".histograms", "false"))) {
+            startHistograms(longProperty(".histogramInterval", DEFAULT_HISTOGRAM_INTERVAL_SECONDS));
+        }
+        if (Boolean.valueOf(System.getProperty(SERVICES_PERFORMANCE_TRACE_LOGGER_NAME + ".gcPauses", "false"))) {
+            startGcPauses();
+        }
+        if (Boolean.valueOf(System.getProperty(SERVICES_PERFORMANCE_TRACE_LOGGER_NAME + ".alerts", "false"))) {
+            startAlerts(doubleProperty(".alertFactor", ServicesLatencyAlerts.DEFAULT_FACTOR));
+        }
+        final String metricsFile = System.getProperty(SERVICES_PERFORMANCE_TRACE_LOGGER_NAME + ".metricsFile");
+        if (metricsFile != null && metricsFile.trim().length() > 0) {
+            startMetrics(new File(metricsFile.trim()), longProperty(".metricsInterval",
+                    DEFAULT_METRICS_INTERVAL_SECONDS));
+        }
+        if (Boolean.valueOf(System.getProperty(SERVICES_PERFORMANCE_TRACE_LOGGER_NAME + ".columnar", "false"))) {
+            startColumnarExport();
+        }
+        if (Boolean.valueOf(System.getProperty(SERVICES_PERFORMANCE_TRACE_LOGGER_NAME + ".sampling", "false"))) {
+            startSampling(longProperty(".sampleThresholdMillis", DEFAULT_SAMPLE_THRESHOLD_MILLIS),
+                    intProperty(".sampleRate", DEFAULT_SAMPLE_RATE),
+                    Boolean.valueOf(System.getProperty(SERVICES_PERFORMANCE_TRACE_LOGGER_NAME + ".sampleAdaptive",
+                            "false")));
+        }
+    }
+
+    private long longProperty(final String suffix, final long defaultValue) {
+        final String value = System.getProperty(SERVICES_PERFORMANCE_TRACE_LOGGER_NAME + suffix);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (final NumberFormatException e) {
+            Logger.getLogger("").log(Level.WARNING,
+                    "Invalid " + SERVICES_PERFORMANCE_TRACE_LOGGER_NAME + suffix + ", using " + defaultValue, e);
+            return defaultValue;
+        }
+    }
+
+    private int intProperty(final String suffix, final int defaultValue) {
+        final String value = System.getProperty(SERVICES_PERFORMANCE_TRACE_LOGGER_NAME + suffix);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (final NumberFormatException e) {
+            Logger.getLogger("").log(Level.WARNING,
+                    "Invalid " + SERVICES_PERFORMANCE_TRACE_LOGGER_NAME + suffix + ", using " + defaultValue, e);
+            return defaultValue;
+        }
+    }
+
+    private double doubleProperty(final String suffix, final double defaultValue) {
+        final String value = System.getProperty(SERVICES_PERFORMANCE_TRACE_LOGGER_NAME + suffix);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (final NumberFormatException e) {
+            Logger.getLogger("").log(Level.WARNING,
+                    "Invalid " + SERVICES_PERFORMANCE_TRACE_LOGGER_NAME + suffix + ", using " + defaultValue, e);
+            return defaultValue;
+        }
     }
 
     @PreDestroy
     public void applicationDestroy() {
+        ServicesPerformanceThreadLocalHolder.stopReuse();
+        stopColumnarExport();
+        stopMetrics();
+        stopGcPauses();
+        stopHistograms();
+        stopAlerts();
+        ServicesPoolGauges.getInstance().unregister();
         for (final Handler handler : servicesPerformanceTraceLogger.getHandlers()) {
             handler.close();
             servicesPerformanceTraceLogger.removeHandler(handler);
         }
+        closeBinaryWriter();
+        ServicesLogger.shutdown();
+    }
+
+    /**
+     * Keep live metrics and write them to a file every interval, see ServicesPerformanceMetrics
+     *
+     * @param file file the monitoring agent scrapes
+     * @param intervalSeconds time between writes
+     */
+    public void startMetrics(final File file, final long intervalSeconds) {
+        if (metrics != null) {
+            return;
+        }
+        final ServicesPerformanceMetrics current = new ServicesPerformanceMetrics();
+        metricsScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "ServicesPerformanceMetrics");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        writeMetrics = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    current.writeFile(file);
+                } catch (final IOException e) {
+                    Logger.getLogger("").log(Level.WARNING, "Failed to write the performance metrics to " + file, e);
+                }
+            }
+        };
+        metricsScheduler.scheduleWithFixedDelay(writeMetrics, 0, intervalSeconds, TimeUnit.SECONDS);
+        metrics = current;
+    }
+
+    /**
+     * Stop the live metrics, the file is left with the final values
+     */
+    public void stopMetrics() {
+        if (metrics == null) {
+            return;
+        }
+        metrics = null;
+        metricsScheduler.shutdown();
+        try {
+            metricsScheduler.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        metricsScheduler = null;
+        writeMetrics.run();
+    }
+
+    /**
+     * Used for testing purposes only.
+     */
+    ServicesPerformanceMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Convert the trace files of each day to a columnar file when the day is over, and those of the past
+     * days not converted yet now
+     */
+    public void startColumnarExport() {
+        if (columnarExecutor != null) {
+            return;
+        }
+        columnarExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "ServicesPerformanceColumnarExport");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        for (final String day : columnarExport().pendingDays(timeStamp)) {
+            exportDay(day);
+        }
+    }
+
+    /**
+     * Stop converting the trace files, an export in progress is abandoned and done again on the next start
+     */
+    public void stopColumnarExport() {
+        if (columnarExecutor != null) {
+            columnarExecutor.shutdownNow();
+            columnarExecutor = null;
+        }
+    }
+
+    private ServicesPerformanceColumnarExport columnarExport() {
+        return new ServicesPerformanceColumnarExport(new File(getServicesLogDirectory()),
+                SERVICES_PERFORMANCE_TRACE_DIR, uriNormaliser);
+    }
+
+    private void exportDay(final String day) {
+        final ServicesPerformanceColumnarExport export = columnarExport();
+        columnarExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    export.exportDay(day);
+                } catch (final IOException e) {
+                    Logger.getLogger("").log(Level.WARNING, "Failed to export the performance trace of " + day
+                            + " to a columnar file", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Start aggregating the durations into histograms, a summary is logged every interval
+     *
+     * @param intervalSeconds length of an interval
+     */
+    public void startHistograms(final long intervalSeconds) {
+        if (histograms != null) {
+            return;
+        }
+        histograms = new ServicesPerformanceHistograms();
+        histograms.setAlerts(latencyAlerts);
+        histogramScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "ServicesPerformanceHistograms");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        histogramScheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                writeSummaries();
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop the histograms, the summary of the interval so far is logged
+     */
+    public void stopHistograms() {
+        if (histograms == null) {
+            return;
+        }
+        histogramScheduler.shutdown();
+        try {
+            histogramScheduler.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writeSummaries();
+        histogramScheduler = null;
+        histograms = null;
+    }
+
+    /**
+     * Track GC pauses: each request line gets the pause time inside the request and each histogram
+     * interval a GC summary line, the histograms are started if they are not running
+     */
+    public void startGcPauses() {
+        if (gcPauses != null) {
+            return;
+        }
+        if (histograms == null) {
+            startHistograms(DEFAULT_HISTOGRAM_INTERVAL_SECONDS);
+        }
+        final ServicesGcPauses pauses = new ServicesGcPauses();
+        pauses.start();
+        gcPauses = pauses;
+    }
+
+    /**
+     * Detect request latency anomalies, see ServicesLatencyAlerts, the histograms are started if they are
+     * not running
+     *
+     * @param factor how many times its baseline the p95 of a pool and URI must reach to raise an alert
+     */
+    public void startAlerts(final double factor) {
+        if (latencyAlerts != null) {
+            return;
+        }
+        if (histograms == null) {
+            startHistograms(DEFAULT_HISTOGRAM_INTERVAL_SECONDS);
+        }
+        latencyAlerts = new ServicesLatencyAlerts(factor);
+        latencyAlerts.register();
+        histograms.setAlerts(latencyAlerts);
+    }
+
+    /**
+     * Stop detecting request latency anomalies
+     */
+    public void stopAlerts() {
+        if (latencyAlerts == null) {
+            return;
+        }
+        final ServicesPerformanceHistograms current = histograms;
+        if (current != null) {
+            current.setAlerts(null);
+        }
+        latencyAlerts.unregister();
+        latencyAlerts = null;
+    }
+
+    /**
+     * Used for testing purposes only.
+     */
+    ServicesPerformanceHistograms getHistograms() {
+        return histograms;
+    }
+
+    /**
+     * Used for testing purposes only.
+     */
+    ServicesLatencyAlerts getLatencyAlerts() {
+        return latencyAlerts;
+    }
+
+    /**
+     * Stop tracking GC pauses
+     */
+    public void stopGcPauses() {
+        final ServicesGcPauses pauses = gcPauses;
+        if (pauses != null) {
+            gcPauses = null;
+            pauses.stop();
+        }
+    }
+
+    /**
+     * Only log the per request lines of failed and slow requests and a random sample of the rest,
+     * see ServicesPerformanceSampler
+     *
+     * @param thresholdMillis requests taking this long or longer are always logged
+     * @param sampleRate 1 in sampleRate of the other requests are logged
+     * @param adaptive true to use the p99 of each URI in the last histogram interval as the threshold,
+     *            starts the histograms if they are not running
+     */
+    public void startSampling(final long thresholdMillis, final int sampleRate, final boolean adaptive) {
+        if (adaptive && histograms == null) {
+            startHistograms(DEFAULT_HISTOGRAM_INTERVAL_SECONDS);
+        }
+        sampler = new ServicesPerformanceSampler(thresholdMillis, sampleRate, adaptive ? histograms : null);
+    }
+
+    /**
+     * Log every request again
+     */
+    public void stopSampling() {
+        sampler = null;
+    }
+
+    /**
+     * Turn the capture of the CPU time and allocated bytes of requests on or off, it applies to requests
+     * started after the call
+     */
+    public void setResourceCaptureEnabled(final boolean enabled) {
+        ServicesThreadResources.setEnabled(enabled);
+    }
+
+    @Lock(LockType.READ)
+    public boolean isResourceCaptureEnabled() {
+        return ServicesThreadResources.isEnabled();
+    }
+
+    /**
+     * @return average cost of reading the CPU time and allocated bytes once, in nanoseconds
+     */
+    @Lock(LockType.READ)
+    public long getAverageResourceCaptureNanos() {
+        return ServicesThreadResources.getAverageCaptureNanos();
+    }
+
+    /**
+     * Turn the per request lines on or off, the histogram summaries are logged either way
+     */
+    public void setRequestLinesEnabled(final boolean enabled) {
+        requestLinesEnabled = enabled;
+    }
+
+    @Lock(LockType.READ)
+    public boolean isRequestLinesEnabled() {
+        return requestLinesEnabled;
+    }
+
+    /**
+     * Log the summary of the interval just ended. Called on the histogram thread, so the logger
+     * is used directly, the JUL logger and handlers are thread safe.
+     */
+    void writeSummaries() {
+        final ServicesPerformanceHistograms current = histograms;
+        if (current == null) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        final List<String> lines = current.rotate(now);
+        final ServicesGcPauses pauses = gcPauses;
+        if (pauses != null) {
+            lines.add(pauses.rotate(now));
+        }
+        if (isLevelActive(Level.INFO)) {
+            for (final String line : lines) {
+                servicesPerformanceTraceLogger.log(Level.INFO, line);
+            }
+        }
     }
 
     /**
@@ -173,12 +669,19 @@ public class ServicePerformanceTraceLogger {
      * including log directory creation (if necessary) and log file rollover
      */
     void resetHandlers() {
+        synchronized (handlerLock) {
+            replaceHandlers();
+        }
+    }
+
+    private void replaceHandlers() {
 
         //Remove old handlers, if the app gets redeployed the static{} initialiser will get called again.
         for (final Handler handler : servicesPerformanceTraceLogger.getHandlers()) {
             handler.close();
             servicesPerformanceTraceLogger.removeHandler(handler);
         }
+        closeBinaryWriter();
 
         // if logger is turned off, do not create directory, or add a new filehandler (this
         // would lead to a situation where the logger is off and yet is creating empty log files)
@@ -193,14 +696,21 @@ public class ServicePerformanceTraceLogger {
                     Logger.getLogger("").log(Level.SEVERE, "Failed to create the directory tree " + dir);
                 }
             }
-            final Date date = new Date();
-            timeStamp = logfileTimeStampFormatter.format(date);
+            final String previousTimeStamp = timeStamp;
+            timeStamp = dayStamp(System.currentTimeMillis());
+            if (columnarExecutor != null && previousTimeStamp != null && !previousTimeStamp.equals(timeStamp)) {
+                exportDay(previousTimeStamp);
+            }
             final int rolloverLimit = lookupRolloverLimitPropertyInJNDI() * BYTES_IN_MB;
 
-            logFileHandler = new FileHandler(dir + File.separator + SERVICES_PERFORMANCE_TRACE_DIR + "-" + timeStamp
-                    + ".log", rolloverLimit, fileLimit, false);
+            logFileHandler = new ServicesRollingFileHandler(dir + File.separator + SERVICES_PERFORMANCE_TRACE_DIR + "-"
+                    + timeStamp + ".log", rolloverLimit, fileLimit, true);
 
             logFileHandler.setFormatter(new ServicesPerformanceTraceLogFormatter());
+            if (binaryEnabled) {
+                binaryWriter = new ServicesPerformanceBinaryWriter(new File(dir, SERVICES_PERFORMANCE_TRACE_DIR
+                        + "-" + timeStamp + ".bin"));
+            }
         } catch (final SecurityException e) {
             Logger.getLogger("").log(Level.SEVERE, "Failed to start Performance Trace Logger" + e.getStackTrace());
         } catch (final IOException e) {
@@ -234,6 +744,59 @@ public class ServicePerformanceTraceLogger {
             logFileHandler.close();
             logFileHandler = null;
         }
+        closeBinaryWriter();
+    }
+
+    private void closeBinaryWriter() {
+        synchronized (handlerLock) {
+            if (binaryWriter != null) {
+                try {
+                    binaryWriter.close();
+                } catch (final IOException e) {
+                    Logger.getLogger("").log(Level.WARNING, "Failed to close the binary performance trace", e);
+                }
+                binaryWriter = null;
+            }
+        }
+    }
+
+    /**
+     * @param now current time
+     * @return yyyy_MM_dd of the day, formatted only when the day changes
+     */
+    private String dayStamp(final long now) {
+        LogDay day = currentDay;
+        if (day == null || now < day.start || now >= day.end) {
+            day = new LogDay(now);
+            currentDay = day;
+        }
+        return day.stamp;
+    }
+
+    /**
+     * A day and its log file timestamp
+     */
+    private static final class LogDay {
+
+        private final String stamp;
+
+        private final long start;
+
+        private final long end;
+
+        LogDay(final long now) {
+            final DateFormat formatter = new SimpleDateFormat("yyyy_MM_dd");
+            stamp = formatter.format(new Date(now));
+            final Calendar calendar = Calendar.getInstance();
+            calendar.setTimeInMillis(now);
+            calendar.set(Calendar.HOUR_OF_DAY, 0);
+            calendar.set(Calendar.MINUTE, 0);
+            calendar.set(Calendar.SECOND, 0);
+            calendar.set(Calendar.MILLISECOND, 0);
+            start = calendar.getTimeInMillis();
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+            end = calendar.getTimeInMillis();
+        }
     }
 
     /**
@@ -253,6 +816,7 @@ public class ServicePerformanceTraceLogger {
      * @param logLevel The level to log at
      * @param servicesContext an context object having performance information
      */
+    @Lock(LockType.READ)
     public void detailed(final Level logLevel, final ServicePeformanceContextInformation servicesContext) {
         log(logLevel, servicesContext);
     }
@@ -266,21 +830,89 @@ public class ServicePerformanceTraceLogger {
      */
     protected void log(final Level level, final ServicePeformanceContextInformation servicesContext) {
 
-        final Date date = new Date();
-        final String dstamp = logfileTimeStampFormatter.format(date);
+        if (needsNewHandlers()) {
+            synchronized (handlerLock) {
+                // another request may have replaced them while this one waited
+                if (needsNewHandlers()) {
+                    replaceHandlers();
+                }
+            }
+        }
+
+        // the request has ended, take in the work it handed over to other threads
+        servicesContext.mergeChildPhases();
+
+        final ServicesGcPauses pauses = gcPauses;
+        if (pauses != null && servicesContext.getRequestStartTime() != ServicePeformanceContextInformation.NOT_SET
+                && servicesContext.getRequestEndTime() != ServicePeformanceContextInformation.NOT_SET) {
+            final long pauseMillis = pauses.overlapMillis(servicesContext.getRequestStartTime(),
+                    servicesContext.getRequestEndTime());
+            servicesContext.setGcPauseMillis(pauseMillis);
+            pauses.recordRequest(servicesContext.getRequestEndTime() - servicesContext.getRequestStartTime(),
+                    pauseMillis);
+        }
+
+        final ServicesPerformanceHistograms current = histograms;
+        final ServicesPerformanceSampler currentSampler = sampler;
+        final ServicesPerformanceMetrics currentMetrics = metrics;
+        final String uri = current == null && currentSampler == null && currentMetrics == null ? null
+                : uriNormaliser.normalise(servicesContext.getUriInfo());
+        if (current != null) {
+            current.record(servicesContext.getPoolName(), uri, servicesContext);
+        }
+        final long durationNanos = servicesContext.getRequestDurationNanos();
+        if (currentMetrics != null && durationNanos != ServicePeformanceContextInformation.NOT_SET) {
+            currentMetrics.record(servicesContext.getPoolName(), uri, durationNanos, servicesContext.isFailed());
+        }
 
-        if ((servicesPerformanceTraceLogger.getHandlers().length == 0)
-                && !(Level.OFF.equals(servicesPerformanceTraceLogger.getLevel()))) {
-            resetHandlers();
+        if (requestLinesEnabled && isLevelActive(level)) {
+            long weight = 1;
+            if (currentSampler != null) {
+                weight = currentSampler.sampleWeight(servicesContext, uri);
+                if (weight == ServicesPerformanceSampler.DROP) {
+                    return;
+                }
+            }
+            servicesContext.setSampleWeight(weight);
+            if (binaryEnabled && writeBinary(level, servicesContext)) {
+                return;
+            }
+            servicesPerformanceTraceLogger.log(ServicesRequestId.newRecord(level,
+                    servicesContext.getContextInformation(DELIMITER), SERVICES_PERFORMANCE_TRACE_LOGGER_NAME,
+                    servicesContext.getRequestId()));
         }
+    }
 
-        // handles filename rollover at midnight
-        if (!dstamp.equals(timeStamp)) {
-            resetHandlers();
+    /**
+     * @return true if there are no handlers and the logger is on, or the day has changed (filename rollover at
+     *         midnight)
+     */
+    private boolean needsNewHandlers() {
+        if (!dayStamp(System.currentTimeMillis()).equals(timeStamp)) {
+            return true;
         }
+        return servicesPerformanceTraceLogger.getHandlers().length == 0
+                && !Level.OFF.equals(servicesPerformanceTraceLogger.getLevel());
+    }
 
-        if (isLevelActive(level)) {
-            servicesPerformanceTraceLogger.log(level, servicesContext.getContextInformation(DELIMITER));
+    /**
+     * @return true if the record was written in the binary format, false if it should be logged as text
+     */
+    private boolean writeBinary(final Level level, final ServicePeformanceContextInformation servicesContext) {
+        synchronized (handlerLock) {
+            if (binaryWriter == null) {
+                return false;
+            }
+            try {
+                binaryWriter.write(System.currentTimeMillis(), (int) Thread.currentThread().getId(), level,
+                        servicesContext);
+                return true;
+            } catch (final IOException e) {
+                Logger.getLogger("").log(Level.SEVERE, "Failed to write the binary performance trace, "
+                        + "logging as text", e);
+                closeBinaryWriter();
+                return false;
+            }
         }
     }
 
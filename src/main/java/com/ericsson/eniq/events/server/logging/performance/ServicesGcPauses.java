@@ -0,0 +1,289 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.logging.performance;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.ericsson.eniq.events.server.logging.ServicesLogTimestamp;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/**
+ * Recent garbage collection pauses, so the pause time inside a request can be told apart from slow queries.
+ *
+ * Listens to the GC notifications of the garbage collector MXBeans and keeps the last {@link #DEFAULT_CAPACITY}
+ * stop the world pauses in a ring, in order, with a running total of the pause time. The pause time overlapping
+ * a request is then found with two binary searches and a subtraction of the totals, O(log n) however many pauses
+ * the request spans. Collections reported by concurrent collectors (e.g. CMS and G1 concurrent cycles) run
+ * alongside the application and are not pauses, they are left out.
+ *
+ * The times are the JVM's, in milliseconds, so pauses under a millisecond count as nothing. A request that
+ * started before the oldest pause in the ring only gets the pause time still in the ring.
+ *
+ * Each interval the requests and the pause time inside them are summed, and written as
+ * GC|intervalStart|requests|requestsWithPauses|requestMillis|pauseMillisInRequests|pauses|pauseMillis
+ *
+ * @author echchik
+ */
+public class ServicesGcPauses implements NotificationListener {
+
+    /**
+     * First field of a summary line
+     */
+    public static final String GC_SUMMARY = "GC";
+
+    /**
+     * Default number of pauses kept
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private static final Logger BACKUP_LOGGER = Logger.getLogger("");
+
+    private static final char DELIMITER = '|';
+
+    /**
+     * Retries of an overlap search the ring was overwritten under
+     */
+    private static final int MAX_RETRIES = 3;
+
+    private final int mask;
+
+    private final long[] starts;
+
+    private final long[] ends;
+
+    /**
+     * Pause time up to and including each pause
+     */
+    private final long[] cumulative;
+
+    /**
+     * Number of pauses ever added, written after the pause so readers only see complete entries
+     */
+    private volatile long count;
+
+    private long lastEnd = Long.MIN_VALUE;
+
+    private long totalPauseMillis;
+
+    private final long jvmStartTime = ManagementFactory.getRuntimeMXBean().getStartTime();
+
+    private final List<NotificationEmitter> emitters = new ArrayList<NotificationEmitter>();
+
+    private final AtomicLong intervalRequests = new AtomicLong();
+
+    private final AtomicLong intervalAffectedRequests = new AtomicLong();
+
+    private final AtomicLong intervalRequestMillis = new AtomicLong();
+
+    private final AtomicLong intervalRequestPauseMillis = new AtomicLong();
+
+    private final AtomicLong intervalPauses = new AtomicLong();
+
+    private final AtomicLong intervalPauseMillis = new AtomicLong();
+
+    private long intervalStart = System.currentTimeMillis();
+
+    public ServicesGcPauses() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity number of pauses kept, rounded up to a power of two
+     */
+    public ServicesGcPauses(final int capacity) {
+        final int size = Integer.highestOneBit(Math.max(capacity, 2) * 2 - 1);
+        mask = size - 1;
+        starts = new long[size];
+        ends = new long[size];
+        cumulative = new long[size];
+    }
+
+    /**
+     * Start listening to the garbage collectors
+     */
+    public synchronized void start() {
+        for (final GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (collector instanceof NotificationEmitter) {
+                final NotificationEmitter emitter = (NotificationEmitter) collector;
+                emitter.addNotificationListener(this, null, null);
+                emitters.add(emitter);
+            }
+        }
+        if (emitters.isEmpty()) {
+            BACKUP_LOGGER.log(Level.WARNING, "No garbage collector sends notifications, GC pauses will not be known");
+        }
+    }
+
+    /**
+     * Stop listening to the garbage collectors
+     */
+    public synchronized void stop() {
+        for (final NotificationEmitter emitter : emitters) {
+            try {
+                emitter.removeNotificationListener(this);
+            } catch (final ListenerNotFoundException e) {
+                // already gone
+            }
+        }
+        emitters.clear();
+    }
+
+    @Override
+    public void handleNotification(final Notification notification, final Object handback) {
+        if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+            return;
+        }
+        final GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo
+                .from((CompositeData) notification.getUserData());
+        if (isPause(info.getGcName())) {
+            addPause(jvmStartTime + info.getGcInfo().getStartTime(), jvmStartTime + info.getGcInfo().getEndTime());
+        }
+    }
+
+    /**
+     * @param gcName name of the collector
+     * @return false for the collections of concurrent collectors, which do not stop the application
+     */
+    static boolean isPause(final String gcName) {
+        return !gcName.contains("Concurrent") && !gcName.endsWith("Cycles");
+    }
+
+    /**
+     * Add a pause, pauses must be added in the order they happened. A pause starting before the end
+     * of the last one is cut to start at its end, so the pauses in the ring never overlap.
+     *
+     * @param start epoch time the pause started, in milliseconds
+     * @param end epoch time the pause ended, in milliseconds
+     */
+    synchronized void addPause(final long start, final long end) {
+        final long from = Math.max(start, lastEnd);
+        final long to = Math.max(end, from);
+        final long n = count;
+        final int index = (int) (n & mask);
+        totalPauseMillis += to - from;
+        starts[index] = from;
+        ends[index] = to;
+        cumulative[index] = totalPauseMillis;
+        lastEnd = to;
+        intervalPauses.incrementAndGet();
+        intervalPauseMillis.addAndGet(to - from);
+        count = n + 1;
+    }
+
+    /**
+     * Pause time between two times, safe to call from any thread while pauses are being added
+     *
+     * @param from start of the window, epoch milliseconds
+     * @param to end of the window, epoch milliseconds
+     * @return milliseconds of GC pause inside the window
+     */
+    public long overlapMillis(final long from, final long to) {
+        if (to <= from) {
+            return 0;
+        }
+        for (int attempt = 0; attempt < MAX_RETRIES; attempt++) {
+            final long n = count;
+            // the oldest slot is the one the next pause is written to, leave it out
+            final long oldest = Math.max(0, n - starts.length + 1);
+            // first pause ending after the window starts
+            final long first = search(ends, oldest, n, from);
+            // first pause starting at or after the window ends, the pause before it is the last overlapping one
+            final long last = search(starts, first, n, to - 1) - 1;
+            long overlap = 0;
+            if (first <= last) {
+                final int i = (int) (first & mask);
+                final int j = (int) (last & mask);
+                overlap = cumulative[j] - cumulative[i] + (ends[i] - starts[i]);
+                overlap -= Math.max(0, from - starts[i]);
+                overlap -= Math.max(0, ends[j] - to);
+            }
+            // the entries read are only good if none were overwritten while reading them
+            if (count - starts.length < oldest) {
+                return Math.max(0, overlap);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return the first index in [low, high) whose value is greater than key, high if there is none
+     */
+    private long search(final long[] values, final long low, final long high, final long key) {
+        long lo = low;
+        long hi = high;
+        while (lo < hi) {
+            final long mid = (lo + hi) >>> 1;
+            if (values[(int) (mid & mask)] > key) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Count a request in the interval summary
+     *
+     * @param requestMillis duration of the request
+     * @param pauseMillis GC pause time inside the request, see {@link #overlapMillis(long, long)}
+     */
+    public void recordRequest(final long requestMillis, final long pauseMillis) {
+        intervalRequests.incrementAndGet();
+        intervalRequestMillis.addAndGet(requestMillis);
+        if (pauseMillis > 0) {
+            intervalAffectedRequests.incrementAndGet();
+            intervalRequestPauseMillis.addAndGet(pauseMillis);
+        }
+    }
+
+    /**
+     * End the interval. Only one thread may rotate at a time.
+     *
+     * @param now time the interval ends
+     * @return the summary line of the interval
+     */
+    public String rotate(final long now) {
+        final StringBuilder sb = new StringBuilder(GC_SUMMARY);
+        sb.append(DELIMITER);
+        ServicesLogTimestamp.appendTo(intervalStart, sb);
+        sb.append(DELIMITER).append(intervalRequests.getAndSet(0));
+        sb.append(DELIMITER).append(intervalAffectedRequests.getAndSet(0));
+        sb.append(DELIMITER).append(intervalRequestMillis.getAndSet(0));
+        sb.append(DELIMITER).append(intervalRequestPauseMillis.getAndSet(0));
+        sb.append(DELIMITER).append(intervalPauses.getAndSet(0));
+        sb.append(DELIMITER).append(intervalPauseMillis.getAndSet(0));
+        intervalStart = now;
+        return sb.toString();
+    }
+
+    /**
+     * @return number of pauses seen since the start
+     */
+    public long getPauseCount() {
+        return count;
+    }
+
+    /**
+     * @return pause time seen since the start, in milliseconds
+     */
+    public synchronized long getTotalPauseMillis() {
+        return totalPauseMillis;
+    }
+}
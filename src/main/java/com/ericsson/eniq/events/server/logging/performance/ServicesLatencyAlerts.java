@@ -0,0 +1,292 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.logging.performance;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanNotificationInfo;
+import javax.management.Notification;
+import javax.management.NotificationBroadcasterSupport;
+
+import com.ericsson.eniq.events.server.logging.ServicesLogTimestamp;
+import com.ericsson.eniq.events.server.logging.ServicesMBeans;
+
+/**
+ * Request latency anomaly detection per pool and normalised URI.
+ *
+ * Fed the request p95 of each histogram interval by ServicesPerformanceHistograms, on the histogram thread,
+ * never a request thread. Each key keeps an exponentially weighted moving mean and variance of its interval
+ * p95, a few numbers whatever the traffic. Once a key has a baseline ({@link #WARM_UP_INTERVALS} intervals
+ * with at least {@link #MIN_REQUESTS} requests) an interval whose p95 is at least the factor times the
+ * baseline, and {@link #MIN_DEVIATIONS} standard deviations above it, raises an alert: an ALERT line for the
+ * performance trace log and a JMX notification. A key alerts once as it goes over and again only after an
+ * interval back under. The intervals over still feed the baseline, so a lasting change becomes the new normal.
+ *
+ * At most {@link #MAX_KEYS} keys have a baseline. A key with no requests for {@link #IDLE_INTERVALS} intervals
+ * loses its baseline, so after the URIs in use change the new ones get judged. Intervals of keys left without
+ * a baseline while the table is full are counted, see getUnjudgedCount.
+ *
+ * Alert line, times in milliseconds:
+ * ALERT|intervalStart|pool|uri|p95|baselineP95|stdDev|requests
+ *
+ * @author echchik
+ */
+public class ServicesLatencyAlerts extends NotificationBroadcasterSupport implements ServicesLatencyAlertsMBean {
+
+    public static final String OBJECT_NAME = "com.ericsson.eniq.events.server.logging:type=ServicesLatencyAlerts";
+
+    /**
+     * Type of the JMX notifications, the message is the alert line
+     */
+    public static final String ALERT_NOTIFICATION = "eniq.events.services.latency.alert";
+
+    /**
+     * First field of an alert line
+     */
+    public static final String ALERT = "ALERT";
+
+    public static final double DEFAULT_FACTOR = 2.0;
+
+    /**
+     * Intervals a key needs before it can alert
+     */
+    static final int WARM_UP_INTERVALS = 10;
+
+    /**
+     * Intervals with fewer requests are too noisy to judge and are left out
+     */
+    static final long MIN_REQUESTS = 20;
+
+    static final double MIN_DEVIATIONS = 3.0;
+
+    /**
+     * Weight of the newest interval in the baseline
+     */
+    private static final double ALPHA = 0.1;
+
+    /**
+     * Maximum number of keys with a baseline
+     */
+    static final int MAX_KEYS = 1000;
+
+    /**
+     * Intervals without requests after which a key's baseline is dropped
+     */
+    static final int IDLE_INTERVALS = 60;
+
+    private static final char DELIMITER = '|';
+
+    private volatile double factor;
+
+    private final ConcurrentMap<String, Baseline> baselines = new ConcurrentHashMap<String, Baseline>();
+
+    private final AtomicLong alertCount = new AtomicLong();
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final AtomicLong unjudgedCount = new AtomicLong();
+
+    /**
+     * Start of the interval being judged and its number, only used by the judging thread
+     */
+    private long currentIntervalStart = Long.MIN_VALUE;
+
+    private long intervalNumber;
+
+    public ServicesLatencyAlerts() {
+        this(DEFAULT_FACTOR);
+    }
+
+    /**
+     * @param factor how many times the baseline p95 the p95 of an interval must reach to raise an alert
+     */
+    public ServicesLatencyAlerts(final double factor) {
+        this.factor = factor;
+    }
+
+    /**
+     * Moving mean and variance of the interval p95 of one key, in microseconds
+     */
+    private static final class Baseline {
+
+        private final String pool;
+
+        private final String uri;
+
+        private volatile int intervals;
+
+        private volatile double mean;
+
+        private volatile double variance;
+
+        private volatile boolean alerting;
+
+        /**
+         * Number of the last interval the key had requests in
+         */
+        private long lastInterval;
+
+        Baseline(final String pool, final String uri) {
+            this.pool = pool;
+            this.uri = uri;
+        }
+
+        void add(final double value) {
+            if (intervals == 0) {
+                mean = value;
+            } else {
+                final double difference = value - mean;
+                final double increment = ALPHA * difference;
+                mean += increment;
+                variance = (1 - ALPHA) * (variance + difference * increment);
+            }
+            intervals++;
+        }
+    }
+
+    /**
+     * Judge the request p95 of an interval. Called by one thread at a time.
+     *
+     * @param intervalStart start of the interval
+     * @param pool pool name
+     * @param uri normalised URI
+     * @param requests number of requests in the interval
+     * @param p95Micros request p95 in the interval, in microseconds
+     * @return the alert line, or null if there is no alert
+     */
+    public String interval(final long intervalStart, final String pool, final String uri, final long requests,
+            final long p95Micros) {
+        if (intervalStart != currentIntervalStart) {
+            currentIntervalStart = intervalStart;
+            intervalNumber++;
+            expireIdle();
+        }
+        final String key = pool + DELIMITER + uri;
+        Baseline baseline = baselines.get(key);
+        if (requests < MIN_REQUESTS) {
+            if (baseline != null) {
+                baseline.lastInterval = intervalNumber;
+            }
+            return null;
+        }
+        if (baseline == null) {
+            if (baselines.size() >= MAX_KEYS) {
+                unjudgedCount.incrementAndGet();
+                return null;
+            }
+            baseline = new Baseline(pool, uri);
+            baselines.put(key, baseline);
+        }
+        baseline.lastInterval = intervalNumber;
+        String alert = null;
+        if (baseline.intervals >= WARM_UP_INTERVALS) {
+            final double mean = baseline.mean;
+            final double stdDev = Math.sqrt(baseline.variance);
+            final boolean over = p95Micros >= mean * factor && p95Micros >= mean + MIN_DEVIATIONS * stdDev;
+            if (over && !baseline.alerting) {
+                alert = alertLine(intervalStart, baseline, requests, p95Micros, mean, stdDev);
+                alertCount.incrementAndGet();
+                final Notification notification = new Notification(ALERT_NOTIFICATION, this,
+                        sequence.incrementAndGet(), System.currentTimeMillis(), alert);
+                sendNotification(notification);
+            }
+            baseline.alerting = over;
+        }
+        baseline.add(p95Micros);
+        return alert;
+    }
+
+    /**
+     * Drop the baselines of keys idle for {@link #IDLE_INTERVALS} intervals
+     */
+    private void expireIdle() {
+        final Iterator<Baseline> values = baselines.values().iterator();
+        while (values.hasNext()) {
+            if (intervalNumber - values.next().lastInterval > IDLE_INTERVALS) {
+                values.remove();
+            }
+        }
+    }
+
+    private static String alertLine(final long intervalStart, final Baseline baseline, final long requests,
+            final long p95Micros, final double mean, final double stdDev) {
+        final StringBuilder sb = new StringBuilder(ALERT).append(DELIMITER);
+        ServicesLogTimestamp.appendTo(intervalStart, sb);
+        sb.append(DELIMITER).append(baseline.pool).append(DELIMITER).append(baseline.uri).append(DELIMITER);
+        ServicesPerformanceHistograms.appendMillis(sb, p95Micros);
+        sb.append(DELIMITER);
+        ServicesPerformanceHistograms.appendMillis(sb, Math.round(mean));
+        sb.append(DELIMITER);
+        ServicesPerformanceHistograms.appendMillis(sb, Math.round(stdDev));
+        sb.append(DELIMITER).append(requests);
+        return sb.toString();
+    }
+
+    @Override
+    public double getFactor() {
+        return factor;
+    }
+
+    @Override
+    public void setFactor(final double factor) {
+        this.factor = factor;
+    }
+
+    @Override
+    public long getAlertCount() {
+        return alertCount.get();
+    }
+
+    @Override
+    public long getUnjudgedCount() {
+        return unjudgedCount.get();
+    }
+
+    @Override
+    public String[] getBaselines() {
+        final Map<String, Baseline> sorted = new TreeMap<String, Baseline>(baselines);
+        final List<String> lines = new ArrayList<String>(sorted.size());
+        final StringBuilder sb = new StringBuilder();
+        for (final Baseline baseline : sorted.values()) {
+            sb.setLength(0);
+            sb.append(baseline.pool).append(DELIMITER).append(baseline.uri).append(DELIMITER);
+            sb.append(baseline.intervals).append(DELIMITER);
+            ServicesPerformanceHistograms.appendMillis(sb, Math.round(baseline.mean));
+            sb.append(DELIMITER);
+            ServicesPerformanceHistograms.appendMillis(sb, Math.round(Math.sqrt(baseline.variance)));
+            sb.append(DELIMITER).append(baseline.alerting);
+            lines.add(sb.toString());
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    @Override
+    public MBeanNotificationInfo[] getNotificationInfo() {
+        return new MBeanNotificationInfo[] { new MBeanNotificationInfo(new String[] { ALERT_NOTIFICATION },
+                Notification.class.getName(), "Request latency p95 well over its baseline") };
+    }
+
+    /**
+     * Register with the platform MBean server
+     */
+    public void register() {
+        ServicesMBeans.register(this, OBJECT_NAME);
+    }
+
+    /**
+     * Unregister from the platform MBean server
+     */
+    public void unregister() {
+        ServicesMBeans.unregister(OBJECT_NAME);
+    }
+}
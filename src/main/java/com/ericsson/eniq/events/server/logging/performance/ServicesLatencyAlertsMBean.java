@@ -0,0 +1,40 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.logging.performance;
+
+/**
+ * JMX view of the request latency anomaly detection, see {@link ServicesLatencyAlerts}.
+ * Alerts are also sent as notifications of type {@link ServicesLatencyAlerts#ALERT_NOTIFICATION}.
+ *
+ * @author echchik
+ */
+public interface ServicesLatencyAlertsMBean {
+
+    /**
+     * @return how many times the baseline p95 the p95 of an interval must reach to raise an alert
+     */
+    double getFactor();
+
+    /**
+     * @param factor how many times the baseline p95 the p95 of an interval must reach to raise an alert
+     */
+    void setFactor(double factor);
+
+    /**
+     * @return number of alerts raised since the start
+     */
+    long getAlertCount();
+
+    /**
+     * @return number of key intervals not judged because the baselines were at their maximum number of keys
+     */
+    long getUnjudgedCount();
+
+    /**
+     * @return one line per pool and URI, sorted: pool|uri|intervals|baselineP95Millis|stdDevMillis|alerting
+     */
+    String[] getBaselines();
+}
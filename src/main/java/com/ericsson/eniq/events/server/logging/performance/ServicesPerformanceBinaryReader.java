@@ -0,0 +1,375 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.logging.performance;
+
+import static com.ericsson.eniq.events.server.logging.performance.ServicesPerformanceBinaryWriter.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import com.ericsson.eniq.events.server.logging.ServicesRequestId;
+
+/**
+ * Streaming decoder of the binary performance trace written by {@link ServicesPerformanceBinaryWriter}.
+ * Each call to {@link #next(ServicePeformanceContextInformation)} reads one record into a context, which can
+ * be reused, so a file of any size is read in constant memory. A record cut short at the end of the file,
+ * e.g. by a crash, ends the stream.
+ *
+ * Usage: ServicesPerformanceBinaryReader text|csv traceFile...
+ * writes the records to standard output as the trace log lines, or as CSV with a header line.
+ *
+ * @author echchik
+ */
+public class ServicesPerformanceBinaryReader implements Closeable {
+
+    static final String CSV_HEADER = "logTime,thread,level,pool,requestStart,requestEnd,queryStart,queryEnd,"
+            + "interval,uri,phases,sampleWeight,queries,connections,resources,gcPauseMillis";
+
+    private static final int CSV_COLUMNS = CSV_HEADER.split(",").length;
+
+    /**
+     * logTime, thread and level, before the context's fields
+     */
+    private static final int CSV_FIXED_COLUMNS = 3;
+
+    private static final long NOT_SET = ServicePeformanceContextInformation.NOT_SET;
+
+    private static final long NANOS_IN_MICRO = 1000L;
+
+    /**
+     * Field separator used to split the context information for CSV, names can't contain it
+     */
+    private static final String CSV_SPLIT = "\u0000";
+
+    private final DataInputStream in;
+
+    private final int version;
+
+    private final byte[] bodyBytes = new byte[MAX_BODY];
+
+    private final ByteBuffer body = ByteBuffer.wrap(bodyBytes);
+
+    private final List<String> dictionary = new ArrayList<String>();
+
+    private long logTime;
+
+    private int threadId;
+
+    private Level level;
+
+    /**
+     * @param stream the binary trace, read from the start of the file
+     * @throws IOException if it is not a binary trace
+     */
+    public ServicesPerformanceBinaryReader(final InputStream stream) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(stream));
+        final byte[] magic = new byte[MAGIC.length + 1];
+        try {
+            in.readFully(magic);
+        } catch (final EOFException e) {
+            throw new IOException("Not a binary performance trace, too short");
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (magic[i] != MAGIC[i]) {
+                throw new IOException("Not a binary performance trace");
+            }
+        }
+        version = magic[MAGIC.length];
+        if (version != VERSION && version != VERSION_WITHOUT_REQUEST_ID) {
+            throw new IOException("Unsupported binary performance trace version " + version);
+        }
+    }
+
+    /**
+     * Read the next record
+     *
+     * @param context reset and filled with the record
+     * @return false at the end of the trace
+     * @throws IOException if the trace can't be read or is corrupt
+     */
+    public boolean next(final ServicePeformanceContextInformation context) throws IOException {
+        while (true) {
+            final int type = in.read();
+            if (type < 0) {
+                return false;
+            }
+            final int flags;
+            try {
+                flags = in.readUnsignedByte();
+                final int length = in.readUnsignedShort();
+                in.readFully(bodyBytes, 0, length);
+                body.clear();
+                body.limit(length);
+            } catch (final EOFException e) {
+                return false;
+            }
+            switch (type) {
+            case RESET:
+                dictionary.clear();
+                logTime = 0;
+                break;
+            case DICTIONARY:
+                final int id = (int) getVarint(body);
+                if (id != dictionary.size()) {
+                    throw new IOException("Dictionary id " + id + " out of order, expected " + dictionary.size());
+                }
+                dictionary.add(getBytes());
+                break;
+            case REQUEST:
+                decode(flags, context);
+                return true;
+            default:
+                throw new IOException("Unknown record type " + type);
+            }
+        }
+    }
+
+    /**
+     * @return log time of the last record read
+     */
+    public long getLogTime() {
+        return logTime;
+    }
+
+    /**
+     * @return id of the thread that logged the last record read
+     */
+    public int getThreadId() {
+        return threadId;
+    }
+
+    /**
+     * @return level of the last record read
+     */
+    public Level getLevel() {
+        return level;
+    }
+
+    private void decode(final int flags, final ServicePeformanceContextInformation context) throws IOException {
+        context.reset();
+        logTime += getZigZag(body);
+        threadId = (int) getVarint(body);
+        level = Level.parse(Integer.toString((int) getZigZag(body)));
+        if (version != VERSION_WITHOUT_REQUEST_ID) {
+            context.setRequestId(ServicesRequestId.valueOf(getBytes()));
+        }
+        context.setPoolName(getString());
+        context.setUriInfo(getString());
+        final long requestStart = getTime(flags, REQUEST_START);
+        final long requestEnd = getTime(flags, REQUEST_END);
+        final long queryStart = getTime(flags, QUERY_START);
+        final long queryEnd = getTime(flags, QUERY_END);
+        context.restoreTimes(requestStart, requestEnd, queryStart, queryEnd);
+        context.setInterval(getZigZag(body));
+        context.setSampleWeight(getZigZag(body));
+
+        final int phases = (int) getVarint(body);
+        for (int i = 0; i < phases; i++) {
+            final String name = getString();
+            final int depth = (int) getVarint(body);
+            final long duration = nanos(getZigZag(body));
+            long cpu = NOT_SET;
+            long allocated = NOT_SET;
+            if ((flags & PHASE_RESOURCES) != 0) {
+                cpu = nanos(getZigZag(body));
+                allocated = getZigZag(body);
+            }
+            context.restorePhase(name, depth, duration, cpu, allocated);
+        }
+        final int droppedPhases = (int) getVarint(body);
+
+        final int queries = (int) getVarint(body);
+        for (int i = 0; i < queries; i++) {
+            final String pool = getString();
+            final int templateId = body.getInt();
+            final long wait = nanos(getZigZag(body));
+            final long execution = nanos(getZigZag(body));
+            final long fetch = nanos(getZigZag(body));
+            context.addQueryExecution(pool, templateId, wait, execution, fetch, getZigZag(body));
+        }
+        context.restoreDropped(droppedPhases, (int) getVarint(body));
+
+        if ((flags & CONNECTIONS) != 0) {
+            final int acquires = (int) getVarint(body);
+            final long wait = getVarint(body) * NANOS_IN_MICRO;
+            final int waiting = (int) getVarint(body);
+            context.restoreConnections(acquires, wait, waiting, (int) getVarint(body));
+        }
+        if ((flags & RESOURCES) != 0) {
+            final long cpu = nanos(getZigZag(body));
+            final long allocated = getZigZag(body);
+            context.restoreResources(cpu, allocated, getVarint(body));
+        }
+        if ((flags & GC_PAUSE) != 0) {
+            context.setGcPauseMillis(getVarint(body));
+        }
+    }
+
+    private long getTime(final int flags, final int flag) {
+        return (flags & flag) == 0 ? NOT_SET : logTime + getZigZag(body);
+    }
+
+    private static long nanos(final long micros) {
+        return micros == NOT_SET ? NOT_SET : micros * NANOS_IN_MICRO;
+    }
+
+    private String getString() throws IOException {
+        final long reference = getVarint(body);
+        if (reference == 0) {
+            return getBytes();
+        }
+        if (reference > dictionary.size()) {
+            throw new IOException("Unknown dictionary id " + (reference - 1));
+        }
+        return dictionary.get((int) reference - 1);
+    }
+
+    private String getBytes() {
+        final int length = (int) getVarint(body);
+        final String string = new String(bodyBytes, body.position(), length, UTF8);
+        body.position(body.position() + length);
+        return string;
+    }
+
+    static long getVarint(final ByteBuffer buffer) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    static long getZigZag(final ByteBuffer buffer) {
+        final long value = getVarint(buffer);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * @param context the context the last record was read into
+     * @return the last record read as the trace logger logged it, with its request ID
+     */
+    // setInstant and setLongThreadID would do, but they need Java 9 and 16 and the services run on Java 7
+    @SuppressWarnings("deprecation")
+    public LogRecord toLogRecord(final ServicePeformanceContextInformation context) {
+        final LogRecord record = ServicesRequestId.newRecord(level, context.getContextInformation("|"), null,
+                context.getRequestId());
+        record.setMillis(logTime);
+        record.setThreadID(threadId);
+        return record;
+    }
+
+    /**
+     * Write the records of the trace as the trace log lines
+     *
+     * @return number of records written
+     */
+    public long writeText(final Writer out) throws IOException {
+        final ServicesPerformanceTraceLogFormatter formatter = new ServicesPerformanceTraceLogFormatter();
+        final ServicePeformanceContextInformation context = new ServicePeformanceContextInformation();
+        long records = 0;
+        while (next(context)) {
+            out.write(formatter.format(toLogRecord(context)));
+            records++;
+        }
+        return records;
+    }
+
+    /**
+     * Write the records of the trace as CSV
+     *
+     * @param header true to start with the header line
+     * @return number of records written
+     */
+    public long writeCsv(final Writer out, final boolean header) throws IOException {
+        final ServicePeformanceContextInformation context = new ServicePeformanceContextInformation();
+        final StringBuilder line = new StringBuilder();
+        if (header) {
+            out.write(CSV_HEADER);
+            out.write('\n');
+        }
+        long records = 0;
+        while (next(context)) {
+            line.setLength(0);
+            line.append(logTime).append(',').append(threadId).append(',').append(level.getName());
+            final String[] fields = context.getContextInformation(CSV_SPLIT).split(CSV_SPLIT, -1);
+            for (final String field : fields) {
+                line.append(',');
+                appendCsv(line, field);
+            }
+            // the fields left off the end of the line are empty columns
+            for (int i = CSV_FIXED_COLUMNS + fields.length; i < CSV_COLUMNS; i++) {
+                line.append(',');
+            }
+            line.append('\n');
+            out.write(line.toString());
+            records++;
+        }
+        return records;
+    }
+
+    private static void appendCsv(final StringBuilder line, final String field) {
+        if (field.indexOf(',') < 0 && field.indexOf('"') < 0 && field.indexOf('\n') < 0) {
+            line.append(field);
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < field.length(); i++) {
+            final char c = field.charAt(i);
+            if (c == '"') {
+                line.append('"');
+            }
+            line.append(c);
+        }
+        line.append('"');
+    }
+
+    public static void main(final String[] args) throws IOException {
+        if (args.length < 2 || !("text".equals(args[0]) || "csv".equals(args[0]))) {
+            System.err.println("Usage: ServicesPerformanceBinaryReader text|csv traceFile...");
+            System.exit(1);
+        }
+        final Writer out = new BufferedWriter(new OutputStreamWriter(System.out, UTF8));
+        try {
+            for (int i = 1; i < args.length; i++) {
+                final ServicesPerformanceBinaryReader reader = new ServicesPerformanceBinaryReader(
+                        new FileInputStream(args[i]));
+                try {
+                    if ("csv".equals(args[0])) {
+                        reader.writeCsv(out, i == 1);
+                    } else {
+                        reader.writeText(out);
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,343 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.logging.performance;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+
+import com.ericsson.eniq.events.server.logging.ServicesRequestId;
+
+/**
+ * Writes performance trace records in a compact binary format, read back by ServicesPerformanceBinaryReader.
+ *
+ * File: the magic bytes EPTB and a version byte, 2, then records. Each record has a fixed four byte header,
+ * type, flags and the body length as an unsigned short, then the body:
+ * - RESET, empty: written each time the file is opened, the dictionary and the time base start again
+ * - DICTIONARY: id, length, UTF-8 bytes, defines a string used by the records after it
+ * - REQUEST: one trace record, the flags say which optional parts are there
+ *
+ * In a request the numbers are varints, signed ones zigzag encoded, the times are differences from the log
+ * time and the log time a difference from the previous record's, durations are in microseconds. Pools, URIs,
+ * phase names and query pools are written as a dictionary id, or inline once the dictionary is full. The request
+ * ID, see ServicesRequestId, is written inline after the level, empty if there is none. Version 1 files have
+ * no request ID.
+ *
+ * Records are built in memory and written to the file channel through a 64KB buffer, flushed when it is full,
+ * at least once a second while records come in, and on close. A record too big for the empty buffer, a body
+ * within a header's size of {@link #MAX_BODY}, is written straight to the channel after the buffer. Not thread
+ * safe, the trace logger serialises the calls.
+ *
+ * @author echchik
+ */
+public class ServicesPerformanceBinaryWriter implements Closeable {
+
+    static final byte[] MAGIC = { 'E', 'P', 'T', 'B' };
+
+    static final byte VERSION = 2;
+
+    /**
+     * Last version without the request ID
+     */
+    static final byte VERSION_WITHOUT_REQUEST_ID = 1;
+
+    static final int HEADER_SIZE = 4;
+
+    static final byte DICTIONARY = 1;
+
+    static final byte REQUEST = 2;
+
+    static final byte RESET = 3;
+
+    static final int REQUEST_START = 1;
+
+    static final int REQUEST_END = 1 << 1;
+
+    static final int QUERY_START = 1 << 2;
+
+    static final int QUERY_END = 1 << 3;
+
+    static final int CONNECTIONS = 1 << 4;
+
+    static final int RESOURCES = 1 << 5;
+
+    static final int GC_PAUSE = 1 << 6;
+
+    static final int PHASE_RESOURCES = 1 << 7;
+
+    static final int MAX_BODY = 0xFFFF;
+
+    /**
+     * Strings longer than this are cut
+     */
+    static final int MAX_STRING_BYTES = 8192;
+
+    /**
+     * Default maximum number of dictionary strings per file opening
+     */
+    public static final int DEFAULT_MAX_DICTIONARY = 65536;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final long FLUSH_INTERVAL_MILLIS = 1000;
+
+    private static final long NANOS_IN_MICRO = 1000L;
+
+    private static final long NOT_SET = ServicePeformanceContextInformation.NOT_SET;
+
+    private final FileChannel channel;
+
+    private final ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+
+    private final ByteBuffer body = ByteBuffer.allocate(MAX_BODY);
+
+    private final ByteBuffer dictionaryBody = ByteBuffer.allocate(MAX_STRING_BYTES + 16);
+
+    private final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+
+    private final int maxDictionary;
+
+    private long previousLogTime;
+
+    private long lastFlush = System.currentTimeMillis();
+
+    private long droppedRecords;
+
+    /**
+     * @param file file to append to
+     * @throws IOException if the file can't be opened
+     */
+    public ServicesPerformanceBinaryWriter(final File file) throws IOException {
+        this(file, DEFAULT_MAX_DICTIONARY);
+    }
+
+    /**
+     * @param file file to append to
+     * @param maxDictionary maximum number of dictionary strings
+     * @throws IOException if the file can't be opened
+     */
+    public ServicesPerformanceBinaryWriter(final File file, final int maxDictionary) throws IOException {
+        this.maxDictionary = maxDictionary;
+        channel = new FileOutputStream(file, true).getChannel();
+        if (channel.size() == 0) {
+            out.put(MAGIC).put(VERSION);
+        }
+        body.clear();
+        writeRecord(RESET, 0, body);
+    }
+
+    /**
+     * Write a trace record
+     *
+     * @param logTime time the record is logged
+     * @param threadId id of the thread logging it
+     * @param level log level
+     * @param context the request context
+     * @throws IOException if the file can't be written
+     */
+    public void write(final long logTime, final int threadId, final Level level,
+            final ServicePeformanceContextInformation context) throws IOException {
+        final long previous = previousLogTime;
+        final int flags;
+        body.clear();
+        try {
+            flags = encode(logTime, threadId, level, context);
+        } catch (final BufferOverflowException e) {
+            previousLogTime = previous;
+            droppedRecords++;
+            return;
+        }
+        writeRecord(REQUEST, flags, body);
+        if (logTime - lastFlush >= FLUSH_INTERVAL_MILLIS) {
+            flush();
+        }
+    }
+
+    /**
+     * @return number of records too big for the format, not written
+     */
+    public long getDroppedRecords() {
+        return droppedRecords;
+    }
+
+    private int encode(final long logTime, final int threadId, final Level level,
+            final ServicePeformanceContextInformation context) throws IOException {
+        int flags = 0;
+        putZigZag(body, logTime - previousLogTime);
+        previousLogTime = logTime;
+        putVarint(body, threadId);
+        putZigZag(body, level.intValue());
+        final ServicesRequestId requestId = context.getRequestId();
+        putBytes(body, requestId == null ? "" : requestId.toString());
+        putString(context.getPoolName());
+        putString(context.getUriInfo());
+        flags |= putTime(REQUEST_START, context.getRequestStartTime(), logTime);
+        flags |= putTime(REQUEST_END, context.getRequestEndTime(), logTime);
+        flags |= putTime(QUERY_START, context.getQueryExecutionStartTime(), logTime);
+        flags |= putTime(QUERY_END, context.getQueryExecutionEndTime(), logTime);
+        putZigZag(body, context.getInterval());
+        putZigZag(body, context.getSampleWeight());
+
+        final int phases = context.getPhaseCount();
+        for (int i = 0; i < phases; i++) {
+            if (context.getPhaseCpuNanos(i) != NOT_SET || context.getPhaseAllocatedBytes(i) != NOT_SET) {
+                flags |= PHASE_RESOURCES;
+                break;
+            }
+        }
+        putVarint(body, phases);
+        for (int i = 0; i < phases; i++) {
+            putString(context.getPhaseName(i));
+            putVarint(body, context.getPhaseDepth(i));
+            putZigZag(body, micros(context.getPhaseDurationNanos(i)));
+            if ((flags & PHASE_RESOURCES) != 0) {
+                putZigZag(body, micros(context.getPhaseCpuNanos(i)));
+                putZigZag(body, context.getPhaseAllocatedBytes(i));
+            }
+        }
+        putVarint(body, context.getDroppedPhaseCount());
+
+        final int queries = context.getQueryCount();
+        putVarint(body, queries);
+        for (int i = 0; i < queries; i++) {
+            putString(context.getQueryPool(i));
+            body.putInt(context.getQueryTemplateId(i));
+            putZigZag(body, micros(context.getQueryWaitNanos(i)));
+            putZigZag(body, micros(context.getQueryExecutionNanos(i)));
+            putZigZag(body, micros(context.getQueryFetchNanos(i)));
+            putZigZag(body, context.getQueryRows(i));
+        }
+        putVarint(body, context.getDroppedQueryCount());
+
+        if (context.getConnectionAcquireCount() > 0) {
+            flags |= CONNECTIONS;
+            putVarint(body, context.getConnectionAcquireCount());
+            putVarint(body, context.getConnectionWaitNanos() / NANOS_IN_MICRO);
+            putVarint(body, context.getMaxPoolWaiting());
+            putVarint(body, context.getMaxPoolActive());
+        }
+        if (context.getRequestCpuNanos() != NOT_SET || context.getRequestAllocatedBytes() != NOT_SET) {
+            flags |= RESOURCES;
+            putZigZag(body, micros(context.getRequestCpuNanos()));
+            putZigZag(body, context.getRequestAllocatedBytes());
+            putVarint(body, context.getResourceCaptureNanos());
+        }
+        if (context.getGcPauseMillis() != NOT_SET) {
+            flags |= GC_PAUSE;
+            putVarint(body, context.getGcPauseMillis());
+        }
+        return flags;
+    }
+
+    private int putTime(final int flag, final long time, final long logTime) {
+        if (time == NOT_SET) {
+            return 0;
+        }
+        putZigZag(body, time - logTime);
+        return flag;
+    }
+
+    private static long micros(final long nanos) {
+        return nanos == NOT_SET ? NOT_SET : nanos / NANOS_IN_MICRO;
+    }
+
+    /**
+     * Write a string reference: dictionary id + 1, or 0 and the string inline when the dictionary is full
+     */
+    private void putString(final String value) throws IOException {
+        final String string = value == null ? "" : value;
+        Integer id = dictionary.get(string);
+        if (id == null && dictionary.size() < maxDictionary) {
+            id = Integer.valueOf(dictionary.size());
+            dictionary.put(string, id);
+            dictionaryBody.clear();
+            putVarint(dictionaryBody, id.intValue());
+            putBytes(dictionaryBody, string);
+            writeRecord(DICTIONARY, 0, dictionaryBody);
+        }
+        if (id != null) {
+            putVarint(body, id.intValue() + 1L);
+        } else {
+            putVarint(body, 0);
+            putBytes(body, string);
+        }
+    }
+
+    private static void putBytes(final ByteBuffer buffer, final String string) {
+        final byte[] bytes = string.getBytes(UTF8);
+        final int length = Math.min(bytes.length, MAX_STRING_BYTES);
+        putVarint(buffer, length);
+        buffer.put(bytes, 0, length);
+    }
+
+    void writeRecord(final byte type, final int flags, final ByteBuffer recordBody) throws IOException {
+        recordBody.flip();
+        if (out.remaining() < HEADER_SIZE + recordBody.remaining()) {
+            flushBuffer();
+            if (out.remaining() < HEADER_SIZE + recordBody.remaining()) {
+                final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.put(type).put((byte) flags).putShort((short) recordBody.remaining());
+                header.flip();
+                final ByteBuffer[] record = { header, recordBody };
+                while (recordBody.hasRemaining()) {
+                    channel.write(record);
+                }
+                return;
+            }
+        }
+        out.put(type).put((byte) flags).putShort((short) recordBody.remaining()).put(recordBody);
+    }
+
+    /**
+     * Write the buffered records to the file
+     *
+     * @throws IOException if the file can't be written
+     */
+    public void flush() throws IOException {
+        flushBuffer();
+        lastFlush = System.currentTimeMillis();
+    }
+
+    private void flushBuffer() throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    static void putVarint(final ByteBuffer buffer, final long value) {
+        long v = value;
+        while ((v & ~0x7FL) != 0) {
+            buffer.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        buffer.put((byte) v);
+    }
+
+    static void putZigZag(final ByteBuffer buffer, final long value) {
+        putVarint(buffer, (value << 1) ^ (value >> 63));
+    }
+}
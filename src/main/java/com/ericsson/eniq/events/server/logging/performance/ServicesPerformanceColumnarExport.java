@@ -0,0 +1,215 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.logging.performance;
+
+import static com.ericsson.eniq.events.server.logging.performance.ServicesPerformanceTraceLogFormatter.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.ericsson.eniq.events.server.logging.ServicesLogTimestamp;
+
+/**
+ * Converts the closed performance trace files of a day, the text log generations and the binary trace,
+ * into one columnar file, servicesperformancetrace-yyyy_MM_dd.col, see ServicesPerformanceColumnarWriter.
+ *
+ * The logger starts a new set of files each day, so the files of an earlier day are closed and their names
+ * no longer change. The columnar file is written to a temporary name and renamed when it is complete, a day
+ * without its columnar file, e.g. because the server stopped during the export, is exported again.
+ * Summary, GC and alert lines are left out, the URIs are normalised as for the histograms.
+ *
+ * @author echchik
+ */
+public class ServicesPerformanceColumnarExport {
+
+    public static final String COLUMNAR_SUFFIX = ".col";
+
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    /**
+     * prefix-yyyy_MM_dd.log.generation or prefix-yyyy_MM_dd.bin
+     */
+    private static final Pattern TRACE_FILE = Pattern.compile("(.+)-(\\d{4}_\\d{2}_\\d{2})\\.(?:log\\.(\\d+)|bin)");
+
+    private static final String LINE_START = "[#|";
+
+    private static final long NOT_SET = ServicePeformanceContextInformation.NOT_SET;
+
+    private final File dir;
+
+    private final String prefix;
+
+    private final ServicesUriNormaliser uriNormaliser;
+
+    /**
+     * @param dir directory of the trace files
+     * @param prefix start of the trace file names, before the date
+     * @param uriNormaliser normalises the URIs
+     */
+    public ServicesPerformanceColumnarExport(final File dir, final String prefix,
+            final ServicesUriNormaliser uriNormaliser) {
+        this.dir = dir;
+        this.prefix = prefix;
+        this.uriNormaliser = uriNormaliser;
+    }
+
+    /**
+     * @param currentStamp yyyy_MM_dd of the files being written
+     * @return the days with trace files but no columnar file, oldest first, not including the current one
+     */
+    public List<String> pendingDays(final String currentStamp) {
+        final Set<String> days = new TreeSet<String>();
+        final String[] names = dir.list();
+        if (names != null) {
+            for (final String name : names) {
+                final Matcher matcher = TRACE_FILE.matcher(name);
+                if (matcher.matches() && prefix.equals(matcher.group(1)) && !matcher.group(2).equals(currentStamp)
+                        && !columnarFile(matcher.group(2)).exists()) {
+                    days.add(matcher.group(2));
+                }
+            }
+        }
+        return new ArrayList<String>(days);
+    }
+
+    /**
+     * @param stamp yyyy_MM_dd of the day
+     * @return the columnar file of the day
+     */
+    public File columnarFile(final String stamp) {
+        return new File(dir, prefix + "-" + stamp + COLUMNAR_SUFFIX);
+    }
+
+    /**
+     * Export the trace files of a day, which must be closed
+     *
+     * @param stamp yyyy_MM_dd of the day
+     * @return number of requests exported
+     * @throws IOException if a file can't be read or the columnar file written
+     */
+    public long exportDay(final String stamp) throws IOException {
+        // oldest generation first, so the rows are in the order they were logged
+        final TreeMap<Integer, File> logs = new TreeMap<Integer, File>();
+        File binary = null;
+        final String[] names = dir.list();
+        if (names != null) {
+            for (final String name : names) {
+                final Matcher matcher = TRACE_FILE.matcher(name);
+                if (matcher.matches() && prefix.equals(matcher.group(1)) && matcher.group(2).equals(stamp)) {
+                    if (matcher.group(3) == null) {
+                        binary = new File(dir, name);
+                    } else {
+                        logs.put(Integer.valueOf(matcher.group(3)), new File(dir, name));
+                    }
+                }
+            }
+        }
+        final File target = columnarFile(stamp);
+        final File temporary = new File(dir, target.getName() + TEMPORARY_SUFFIX);
+        final ServicesPerformanceColumnarWriter writer = new ServicesPerformanceColumnarWriter(temporary);
+        try {
+            for (final File log : logs.descendingMap().values()) {
+                addText(log, writer);
+            }
+            if (binary != null) {
+                addBinary(binary, writer);
+            }
+        } catch (final IOException e) {
+            writer.close();
+            temporary.delete();
+            throw e;
+        }
+        writer.close();
+        if (target.exists() && !target.delete() || !temporary.renameTo(target)) {
+            temporary.delete();
+            throw new IOException("Failed to rename " + temporary + " to " + target);
+        }
+        return writer.getRowCount();
+    }
+
+    private void addText(final File log, final ServicesPerformanceColumnarWriter writer) throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(log)));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(LINE_START)) {
+                    addLine(line.split("\\|", -1), writer);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Add a request line, fields as split from "[#|logTime|thread|level|context fields|#]"
+     */
+    private void addLine(final String[] fields, final ServicesPerformanceColumnarWriter writer) throws IOException {
+        if (fields.length <= URI_FIELD + 1 || ServicesPerformanceHistograms.SUMMARY.equals(fields[POOL_FIELD])
+                || ServicesGcPauses.GC_SUMMARY.equals(fields[POOL_FIELD])
+                || ServicesLatencyAlerts.ALERT.equals(fields[POOL_FIELD])) {
+            return;
+        }
+        final long start = timestamp(fields[REQUEST_START_FIELD]);
+        final long end = timestamp(fields[REQUEST_END_FIELD]);
+        if (start == NOT_SET || end < start) {
+            return;
+        }
+        // the last field is "#]", the optional ones are only there in lines of newer versions
+        final int last = fields.length - 1;
+        add(writer, fields[POOL_FIELD], fields[URI_FIELD], start, end, timestamp(fields[QUERY_START_FIELD]),
+                timestamp(fields[QUERY_END_FIELD]), WEIGHT_FIELD < last ? number(fields[WEIGHT_FIELD], 1) : 1,
+                GC_PAUSE_FIELD < last ? number(fields[GC_PAUSE_FIELD], NOT_SET) : NOT_SET);
+    }
+
+    private static long timestamp(final String field) {
+        return field.length() == 0 ? NOT_SET : ServicesLogTimestamp.parse(field);
+    }
+
+    private static long number(final String field, final long defaultValue) {
+        try {
+            return field.length() == 0 ? defaultValue : Long.parseLong(field);
+        } catch (final NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private void addBinary(final File binary, final ServicesPerformanceColumnarWriter writer) throws IOException {
+        final ServicesPerformanceBinaryReader reader = new ServicesPerformanceBinaryReader(new FileInputStream(
+                binary));
+        try {
+            final ServicePeformanceContextInformation context = new ServicePeformanceContextInformation();
+            while (reader.next(context)) {
+                if (context.getRequestStartTime() != NOT_SET
+                        && context.getRequestEndTime() >= context.getRequestStartTime()) {
+                    add(writer, context.getPoolName(), context.getUriInfo(), context.getRequestStartTime(),
+                            context.getRequestEndTime(), context.getQueryExecutionStartTime(),
+                            context.getQueryExecutionEndTime(), context.getSampleWeight(),
+                            context.getGcPauseMillis());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void add(final ServicesPerformanceColumnarWriter writer, final String pool, final String uri,
+            final long start, final long end, final long queryStart, final long queryEnd, final long weight,
+            final long gcPauseMillis) throws IOException {
+        final long queryMillis = queryStart == NOT_SET || queryEnd < queryStart ? NOT_SET : queryEnd - queryStart;
+        writer.add(pool, uriNormaliser.normalise(uri), start, end - start, queryMillis, gcPauseMillis, weight);
+    }
+}
@@ -0,0 +1,433 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.logging.performance;
+
+import static com.ericsson.eniq.events.server.logging.performance.ServicesPerformanceColumnarWriter.*;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.ericsson.eniq.events.server.logging.ServicesLogTimestamp;
+
+/**
+ * Queries a columnar performance trace file written by {@link ServicesPerformanceColumnarWriter}.
+ *
+ * Only the footer is read when the file is opened. A scan skips the blocks whose minimum and maximum show
+ * they have no rows in its time range or with its pool or URI, and reads only the columns it asks for, and
+ * filters on, of the others.
+ *
+ * Usage: ServicesPerformanceColumnarReader [-pool name] [-uri uri] [-from timestamp] [-to timestamp]
+ * [-bucketMinutes n] columnarFile...
+ * writes yyyy-MM-dd HH:mm|requests|p50|p90|p99|max of the request durations in milliseconds per bucket,
+ * default one hour, over all the files.
+ *
+ * @author echchik
+ */
+public class ServicesPerformanceColumnarReader implements Closeable {
+
+    /**
+     * Gets the rows of a scan
+     */
+    public interface RowHandler {
+
+        /**
+         * @param row the row, indexed by column, only the columns of the query and those filtered on are set;
+         *            the array is reused for the next row
+         */
+        void row(long[] row);
+    }
+
+    /**
+     * What a scan reads: a time range of request starts, a pool, a URI and the columns wanted
+     */
+    public static final class Query {
+
+        private long from = Long.MIN_VALUE;
+
+        private long to = Long.MAX_VALUE;
+
+        private String pool;
+
+        private String uri;
+
+        private int columns;
+
+        /**
+         * @param fromMillis first request start included, epoch milliseconds
+         * @param toMillis first request start not included
+         */
+        public Query between(final long fromMillis, final long toMillis) {
+            from = fromMillis;
+            to = toMillis;
+            return this;
+        }
+
+        public Query pool(final String name) {
+            pool = name;
+            return this;
+        }
+
+        /**
+         * @param normalisedUri URI as normalised when the file was written
+         */
+        public Query uri(final String normalisedUri) {
+            uri = normalisedUri;
+            return this;
+        }
+
+        /**
+         * @param wanted column numbers, see ServicesPerformanceColumnarWriter
+         */
+        public Query columns(final int... wanted) {
+            for (final int column : wanted) {
+                columns |= 1 << column;
+            }
+            return this;
+        }
+
+        private boolean timeFiltered() {
+            return from != Long.MIN_VALUE || to != Long.MAX_VALUE;
+        }
+    }
+
+    private static final int BLOCK_FIELDS = 1 + COLUMN_COUNT * 4;
+
+    private static final long MILLIS_IN_MINUTE = 60 * 1000L;
+
+    private static final long DEFAULT_BUCKET_MINUTES = 60;
+
+    private static final int MINUTE_LENGTH = 16;
+
+    private static final double[] PERCENTILES = { 50.0, 90.0, 99.0 };
+
+    private final RandomAccessFile file;
+
+    private final FileChannel channel;
+
+    private final List<String> pools;
+
+    private final List<String> uris;
+
+    private final long[][] blocks;
+
+    private final long[][] values = new long[COLUMN_COUNT][];
+
+    private ByteBuffer segment = ByteBuffer.allocate(0);
+
+    private long rowCount;
+
+    private long blocksRead;
+
+    private long blocksSkipped;
+
+    /**
+     * Open a file and read its footer
+     *
+     * @param path the columnar file
+     * @throws IOException if it can't be read or is not a columnar trace
+     */
+    public ServicesPerformanceColumnarReader(final File path) throws IOException {
+        file = new RandomAccessFile(path, "r");
+        channel = file.getChannel();
+        try {
+            final long size = channel.size();
+            if (size < MAGIC.length + 1 + TRAILER_SIZE || !hasMagic(read(0, MAGIC.length + 1))) {
+                throw new IOException("Not a columnar performance trace: " + path);
+            }
+            if (segment.get(MAGIC.length) != VERSION) {
+                throw new IOException("Unsupported columnar performance trace version " + segment.get(MAGIC.length));
+            }
+            final ByteBuffer trailer = read(size - TRAILER_SIZE, TRAILER_SIZE);
+            final long footerOffset = trailer.getLong();
+            if (!hasMagic(trailer) || footerOffset < 0 || footerOffset > size - TRAILER_SIZE) {
+                throw new IOException("Columnar performance trace without a footer: " + path);
+            }
+            final ByteBuffer footer = read(footerOffset, (int) (size - TRAILER_SIZE - footerOffset));
+            pools = readStrings(footer);
+            uris = readStrings(footer);
+            blocks = new long[footer.getInt()][BLOCK_FIELDS];
+            int maxRows = 0;
+            for (final long[] block : blocks) {
+                for (int i = 0; i < BLOCK_FIELDS; i++) {
+                    block[i] = footer.getLong();
+                }
+                rowCount += block[0];
+                maxRows = Math.max(maxRows, (int) block[0]);
+            }
+            for (int column = 0; column < COLUMN_COUNT; column++) {
+                values[column] = new long[maxRows];
+            }
+        } catch (final IOException e) {
+            file.close();
+            throw e;
+        } catch (final RuntimeException e) {
+            file.close();
+            throw new IOException("Corrupt columnar performance trace: " + path, e);
+        }
+    }
+
+    private static boolean hasMagic(final ByteBuffer buffer) {
+        for (final byte b : MAGIC) {
+            if (buffer.get() != b) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<String> readStrings(final ByteBuffer footer) {
+        final int count = footer.getInt();
+        final List<String> strings = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            final byte[] bytes = new byte[footer.getInt()];
+            footer.get(bytes);
+            strings.add(new String(bytes, UTF8));
+        }
+        return Collections.unmodifiableList(strings);
+    }
+
+    /**
+     * Read bytes of the file into the segment buffer
+     */
+    private ByteBuffer read(final long offset, final int length) throws IOException {
+        if (segment.capacity() < length) {
+            segment = ByteBuffer.allocate(length);
+        }
+        segment.clear();
+        segment.limit(length);
+        long position = offset;
+        while (segment.hasRemaining()) {
+            final int read = channel.read(segment, position);
+            if (read < 0) {
+                throw new IOException("Columnar performance trace cut short");
+            }
+            position += read;
+        }
+        segment.flip();
+        return segment;
+    }
+
+    /**
+     * Scan the rows matching a query
+     *
+     * @param query what to read
+     * @param handler gets each matching row
+     * @return number of rows matched
+     * @throws IOException if the file can't be read
+     */
+    public long scan(final Query query, final RowHandler handler) throws IOException {
+        final int poolId = query.pool == null ? -1 : pools.indexOf(query.pool);
+        final int uriId = query.uri == null ? -1 : uris.indexOf(query.uri);
+        if (query.pool != null && poolId < 0 || query.uri != null && uriId < 0) {
+            blocksSkipped += blocks.length;
+            return 0;
+        }
+        int needed = query.columns;
+        if (query.timeFiltered()) {
+            needed |= 1 << START;
+        }
+        if (poolId >= 0) {
+            needed |= 1 << POOL;
+        }
+        if (uriId >= 0) {
+            needed |= 1 << URI;
+        }
+        final long[] row = new long[COLUMN_COUNT];
+        long matched = 0;
+        for (final long[] block : blocks) {
+            if (query.timeFiltered() && (max(block, START) < query.from || min(block, START) >= query.to)
+                    || outside(block, POOL, poolId) || outside(block, URI, uriId)) {
+                blocksSkipped++;
+                continue;
+            }
+            blocksRead++;
+            final int rows = (int) block[0];
+            for (int column = 0; column < COLUMN_COUNT; column++) {
+                if ((needed & 1 << column) != 0) {
+                    readColumn(block, column, rows);
+                }
+            }
+            for (int i = 0; i < rows; i++) {
+                if (query.timeFiltered() && (values[START][i] < query.from || values[START][i] >= query.to)
+                        || poolId >= 0 && values[POOL][i] != poolId || uriId >= 0 && values[URI][i] != uriId) {
+                    continue;
+                }
+                for (int column = 0; column < COLUMN_COUNT; column++) {
+                    if ((needed & 1 << column) != 0) {
+                        row[column] = values[column][i];
+                    }
+                }
+                handler.row(row);
+                matched++;
+            }
+        }
+        return matched;
+    }
+
+    private static long min(final long[] block, final int column) {
+        return block[1 + column * 4 + 2];
+    }
+
+    private static long max(final long[] block, final int column) {
+        return block[1 + column * 4 + 3];
+    }
+
+    private static boolean outside(final long[] block, final int column, final int id) {
+        return id >= 0 && (id < min(block, column) || id > max(block, column));
+    }
+
+    private void readColumn(final long[] block, final int column, final int rows) throws IOException {
+        final int base = 1 + column * 4;
+        final ByteBuffer bytes = read(block[base], (int) block[base + 1]);
+        final long[] target = values[column];
+        switch (ENCODINGS[column]) {
+        case DELTA:
+            long value = 0;
+            for (int i = 0; i < rows; i++) {
+                value += ServicesPerformanceBinaryReader.getZigZag(bytes);
+                target[i] = value;
+            }
+            break;
+        case INT:
+            for (int i = 0; i < rows; i++) {
+                target[i] = bytes.getInt();
+            }
+            break;
+        default:
+            for (int i = 0; i < rows; i++) {
+                target[i] = ServicesPerformanceBinaryReader.getVarint(bytes);
+            }
+            break;
+        }
+    }
+
+    /**
+     * Histograms of the request durations, in milliseconds, by request start
+     *
+     * @param query what to read, its columns are not needed
+     * @param bucketMillis length of a bucket
+     * @param histograms bucket start to histogram, new buckets are added
+     * @return number of rows matched
+     * @throws IOException if the file can't be read
+     */
+    public long durations(final Query query, final long bucketMillis, final Map<Long, LatencyHistogram> histograms)
+            throws IOException {
+        query.columns(START, DURATION, WEIGHT);
+        return scan(query, new RowHandler() {
+            @Override
+            public void row(final long[] row) {
+                final Long bucket = Long.valueOf(row[START] - row[START] % bucketMillis);
+                LatencyHistogram histogram = histograms.get(bucket);
+                if (histogram == null) {
+                    histogram = new LatencyHistogram();
+                    histograms.put(bucket, histogram);
+                }
+                histogram.record(row[DURATION], row[WEIGHT]);
+            }
+        });
+    }
+
+    /**
+     * @return the pools, indexed by their id
+     */
+    public List<String> getPools() {
+        return pools;
+    }
+
+    /**
+     * @return the URIs, indexed by their id
+     */
+    public List<String> getUris() {
+        return uris;
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    public int getBlockCount() {
+        return blocks.length;
+    }
+
+    /**
+     * @return number of blocks read by the scans so far
+     */
+    public long getBlocksRead() {
+        return blocksRead;
+    }
+
+    /**
+     * @return number of blocks skipped by the scans so far
+     */
+    public long getBlocksSkipped() {
+        return blocksSkipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    public static void main(final String[] args) throws IOException {
+        final Query query = new Query();
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+        long bucketMinutes = DEFAULT_BUCKET_MINUTES;
+        final List<File> files = new ArrayList<File>();
+        for (int i = 0; i < args.length; i++) {
+            if ("-pool".equals(args[i]) && i + 1 < args.length) {
+                query.pool(args[++i]);
+            } else if ("-uri".equals(args[i]) && i + 1 < args.length) {
+                query.uri(args[++i]);
+            } else if ("-from".equals(args[i]) && i + 1 < args.length) {
+                from = ServicesLogTimestamp.parse(args[++i]);
+            } else if ("-to".equals(args[i]) && i + 1 < args.length) {
+                to = ServicesLogTimestamp.parse(args[++i]);
+            } else if ("-bucketMinutes".equals(args[i]) && i + 1 < args.length) {
+                bucketMinutes = Long.parseLong(args[++i]);
+            } else {
+                files.add(new File(args[i]));
+            }
+        }
+        if (files.isEmpty() || from == -1 || to == -1) {
+            System.err.println("Usage: ServicesPerformanceColumnarReader [-pool name] [-uri uri] "
+                    + "[-from yyyy-MM-dd HH:mm:ss.SSS] [-to yyyy-MM-dd HH:mm:ss.SSS] [-bucketMinutes n] "
+                    + "columnarFile...");
+            System.exit(1);
+        }
+        query.between(from, to);
+        final Map<Long, LatencyHistogram> histograms = new TreeMap<Long, LatencyHistogram>();
+        for (final File path : files) {
+            final ServicesPerformanceColumnarReader reader = new ServicesPerformanceColumnarReader(path);
+            try {
+                reader.durations(query, bucketMinutes * MILLIS_IN_MINUTE, histograms);
+            } finally {
+                reader.close();
+            }
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (final Map.Entry<Long, LatencyHistogram> entry : histograms.entrySet()) {
+            final LatencyHistogram histogram = entry.getValue();
+            sb.setLength(0);
+            sb.append(ServicesLogTimestamp.format(entry.getKey().longValue()).substring(0, MINUTE_LENGTH));
+            sb.append('|').append(histogram.getCount());
+            for (final double percentile : PERCENTILES) {
+                sb.append('|').append(histogram.getValueAtPercentile(percentile));
+            }
+            sb.append('|').append(histogram.getMax());
+            System.out.println(sb);
+        }
+    }
+}
@@ -0,0 +1,283 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.logging.performance;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes performance trace requests in a columnar file, read by ServicesPerformanceColumnarReader, so a
+ * question about a few columns over many days reads only those columns.
+ *
+ * The rows are cut into blocks of {@link #DEFAULT_BLOCK_ROWS}, and each block is written one column after the
+ * other. Request start times are delta encoded varints, durations fixed width int arrays, pools and URIs ids
+ * in a dictionary. The footer has the dictionaries and, per block, the row count and the offset, length,
+ * minimum and maximum of each column, so a query skips the blocks outside its time range or without its pool
+ * or URI and reads only the columns it needs of the rest.
+ *
+ * File: the magic bytes EPTC and a version byte, the column segments, the footer, then the footer offset as
+ * a long and the magic bytes again. A file without its footer, e.g. cut by a crash, can't be read, writers
+ * write to a temporary name and rename it.
+ *
+ * Not thread safe.
+ *
+ * @author echchik
+ */
+public class ServicesPerformanceColumnarWriter implements Closeable {
+
+    static final byte[] MAGIC = { 'E', 'P', 'T', 'C' };
+
+    static final byte VERSION = 1;
+
+    /**
+     * Request start time, epoch milliseconds
+     */
+    public static final int START = 0;
+
+    /**
+     * Request duration in milliseconds
+     */
+    public static final int DURATION = 1;
+
+    /**
+     * Query execution time in milliseconds, -1 if not known
+     */
+    public static final int QUERY = 2;
+
+    /**
+     * GC pause time inside the request in milliseconds, -1 if not known
+     */
+    public static final int GC_PAUSE = 3;
+
+    /**
+     * Sample weight, the number of requests the row stands for
+     */
+    public static final int WEIGHT = 4;
+
+    /**
+     * Pool dictionary id
+     */
+    public static final int POOL = 5;
+
+    /**
+     * Normalised URI dictionary id
+     */
+    public static final int URI = 6;
+
+    public static final int COLUMN_COUNT = 7;
+
+    static final String[] COLUMN_NAMES = { "start", "duration", "query", "gcPause", "weight", "pool", "uri" };
+
+    static final byte DELTA = 1;
+
+    static final byte INT = 2;
+
+    static final byte VARINT = 3;
+
+    static final byte[] ENCODINGS = { DELTA, INT, INT, INT, VARINT, VARINT, VARINT };
+
+    public static final int DEFAULT_BLOCK_ROWS = 4096;
+
+    static final int TRAILER_SIZE = 8 + 4;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int MAX_VARINT_BYTES = 10;
+
+    private final FileChannel channel;
+
+    private final int blockRows;
+
+    private final long[][] columns;
+
+    private int rows;
+
+    private final ByteBuffer segment;
+
+    private final Map<String, Integer> poolIds = new HashMap<String, Integer>();
+
+    private final List<String> pools = new ArrayList<String>();
+
+    private final Map<String, Integer> uriIds = new HashMap<String, Integer>();
+
+    private final List<String> uris = new ArrayList<String>();
+
+    /**
+     * Per block: rows, then offset, length, min and max of each column
+     */
+    private final List<long[]> blocks = new ArrayList<long[]>();
+
+    private long totalRows;
+
+    /**
+     * @param file file to create, overwritten if it exists
+     * @throws IOException if the file can't be created
+     */
+    public ServicesPerformanceColumnarWriter(final File file) throws IOException {
+        this(file, DEFAULT_BLOCK_ROWS);
+    }
+
+    /**
+     * @param file file to create, overwritten if it exists
+     * @param blockRows rows per block
+     * @throws IOException if the file can't be created
+     */
+    public ServicesPerformanceColumnarWriter(final File file, final int blockRows) throws IOException {
+        this.blockRows = blockRows;
+        columns = new long[COLUMN_COUNT][blockRows];
+        segment = ByteBuffer.allocate(Math.max(blockRows * MAX_VARINT_BYTES,
+                ServicesPerformanceBinaryWriter.MAX_STRING_BYTES + 16));
+        channel = new FileOutputStream(file, false).getChannel();
+        segment.put(MAGIC).put(VERSION);
+        writeSegment();
+    }
+
+    /**
+     * Add a request
+     *
+     * @param pool pool name
+     * @param uri URI, normalised by the caller
+     * @param start request start time, epoch milliseconds
+     * @param durationMillis request duration
+     * @param queryMillis query execution time, -1 if not known
+     * @param gcPauseMillis GC pause time inside the request, -1 if not known
+     * @param weight number of requests the row stands for
+     * @throws IOException if a full block can't be written
+     */
+    public void add(final String pool, final String uri, final long start, final long durationMillis,
+            final long queryMillis, final long gcPauseMillis, final long weight) throws IOException {
+        columns[START][rows] = start;
+        columns[DURATION][rows] = toInt(durationMillis);
+        columns[QUERY][rows] = toInt(queryMillis);
+        columns[GC_PAUSE][rows] = toInt(gcPauseMillis);
+        columns[WEIGHT][rows] = Math.max(1, weight);
+        columns[POOL][rows] = id(pool, poolIds, pools);
+        columns[URI][rows] = id(uri, uriIds, uris);
+        rows++;
+        totalRows++;
+        if (rows == blockRows) {
+            writeBlock();
+        }
+    }
+
+    /**
+     * @return number of rows added
+     */
+    public long getRowCount() {
+        return totalRows;
+    }
+
+    private static long toInt(final long value) {
+        return Math.max(-1, Math.min(Integer.MAX_VALUE, value));
+    }
+
+    private static int id(final String value, final Map<String, Integer> ids, final List<String> values) {
+        final String key = value == null ? "" : value;
+        Integer id = ids.get(key);
+        if (id == null) {
+            id = Integer.valueOf(values.size());
+            ids.put(key, id);
+            values.add(key);
+        }
+        return id.intValue();
+    }
+
+    private void writeBlock() throws IOException {
+        final long[] block = new long[1 + COLUMN_COUNT * 4];
+        block[0] = rows;
+        for (int column = 0; column < COLUMN_COUNT; column++) {
+            final long[] values = columns[column];
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            long previous = 0;
+            for (int row = 0; row < rows; row++) {
+                final long value = values[row];
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+                switch (ENCODINGS[column]) {
+                case DELTA:
+                    ServicesPerformanceBinaryWriter.putZigZag(segment, value - previous);
+                    previous = value;
+                    break;
+                case INT:
+                    segment.putInt((int) value);
+                    break;
+                default:
+                    ServicesPerformanceBinaryWriter.putVarint(segment, value);
+                    break;
+                }
+            }
+            final int base = 1 + column * 4;
+            block[base] = channel.position();
+            block[base + 1] = segment.position();
+            block[base + 2] = min;
+            block[base + 3] = max;
+            writeSegment();
+        }
+        blocks.add(block);
+        rows = 0;
+    }
+
+    private void writeSegment() throws IOException {
+        segment.flip();
+        while (segment.hasRemaining()) {
+            channel.write(segment);
+        }
+        segment.clear();
+    }
+
+    /**
+     * Write the last block and the footer and close the file
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (rows > 0) {
+                writeBlock();
+            }
+            final long footerOffset = channel.position();
+            writeStrings(pools);
+            writeStrings(uris);
+            segment.putInt(blocks.size());
+            for (final long[] block : blocks) {
+                if (segment.remaining() < block.length * 8) {
+                    writeSegment();
+                }
+                for (final long value : block) {
+                    segment.putLong(value);
+                }
+            }
+            if (segment.remaining() < TRAILER_SIZE) {
+                writeSegment();
+            }
+            segment.putLong(footerOffset).put(MAGIC);
+            writeSegment();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void writeStrings(final List<String> strings) throws IOException {
+        segment.putInt(strings.size());
+        for (final String string : strings) {
+            final byte[] bytes = string.getBytes(UTF8);
+            final int length = Math.min(bytes.length, ServicesPerformanceBinaryWriter.MAX_STRING_BYTES);
+            if (segment.remaining() < length + 4) {
+                writeSegment();
+            }
+            segment.putInt(length).put(bytes, 0, length);
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.logging.performance;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.ericsson.eniq.events.server.logging.ServicesRequestId;
+
+/**
+ * Carries the current request's performance context to work run on other threads, e.g. per node queries
+ * fanned out to an executor.
+ *
+ * The wrappers capture the context of the thread that hands the work over. On the worker thread the work
+ * runs with a context of its own, inside a phase named after the task, so ServicesPerformanceThreadLocalHolder
+ * beginPhase/endPhase calls made by the work are timed as usual. When the work finishes its phases are handed
+ * back to the request's context without locking and are merged, nested under the phase that was open when
+ * the work was handed over, when the request completes.
+ *
+ * Usage:
+ * final ExecutorService executor = ServicesPerformanceExecutors.wrap(Executors.newFixedThreadPool(4));
+ * executor.submit(ServicesPerformanceExecutors.wrap("query:node1", callable));
+ *
+ * @author echchik
+ */
+public final class ServicesPerformanceExecutors {
+
+    /**
+     * Phase name for work wrapped without a name
+     */
+    public static final String DEFAULT_TASK_NAME = "task";
+
+    /**
+     * Context used for work on each worker thread, reset before each piece of work
+     */
+    private static final ThreadLocal<ServicePeformanceContextInformation> TASK_CONTEXT =
+            new ServicesPerformanceThreadLocal();
+
+    private ServicesPerformanceExecutors() {
+    }
+
+    /**
+     * Remove the task context of this thread, see ServicesPerformanceThreadLocalHolder#stopReuse
+     */
+    static void removeThreadState() {
+        TASK_CONTEXT.remove();
+    }
+
+    /**
+     * @param task work to run on another thread, timed as a phase named {@link #DEFAULT_TASK_NAME}
+     * @return the task, carrying the current request's performance context
+     */
+    public static Runnable wrap(final Runnable task) {
+        return wrap(DEFAULT_TASK_NAME, task);
+    }
+
+    /**
+     * @param name phase name for the task
+     * @param task work to run on another thread
+     * @return the task, carrying the current request's performance context
+     */
+    public static Runnable wrap(final String name, final Runnable task) {
+        if (task instanceof ContextRunnable) {
+            return task;
+        }
+        return new ContextRunnable(name, task);
+    }
+
+    /**
+     * @param task work to run on another thread, timed as a phase named {@link #DEFAULT_TASK_NAME}
+     * @return the task, carrying the current request's performance context
+     */
+    public static <T> Callable<T> wrap(final Callable<T> task) {
+        return wrap(DEFAULT_TASK_NAME, task);
+    }
+
+    /**
+     * @param name phase name for the task
+     * @param task work to run on another thread
+     * @return the task, carrying the current request's performance context
+     */
+    public static <T> Callable<T> wrap(final String name, final Callable<T> task) {
+        if (task instanceof ContextCallable) {
+            return task;
+        }
+        return new ContextCallable<T>(name, task);
+    }
+
+    /**
+     * @param executor executor to wrap
+     * @return executor that wraps every task it is given
+     */
+    public static Executor wrap(final Executor executor) {
+        return new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                executor.execute(wrap(command));
+            }
+        };
+    }
+
+    /**
+     * @param executor executor service to wrap
+     * @return executor service that wraps every task it is given, including submit and invokeAll
+     */
+    public static ExecutorService wrap(final ExecutorService executor) {
+        return new ContextExecutorService(executor);
+    }
+
+    /**
+     * The request context captured when the work was handed over
+     */
+    private static class Capture {
+
+        private final ServicePeformanceContextInformation parent;
+
+        private final long generation;
+
+        private final int baseDepth;
+
+        private final String name;
+
+        private final ServicesRequestId requestId;
+
+        Capture(final String name) {
+            this.name = name;
+            parent = ServicesPerformanceThreadLocalHolder.getContextInfo();
+            requestId = parent.getRequestId();
+            generation = parent.getGeneration();
+            baseDepth = parent.getOpenPhaseDepth();
+        }
+
+        /**
+         * Switch the thread to the task context, unless the work is run on the request thread itself
+         * or inside other wrapped work on this thread, then it is just a nested phase
+         */
+        ServicePeformanceContextInformation enter() {
+            final ServicePeformanceContextInformation current = ServicesPerformanceThreadLocalHolder.getContextInfo();
+            if (current == parent || current == TASK_CONTEXT.get()) {
+                current.beginPhase(name);
+                return null;
+            }
+            final ServicePeformanceContextInformation child = TASK_CONTEXT.get();
+            child.reset();
+            // the task logs under the request it works for
+            child.setRequestId(requestId);
+            final ServicePeformanceContextInformation previous = ServicesPerformanceThreadLocalHolder.install(child);
+            child.beginPhase(name);
+            return previous;
+        }
+
+        void exit(final ServicePeformanceContextInformation previous) {
+            if (previous == null) {
+                ServicesPerformanceThreadLocalHolder.endPhase();
+                return;
+            }
+            final ServicePeformanceContextInformation child = ServicesPerformanceThreadLocalHolder.install(previous);
+            child.endPhase();
+            // work the task handed on and waited for
+            child.mergeChildPhases();
+            parent.addChildPhases(generation, baseDepth, child);
+            child.reset();
+            if (!ServicesPerformanceThreadLocalHolder.isReusing()) {
+                removeThreadState();
+            }
+        }
+    }
+
+    private static final class ContextRunnable extends Capture implements Runnable {
+
+        private final Runnable task;
+
+        ContextRunnable(final String name, final Runnable task) {
+            super(name);
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            final ServicePeformanceContextInformation previous = enter();
+            try {
+                task.run();
+            } finally {
+                exit(previous);
+            }
+        }
+    }
+
+    private static final class ContextCallable<T> extends Capture implements Callable<T> {
+
+        private final Callable<T> task;
+
+        ContextCallable(final String name, final Callable<T> task) {
+            super(name);
+            this.task = task;
+        }
+
+        @Override
+        public T call() throws Exception {
+            final ServicePeformanceContextInformation previous = enter();
+            try {
+                return task.call();
+            } finally {
+                exit(previous);
+            }
+        }
+    }
+
+    /**
+     * AbstractExecutorService turns submit, invokeAll and invokeAny into execute calls on the submitting thread.
+     * The tasks are wrapped as the futures are made, so a task wrapped with a name by the caller keeps it, and
+     * execute does not wrap Futures: they come from newTaskFor, possibly inside another future, e.g. the
+     * QueueingFuture of the ExecutorCompletionService behind invokeAny. A FutureTask made by the caller and
+     * passed to execute should be made from a wrapped task.
+     */
+    private static final class ContextExecutorService extends AbstractExecutorService {
+
+        private final ExecutorService executor;
+
+        ContextExecutorService(final ExecutorService executor) {
+            this.executor = executor;
+        }
+
+        @Override
+        public void execute(final Runnable command) {
+            executor.execute(command instanceof Future ? command : wrap(command));
+        }
+
+        @Override
+        protected <T> RunnableFuture<T> newTaskFor(final Callable<T> callable) {
+            return new FutureTask<T>(wrap(callable));
+        }
+
+        @Override
+        protected <T> RunnableFuture<T> newTaskFor(final Runnable runnable, final T value) {
+            return new FutureTask<T>(Executors.callable(wrap(runnable), value));
+        }
+
+        @Override
+        public void shutdown() {
+            executor.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return executor.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return executor.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return executor.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+            return executor.awaitTermination(timeout, unit);
+        }
+    }
+}
@@ -0,0 +1,345 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.logging.performance;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ericsson.eniq.events.server.logging.ServicesLogTimestamp;
+
+/**
+ * Request and query latency histograms per pool and URI, summarised once per interval.
+ *
+ * Request threads record into the active set of histograms without locking. At the end of an interval
+ * {@link #rotate(long)} swaps in the other set, waits for any request thread still recording into the old
+ * set to finish (a writer/reader phaser, as in HdrHistogram's Recorder) and then summarises and clears it,
+ * so no value is lost or counted twice. ServicePerformanceTraceLogger.detailed holds only the container's READ
+ * lock, so record is called by many request threads at once.
+ *
+ * Summary lines, one per key and metric, durations in milliseconds:
+ * SUMMARY|intervalStart|pool|uri|metric|count|p50|p90|p99|p99.9|max
+ * The metrics are request and query, and cpu and alloc when the request resources are captured, see
+ * ServicesThreadResources. cpu is in milliseconds like the durations, alloc in megabytes (10^6 bytes).
+ * Their histograms are only made for keys that have had such values.
+ *
+ * With anomaly detection on, see ServicesLatencyAlerts, its ALERT lines follow the summaries.
+ *
+ * The number of keys is capped at {@link #DEFAULT_MAX_KEYS}, further keys are counted under
+ * the {@link #OTHER_KEY} URI.
+ *
+ * @author echchik
+ */
+public class ServicesPerformanceHistograms {
+
+    /**
+     * Default maximum number of pool and URI keys
+     */
+    public static final int DEFAULT_MAX_KEYS = 200;
+
+    /**
+     * URI used for keys over the maximum
+     */
+    public static final String OTHER_KEY = "<Other>";
+
+    /**
+     * First field of a summary line
+     */
+    public static final String SUMMARY = "SUMMARY";
+
+    static final String REQUEST_METRIC = "request";
+
+    static final String QUERY_METRIC = "query";
+
+    static final String CPU_METRIC = "cpu";
+
+    static final String ALLOC_METRIC = "alloc";
+
+    private static final long BYTES_IN_KB = 1000L;
+
+    private static final char DELIMITER = '|';
+
+    private static final long NANOS_IN_MICRO = 1000L;
+
+    private static final long MICROS_IN_MILLI = 1000L;
+
+    private static final double[] PERCENTILES = { 50.0, 90.0, 99.0, 99.9 };
+
+    private final int maxKeys;
+
+    /**
+     * The two sets of histograms, request threads write to the one picked by the phase
+     */
+    private final ConcurrentMap<String, KeyHistograms> evenKeys = new ConcurrentHashMap<String, KeyHistograms>();
+
+    private final ConcurrentMap<String, KeyHistograms> oddKeys = new ConcurrentHashMap<String, KeyHistograms>();
+
+    /**
+     * Writer/reader phaser. Writers increment startEpoch on entry and the matching end epoch on exit,
+     * the sign of startEpoch says which set is active (positive = even).
+     */
+    private final AtomicLong startEpoch = new AtomicLong(0);
+
+    private final AtomicLong evenEndEpoch = new AtomicLong(0);
+
+    private final AtomicLong oddEndEpoch = new AtomicLong(Long.MIN_VALUE);
+
+    private long intervalStart = System.currentTimeMillis();
+
+    /**
+     * Request p99 in microseconds per key for the last interval, replaced as a whole on each rotation
+     */
+    private volatile Map<String, Long> lastRequestP99 = Collections.emptyMap();
+
+    /**
+     * Judges the request p95 of each key at the end of each interval, null if there is no anomaly detection
+     */
+    private volatile ServicesLatencyAlerts alerts = null;
+
+    public ServicesPerformanceHistograms() {
+        this(DEFAULT_MAX_KEYS);
+    }
+
+    /**
+     * @param maxKeys maximum number of pool and URI keys
+     */
+    public ServicesPerformanceHistograms(final int maxKeys) {
+        this.maxKeys = maxKeys;
+    }
+
+    /**
+     * @param alerts anomaly detection fed the request p95 of each key at the end of each interval, null for none
+     */
+    public void setAlerts(final ServicesLatencyAlerts alerts) {
+        this.alerts = alerts;
+    }
+
+    /**
+     * Record the request and query durations and the request resources of a context, if they were set
+     *
+     * @param pool pool name
+     * @param uri normalised URI
+     * @param context the request context
+     */
+    public void record(final String pool, final String uri, final ServicePeformanceContextInformation context) {
+        final long requestNanos = context.getRequestDurationNanos();
+        final long queryNanos = context.getQueryExecutionDurationNanos();
+        if (requestNanos < 0 && queryNanos < 0) {
+            return;
+        }
+        final long epoch = startEpoch.getAndIncrement();
+        try {
+            final KeyHistograms histograms = histogramsFor(epoch < 0 ? oddKeys : evenKeys, pool, uri);
+            if (requestNanos >= 0) {
+                histograms.request.record(requestNanos / NANOS_IN_MICRO);
+            }
+            if (queryNanos >= 0) {
+                histograms.query.record(queryNanos / NANOS_IN_MICRO);
+            }
+            final long cpuNanos = context.getRequestCpuNanos();
+            if (cpuNanos >= 0) {
+                histograms.cpu().record(cpuNanos / NANOS_IN_MICRO);
+            }
+            final long allocatedBytes = context.getRequestAllocatedBytes();
+            if (allocatedBytes >= 0) {
+                // kilobytes, written as megabytes with three decimals like microseconds as milliseconds
+                histograms.alloc().record(allocatedBytes / BYTES_IN_KB);
+            }
+        } finally {
+            (epoch < 0 ? oddEndEpoch : evenEndEpoch).getAndIncrement();
+        }
+    }
+
+    /**
+     * End the interval: swap the histogram sets and summarise the one that was active.
+     * Only one thread may rotate at a time.
+     *
+     * @param now time the interval ends
+     * @return summary lines, no lines for keys with no requests, then the alert lines if there are any
+     */
+    public synchronized List<String> rotate(final long now) {
+        final boolean nextPhaseIsEven = startEpoch.get() < 0;
+        final long initialStartValue;
+        if (nextPhaseIsEven) {
+            evenEndEpoch.set(0);
+            initialStartValue = 0;
+        } else {
+            oddEndEpoch.set(Long.MIN_VALUE);
+            initialStartValue = Long.MIN_VALUE;
+        }
+        final long startValueAtFlip = startEpoch.getAndSet(initialStartValue);
+        final AtomicLong endEpoch = nextPhaseIsEven ? oddEndEpoch : evenEndEpoch;
+        while (endEpoch.get() != startValueAtFlip) {
+            Thread.yield();
+        }
+
+        final ConcurrentMap<String, KeyHistograms> inactive = nextPhaseIsEven ? oddKeys : evenKeys;
+        final List<String> lines = new ArrayList<String>();
+        final List<String> alertLines = new ArrayList<String>();
+        final Map<String, Long> p99 = new HashMap<String, Long>();
+        final StringBuilder sb = new StringBuilder();
+        final Iterator<Map.Entry<String, KeyHistograms>> entries = inactive.entrySet().iterator();
+        while (entries.hasNext()) {
+            final Map.Entry<String, KeyHistograms> entry = entries.next();
+            final KeyHistograms histograms = entry.getValue();
+            if (histograms.request.getCount() == 0 && histograms.query.getCount() == 0) {
+                // quiet for a whole interval, drop the key so the cap only counts keys in use
+                entries.remove();
+                continue;
+            }
+            if (histograms.request.getCount() > 0) {
+                p99.put(entry.getKey(), Long.valueOf(histograms.request.getValueAtPercentile(99.0)));
+                final ServicesLatencyAlerts currentAlerts = alerts;
+                if (currentAlerts != null) {
+                    final String alert = currentAlerts.interval(intervalStart, histograms.pool, histograms.uri,
+                            histograms.request.getCount(), histograms.request.getValueAtPercentile(95.0));
+                    if (alert != null) {
+                        alertLines.add(alert);
+                    }
+                }
+            }
+            addSummary(lines, sb, histograms, REQUEST_METRIC, histograms.request);
+            addSummary(lines, sb, histograms, QUERY_METRIC, histograms.query);
+            histograms.request.reset();
+            histograms.query.reset();
+            final LatencyHistogram cpu = histograms.cpu;
+            if (cpu != null) {
+                addSummary(lines, sb, histograms, CPU_METRIC, cpu);
+                cpu.reset();
+            }
+            final LatencyHistogram alloc = histograms.alloc;
+            if (alloc != null) {
+                addSummary(lines, sb, histograms, ALLOC_METRIC, alloc);
+                alloc.reset();
+            }
+        }
+        lines.addAll(alertLines);
+        intervalStart = now;
+        lastRequestP99 = p99;
+        return lines;
+    }
+
+    /**
+     * @param pool pool name
+     * @param uri normalised URI
+     * @return request duration p99 in microseconds in the last interval, or -1 if there were no requests
+     */
+    public long getLastRequestP99Micros(final String pool, final String uri) {
+        final Long p99 = lastRequestP99.get(pool + DELIMITER + uri);
+        return p99 == null ? -1 : p99.longValue();
+    }
+
+    private KeyHistograms histogramsFor(final ConcurrentMap<String, KeyHistograms> keys, final String pool,
+            final String uri) {
+        final String key = pool + DELIMITER + uri;
+        KeyHistograms histograms = keys.get(key);
+        if (histograms == null) {
+            final boolean full = keys.size() >= maxKeys;
+            final String newKey = full ? pool + DELIMITER + OTHER_KEY : key;
+            histograms = keys.get(newKey);
+            if (histograms == null) {
+                final KeyHistograms created = new KeyHistograms(pool, full ? OTHER_KEY : uri);
+                histograms = keys.putIfAbsent(newKey, created);
+                if (histograms == null) {
+                    histograms = created;
+                }
+            }
+        }
+        return histograms;
+    }
+
+    private void addSummary(final List<String> lines, final StringBuilder sb, final KeyHistograms histograms,
+            final String metric, final LatencyHistogram histogram) {
+        final long count = histogram.getCount();
+        if (count == 0) {
+            return;
+        }
+        sb.setLength(0);
+        sb.append(SUMMARY).append(DELIMITER);
+        ServicesLogTimestamp.appendTo(intervalStart, sb);
+        sb.append(DELIMITER).append(histograms.pool).append(DELIMITER).append(histograms.uri);
+        sb.append(DELIMITER).append(metric).append(DELIMITER).append(count);
+        for (final double percentile : PERCENTILES) {
+            sb.append(DELIMITER);
+            appendMillis(sb, histogram.getValueAtPercentile(percentile));
+        }
+        sb.append(DELIMITER);
+        appendMillis(sb, histogram.getMax());
+        lines.add(sb.toString());
+    }
+
+    /**
+     * Microseconds written as milliseconds to three decimal places
+     */
+    static void appendMillis(final StringBuilder sb, final long micros) {
+        final long fraction = micros % MICROS_IN_MILLI;
+        sb.append(micros / MICROS_IN_MILLI).append('.');
+        if (fraction < 100) {
+            sb.append('0');
+        }
+        if (fraction < 10) {
+            sb.append('0');
+        }
+        sb.append(fraction);
+    }
+
+    /**
+     * Histograms for one pool and URI
+     */
+    private static final class KeyHistograms {
+
+        private final String pool;
+
+        private final String uri;
+
+        private final LatencyHistogram request = new LatencyHistogram();
+
+        private final LatencyHistogram query = new LatencyHistogram();
+
+        private volatile LatencyHistogram cpu;
+
+        private volatile LatencyHistogram alloc;
+
+        KeyHistograms(final String pool, final String uri) {
+            this.pool = pool;
+            this.uri = uri;
+        }
+
+        LatencyHistogram cpu() {
+            LatencyHistogram histogram = cpu;
+            if (histogram == null) {
+                synchronized (this) {
+                    histogram = cpu;
+                    if (histogram == null) {
+                        histogram = new LatencyHistogram();
+                        cpu = histogram;
+                    }
+                }
+            }
+            return histogram;
+        }
+
+        LatencyHistogram alloc() {
+            LatencyHistogram histogram = alloc;
+            if (histogram == null) {
+                synchronized (this) {
+                    histogram = alloc;
+                    if (histogram == null) {
+                        histogram = new LatencyHistogram();
+                        alloc = histogram;
+                    }
+                }
+            }
+            return histogram;
+        }
+    }
+}
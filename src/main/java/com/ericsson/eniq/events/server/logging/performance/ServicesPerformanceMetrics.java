@@ -0,0 +1,286 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.logging.performance;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Live request metrics in the OpenMetrics (Prometheus) text format, for monitoring agents that scrape files.
+ *
+ * Counters and a latency histogram with fixed buckets per pool and normalised URI, the number of requests in
+ * flight and the connection pool gauges, see ServicesPoolGauges. Everything is cumulative from the start, as
+ * the format expects, and held in atomics, so recording takes no lock and writing the file, on another thread,
+ * only reads them: a request recorded while the file is written may be in some of the numbers and not yet in
+ * others, the buckets are kept consistent with the count, and it is complete in the next file.
+ *
+ * {@link #writeFile(File)} writes to a temporary file next to the target and renames it over the target, so
+ * a scraper sees the previous file or the new one, never a partly written one.
+ *
+ * The number of pool and URI series is capped at {@link #DEFAULT_MAX_SERIES}, further ones are counted
+ * under the {@link ServicesPerformanceHistograms#OTHER_KEY} URI.
+ *
+ * @author echchik
+ */
+public class ServicesPerformanceMetrics {
+
+    /**
+     * Default maximum number of pool and URI series
+     */
+    public static final int DEFAULT_MAX_SERIES = 500;
+
+    static final String PREFIX = "eniq_events_services_";
+
+    /**
+     * Upper bounds of the latency buckets, in milliseconds
+     */
+    static final long[] BUCKET_MILLIS = { 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000 };
+
+    private static final AtomicLong IN_FLIGHT = new AtomicLong();
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private static final long NANOS_IN_MILLI = 1000000L;
+
+    private static final double NANOS_IN_SECOND = 1e9;
+
+    private static final double MILLIS_IN_SECOND = 1e3;
+
+    private final int maxSeries;
+
+    private final ConcurrentMap<String, Series> series = new ConcurrentHashMap<String, Series>();
+
+    public ServicesPerformanceMetrics() {
+        this(DEFAULT_MAX_SERIES);
+    }
+
+    /**
+     * @param maxSeries maximum number of pool and URI series
+     */
+    public ServicesPerformanceMetrics(final int maxSeries) {
+        this.maxSeries = maxSeries;
+    }
+
+    /**
+     * Called by the performance contexts as a request starts
+     */
+    static void requestStarted() {
+        IN_FLIGHT.incrementAndGet();
+    }
+
+    /**
+     * Called by the performance contexts as a request ends, or is abandoned
+     */
+    static void requestEnded() {
+        IN_FLIGHT.decrementAndGet();
+    }
+
+    /**
+     * @return number of requests started and not ended
+     */
+    public static long getInFlight() {
+        return IN_FLIGHT.get();
+    }
+
+    /**
+     * Counters and histogram of one pool and URI
+     */
+    private static final class Series {
+
+        private final String pool;
+
+        private final String uri;
+
+        private final AtomicLong requests = new AtomicLong();
+
+        private final AtomicLong failures = new AtomicLong();
+
+        private final AtomicLong durationNanos = new AtomicLong();
+
+        /**
+         * Non-cumulative, the last one for the requests over the highest bound
+         */
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_MILLIS.length + 1);
+
+        Series(final String pool, final String uri) {
+            this.pool = pool;
+            this.uri = uri;
+        }
+    }
+
+    /**
+     * Count a request
+     *
+     * @param pool pool name
+     * @param uri normalised URI
+     * @param durationNanos duration of the request
+     * @param failed true if the request failed
+     */
+    public void record(final String pool, final String uri, final long durationNanos, final boolean failed) {
+        final Series current = getSeries(pool == null ? "" : pool, uri == null ? "" : uri);
+        final long nanos = Math.max(0, durationNanos);
+        final long millis = nanos / NANOS_IN_MILLI;
+        int bucket = 0;
+        while (bucket < BUCKET_MILLIS.length && millis >= BUCKET_MILLIS[bucket]) {
+            bucket++;
+        }
+        // buckets before the count, so a reader never sees more requests in the buckets than counted
+        current.buckets.incrementAndGet(bucket);
+        current.durationNanos.addAndGet(nanos);
+        if (failed) {
+            current.failures.incrementAndGet();
+        }
+        current.requests.incrementAndGet();
+    }
+
+    private Series getSeries(final String pool, final String uri) {
+        final String key = pool + '|' + uri;
+        Series current = series.get(key);
+        if (current == null) {
+            if (series.size() >= maxSeries) {
+                return getSeries(pool + '|' + ServicesPerformanceHistograms.OTHER_KEY, pool,
+                        ServicesPerformanceHistograms.OTHER_KEY);
+            }
+            current = getSeries(key, pool, uri);
+        }
+        return current;
+    }
+
+    private Series getSeries(final String key, final String pool, final String uri) {
+        Series current = series.get(key);
+        if (current == null) {
+            final Series created = new Series(pool, uri);
+            current = series.putIfAbsent(key, created);
+            if (current == null) {
+                current = created;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Write the metrics atomically: to a temporary file, renamed over the target
+     *
+     * @param target file the scraper reads
+     * @throws IOException if the file can't be written
+     */
+    public void writeFile(final File target) throws IOException {
+        final File temporary = new File(target.getPath() + TEMPORARY_SUFFIX);
+        final Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temporary), UTF8));
+        try {
+            write(out);
+        } finally {
+            out.close();
+        }
+        Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Write the metrics in the OpenMetrics text format
+     *
+     * @param out where to write them
+     * @throws IOException if they can't be written
+     */
+    public void write(final Writer out) throws IOException {
+        final Map<String, Series> sorted = new TreeMap<String, Series>(series);
+        final StringBuilder sb = new StringBuilder();
+
+        family(sb, "requests", "counter", "Requests ended");
+        for (final Series current : sorted.values()) {
+            sample(sb, "requests_total", current, null, Long.toString(current.requests.get()));
+        }
+        family(sb, "request_failures", "counter", "Requests ended in failure");
+        for (final Series current : sorted.values()) {
+            sample(sb, "request_failures_total", current, null, Long.toString(current.failures.get()));
+        }
+        family(sb, "request_duration_seconds", "histogram", "Request durations");
+        for (final Series current : sorted.values()) {
+            // the count first, so the buckets read after it cover at least the requests counted
+            final long count = current.requests.get();
+            final long sumNanos = current.durationNanos.get();
+            long cumulative = 0;
+            for (int i = 0; i < BUCKET_MILLIS.length; i++) {
+                cumulative += current.buckets.get(i);
+                sample(sb, "request_duration_seconds_bucket", current,
+                        Double.toString(BUCKET_MILLIS[i] / MILLIS_IN_SECOND), Long.toString(Math.min(cumulative,
+                                count)));
+            }
+            sample(sb, "request_duration_seconds_bucket", current, "+Inf", Long.toString(count));
+            sample(sb, "request_duration_seconds_sum", current, null, Double.toString(sumNanos / NANOS_IN_SECOND));
+            sample(sb, "request_duration_seconds_count", current, null, Long.toString(count));
+        }
+        family(sb, "requests_in_flight", "gauge", "Requests started and not ended");
+        sb.append(PREFIX).append("requests_in_flight ").append(getInFlight()).append('\n');
+
+        final Map<String, ServicesPoolGauges.PoolGauge> pools = new TreeMap<String, ServicesPoolGauges.PoolGauge>();
+        for (final ServicesPoolGauges.PoolGauge gauge : ServicesPoolGauges.getInstance().getGauges()) {
+            pools.put(gauge.getName(), gauge);
+        }
+        family(sb, "pool_active_connections", "gauge", "Connections taken from the pool and not given back");
+        for (final ServicesPoolGauges.PoolGauge gauge : pools.values()) {
+            poolSample(sb, "pool_active_connections", gauge.getName(), gauge.getActive());
+        }
+        family(sb, "pool_waiting_requests", "gauge", "Threads waiting for a connection from the pool");
+        for (final ServicesPoolGauges.PoolGauge gauge : pools.values()) {
+            poolSample(sb, "pool_waiting_requests", gauge.getName(), gauge.getWaiting());
+        }
+        sb.append("# EOF\n");
+        out.write(sb.toString());
+    }
+
+    private static void family(final StringBuilder sb, final String name, final String type, final String help) {
+        sb.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+        sb.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+    }
+
+    private static void sample(final StringBuilder sb, final String name, final Series current, final String le,
+            final String value) {
+        sb.append(PREFIX).append(name).append("{pool=\"");
+        appendLabelValue(sb, current.pool);
+        sb.append("\",uri=\"");
+        appendLabelValue(sb, current.uri);
+        sb.append('"');
+        if (le != null) {
+            sb.append(",le=\"").append(le).append('"');
+        }
+        sb.append("} ").append(value).append('\n');
+    }
+
+    private static void poolSample(final StringBuilder sb, final String name, final String pool, final long value) {
+        sb.append(PREFIX).append(name).append("{pool=\"");
+        appendLabelValue(sb, pool);
+        sb.append("\"} ").append(value).append('\n');
+    }
+
+    private static void appendLabelValue(final StringBuilder sb, final String value) {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                sb.append('\\').append(c);
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+}
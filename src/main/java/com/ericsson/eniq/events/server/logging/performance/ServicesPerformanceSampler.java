@@ -0,0 +1,102 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.logging.performance;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tail based sampling of the per request performance trace lines, decided when the request ends.
+ *
+ * Kept, with a weight of 1:
+ * - failed requests
+ * - requests at or over the latency threshold, fixed or, when adaptive, the p99 of the URI in the last
+ *   histogram interval (the fixed threshold is used until a p99 is known)
+ * Of the rest, 1 in sampleRate is kept at random with a weight of sampleRate.
+ *
+ * The weight is written in the trace line, so summing the weights gives the request counts back.
+ *
+ * @author echchik
+ */
+public class ServicesPerformanceSampler {
+
+    /**
+     * Returned by {@link #sampleWeight} for a request that is not logged
+     */
+    public static final long DROP = 0;
+
+    private static final long NANOS_IN_MICRO = 1000L;
+
+    private static final long MICROS_IN_MILLI = 1000L;
+
+    private final long thresholdMicros;
+
+    private final int sampleRate;
+
+    private final ServicesPerformanceHistograms histograms;
+
+    private final AtomicLong kept = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param thresholdMillis requests taking this long or longer are always kept
+     * @param sampleRate 1 in sampleRate of the other requests are kept, 1 keeps all
+     * @param histograms where the p99 per URI comes from for an adaptive threshold, null for a fixed threshold
+     */
+    public ServicesPerformanceSampler(final long thresholdMillis, final int sampleRate,
+            final ServicesPerformanceHistograms histograms) {
+        if (sampleRate < 1) {
+            throw new IllegalArgumentException("Sample rate must be at least 1: " + sampleRate);
+        }
+        this.thresholdMicros = thresholdMillis * MICROS_IN_MILLI;
+        this.sampleRate = sampleRate;
+        this.histograms = histograms;
+    }
+
+    /**
+     * Decide whether to log a finished request
+     *
+     * @param context the request context, request start and end set
+     * @param uri the normalised URI
+     * @return number of requests the line stands for, or {@link #DROP}
+     */
+    public long sampleWeight(final ServicePeformanceContextInformation context, final String uri) {
+        if (context.isFailed() || isSlow(context, uri)) {
+            kept.incrementAndGet();
+            return 1;
+        }
+        if (sampleRate == 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0) {
+            kept.incrementAndGet();
+            return sampleRate;
+        }
+        dropped.incrementAndGet();
+        return DROP;
+    }
+
+    public long getKeptCount() {
+        return kept.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    private boolean isSlow(final ServicePeformanceContextInformation context, final String uri) {
+        final long durationNanos = context.getRequestDurationNanos();
+        if (durationNanos < 0) {
+            return false;
+        }
+        long threshold = thresholdMicros;
+        if (histograms != null) {
+            final long p99 = histograms.getLastRequestP99Micros(context.getPoolName(), uri);
+            if (p99 > 0) {
+                threshold = p99;
+            }
+        }
+        return durationNanos / NANOS_IN_MICRO >= threshold;
+    }
+}
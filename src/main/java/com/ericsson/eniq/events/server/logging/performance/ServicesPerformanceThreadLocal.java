@@ -14,7 +14,7 @@ public class ServicesPerformanceThreadLocal extends ThreadLocal<ServicePeformanc
 
     /**
      * This method is overridden to set the new ServicePeformanceContextInformation object
-     * for each request.
+     * for each thread, the holder resets and reuses it for each request.
      * 
      * By default the ThreadLocal object will have NULL as default initial value.
      */
@@ -5,8 +5,25 @@
  */
 package com.ericsson.eniq.events.server.logging.performance;
 
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.ericsson.eniq.events.server.logging.ServicesLogger;
+import com.ericsson.eniq.events.server.logging.ServicesRequestId;
+import com.ericsson.eniq.events.server.logging.audit.ServicesAuditRecord;
+
 /**
  * This wrapper class provide static utilities to hold the performance context information
+ *
+ * There is one context per thread, reset and reused by {@link #releaseAllResources()} rather than
+ * removed and allocated again for every request. setRequestStartTime should be the first call of a request:
+ * if it finds the context still holding times, the previous request on the thread did not call
+ * releaseAllResources, the leak is counted and logged and the context is reset before it is used.
+ * It also gives the request its correlation ID, see ServicesRequestId, which the loggers add to their records.
+ *
+ * Once {@link #stopReuse()} is called on undeploy, or with EniqEventsServices.reuseThreadContexts=false,
+ * releaseAllResources removes the per-thread logging state so it does not pin the class loader to pooled threads.
  * @author echchik
  *
  */
@@ -15,6 +32,16 @@ public class ServicesPerformanceThreadLocalHolder {
     private static final ServicesPerformanceThreadLocal PERFORMANCE_CONTEXT = 
         new ServicesPerformanceThreadLocal();
 
+    private static final AtomicLong LEAKED_CONTEXTS = new AtomicLong();
+
+    private static final Logger BACKUP_LOGGER = Logger.getLogger("");
+
+    /**
+     * False once the application is undeployed, or if turned off by the reuseThreadContexts property
+     */
+    private static volatile boolean reuse = Boolean.valueOf(System.getProperty(ServicesLogger.SERVICES_LOGGER_NAME
+            + ".reuseThreadContexts", "true"));
+
     private ServicesPerformanceThreadLocalHolder(){
         PERFORMANCE_CONTEXT.initialValue();
     }
@@ -24,7 +51,20 @@ public class ServicesPerformanceThreadLocalHolder {
     }
 
     public static void setRequestStartTime(final long reqStartTime) {
-        PERFORMANCE_CONTEXT.get().setRequestStartTime(reqStartTime);
+        final ServicePeformanceContextInformation context = PERFORMANCE_CONTEXT.get();
+        if (context.getRequestStartTime() != ServicePeformanceContextInformation.NOT_SET) {
+            leaked(context);
+        }
+        context.setRequestStartTime(reqStartTime);
+        context.setRequestId(ServicesRequestId.next());
+        ServicesLogger.beginRequest();
+    }
+
+    /**
+     * @return correlation ID of the request on this thread, or null if there is none
+     */
+    public static ServicesRequestId getRequestId() {
+        return PERFORMANCE_CONTEXT.get().getRequestId();
     }
 
     public static void setRequestEndTime(final long reqEndTime) {
@@ -43,15 +83,141 @@ public class ServicesPerformanceThreadLocalHolder {
         PERFORMANCE_CONTEXT.get().setUriInfo(uriInfo);
     }
 
+    public static void setFailed(final boolean failed) {
+        PERFORMANCE_CONTEXT.get().setFailed(failed);
+    }
+
     public static void setPoolName(final String poolName){
         PERFORMANCE_CONTEXT.get().setPoolName(poolName);
     }
 
+    /**
+     * Call just before taking a connection from a pool, see ServicePeformanceContextInformation#beginConnectionAcquire
+     */
+    public static void beginConnectionAcquire(final String pool) {
+        PERFORMANCE_CONTEXT.get().beginConnectionAcquire(pool);
+    }
+
+    /**
+     * Call once the connection has been got
+     */
+    public static void endConnectionAcquire() {
+        PERFORMANCE_CONTEXT.get().endConnectionAcquire();
+    }
+
+    /**
+     * Call instead of endConnectionAcquire when getting the connection failed
+     */
+    public static void failConnectionAcquire() {
+        PERFORMANCE_CONTEXT.get().failConnectionAcquire();
+    }
+
+    /**
+     * Call when the connection is closed, i.e. given back to the pool
+     */
+    public static void releaseConnection() {
+        PERFORMANCE_CONTEXT.get().releaseConnection();
+    }
+
+    /**
+     * Record a query execution of the current request, see ServicePeformanceContextInformation#addQueryExecution
+     */
+    public static void addQueryExecution(final String pool, final int templateId, final long connectionWaitNanos,
+            final long executionNanos, final long fetchNanos, final long rows) {
+        PERFORMANCE_CONTEXT.get().addQueryExecution(pool, templateId, connectionWaitNanos, executionNanos,
+                fetchNanos, rows);
+    }
+
+    /**
+     * Start a named phase of the current request, see ServicePeformanceContextInformation#beginPhase
+     */
+    public static void beginPhase(final String name) {
+        PERFORMANCE_CONTEXT.get().beginPhase(name);
+    }
+
+    /**
+     * End the last phase started on this thread
+     */
+    public static void endPhase() {
+        PERFORMANCE_CONTEXT.get().endPhase();
+    }
+
     public static ServicePeformanceContextInformation getContextInfo(){
         return PERFORMANCE_CONTEXT.get() ;
     }
 
+    /**
+     * Make the context the current thread's one, for work handed over from another thread
+     *
+     * @param context context to use on this thread
+     * @return the context the thread had, to be put back with this method when the work is done
+     */
+    static ServicePeformanceContextInformation install(final ServicePeformanceContextInformation context) {
+        final ServicePeformanceContextInformation previous = PERFORMANCE_CONTEXT.get();
+        PERFORMANCE_CONTEXT.set(context);
+        return previous;
+    }
+
+    /**
+     * Stop keeping the per-thread state between requests, call when the application is undeployed
+     */
+    public static void stopReuse() {
+        reuse = false;
+    }
+
+    /**
+     * Keep the per-thread state between requests again, for tests
+     */
+    static void startReuse() {
+        reuse = true;
+    }
+
+    /**
+     * @return true if the per-thread state is kept between requests
+     */
+    public static boolean isReusing() {
+        return reuse;
+    }
+
+    /**
+     * End of the request, clear the context for the next request on this thread, or remove the thread's
+     * logging state if reuse has been stopped. The services log records kept for the request are written
+     * if it failed or was slow, see ServicesRequestTraceBuffer.
+     */
     public static void releaseAllResources() {
-        PERFORMANCE_CONTEXT.remove();
+        final ServicePeformanceContextInformation context = PERFORMANCE_CONTEXT.get();
+        final long start = context.getRequestStartTime();
+        if (start != ServicePeformanceContextInformation.NOT_SET) {
+            final long end = context.getRequestEndTime();
+            ServicesLogger.endRequest(context.isFailed(),
+                    (end == ServicePeformanceContextInformation.NOT_SET ? System.currentTimeMillis() : end) - start);
+        }
+        context.reset();
+        if (!reuse) {
+            PERFORMANCE_CONTEXT.remove();
+            ServicesPerformanceExecutors.removeThreadState();
+            ServicesLogger.removeThreadState();
+            ServicesAuditRecord.removeThreadState();
+        }
+    }
+
+    /**
+     * @return number of times a context was found still in use when a new request started
+     */
+    public static long getLeakedContextCount() {
+        return LEAKED_CONTEXTS.get();
+    }
+
+    /**
+     * Logged on the 1st, 2nd, 4th, 8th... leak so a leaking service can't flood the log
+     */
+    private static void leaked(final ServicePeformanceContextInformation context) {
+        final long leaks = LEAKED_CONTEXTS.incrementAndGet();
+        if ((leaks & (leaks - 1)) == 0) {
+            BACKUP_LOGGER.log(Level.WARNING, "Performance context not released by the previous request on thread "
+                    + Thread.currentThread().getName() + ", leaked " + leaks + " times: "
+                    + context.getContextInformation("|"));
+        }
+        context.reset();
     }
 }
@@ -0,0 +1,551 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.logging.performance;
+
+import static com.ericsson.eniq.events.server.logging.performance.ServicesPerformanceTraceLogFormatter.*;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.ericsson.eniq.events.server.logging.LogRecordBoundaries;
+import com.ericsson.eniq.events.server.logging.ServicesLogTimestamp;
+
+/**
+ * Offline analysis of performance trace log files (servicesperformancetrace-*.log.N).
+ *
+ * The files are cut into chunks which are memory mapped and parsed by one worker per core. A chunk owns the
+ * records starting in it and maps a little past its end to finish the last one, the records are found with
+ * {@link LogRecordBoundaries}. The fields are located by their delimiters in the mapped bytes and the times
+ * and weights read in place, a string is only made for a pool and URI not seen recently and for the slowest
+ * requests. Each worker aggregates into its own histograms, one per pool and normalised URI (see
+ * ServicesUriNormaliser, whose key cap also bounds the heap), which are merged at the end, so the heap used
+ * does not depend on the size of the files.
+ *
+ * Summary, GC and alert lines are skipped, sampled lines count for their sample weight.
+ *
+ * Report, times in milliseconds:
+ * URI|pool|uri|requests|p50|p90|p99|p99.9|max     most requested first
+ * THROUGHPUT|yyyy-MM-dd HH:mm|requests|meanMillis  per minute the requests ended in
+ * SLOW|durationMillis|record                       slowest requests first
+ * PARSE|bytes|records|skipped|seconds|MBPerSecond|recordsPerSecond|threads
+ *
+ * Usage: ServicesPerformanceTraceAnalyser [-threads n] [-top n] [-uriParameters name,name] traceFile...
+ *
+ * @author echchik
+ */
+public final class ServicesPerformanceTraceAnalyser {
+
+    /**
+     * Default number of slowest requests reported
+     */
+    public static final int DEFAULT_TOP = 20;
+
+    static final int DEFAULT_CHUNK_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * How far past the end of its chunk a worker maps to finish its last record
+     */
+    private static final int MAX_RECORD_OVERRUN = 1024 * 1024;
+
+    private static final int KEY_CACHE_SIZE = 4096;
+
+    private static final int MAX_DELIMITERS = 16;
+
+    private static final byte DELIMITER = '|';
+
+    private static final byte[] SUMMARY = ServicesPerformanceHistograms.SUMMARY.getBytes();
+
+    private static final byte[] GC_SUMMARY = ServicesGcPauses.GC_SUMMARY.getBytes();
+
+    private static final byte[] ALERT = ServicesLatencyAlerts.ALERT.getBytes();
+
+    private static final long MILLIS_IN_MINUTE = 60 * 1000L;
+
+    private static final long MICROS_IN_MILLI = 1000L;
+
+    private static final int MINUTE_LENGTH = 16;
+
+    private static final double NANOS_IN_SECOND = 1e9;
+
+    private static final double BYTES_IN_MB = 1024 * 1024;
+
+    private static final double[] PERCENTILES = { 50.0, 90.0, 99.0, 99.9 };
+
+    private static final Charset CHARSET = Charset.defaultCharset();
+
+    private final int threads;
+
+    private final int top;
+
+    private final int chunkSize;
+
+    private final ServicesUriNormaliser uriNormaliser;
+
+    /**
+     * @param threads number of parsing threads
+     * @param top number of slowest requests reported
+     * @param uriParameters query parameters kept in the URIs, comma separated
+     */
+    public ServicesPerformanceTraceAnalyser(final int threads, final int top, final String uriParameters) {
+        this(threads, top, uriParameters, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Used for testing purposes only, to force records across chunks
+     */
+    ServicesPerformanceTraceAnalyser(final int threads, final int top, final String uriParameters,
+            final int chunkSize) {
+        this.threads = threads;
+        this.top = top;
+        this.chunkSize = chunkSize;
+        this.uriNormaliser = new ServicesUriNormaliser(ServicesUriNormaliser.parseWhitelist(uriParameters));
+    }
+
+    /**
+     * Analyse trace files
+     *
+     * @param files the trace log files
+     * @return the merged results
+     * @throws IOException if a file can't be read
+     */
+    public Result analyse(final List<File> files) throws IOException {
+        final long start = System.nanoTime();
+        final Queue<Chunk> chunks = new ConcurrentLinkedQueue<Chunk>();
+        for (final File file : files) {
+            final long size = file.length();
+            for (long offset = 0; offset < size; offset += chunkSize) {
+                chunks.add(new Chunk(file, offset, Math.min(size, offset + chunkSize)));
+            }
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final Result result = new Result();
+        try {
+            final List<Future<Worker>> workers = new ArrayList<Future<Worker>>();
+            for (int i = 0; i < threads; i++) {
+                workers.add(executor.submit(new Callable<Worker>() {
+                    @Override
+                    public Worker call() throws IOException {
+                        final Worker worker = new Worker();
+                        Chunk chunk;
+                        while ((chunk = chunks.poll()) != null) {
+                            worker.parse(chunk);
+                        }
+                        return worker;
+                    }
+                }));
+            }
+            for (final Future<Worker> worker : workers) {
+                result.merge(worker.get());
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        result.threads = threads;
+        return result;
+    }
+
+    /**
+     * Part of a file, the records starting in it
+     */
+    private static final class Chunk {
+
+        private final File file;
+
+        private final long start;
+
+        private final long end;
+
+        Chunk(final File file, final long start, final long end) {
+            this.file = file;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * Histogram of one pool and URI
+     */
+    static final class KeyStats {
+
+        private final String pool;
+
+        private final String uri;
+
+        private final LatencyHistogram durations = new LatencyHistogram();
+
+        KeyStats(final String pool, final String uri) {
+            this.pool = pool;
+            this.uri = uri;
+        }
+    }
+
+    /**
+     * One of the slowest requests
+     */
+    static final class SlowRequest {
+
+        private final long durationMillis;
+
+        private final String record;
+
+        SlowRequest(final long durationMillis, final String record) {
+            this.durationMillis = durationMillis;
+            this.record = record;
+        }
+    }
+
+    private static final Comparator<SlowRequest> FASTEST_FIRST = new Comparator<SlowRequest>() {
+        @Override
+        public int compare(final SlowRequest first, final SlowRequest second) {
+            return first.durationMillis < second.durationMillis ? -1
+                    : first.durationMillis == second.durationMillis ? 0 : 1;
+        }
+    };
+
+    /**
+     * Parses chunks on one thread into its own aggregates
+     */
+    private final class Worker {
+
+        private final Map<String, KeyStats> keys = new HashMap<String, KeyStats>();
+
+        private final long[] cacheHashes = new long[KEY_CACHE_SIZE];
+
+        private final KeyStats[] cacheStats = new KeyStats[KEY_CACHE_SIZE];
+
+        private final Map<Long, long[]> minutes = new HashMap<Long, long[]>();
+
+        private long lastMinute = -1;
+
+        private long[] lastMinuteTotals;
+
+        private final PriorityQueue<SlowRequest> slowest = new PriorityQueue<SlowRequest>(top + 1, FASTEST_FIRST);
+
+        private final int[] delimiters = new int[MAX_DELIMITERS];
+
+        private long bytes;
+
+        private long records;
+
+        private long skipped;
+
+        void parse(final Chunk chunk) throws IOException {
+            final RandomAccessFile raf = new RandomAccessFile(chunk.file, "r");
+            try {
+                final FileChannel channel = raf.getChannel();
+                final long base = Math.max(0, chunk.start - 1);
+                final long mapEnd = Math.min(channel.size(), chunk.end + MAX_RECORD_OVERRUN);
+                final int length = (int) (mapEnd - base);
+                final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, base, length);
+                int recordStart = chunk.start == 0 ? LogRecordBoundaries.nextRecordStart(buffer, 0, length, true)
+                        : LogRecordBoundaries.nextRecordStart(buffer, 1, length, false);
+                while (recordStart >= 0 && base + recordStart < chunk.end) {
+                    final int next = LogRecordBoundaries.nextRecordStart(buffer, recordStart
+                            + LogRecordBoundaries.RECORD_START_LENGTH, length, false);
+                    final int recordEnd = next < 0 ? length : next;
+                    parseRecord(buffer, recordStart, LogRecordBoundaries.trimmedEnd(buffer, recordStart, recordEnd));
+                    recordStart = next;
+                }
+            } finally {
+                raf.close();
+            }
+            bytes += chunk.end - chunk.start;
+        }
+
+        private void parseRecord(final ByteBuffer buffer, final int start, final int end) {
+            int count = 0;
+            for (int i = start; i < end && count < MAX_DELIMITERS; i++) {
+                if (buffer.get(i) == DELIMITER) {
+                    delimiters[count++] = i;
+                }
+            }
+            // request lines have the URI field and the "#]" after it
+            if (count <= URI_FIELD || equals(buffer, POOL_FIELD, SUMMARY) || equals(buffer, POOL_FIELD, GC_SUMMARY)
+                    || equals(buffer, POOL_FIELD, ALERT)
+                    || fieldLength(REQUEST_START_FIELD) != ServicesLogTimestamp.LENGTH
+                    || fieldLength(REQUEST_END_FIELD) != ServicesLogTimestamp.LENGTH) {
+                skipped++;
+                return;
+            }
+            final long requestStart = ServicesLogTimestamp.parse(buffer, fieldStart(REQUEST_START_FIELD));
+            final long requestEnd = ServicesLogTimestamp.parse(buffer, fieldStart(REQUEST_END_FIELD));
+            if (requestStart < 0 || requestEnd < requestStart) {
+                skipped++;
+                return;
+            }
+            final long duration = requestEnd - requestStart;
+            long weight = 1;
+            if (count > WEIGHT_FIELD) {
+                weight = Math.max(1, parseLong(buffer, fieldStart(WEIGHT_FIELD), delimiters[WEIGHT_FIELD]));
+            }
+            keyStats(buffer).durations.record(duration * MICROS_IN_MILLI, weight);
+
+            final long minute = requestEnd / MILLIS_IN_MINUTE;
+            if (minute != lastMinute) {
+                lastMinuteTotals = minutes.get(Long.valueOf(minute));
+                if (lastMinuteTotals == null) {
+                    lastMinuteTotals = new long[2];
+                    minutes.put(Long.valueOf(minute), lastMinuteTotals);
+                }
+                lastMinute = minute;
+            }
+            lastMinuteTotals[0] += weight;
+            lastMinuteTotals[1] += duration * weight;
+
+            if (top > 0 && (slowest.size() < top || duration > slowest.peek().durationMillis)) {
+                slowest.add(new SlowRequest(duration, decode(buffer, start, end)));
+                if (slowest.size() > top) {
+                    slowest.poll();
+                }
+            }
+            records++;
+        }
+
+        private int fieldStart(final int field) {
+            return delimiters[field - 1] + 1;
+        }
+
+        private int fieldLength(final int field) {
+            return delimiters[field] - fieldStart(field);
+        }
+
+        private boolean equals(final ByteBuffer buffer, final int field, final byte[] value) {
+            final int start = fieldStart(field);
+            if (fieldLength(field) != value.length) {
+                return false;
+            }
+            for (int i = 0; i < value.length; i++) {
+                if (buffer.get(start + i) != value[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * The stats of the record's pool and URI, from a small cache keyed by a hash of the raw bytes,
+         * so strings are only made on a miss
+         */
+        private KeyStats keyStats(final ByteBuffer buffer) {
+            final int poolStart = fieldStart(POOL_FIELD);
+            final int poolEnd = delimiters[POOL_FIELD];
+            final int uriStart = fieldStart(URI_FIELD);
+            final int uriEnd = delimiters[URI_FIELD];
+            long hash = 0xcbf29ce484222325L;
+            for (int i = poolStart; i < poolEnd; i++) {
+                hash = (hash ^ buffer.get(i)) * 0x100000001b3L;
+            }
+            hash = (hash ^ DELIMITER) * 0x100000001b3L;
+            for (int i = uriStart; i < uriEnd; i++) {
+                hash = (hash ^ buffer.get(i)) * 0x100000001b3L;
+            }
+            final int slot = (int) (hash ^ (hash >>> 32)) & (KEY_CACHE_SIZE - 1);
+            if (cacheHashes[slot] == hash && cacheStats[slot] != null) {
+                return cacheStats[slot];
+            }
+            final String pool = decode(buffer, poolStart, poolEnd);
+            final String uri = uriNormaliser.normalise(decode(buffer, uriStart, uriEnd));
+            final String key = pool + '|' + uri;
+            KeyStats stats = keys.get(key);
+            if (stats == null) {
+                stats = new KeyStats(pool, uri);
+                keys.put(key, stats);
+            }
+            cacheHashes[slot] = hash;
+            cacheStats[slot] = stats;
+            return stats;
+        }
+    }
+
+    private static long parseLong(final ByteBuffer buffer, final int start, final int end) {
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            final byte b = buffer.get(i);
+            if (b < '0' || b > '9') {
+                return -1;
+            }
+            value = value * 10 + (b - '0');
+        }
+        return value;
+    }
+
+    private static String decode(final ByteBuffer buffer, final int start, final int end) {
+        final ByteBuffer bytes = buffer.duplicate();
+        bytes.limit(end);
+        bytes.position(start);
+        return CHARSET.decode(bytes).toString();
+    }
+
+    /**
+     * Merged results of the workers
+     */
+    public final class Result {
+
+        private final Map<String, KeyStats> keys = new HashMap<String, KeyStats>();
+
+        private final Map<Long, long[]> minutes = new TreeMap<Long, long[]>();
+
+        private final PriorityQueue<SlowRequest> slowest = new PriorityQueue<SlowRequest>(top + 1, FASTEST_FIRST);
+
+        private long bytes;
+
+        private long records;
+
+        private long skipped;
+
+        private long elapsedNanos;
+
+        private int threads;
+
+        private void merge(final Worker worker) {
+            for (final Map.Entry<String, KeyStats> entry : worker.keys.entrySet()) {
+                final KeyStats stats = keys.get(entry.getKey());
+                if (stats == null) {
+                    keys.put(entry.getKey(), entry.getValue());
+                } else {
+                    stats.durations.add(entry.getValue().durations);
+                }
+            }
+            for (final Map.Entry<Long, long[]> entry : worker.minutes.entrySet()) {
+                final long[] totals = minutes.get(entry.getKey());
+                if (totals == null) {
+                    minutes.put(entry.getKey(), entry.getValue());
+                } else {
+                    totals[0] += entry.getValue()[0];
+                    totals[1] += entry.getValue()[1];
+                }
+            }
+            for (final SlowRequest slow : worker.slowest) {
+                slowest.add(slow);
+                if (slowest.size() > top) {
+                    slowest.poll();
+                }
+            }
+            bytes += worker.bytes;
+            records += worker.records;
+            skipped += worker.skipped;
+        }
+
+        public long getRecords() {
+            return records;
+        }
+
+        public long getSkipped() {
+            return skipped;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Write the report
+         *
+         * @param out where to write it
+         * @throws IOException if it can't be written
+         */
+        public void write(final Writer out) throws IOException {
+            final List<KeyStats> byCount = new ArrayList<KeyStats>(keys.values());
+            Collections.sort(byCount, new Comparator<KeyStats>() {
+                @Override
+                public int compare(final KeyStats first, final KeyStats second) {
+                    final long firstCount = first.durations.getCount();
+                    final long secondCount = second.durations.getCount();
+                    return firstCount > secondCount ? -1 : firstCount == secondCount ? 0 : 1;
+                }
+            });
+            final StringBuilder sb = new StringBuilder();
+            for (final KeyStats stats : byCount) {
+                sb.setLength(0);
+                sb.append("URI|").append(stats.pool).append('|').append(stats.uri).append('|');
+                sb.append(stats.durations.getCount());
+                for (final double percentile : PERCENTILES) {
+                    sb.append('|');
+                    ServicesPerformanceHistograms.appendMillis(sb, stats.durations.getValueAtPercentile(percentile));
+                }
+                sb.append('|');
+                ServicesPerformanceHistograms.appendMillis(sb, stats.durations.getMax());
+                out.write(sb.append('\n').toString());
+            }
+            for (final Map.Entry<Long, long[]> entry : minutes.entrySet()) {
+                final long[] totals = entry.getValue();
+                out.write("THROUGHPUT|"
+                        + ServicesLogTimestamp.format(entry.getKey().longValue() * MILLIS_IN_MINUTE).substring(0,
+                                MINUTE_LENGTH) + '|' + totals[0] + '|' + totals[1] / totals[0] + '\n');
+            }
+            final List<SlowRequest> slow = new ArrayList<SlowRequest>(slowest);
+            Collections.sort(slow, Collections.reverseOrder(FASTEST_FIRST));
+            for (final SlowRequest request : slow) {
+                out.write("SLOW|" + request.durationMillis + '|' + request.record + '\n');
+            }
+            final double seconds = Math.max(elapsedNanos, 1) / NANOS_IN_SECOND;
+            out.write(String.format("PARSE|%d|%d|%d|%.3f|%.1f|%.0f|%d%n", bytes, records, skipped, seconds, bytes
+                    / BYTES_IN_MB / seconds, (records + skipped) / seconds, threads));
+        }
+    }
+
+    public static void main(final String[] args) throws IOException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int top = DEFAULT_TOP;
+        String uriParameters = ServicesUriNormaliser.DEFAULT_URI_PARAMETERS;
+        final List<File> files = new ArrayList<File>();
+        for (int i = 0; i < args.length; i++) {
+            if ("-threads".equals(args[i]) && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if ("-top".equals(args[i]) && i + 1 < args.length) {
+                top = Integer.parseInt(args[++i]);
+            } else if ("-uriParameters".equals(args[i]) && i + 1 < args.length) {
+                uriParameters = args[++i];
+            } else {
+                files.add(new File(args[i]));
+            }
+        }
+        if (files.isEmpty()) {
+            System.err.println("Usage: ServicesPerformanceTraceAnalyser [-threads n] [-top n] "
+                    + "[-uriParameters name,name] traceFile...");
+            System.exit(1);
+        }
+        final Result result = new ServicesPerformanceTraceAnalyser(threads, top, uriParameters).analyse(files);
+        final Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+        try {
+            result.write(out);
+        } finally {
+            out.close();
+        }
+    }
+}
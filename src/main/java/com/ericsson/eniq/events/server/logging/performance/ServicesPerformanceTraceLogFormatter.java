@@ -11,8 +11,11 @@ import java.util.Date;
 import java.util.logging.Formatter;
 import java.util.logging.LogRecord;
 
+import com.ericsson.eniq.events.server.logging.ServicesRequestId;
+
 /**
  * Eniq Services Performance Trace Log file formatter
+ * The request ID, when the record has one, is written as a last req= field, see ServicesRequestId.
  */
 public class ServicesPerformanceTraceLogFormatter extends Formatter {
 
@@ -21,6 +24,26 @@ public class ServicesPerformanceTraceLogFormatter extends Formatter {
      */
     private static final String DELIMITER = "|";
 
+    /**
+     * Positions of the fields in a request line split on the delimiter, the "[#" start being field 0.
+     * The fields after the URI are only there in lines of versions that log them.
+     */
+    static final int POOL_FIELD = 4;
+
+    static final int REQUEST_START_FIELD = 5;
+
+    static final int REQUEST_END_FIELD = 6;
+
+    static final int QUERY_START_FIELD = 7;
+
+    static final int QUERY_END_FIELD = 8;
+
+    static final int URI_FIELD = 10;
+
+    static final int WEIGHT_FIELD = 12;
+
+    static final int GC_PAUSE_FIELD = 16;
+
     /**
      * Default date format
      * Taken from Eniq Engine
@@ -48,6 +71,12 @@ public class ServicesPerformanceTraceLogFormatter extends Formatter {
         res.append(DELIMITER);
         res.append(logRecord.getMessage());
         res.append(DELIMITER);
+        final ServicesRequestId requestId = ServicesRequestId.fromRecord(logRecord);
+        if (requestId != null) {
+            res.append(ServicesRequestId.FIELD_PREFIX);
+            res.append(requestId);
+            res.append(DELIMITER);
+        }
         res.append("#]");
         res.append("\n");
 
@@ -0,0 +1,236 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.logging.performance;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ericsson.eniq.events.server.logging.ServicesMBeans;
+
+/**
+ * Live in-flight gauges per connection pool: the number of requests waiting for a connection and the number
+ * holding one, with the number of connections handed out and the time waited for them.
+ *
+ * Updated by the performance context as requests call beginConnectionAcquire, endConnectionAcquire and
+ * releaseConnection on ServicesPerformanceThreadLocalHolder, and put right when a context is reset, so
+ * a request that does not release its connection does not leave the gauges high. A pool with requests
+ * waiting and every connection active is exhausted, a slow database shows as long query executions with
+ * little waiting.
+ *
+ * Readable over JMX as com.ericsson.eniq.events.server.logging:type=ServicesPoolGauges
+ *
+ * @author echchik
+ */
+public class ServicesPoolGauges implements ServicesPoolGaugesMBean {
+
+    /**
+     * Name the MBean is registered under
+     */
+    public static final String OBJECT_NAME = "com.ericsson.eniq.events.server.logging:type=ServicesPoolGauges";
+
+    /**
+     * Pool name used once the maximum number of pools is reached
+     */
+    public static final String OTHER = "<Other>";
+
+    /**
+     * Maximum number of pools with gauges of their own
+     */
+    public static final int MAX_POOLS = 64;
+
+    private static final ServicesPoolGauges INSTANCE = new ServicesPoolGauges();
+
+    private static final long NANOS_IN_MICRO = 1000L;
+
+    private final ConcurrentMap<String, PoolGauge> pools = new ConcurrentHashMap<String, PoolGauge>();
+
+    ServicesPoolGauges() {
+    }
+
+    /**
+     * @return the gauges the performance contexts update
+     */
+    public static ServicesPoolGauges getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param pool pool name
+     * @return the gauge of the pool, created on first use
+     */
+    public PoolGauge getGauge(final String pool) {
+        String name = pool == null ? "" : pool;
+        PoolGauge gauge = pools.get(name);
+        if (gauge == null) {
+            if (pools.size() >= MAX_POOLS) {
+                // the one extra entry
+                name = OTHER;
+                gauge = pools.get(name);
+                if (gauge != null) {
+                    return gauge;
+                }
+            }
+            final PoolGauge created = new PoolGauge(name);
+            gauge = pools.putIfAbsent(name, created);
+            if (gauge == null) {
+                gauge = created;
+            }
+        }
+        return gauge;
+    }
+
+    /**
+     * One line per pool, sorted by name: pool|active|waiting|acquires|totalWaitMicros|maxWaitMicros
+     */
+    @Override
+    public String[] getPools() {
+        final Map<String, PoolGauge> sorted = new TreeMap<String, PoolGauge>(pools);
+        final List<String> lines = new ArrayList<String>(sorted.size());
+        for (final PoolGauge gauge : sorted.values()) {
+            lines.add(gauge.getName() + '|' + gauge.getActive() + '|' + gauge.getWaiting() + '|'
+                    + gauge.getAcquires() + '|' + gauge.getTotalWaitNanos() / NANOS_IN_MICRO + '|'
+                    + gauge.getMaxWaitNanos() / NANOS_IN_MICRO);
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    /**
+     * @return the gauges of all the pools
+     */
+    Collection<PoolGauge> getGauges() {
+        return pools.values();
+    }
+
+    @Override
+    public int getTotalActive() {
+        int total = 0;
+        for (final PoolGauge gauge : pools.values()) {
+            total += gauge.getActive();
+        }
+        return total;
+    }
+
+    @Override
+    public int getTotalWaiting() {
+        int total = 0;
+        for (final PoolGauge gauge : pools.values()) {
+            total += gauge.getWaiting();
+        }
+        return total;
+    }
+
+    /**
+     * Register with the platform MBean server
+     */
+    public void register() {
+        ServicesMBeans.register(this, OBJECT_NAME);
+    }
+
+    /**
+     * Unregister from the platform MBean server
+     */
+    public void unregister() {
+        ServicesMBeans.unregister(OBJECT_NAME);
+    }
+
+    /**
+     * Gauges of one pool
+     */
+    public static final class PoolGauge {
+
+        private final String name;
+
+        private final AtomicInteger active = new AtomicInteger();
+
+        private final AtomicInteger waiting = new AtomicInteger();
+
+        private final AtomicLong acquires = new AtomicLong();
+
+        private final AtomicLong totalWaitNanos = new AtomicLong();
+
+        private final AtomicLong maxWaitNanos = new AtomicLong();
+
+        PoolGauge(final String name) {
+            this.name = name;
+        }
+
+        /**
+         * A request starts waiting for a connection
+         *
+         * @return number of requests waiting, including this one
+         */
+        int acquireStarted() {
+            return waiting.incrementAndGet();
+        }
+
+        /**
+         * A waiting request got its connection
+         *
+         * @param waitNanos time it waited
+         */
+        void acquired(final long waitNanos) {
+            waiting.decrementAndGet();
+            active.incrementAndGet();
+            acquires.incrementAndGet();
+            totalWaitNanos.addAndGet(waitNanos);
+            long max = maxWaitNanos.get();
+            while (waitNanos > max && !maxWaitNanos.compareAndSet(max, waitNanos)) {
+                max = maxWaitNanos.get();
+            }
+        }
+
+        /**
+         * A waiting request gave up or failed to get a connection
+         */
+        void acquireAbandoned() {
+            waiting.decrementAndGet();
+        }
+
+        /**
+         * A request gave its connection back
+         */
+        void released() {
+            active.decrementAndGet();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return number of connections handed out through the performance context and not yet released
+         */
+        public int getActive() {
+            return active.get();
+        }
+
+        /**
+         * @return number of requests waiting for a connection now
+         */
+        public int getWaiting() {
+            return waiting.get();
+        }
+
+        public long getAcquires() {
+            return acquires.get();
+        }
+
+        public long getTotalWaitNanos() {
+            return totalWaitNanos.get();
+        }
+
+        public long getMaxWaitNanos() {
+            return maxWaitNanos.get();
+        }
+    }
+}
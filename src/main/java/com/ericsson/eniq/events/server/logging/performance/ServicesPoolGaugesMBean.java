@@ -0,0 +1,29 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.logging.performance;
+
+/**
+ * JMX view of the live connection pool gauges, see {@link ServicesPoolGauges}.
+ *
+ * @author echchik
+ */
+public interface ServicesPoolGaugesMBean {
+
+    /**
+     * @return one line per pool: pool|active|waiting|acquires|totalWaitMicros|maxWaitMicros
+     */
+    String[] getPools();
+
+    /**
+     * @return number of connections held by requests over all pools
+     */
+    int getTotalActive();
+
+    /**
+     * @return number of requests waiting for a connection over all pools
+     */
+    int getTotalWaiting();
+}
@@ -0,0 +1,167 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.logging.performance;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads the CPU time and allocated bytes of the current thread for the performance context, so a request
+ * can be told to be CPU bound, allocation heavy or waiting.
+ *
+ * Off by default, switched at runtime with {@link #setEnabled(boolean)}; a context decides whether to capture
+ * when it is reset, so a request is captured completely or not at all. CPU time comes from the platform
+ * ThreadMXBean, allocated bytes from com.sun.management.ThreadMXBean where the JVM has it, a value the JVM
+ * can't measure is {@link ServicePeformanceContextInformation#NOT_SET}.
+ *
+ * The cost of the captures is measured by the contexts and added up here, see {@link #getAverageCaptureNanos()}.
+ *
+ * @author echchik
+ */
+public final class ServicesThreadResources {
+
+    private static final long NOT_SET = ServicePeformanceContextInformation.NOT_SET;
+
+    private static final Logger BACKUP_LOGGER = Logger.getLogger("");
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private static volatile boolean enabled = false;
+
+    private static volatile boolean cpuTimeSupported = false;
+
+    private static volatile boolean allocationSupported = false;
+
+    private static final AtomicLong CAPTURES = new AtomicLong();
+
+    private static final AtomicLong CAPTURE_NANOS = new AtomicLong();
+
+    private ServicesThreadResources() {
+    }
+
+    /**
+     * Turn the capture on or off. Turning it on enables thread CPU time and allocation measurement in the JVM
+     * if it is supported and was off.
+     *
+     * @param enable true to capture the resources of the requests started from now on
+     */
+    public static synchronized void setEnabled(final boolean enable) {
+        if (enable) {
+            cpuTimeSupported = enableCpuTime();
+            allocationSupported = Allocation.enable();
+            if (!cpuTimeSupported && !allocationSupported) {
+                BACKUP_LOGGER.log(Level.WARNING, "Thread CPU time and allocation are not measured by this JVM, "
+                        + "request resources will not be captured");
+            }
+        }
+        enabled = enable && (cpuTimeSupported || allocationSupported);
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return CPU time used by the current thread in nanoseconds, or NOT_SET
+     */
+    public static long currentThreadCpuNanos() {
+        return cpuTimeSupported ? THREADS.getCurrentThreadCpuTime() : NOT_SET;
+    }
+
+    /**
+     * @return bytes allocated by the current thread since it started, or NOT_SET
+     */
+    public static long currentThreadAllocatedBytes() {
+        return allocationSupported ? Allocation.currentThreadAllocatedBytes() : NOT_SET;
+    }
+
+    /**
+     * Add the captures made by a context, called when the context is reset
+     *
+     * @param captures number of captures
+     * @param nanos time they took
+     */
+    static void addCaptureCost(final int captures, final long nanos) {
+        CAPTURES.addAndGet(captures);
+        CAPTURE_NANOS.addAndGet(nanos);
+    }
+
+    /**
+     * @return number of captures made, each reads the CPU time and the allocated bytes once
+     */
+    public static long getCaptureCount() {
+        return CAPTURES.get();
+    }
+
+    /**
+     * @return total time spent capturing in nanoseconds
+     */
+    public static long getCaptureNanos() {
+        return CAPTURE_NANOS.get();
+    }
+
+    /**
+     * @return average cost of a capture in nanoseconds, 0 if none was made
+     */
+    public static long getAverageCaptureNanos() {
+        final long captures = CAPTURES.get();
+        return captures == 0 ? 0 : CAPTURE_NANOS.get() / captures;
+    }
+
+    private static boolean enableCpuTime() {
+        try {
+            if (!THREADS.isCurrentThreadCpuTimeSupported()) {
+                return false;
+            }
+            if (!THREADS.isThreadCpuTimeEnabled()) {
+                THREADS.setThreadCpuTimeEnabled(true);
+            }
+            return true;
+        } catch (final UnsupportedOperationException e) {
+            return false;
+        } catch (final SecurityException e) {
+            BACKUP_LOGGER.log(Level.WARNING, "Not allowed to enable thread CPU time measurement", e);
+            return false;
+        }
+    }
+
+    /**
+     * Kept apart so a JVM without com.sun.management only fails here
+     */
+    private static final class Allocation {
+
+        private static boolean enable() {
+            try {
+                if (!(THREADS instanceof com.sun.management.ThreadMXBean)) {
+                    return false;
+                }
+                final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+                if (!threads.isThreadAllocatedMemorySupported()) {
+                    return false;
+                }
+                if (!threads.isThreadAllocatedMemoryEnabled()) {
+                    threads.setThreadAllocatedMemoryEnabled(true);
+                }
+                return true;
+            } catch (final LinkageError e) {
+                return false;
+            } catch (final UnsupportedOperationException e) {
+                return false;
+            } catch (final SecurityException e) {
+                BACKUP_LOGGER.log(Level.WARNING, "Not allowed to enable thread allocation measurement", e);
+                return false;
+            }
+        }
+
+        private static long currentThreadAllocatedBytes() {
+            return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread()
+                    .getId());
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.logging.performance;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Reduces request URIs to a small set of keys for the performance aggregation.
+ *
+ * - scheme and host are dropped
+ * - path segments that look like values (numbers, dates, IP addresses, IMSIs, ids) become {n} or {id}
+ * - only whitelisted query parameters are kept, sorted by name, and their values become {n} or {id}
+ *   in the same way
+ * e.g. http://host/EniqEventsServices/SUBBI/12345/EVENTS?imsi=240011234567890&display=grid&time=30
+ * with display whitelisted becomes /EniqEventsServices/SUBBI/{n}/EVENTS?display=grid
+ *
+ * Results are cached in a direct-mapped table indexed by the hash of the raw URI, so a repeated URI is
+ * normalised with one lookup and no lock, request threads call this concurrently. A URI whose slot is taken
+ * by another one replaces it. The number of distinct results is capped, once it is reached any new result is
+ * replaced by {@link #OTHER}, so memory does not grow with whatever URIs clients send.
+ *
+ * @author echchik
+ */
+public class ServicesUriNormaliser {
+
+    /**
+     * Result for new keys once the limit is reached
+     */
+    public static final String OTHER = "<Other>";
+
+    public static final String NUMBER_PLACEHOLDER = "{n}";
+
+    public static final String ID_PLACEHOLDER = "{id}";
+
+    /**
+     * Default query parameters kept, comma separated
+     */
+    public static final String DEFAULT_URI_PARAMETERS = "display,type";
+
+    /**
+     * Default maximum number of distinct normalised URIs
+     */
+    public static final int DEFAULT_MAX_KEYS = 500;
+
+    /**
+     * Default number of slots for raw URIs in the cache
+     */
+    public static final int DEFAULT_CACHE_SIZE = 4096;
+
+    /**
+     * Values at least this long with a quarter or more digits are taken to be ids
+     */
+    private static final int MIN_ID_LENGTH = 8;
+
+    /**
+     * Values longer than this are always taken to be ids
+     */
+    private static final int MAX_VALUE_LENGTH = 32;
+
+    private final Set<String> parameterWhitelist;
+
+    private final int maxKeys;
+
+    private final AtomicReferenceArray<CacheEntry> cache;
+
+    private final int cacheMask;
+
+    private final ConcurrentMap<String, Boolean> keys = new ConcurrentHashMap<String, Boolean>();
+
+    /**
+     * @param parameterWhitelist names of the query parameters kept
+     */
+    public ServicesUriNormaliser(final Set<String> parameterWhitelist) {
+        this(parameterWhitelist, DEFAULT_MAX_KEYS, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @param parameterWhitelist names of the query parameters kept
+     * @param maxKeys maximum number of distinct normalised URIs
+     * @param cacheSize number of slots for raw URIs in the cache, rounded up to a power of two
+     */
+    public ServicesUriNormaliser(final Set<String> parameterWhitelist, final int maxKeys, final int cacheSize) {
+        this.parameterWhitelist = new HashSet<String>(parameterWhitelist);
+        this.maxKeys = maxKeys;
+        int slots = 1;
+        while (slots < cacheSize) {
+            slots <<= 1;
+        }
+        this.cache = new AtomicReferenceArray<CacheEntry>(slots);
+        this.cacheMask = slots - 1;
+    }
+
+    /**
+     * A raw URI and its normalised form
+     */
+    private static final class CacheEntry {
+
+        private final String uri;
+
+        private final String result;
+
+        CacheEntry(final String uri, final String result) {
+            this.uri = uri;
+            this.result = result;
+        }
+    }
+
+    /**
+     * @return a normaliser keeping the query parameters set with
+     *         -DEniqEventsServicesPerformanceTrace.uriParameters, so every user keys on the same URIs
+     */
+    public static ServicesUriNormaliser fromSystemProperty() {
+        return new ServicesUriNormaliser(parseWhitelist(System.getProperty(
+                ServicePerformanceTraceLogger.SERVICES_PERFORMANCE_TRACE_LOGGER_NAME + ".uriParameters",
+                DEFAULT_URI_PARAMETERS)));
+    }
+
+    /**
+     * @param commaSeparated parameter names separated by commas, may be null
+     * @return the set of names
+     */
+    public static Set<String> parseWhitelist(final String commaSeparated) {
+        final Set<String> names = new HashSet<String>();
+        if (commaSeparated != null) {
+            for (final String name : commaSeparated.split(",")) {
+                if (name.trim().length() > 0) {
+                    names.add(name.trim());
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @param uri request URI
+     * @return the normalised URI, "" if there was none
+     */
+    public String normalise(final String uri) {
+        if (uri == null || uri.length() == 0) {
+            return "";
+        }
+        final int hash = uri.hashCode();
+        final int slot = (hash ^ hash >>> 16) & cacheMask;
+        final CacheEntry entry = cache.get(slot);
+        if (entry != null && entry.uri.equals(uri)) {
+            return entry.result;
+        }
+        String result = template(uri);
+        if (!keys.containsKey(result)) {
+            if (keys.size() >= maxKeys) {
+                result = OTHER;
+            } else {
+                keys.putIfAbsent(result, Boolean.TRUE);
+            }
+        }
+        cache.set(slot, new CacheEntry(uri, result));
+        return result;
+    }
+
+    /**
+     * @return number of distinct normalised URIs seen, at most the maximum
+     */
+    public int getKeyCount() {
+        return keys.size();
+    }
+
+    String template(final String uri) {
+        int start = uri.indexOf("://");
+        start = start < 0 ? 0 : uri.indexOf('/', start + 3);
+        if (start < 0) {
+            return "/";
+        }
+        final int queryStart = uri.indexOf('?', start);
+        final int pathEnd = queryStart < 0 ? uri.length() : queryStart;
+        final StringBuilder sb = new StringBuilder(pathEnd - start + 16);
+        int segmentStart = start;
+        for (int i = start; i <= pathEnd; i++) {
+            if (i == pathEnd || uri.charAt(i) == '/') {
+                appendValue(sb, uri.substring(segmentStart, i));
+                if (i < pathEnd) {
+                    sb.append('/');
+                }
+                segmentStart = i + 1;
+            }
+        }
+        if (queryStart >= 0 && !parameterWhitelist.isEmpty()) {
+            appendParameters(sb, uri.substring(queryStart + 1));
+        }
+        return sb.toString();
+    }
+
+    private void appendParameters(final StringBuilder sb, final String query) {
+        final Map<String, String> kept = new TreeMap<String, String>();
+        for (final String parameter : query.split("&")) {
+            final int equals = parameter.indexOf('=');
+            final String name = equals < 0 ? parameter : parameter.substring(0, equals);
+            if (parameterWhitelist.contains(name)) {
+                kept.put(name, equals < 0 ? "" : parameter.substring(equals + 1));
+            }
+        }
+        char separator = '?';
+        for (final Map.Entry<String, String> entry : kept.entrySet()) {
+            sb.append(separator).append(entry.getKey()).append('=');
+            appendValue(sb, entry.getValue());
+            separator = '&';
+        }
+    }
+
+    private static void appendValue(final StringBuilder sb, final String value) {
+        final int length = value.length();
+        if (length == 0) {
+            return;
+        }
+        int digits = 0;
+        boolean numeric = true;
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits++;
+            } else if (c != '.' && c != '-' && c != ':' && c != '_') {
+                numeric = false;
+            }
+        }
+        if (numeric && digits > 0) {
+            sb.append(NUMBER_PLACEHOLDER);
+        } else if (length > MAX_VALUE_LENGTH || (length >= MIN_ID_LENGTH && digits * 4 >= length)) {
+            sb.append(ID_PLACEHOLDER);
+        } else {
+            sb.append(value);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.ericsson.eniq.events.server.logging;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ericsson.eniq.events.server.logging.audit.ServicesAuditLogFormatter;
+
+public class LogTimeRangeReaderTest {
+
+    private static final long BASE_TIME = ServicesLogTimestamp.parse("2010-06-01 14:00:00.000");
+
+    private File logDir;
+
+    private ServicesRollingFileHandler handler;
+
+    @Before
+    public void setUp() throws Exception {
+        logDir = new File(System.getProperty("user.workspace"), "timeindex");
+        cleanLogs();
+        assertTrue(logDir.mkdirs());
+        handler = new ServicesRollingFileHandler(new File(logDir, "test.log").getPath(), 0, 3, true, 5);
+        handler.setFormatter(new ServicesAuditLogFormatter());
+    }
+
+    @After
+    public void tearDown() {
+        handler.close();
+        cleanLogs();
+    }
+
+    private void cleanLogs() {
+        final File[] toDelete = logDir.listFiles();
+        if (toDelete != null) {
+            for (final File f : toDelete) {
+                if (!f.delete()) {
+                    System.err.println("Failed to delete " + f.getAbsolutePath());
+                }
+            }
+        }
+        logDir.delete();
+    }
+
+    private void logRecords(final int count, final long stepMillis) {
+        for (int i = 0; i < count; i++) {
+            final LogRecord record = new LogRecord(Level.INFO, "message" + i);
+            record.setMillis(BASE_TIME + i * stepMillis);
+            handler.publish(record);
+        }
+        handler.flush();
+    }
+
+    @Test
+    public void testTimestampParse() {
+        assertEquals(BASE_TIME + 61123, ServicesLogTimestamp.parse("2010-06-01 14:01:01.123"));
+        assertEquals(BASE_TIME + 60000, ServicesLogTimestamp.parse("2010-06-01 14:01"));
+        assertEquals(-1, ServicesLogTimestamp.parse("not a timestamp"));
+    }
+
+    @Test
+    public void testIndexSeeksCloseToStartOfRange() throws Exception {
+        logRecords(600, 100);
+        final File logFile = handler.getFile(0);
+        assertTrue(LogTimeIndex.indexFileFor(logFile).isFile());
+
+        final long offset = LogTimeIndex.findStartOffset(logFile, BASE_TIME + 50000);
+        assertTrue("expected to skip most of the file, offset " + offset, offset > logFile.length() / 2);
+        assertEquals(0, LogTimeIndex.findStartOffset(logFile, BASE_TIME));
+    }
+
+    @Test
+    public void testReadTimeRange() throws Exception {
+        logRecords(600, 100);
+        final List<String> records = new ArrayList<String>();
+        final int found = new LogTimeRangeReader().read(handler.getFile(0), BASE_TIME + 30000, BASE_TIME + 30450,
+                new LogTimeRangeReader.RecordListener() {
+                    @Override
+                    public void onRecord(final long timestamp, final String record) {
+                        records.add(record);
+                    }
+                });
+        assertEquals(5, found);
+        assertTrue(records.get(0).endsWith("|INFO|message300|#]"));
+        assertTrue(records.get(4).endsWith("|INFO|message304|#]"));
+    }
+
+    @Test
+    public void testReadTimeRangeAcrossWindows() throws Exception {
+        logRecords(200, 10);
+        final List<String> records = new ArrayList<String>();
+        final int found = new LogTimeRangeReader(100).read(handler.getFile(0), BASE_TIME, BASE_TIME + 2000,
+                new LogTimeRangeReader.RecordListener() {
+                    @Override
+                    public void onRecord(final long timestamp, final String record) {
+                        records.add(record);
+                    }
+                });
+        assertEquals(200, found);
+        for (int i = 0; i < records.size(); i++) {
+            assertTrue(records.get(i), records.get(i).endsWith("|message" + i + "|#]"));
+        }
+    }
+
+    @Test
+    public void testSecondHandlerOnSameNameGetsUniqueFiles() throws Exception {
+        logRecords(10, 100);
+        final ServicesRollingFileHandler second = new ServicesRollingFileHandler(new File(logDir, "test.log").getPath(),
+                0, 3, true, 5);
+        try {
+            assertEquals(new File(logDir, "test.log.0.1"), second.getFile(0));
+            assertTrue(new File(logDir, "test.log.0.1.lck").isFile());
+            // the first handler's files were not rotated
+            assertTrue(handler.getFile(0).length() > 0);
+            assertFalse(handler.getFile(1).exists());
+        } finally {
+            second.close();
+        }
+        assertFalse(new File(logDir, "test.log.0.1.lck").exists());
+        assertTrue(new File(logDir, "test.log.0.lck").isFile());
+    }
+
+    @Test
+    public void testRotationMovesIndexWithFile() throws Exception {
+        logRecords(10, 100);
+        handler.close();
+        handler = new ServicesRollingFileHandler(new File(logDir, "test.log").getPath(), 0, 3, true, 5);
+        handler.setFormatter(new ServicesAuditLogFormatter());
+
+        assertTrue(handler.getFile(1).isFile());
+        assertTrue(LogTimeIndex.indexFileFor(handler.getFile(1)).isFile());
+        assertEquals(0, handler.getFile(0).length());
+    }
+}
@@ -0,0 +1,208 @@
+package com.ericsson.eniq.events.server.logging;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ServicesFlightRecorderTest {
+
+    private File dir;
+
+    private Level originalLevel;
+
+    @Before
+    public void setUp() {
+        dir = new File(System.getProperty("user.workspace", System.getProperty("java.io.tmpdir")), "flightrecorder");
+        deleteDumps();
+        originalLevel = ServicesLogger.getLevel();
+    }
+
+    @After
+    public void tearDown() {
+        ServicesFlightRecorder.stop();
+        ServicesLogger.setLevel(originalLevel);
+        deleteDumps();
+    }
+
+    private void deleteDumps() {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static List<String> lines(final ServicesFlightRecorder recorder) throws IOException {
+        final StringWriter out = new StringWriter();
+        recorder.write(out);
+        final List<String> lines = new ArrayList<String>();
+        for (final String line : out.toString().split("\n")) {
+            if (line.length() > 0) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    @Test
+    public void testRecordsWrittenInOrder() throws IOException {
+        final ServicesFlightRecorder recorder = new ServicesFlightRecorder(64 * 1024, Level.FINEST, dir);
+        recorder.record(Level.FINEST, "first");
+        recorder.record(Level.SEVERE, "second \u00e9");
+        final List<String> lines = lines(recorder);
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0).endsWith(" FINEST " + ServicesLogger.SERVICES_LOGGER_NAME + " : first"));
+        assertTrue(lines.get(1).endsWith(" SEVERE " + ServicesLogger.SERVICES_LOGGER_NAME + " : second \u00e9"));
+        assertTrue(lines.get(0).contains(" " + Thread.currentThread().getId() + " FINEST"));
+        assertEquals(2, recorder.getRecordCount());
+    }
+
+    @Test
+    public void testRingKeepsLatestRecords() throws IOException {
+        final ServicesFlightRecorder recorder = new ServicesFlightRecorder(4096, Level.FINEST, dir);
+        for (int i = 0; i < 1000; i++) {
+            recorder.record(Level.INFO, "message " + i);
+        }
+        assertTrue(recorder.getRecordedBytes() > recorder.getCapacityBytes());
+        final List<String> lines = lines(recorder);
+        assertTrue(lines.size() > 10 && lines.size() < 1000);
+        final int first = 1000 - lines.size();
+        for (int i = 0; i < lines.size(); i++) {
+            assertTrue(lines.get(i).endsWith(" : message " + (first + i)));
+        }
+    }
+
+    @Test
+    public void testLongMessageCut() throws IOException {
+        final ServicesFlightRecorder recorder = new ServicesFlightRecorder(1024 * 1024, Level.FINEST, dir);
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < ServicesFlightRecorder.MAX_RECORD_BYTES * 2; i++) {
+            sb.append('x');
+        }
+        recorder.record(Level.INFO, sb.toString());
+        recorder.record(Level.INFO, "after");
+        final List<String> lines = lines(recorder);
+        assertEquals(2, lines.size());
+        final int messageLength = lines.get(0).length() - lines.get(0).indexOf(" : ") - 3;
+        assertTrue(messageLength > 0 && messageLength < ServicesFlightRecorder.MAX_RECORD_BYTES);
+        assertTrue(lines.get(1).endsWith(" : after"));
+    }
+
+    @Test
+    public void testConcurrentWriters() throws Exception {
+        final ServicesFlightRecorder recorder = new ServicesFlightRecorder(64 * 1024, Level.FINEST, dir);
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int id = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 5000; i++) {
+                        recorder.record(Level.FINE, "writer " + id + " record " + i);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(20000, recorder.getRecordCount());
+        final List<String> lines = lines(recorder);
+        assertTrue(lines.size() > 100);
+        final int[] last = { -1, -1, -1, -1 };
+        for (final String line : lines) {
+            final String message = line.substring(line.indexOf(" : ") + 3);
+            final String[] parts = message.split(" ");
+            assertEquals(line, 4, parts.length);
+            final int writer = Integer.parseInt(parts[1]);
+            final int record = Integer.parseInt(parts[3]);
+            // each writer's records in the order written
+            assertTrue(line, record > last[writer]);
+            last[writer] = record;
+        }
+    }
+
+    @Test
+    public void testServicesLoggerRecordsEveryLevelAndDumps() throws IOException {
+        ServicesLogger.setLevel(Level.INFO);
+        assertFalse(ServicesLogger.isLevelActive(Level.FINEST));
+        final ServicesFlightRecorder recorder = ServicesFlightRecorder.start(64 * 1024, Level.FINEST, dir);
+        assertSame(recorder, ServicesFlightRecorder.getInstance());
+        assertTrue(ServicesLogger.isLevelActive(Level.FINEST));
+        ServicesLogger.detailed("Test", "method", "recorded detail");
+        final File dump = new File(recorder.dump());
+        assertTrue(dump.exists());
+        assertTrue(dump.getName().startsWith(ServicesFlightRecorder.DUMP_PREFIX));
+        assertTrue(read(dump).contains("recorded detail"));
+        assertEquals(1, recorder.getDumpCount());
+        ServicesFlightRecorder.stop();
+        assertNull(ServicesFlightRecorder.getInstance());
+        assertFalse(ServicesLogger.isLevelActive(Level.FINEST));
+    }
+
+    @Test
+    public void testSevereDumpsOncePerInterval() throws InterruptedException {
+        ServicesLogger.setLevel(Level.OFF);
+        final ServicesFlightRecorder recorder = ServicesFlightRecorder.start(64 * 1024, Level.FINEST, dir);
+        ServicesLogger.error("Test", "method", "first error");
+        ServicesLogger.error("Test", "method", "second error");
+        for (int i = 0; i < 100 && recorder.getDumpCount() == 0; i++) {
+            Thread.sleep(50);
+        }
+        Thread.sleep(100);
+        assertEquals(1, recorder.getDumpCount());
+    }
+
+    @Test
+    public void testOldDumpsPruned() throws IOException {
+        final ServicesFlightRecorder recorder = new ServicesFlightRecorder(64 * 1024, Level.FINEST, dir);
+        recorder.setMaxDumps(2);
+        recorder.record(Level.INFO, "message");
+        assertTrue(dir.mkdirs());
+        for (int i = 0; i < 3; i++) {
+            assertTrue(new File(dir, ServicesFlightRecorder.DUMP_PREFIX + "2010_06_01_14_00_00_00" + i + ".log")
+                    .createNewFile());
+        }
+        final String newest = recorder.dump();
+        final String[] names = dir.list();
+        assertEquals(2, names.length);
+        assertTrue(new File(newest).isFile());
+        assertTrue(new File(dir, ServicesFlightRecorder.DUMP_PREFIX + "2010_06_01_14_00_00_002.log").exists());
+    }
+
+    @Test
+    public void testStopRemovesInstance() {
+        ServicesFlightRecorder.start(64 * 1024, Level.FINEST, dir);
+        ServicesLogger.shutdown();
+        assertNull(ServicesFlightRecorder.getInstance());
+        ServicesLogger.resetHandlers();
+    }
+
+    private static String read(final File file) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        final BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                sb.append(line).append('\n');
+            }
+        } finally {
+            reader.close();
+        }
+        return sb.toString();
+    }
+}
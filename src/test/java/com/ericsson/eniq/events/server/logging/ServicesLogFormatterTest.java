@@ -6,8 +6,10 @@ import org.junit.Test;
 
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
+import java.util.logging.SimpleFormatter;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -37,6 +39,26 @@ public class ServicesLogFormatterTest {
         final String expected = "01.01 01:00:00 10 SEVERE logrecordname : testGeneral\n";
         assertEquals(expected, objUnderTest.format(record));
     }
+    @Test
+    public void testFormatWithRequestId() throws Exception {
+        final ServicesRequestId requestId = ServicesRequestId.next();
+        final LogRecord record = ServicesRequestId.newRecord(Level.INFO, "testRequestId", "logrecordname",
+                requestId);
+        record.setThreadID(10);
+        record.setMillis(999);
+        final String expected = "01.01 01:00:00 10 INFO logrecordname req=" + requestId + " : testRequestId\n";
+        assertEquals(expected, objUnderTest.format(record));
+    }
+
+    @Test
+    public void testRequestIdNotAMessageParameter() throws Exception {
+        final String message = "/X?q={0}&name='ab'";
+        final LogRecord record = ServicesRequestId.newRecord(Level.INFO, message, "logrecordname",
+                ServicesRequestId.next());
+        assertNull(record.getParameters());
+        assertTrue(new SimpleFormatter().format(record).contains(message));
+    }
+
     @Test
     public void testFormatThrowable() throws Exception {
         final LogRecord record = new LogRecord(Level.FINE, "testThrowable");
@@ -0,0 +1,116 @@
+package com.ericsson.eniq.events.server.logging;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ServicesLogJournalTest {
+
+    private File file;
+
+    @Before
+    public void setUp() {
+        file = new File(System.getProperty("user.workspace", System.getProperty("java.io.tmpdir")),
+                "ServicesLogJournalTest.journal");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testUnflushedRecordsRecovered() throws IOException {
+        final ServicesLogJournal journal = new ServicesLogJournal(file, 4096);
+        assertTrue(journal.recover().isEmpty());
+        journal.append("2010_01_01", "flushed\n");
+        journal.markFlushed();
+        journal.append("2010_01_01", "first\n");
+        journal.append("2010_01_02", "second \u00e9\n");
+        assertTrue(journal.getUnflushedBytes() > 0);
+        journal.close();
+
+        final ServicesLogJournal reopened = new ServicesLogJournal(file, 4096);
+        final List<ServicesLogJournal.Entry> entries = reopened.recover();
+        assertEquals(2, entries.size());
+        assertEquals("2010_01_01", entries.get(0).getStamp());
+        assertEquals("first\n", entries.get(0).getText());
+        assertEquals("2010_01_02", entries.get(1).getStamp());
+        assertEquals("second \u00e9\n", entries.get(1).getText());
+        reopened.markFlushed();
+        // journaling carries on after the recovered records
+        reopened.append("2010_01_02", "third\n");
+        reopened.close();
+
+        final ServicesLogJournal third = new ServicesLogJournal(file, 4096);
+        final List<ServicesLogJournal.Entry> remaining = third.recover();
+        assertEquals(1, remaining.size());
+        assertEquals("third\n", remaining.get(0).getText());
+        third.close();
+    }
+
+    @Test
+    public void testWrapAround() throws IOException {
+        final ServicesLogJournal journal = new ServicesLogJournal(file, 1000);
+        for (int i = 0; i < 500; i++) {
+            if (journal.getUnflushedBytes() >= journal.getCapacity() / 2) {
+                journal.markFlushed();
+            }
+            journal.append("2010_01_01", "record " + i + "\n");
+        }
+        journal.close();
+        final ServicesLogJournal reopened = new ServicesLogJournal(file, 1000);
+        final List<ServicesLogJournal.Entry> entries = reopened.recover();
+        assertFalse(entries.isEmpty());
+        final int first = 500 - entries.size();
+        for (int i = 0; i < entries.size(); i++) {
+            assertEquals("record " + (first + i) + "\n", entries.get(i).getText());
+        }
+        reopened.close();
+    }
+
+    @Test
+    public void testExistingCapacityKept() throws IOException {
+        new ServicesLogJournal(file, 2048).close();
+        final ServicesLogJournal reopened = new ServicesLogJournal(file, 8192);
+        assertEquals(2048, reopened.getCapacity());
+        reopened.close();
+    }
+
+    @Test
+    public void testPartlyWrittenRecordIgnored() throws IOException {
+        final ServicesLogJournal journal = new ServicesLogJournal(file, 4096);
+        journal.append("2010_01_01", "whole\n");
+        journal.append("2010_01_01", "torn\n");
+        journal.close();
+        // wipe the leading position of the second record, as if the JVM died before writing it
+        final RandomAccessFile raw = new RandomAccessFile(file, "rw");
+        try {
+            raw.seek(ServicesLogJournal.HEADER_BYTES + 8 + 4 + 10 + "whole\n".length() + 8);
+            raw.writeLong(0);
+        } finally {
+            raw.close();
+        }
+        final ServicesLogJournal reopened = new ServicesLogJournal(file, 4096);
+        final List<ServicesLogJournal.Entry> entries = reopened.recover();
+        assertEquals(1, entries.size());
+        assertEquals("whole\n", entries.get(0).getText());
+        reopened.close();
+    }
+
+    @Test
+    public void testFits() throws IOException {
+        final ServicesLogJournal journal = new ServicesLogJournal(file, 1000);
+        assertTrue(journal.fits("short"));
+        assertFalse(journal.fits(new String(new char[400])));
+        journal.close();
+    }
+}
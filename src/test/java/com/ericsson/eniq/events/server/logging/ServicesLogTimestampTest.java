@@ -0,0 +1,44 @@
+package com.ericsson.eniq.events.server.logging;
+
+import static org.junit.Assert.*;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.junit.Test;
+
+public class ServicesLogTimestampTest {
+
+    private final SimpleDateFormat simpleDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+
+    @Test
+    public void testFormatMatchesSimpleDateFormat() {
+        // steps of just over a second and a half, so minutes are both reused and changed
+        final long start = 1275390000000L;
+        for (long time = start; time < start + 3 * 60 * 60 * 1000L; time += 1537) {
+            assertEquals(simpleDateFormat.format(new Date(time)), ServicesLogTimestamp.format(time));
+        }
+    }
+
+    @Test
+    public void testFormatGoingBackInTime() {
+        final long time = 1275390061001L;
+        assertEquals(simpleDateFormat.format(new Date(time)), ServicesLogTimestamp.format(time));
+        assertEquals(simpleDateFormat.format(new Date(time - 2000)), ServicesLogTimestamp.format(time - 2000));
+        assertEquals(simpleDateFormat.format(new Date(0)), ServicesLogTimestamp.format(0));
+    }
+
+    @Test
+    public void testParseReversesFormat() {
+        final long time = 1275390061001L;
+        assertEquals(time, ServicesLogTimestamp.parse(ServicesLogTimestamp.format(time)));
+    }
+
+    @Test
+    public void testFormatAcrossSummerTimeChange() {
+        // 2010-03-28 00:59:59.999 UTC, one millisecond before the clocks went forward in London
+        final long time = 1269737999999L;
+        assertEquals(simpleDateFormat.format(new Date(time)), ServicesLogTimestamp.format(time));
+        assertEquals(simpleDateFormat.format(new Date(time + 1)), ServicesLogTimestamp.format(time + 1));
+    }
+}
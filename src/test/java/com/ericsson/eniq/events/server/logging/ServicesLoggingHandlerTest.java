@@ -15,6 +15,9 @@ import java.util.logging.Level;
 import java.util.logging.LogRecord;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 public class ServicesLoggingHandlerTest {
@@ -78,12 +81,74 @@ public class ServicesLoggingHandlerTest {
         logFile3.delete();
     }
 
+    @Test
+    public void testJournalRecoversUnflushedRecords() throws Exception {
+        final long millis = 3 * 24 * 60 * 60 * 1000L;
+        final File logFile = new File(homeDir, File.separator + "services" + File.separator + "services" + "-"
+                + new SimpleDateFormat("yyyy_MM_dd").format(new Date(millis)) + ".log");
+        final File journalFile = new File(homeDir, File.separator + "services" + File.separator + "services.journal");
+        logFile.delete();
+        journalFile.delete();
+        final LogRecord record = new LogRecord(Level.INFO, "Journaled message");
+        record.setLoggerName("file.Logger.Log");
+        record.setMillis(millis);
+
+        // killed before its one minute flush, neither flushed nor closed
+        final ServicesLoggingHandler killed = new ServicesLoggingHandler(64 * 1024, 60000);
+        killed.publish(record);
+        assertNull(readFileToString(logFile));
+        killed.abandonJournal();
+
+        final ServicesLoggingHandler restarted = new ServicesLoggingHandler(64 * 1024, 60000);
+        assertEquals(new ServicesLogFormatter().format(record).trim(), readFileToString(logFile));
+        restarted.close();
+
+        // recovered once only
+        final ServicesLoggingHandler again = new ServicesLoggingHandler(64 * 1024, 60000);
+        again.close();
+        assertEquals(1, countLines(logFile));
+        logFile.delete();
+        journalFile.delete();
+    }
+
+    @Test
+    public void testJournalNotSharedByTwoHandlers() throws Exception {
+        final File journalFile = new File(homeDir, File.separator + "services" + File.separator + "services.journal");
+        journalFile.delete();
+        final ServicesLoggingHandler first = new ServicesLoggingHandler(64 * 1024, 60000);
+        final ServicesLoggingHandler second = new ServicesLoggingHandler(64 * 1024, 60000);
+        try {
+            assertTrue(first.isJournaling());
+            assertFalse(second.isJournaling());
+        } finally {
+            second.close();
+            first.close();
+        }
+        final ServicesLoggingHandler next = new ServicesLoggingHandler(64 * 1024, 60000);
+        assertTrue(next.isJournaling());
+        next.close();
+        journalFile.delete();
+    }
+
     @AfterClass
     public static void clean() {
         File logDir = new File(homeDir, "services");
         logDir.delete();
     }
 
+    private int countLines(final File f) throws IOException {
+        final BufferedReader reader = new BufferedReader(new FileReader(f));
+        try {
+            int lines = 0;
+            while (reader.readLine() != null) {
+                lines++;
+            }
+            return lines;
+        } finally {
+            reader.close();
+        }
+    }
+
     private String readFileToString(File f) throws Exception {
 
         BufferedReader reader = null;
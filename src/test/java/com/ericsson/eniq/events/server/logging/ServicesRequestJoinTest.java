@@ -0,0 +1,145 @@
+package com.ericsson.eniq.events.server.logging;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ericsson.eniq.events.server.logging.audit.ServicesAuditLogFormatter;
+import com.ericsson.eniq.events.server.logging.performance.ServicePeformanceContextInformation;
+import com.ericsson.eniq.events.server.logging.performance.ServicesPerformanceBinaryWriter;
+import com.ericsson.eniq.events.server.logging.performance.ServicesPerformanceThreadLocalHolder;
+import com.ericsson.eniq.events.server.logging.performance.ServicesPerformanceTraceLogFormatter;
+
+public class ServicesRequestJoinTest {
+
+    private static final long BASE_TIME = ServicesLogTimestamp.parse("2010-06-01 14:00:00.000");
+
+    private File baseDir;
+
+    @Before
+    public void setUp() {
+        baseDir = new File(System.getProperty("user.workspace", System.getProperty("java.io.tmpdir")),
+                "requestjoin");
+        delete(baseDir);
+    }
+
+    @After
+    public void tearDown() {
+        delete(baseDir);
+    }
+
+    private static void delete(final File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (final File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static LogRecord record(final String message, final long millis, final ServicesRequestId requestId) {
+        final LogRecord record = ServicesRequestId.newRecord(Level.INFO, message, ServicesLogger.SERVICES_LOGGER_NAME,
+                requestId);
+        record.setMillis(millis);
+        record.setThreadID(7);
+        return record;
+    }
+
+    private void write(final String dir, final String name, final String... records) throws IOException {
+        final File parent = new File(baseDir, dir);
+        parent.mkdirs();
+        final FileWriter out = new FileWriter(new File(parent, name));
+        try {
+            for (final String record : records) {
+                out.write(record);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void testRecordsOfRequestMergedInTimeOrder() throws IOException {
+        final ServicesRequestId requestId = ServicesRequestId.next();
+        final ServicesRequestId other = ServicesRequestId.next();
+        final ServicesLogFormatter services = new ServicesLogFormatter();
+        final ServicesAuditLogFormatter audit = new ServicesAuditLogFormatter();
+        final ServicesPerformanceTraceLogFormatter performance = new ServicesPerformanceTraceLogFormatter();
+
+        write("services", "services-2010_06_01.log",
+                services.format(record("first\nsecond line", BASE_TIME + 1000, requestId)),
+                services.format(record("other request", BASE_TIME + 1500, other)),
+                services.format(record("no request", BASE_TIME + 2000, null)),
+                services.format(record("error", BASE_TIME + 5000, requestId)));
+        write("servicesaudit", "servicesaudit-2010_06_01.log.0",
+                audit.format(record("user|uri|query", BASE_TIME + 3000, requestId)),
+                audit.format(record("user|uri|other", BASE_TIME + 3100, other)));
+        write("servicesperformancetrace", "servicesperformancetrace-2010_06_01.log.0",
+                performance.format(record("reader|start|end", BASE_TIME + 6000, requestId)));
+
+        final List<ServicesRequestJoin.Entry> entries = new ServicesRequestJoin(baseDir).join(requestId.toString());
+        assertEquals(4, entries.size());
+        assertEquals("services-2010_06_01.log", entries.get(0).getFile());
+        assertTrue(entries.get(0).getText().endsWith(" : first\nsecond line"));
+        assertEquals(BASE_TIME + 1000, entries.get(0).getMillis());
+        assertEquals("servicesaudit-2010_06_01.log.0", entries.get(1).getFile());
+        assertTrue(entries.get(1).getText().contains("|user|uri|query|req=" + requestId + "|#]"));
+        assertTrue(entries.get(2).getText().endsWith(" : error"));
+        assertEquals("servicesperformancetrace-2010_06_01.log.0", entries.get(3).getFile());
+        assertEquals(BASE_TIME + 6000, entries.get(3).getMillis());
+    }
+
+    @Test
+    public void testBinaryTraceRecordsJoined() throws IOException {
+        ServicesPerformanceThreadLocalHolder.setRequestStartTime(BASE_TIME);
+        ServicesPerformanceThreadLocalHolder.setPoolName("reader");
+        final ServicePeformanceContextInformation context = ServicesPerformanceThreadLocalHolder.getContextInfo();
+        final String requestId = context.getRequestId().toString();
+        final File dir = new File(baseDir, "servicesperformancetrace");
+        dir.mkdirs();
+        final ServicesPerformanceBinaryWriter writer = new ServicesPerformanceBinaryWriter(new File(dir,
+                "servicesperformancetrace-2010_06_01.bin"));
+        try {
+            writer.write(BASE_TIME + 7000, 7, Level.INFO, context);
+            ServicesPerformanceThreadLocalHolder.releaseAllResources();
+            writer.write(BASE_TIME + 8000, 7, Level.INFO, context);
+        } finally {
+            writer.close();
+            ServicesPerformanceThreadLocalHolder.releaseAllResources();
+        }
+
+        final List<ServicesRequestJoin.Entry> entries = new ServicesRequestJoin(baseDir).join(requestId);
+        assertEquals(1, entries.size());
+        assertEquals("servicesperformancetrace-2010_06_01.bin", entries.get(0).getFile());
+        assertEquals(BASE_TIME + 7000, entries.get(0).getMillis());
+        assertTrue(entries.get(0).getText(), entries.get(0).getText().startsWith("[#|2010-06-01 14:00:07.000|"));
+        assertTrue(entries.get(0).getText(), entries.get(0).getText().endsWith("|req=" + requestId + "|#]"));
+    }
+
+    @Test
+    public void testLongerIdNotMatched() throws IOException {
+        write("servicesaudit", "servicesaudit-2010_06_01.log.0", "[#|2010-06-01 14:00:00.000|7|INFO|a|req=ab-12|#]\n");
+        assertTrue(new ServicesRequestJoin(baseDir).join("ab-1").isEmpty());
+        assertEquals(1, new ServicesRequestJoin(baseDir).join("ab-12").size());
+    }
+
+    @Test
+    public void testIdsIncrease() {
+        final String first = ServicesRequestId.next().toString();
+        final String second = ServicesRequestId.next().toString();
+        final String prefix = first.substring(0, first.indexOf('-') + 1);
+        assertTrue(second.startsWith(prefix));
+        assertTrue(Long.parseLong(second.substring(prefix.length()), 36) > Long.parseLong(
+                first.substring(prefix.length()), 36));
+    }
+}
@@ -0,0 +1,215 @@
+package com.ericsson.eniq.events.server.logging;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ServicesRequestTraceBufferTest {
+
+    private final List<LogRecord> published = new ArrayList<LogRecord>();
+
+    private final Handler handler = new Handler() {
+        @Override
+        public void publish(final LogRecord record) {
+            published.add(record);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    private Level originalLevel;
+
+    @Before
+    public void setUp() {
+        originalLevel = ServicesLogger.getLevel();
+        ServicesLogger.setLevel(Level.INFO);
+        ServicesLogger.getRawLogger().addHandler(handler);
+        ServicesRequestTraceBuffer.setEnabled(true, Level.FINEST, 1000, 64 * 1024, 1024 * 1024);
+    }
+
+    @After
+    public void tearDown() {
+        ServicesLogger.endRequest(false, 0);
+        ServicesRequestTraceBuffer.setEnabled(false, Level.FINEST, ServicesRequestTraceBuffer.DEFAULT_THRESHOLD_MILLIS,
+                ServicesRequestTraceBuffer.DEFAULT_MAX_THREAD_BYTES,
+                ServicesRequestTraceBuffer.DEFAULT_MAX_TOTAL_BYTES);
+        ServicesLogger.getRawLogger().removeHandler(handler);
+        ServicesLogger.setLevel(originalLevel);
+    }
+
+    @Test
+    public void testNormalRequestDropsDetails() {
+        ServicesLogger.beginRequest();
+        assertTrue(ServicesLogger.isLevelActive(Level.FINEST));
+        ServicesLogger.detailed("Test", "method", "detail");
+        assertTrue(published.isEmpty());
+        assertTrue(ServicesRequestTraceBuffer.getTotalBytes() > 0);
+        ServicesLogger.endRequest(false, 10);
+        assertTrue(published.isEmpty());
+        assertEquals(0, ServicesRequestTraceBuffer.getTotalBytes());
+        assertFalse(ServicesLogger.isLevelActive(Level.FINEST));
+    }
+
+    @Test
+    public void testFailedRequestFlushesDetails() {
+        ServicesLogger.beginRequest();
+        ServicesLogger.detailed(Level.FINE, "Test", "method", "first");
+        ServicesLogger.detailed(Level.FINEST, "Test", "method", "second");
+        ServicesLogger.endRequest(true, 10);
+        assertEquals(3, published.size());
+        assertTrue(published.get(0).getMessage().contains("request failed, 2 records"));
+        assertEquals(Level.FINE, published.get(1).getLevel());
+        assertTrue(published.get(1).getMessage().contains("first"));
+        assertTrue(published.get(2).getMessage().contains("second"));
+        assertEquals(ServicesLogger.SERVICES_LOGGER_NAME, published.get(2).getLoggerName());
+    }
+
+    @Test
+    public void testSlowRequestFlushesDetails() {
+        ServicesLogger.beginRequest();
+        ServicesLogger.detailed("Test", "method", "detail");
+        ServicesLogger.endRequest(false, 1000);
+        assertEquals(2, published.size());
+        assertTrue(published.get(0).getMessage().contains("request took 1000ms"));
+    }
+
+    @Test
+    public void testSevereFlushesDetailsFirst() {
+        ServicesLogger.beginRequest();
+        ServicesLogger.detailed("Test", "method", "detail");
+        ServicesLogger.error("Test", "method", "broken");
+        assertEquals(3, published.size());
+        assertTrue(published.get(0).getMessage().contains("SEVERE logged"));
+        assertTrue(published.get(1).getMessage().contains("detail"));
+        assertEquals(Level.SEVERE, published.get(2).getLevel());
+        // the details after the error are kept for the end of the request
+        ServicesLogger.detailed("Test", "method", "after");
+        ServicesLogger.endRequest(true, 10);
+        assertEquals(5, published.size());
+        assertTrue(published.get(4).getMessage().contains("after"));
+    }
+
+    @Test
+    public void testLoggableRecordsNotBuffered() {
+        ServicesLogger.beginRequest();
+        ServicesLogger.info("Test", "method", "info");
+        assertEquals(1, published.size());
+        ServicesLogger.endRequest(true, 10);
+        assertEquals(1, published.size());
+    }
+
+    @Test
+    public void testNoBufferingOutsideRequest() {
+        ServicesLogger.detailed("Test", "method", "detail");
+        ServicesLogger.endRequest(true, 10);
+        assertTrue(published.isEmpty());
+    }
+
+    @Test
+    public void testBufferLevel() {
+        ServicesRequestTraceBuffer.setEnabled(true, Level.FINE, 1000, 64 * 1024, 1024 * 1024);
+        ServicesLogger.beginRequest();
+        assertFalse(ServicesLogger.isLevelActive(Level.FINEST));
+        ServicesLogger.detailed(Level.FINEST, "Test", "method", "finest");
+        ServicesLogger.detailed(Level.FINE, "Test", "method", "fine");
+        ServicesLogger.endRequest(true, 10);
+        assertEquals(2, published.size());
+        assertTrue(published.get(1).getMessage().contains("fine"));
+    }
+
+    @Test
+    public void testThreadCapDropsOldest() {
+        ServicesRequestTraceBuffer.setEnabled(true, Level.FINEST, 1000, 2048, 1024 * 1024);
+        final long dropped = ServicesRequestTraceBuffer.getDroppedRecords();
+        ServicesLogger.beginRequest();
+        for (int i = 0; i < 100; i++) {
+            ServicesLogger.detailed("Test", "method", "detail " + i);
+        }
+        ServicesLogger.endRequest(true, 10);
+        final int kept = published.size() - 1;
+        assertTrue(kept > 0 && kept < 100);
+        assertEquals(100 - kept, ServicesRequestTraceBuffer.getDroppedRecords() - dropped);
+        assertTrue(published.get(0).getMessage().contains((100 - kept) + " records dropped"));
+        assertTrue(published.get(kept).getMessage().contains("detail 99"));
+        assertEquals(0, ServicesRequestTraceBuffer.getTotalBytes());
+    }
+
+    @Test
+    public void testTotalCapDropsNewest() {
+        ServicesRequestTraceBuffer.setEnabled(true, Level.FINEST, 1000, 64 * 1024, 1024);
+        ServicesLogger.beginRequest();
+        for (int i = 0; i < 100; i++) {
+            ServicesLogger.detailed("Test", "method", "detail " + i);
+        }
+        assertTrue(ServicesRequestTraceBuffer.getTotalBytes() <= 1024);
+        ServicesLogger.endRequest(true, 10);
+        final int kept = published.size() - 1;
+        assertTrue(kept > 0 && kept < 100);
+        assertTrue(published.get(1).getMessage().contains("detail 0"));
+    }
+
+    /**
+     * @return a message making a record of the given size
+     */
+    private static String message(final int size) {
+        final StringBuilder sb = new StringBuilder();
+        while (96 + 2 * sb.length() < size) {
+            sb.append('x');
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testTotalCapRejectionKeepsOlderRecords() throws InterruptedException {
+        ServicesRequestTraceBuffer.setEnabled(true, Level.FINEST, 1000, 1024, 2048);
+        final CountDownLatch filled = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        final Thread other = new Thread() {
+            @Override
+            public void run() {
+                ServicesRequestTraceBuffer.begin();
+                ServicesRequestTraceBuffer.add(new LogRecord(Level.FINEST, message(1050)));
+                filled.countDown();
+                try {
+                    done.await();
+                } catch (final InterruptedException e) {
+                    // end anyway
+                }
+                ServicesRequestTraceBuffer.end(ServicesLogger.getRawLogger(), false, 0);
+            }
+        };
+        other.start();
+        filled.await();
+        try {
+            final long dropped = ServicesRequestTraceBuffer.getDroppedRecords();
+            ServicesRequestTraceBuffer.begin();
+            ServicesRequestTraceBuffer.add(new LogRecord(Level.FINEST, message(150)));
+            ServicesRequestTraceBuffer.add(new LogRecord(Level.FINEST, message(800)));
+            // evicting the 150 byte record would make room in the thread, but the total cap rejects the record
+            ServicesRequestTraceBuffer.add(new LogRecord(Level.FINEST, message(200)));
+            assertEquals(1, ServicesRequestTraceBuffer.getDroppedRecords() - dropped);
+            ServicesRequestTraceBuffer.end(ServicesLogger.getRawLogger(), true, 0);
+            assertEquals(3, published.size());
+            assertTrue(published.get(0).getMessage().contains("2 records, 1 records dropped"));
+        } finally {
+            done.countDown();
+            other.join();
+        }
+        assertEquals(0, ServicesRequestTraceBuffer.getTotalBytes());
+    }
+}
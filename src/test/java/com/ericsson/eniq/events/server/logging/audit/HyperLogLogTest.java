@@ -0,0 +1,35 @@
+package com.ericsson.eniq.events.server.logging.audit;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class HyperLogLogTest {
+
+    @Test
+    public void testSmallCountsAreExactEnough() {
+        final HyperLogLog hll = new HyperLogLog(12);
+        for (int i = 0; i < 100; i++) {
+            hll.add("user" + (i % 25));
+        }
+        assertEquals(25, hll.estimate());
+    }
+
+    @Test
+    public void testLargeCountWithinErrorBounds() {
+        final HyperLogLog hll = new HyperLogLog(12);
+        for (int i = 0; i < 200000; i++) {
+            hll.add("http://host/uri?id=" + i);
+        }
+        final long estimate = hll.estimate();
+        assertTrue("estimate " + estimate, Math.abs(estimate - 200000) < 200000 * 0.05);
+    }
+
+    @Test
+    public void testClear() {
+        final HyperLogLog hll = new HyperLogLog(10);
+        hll.add("a");
+        hll.clear();
+        assertEquals(0, hll.estimate());
+    }
+}
@@ -0,0 +1,70 @@
+package com.ericsson.eniq.events.server.logging.audit;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ServicesAuditAnalyticsTest {
+
+    private static final long MINUTE = 60000L;
+
+    private static final long START = 1000 * MINUTE;
+
+    @Test
+    public void testQueryTemplate() {
+        assertEquals("select * from t where a = ? and b = ?",
+                ServicesAuditAnalytics.queryTemplate("select *\n from t where a = 'x''y' and b = 42"));
+        assertNull(ServicesAuditAnalytics.queryTemplate(null));
+    }
+
+    @Test
+    public void testMinuteWindowRollsOver() {
+        final ServicesAuditAnalytics analytics = new ServicesAuditAnalytics(null);
+        for (int i = 0; i < 30; i++) {
+            analytics.onEvent(new ServicesAuditEvent(START + i, "user" + (i % 3), i % 2 == 0 ? "/uriA" : "/uriB",
+                    "select * from t where id=" + i, 1, 1, false));
+        }
+        final List<String> current = Arrays.asList(analytics.getCurrentMinute());
+        assertTrue(current.toString(), current.contains("distinctUsers=3"));
+        assertTrue(current.toString(), current.contains("distinctUris=2"));
+        assertTrue(current.toString(), current.contains("top query 30 (+/-0) select * from t where id=?"));
+
+        analytics.onTick(START + MINUTE);
+        final List<String> last = Arrays.asList(analytics.getLastMinute());
+        assertTrue(last.toString(), last.contains("top uri 15 (+/-0) /uriA"));
+        assertTrue(Arrays.asList(analytics.getCurrentMinute()).contains("distinctUsers=0"));
+        // the hour is still going
+        assertTrue(Arrays.asList(analytics.getCurrentHour()).contains("distinctUsers=3"));
+    }
+
+    @Test
+    public void testUrisCountedByTemplate() {
+        final ServicesAuditAnalytics analytics = new ServicesAuditAnalytics(null);
+        for (int i = 0; i < 200; i++) {
+            analytics.onEvent(new ServicesAuditEvent(START + i, "user1", "http://host/EniqEventsServices/SUBBI/"
+                    + (240011234567890L + i) + "/EVENTS?imsi=" + i + "&time=30", null, 1, 1, false));
+        }
+        final List<String> current = Arrays.asList(analytics.getCurrentMinute());
+        assertTrue(current.toString(), current.contains("distinctUris=1"));
+        assertTrue(current.toString(), current.contains("top uri 200 (+/-0) /EniqEventsServices/SUBBI/{n}/EVENTS"));
+    }
+
+    @Test
+    public void testTapPassesEventsOffRequestThread() throws Exception {
+        final ServicesAuditTap tap = new ServicesAuditTap(10);
+        final ServicesAuditAnalytics analytics = new ServicesAuditAnalytics(tap);
+        tap.addConsumer(analytics);
+        tap.start();
+        try {
+            assertTrue(tap.offer(new ServicesAuditEvent(System.currentTimeMillis(), "user1", "/uri", null, 1, 1,
+                    false)));
+        } finally {
+            tap.stop();
+        }
+        assertTrue(Arrays.asList(analytics.getCurrentMinute()).contains("distinctUsers=1"));
+        assertEquals(0, analytics.getDroppedEvents());
+    }
+}
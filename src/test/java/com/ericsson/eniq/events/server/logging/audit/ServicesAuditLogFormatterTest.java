@@ -9,6 +9,8 @@ import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.ericsson.eniq.events.server.logging.ServicesRequestId;
+
 public class ServicesAuditLogFormatterTest {
     private static ServicesAuditLogFormatter objUnderTest;
 
@@ -36,6 +38,16 @@ public class ServicesAuditLogFormatterTest {
         assertEquals(expected, objUnderTest.format(record));
     }
 
+    @Test
+    public void testFormatWithRequestId() throws Exception {
+        final ServicesRequestId requestId = ServicesRequestId.next();
+        final LogRecord record = new ServicesRequestId.Record(Level.INFO, "testRequestId", requestId);
+        record.setThreadID(10);
+        record.setMillis(999);
+        final String expected = "[#|1970-01-01 01:00:00.999|10|INFO|testRequestId|req=" + requestId + "|#]\n";
+        assertEquals(expected, objUnderTest.format(record));
+    }
+
     @Test
     public void testFormatThrowable() throws Exception {
         final LogRecord record = new LogRecord(Level.FINE, "testThrowable");
@@ -0,0 +1,149 @@
+package com.ericsson.eniq.events.server.logging.audit;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ericsson.eniq.events.server.logging.LogTimeRangeReader.RecordListener;
+import com.ericsson.eniq.events.server.logging.ServicesLogTimestamp;
+import com.ericsson.eniq.events.server.logging.ServicesRequestId;
+import com.ericsson.eniq.events.server.logging.ServicesRollingFileHandler;
+
+public class ServicesAuditLogSearchTest {
+
+    private static final long BASE_TIME = ServicesLogTimestamp.parse("2010-06-01 14:00:00.000");
+
+    private File logDir;
+
+    private ServicesAuditLogSearch search;
+
+    private final List<String> found = new ArrayList<String>();
+
+    private final RecordListener collector = new RecordListener() {
+        @Override
+        public void onRecord(final long timestamp, final String record) {
+            found.add(record);
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        logDir = new File(System.getProperty("user.workspace"), "auditsearch");
+        cleanLogs();
+        assertTrue(logDir.mkdirs());
+        search = new ServicesAuditLogSearch(new ForkJoinPool(4), 256);
+
+        // two generations of the same day, .1 holds the first 100 records
+        writeRecords("2010_06_01", 0, 100);
+        writeRecords("2010_06_01", 100, 100);
+    }
+
+    @After
+    public void tearDown() {
+        search.shutdown();
+        cleanLogs();
+    }
+
+    private void cleanLogs() {
+        final File[] toDelete = logDir.listFiles();
+        if (toDelete != null) {
+            for (final File f : toDelete) {
+                f.delete();
+            }
+        }
+        logDir.delete();
+    }
+
+    private void writeRecords(final String date, final int first, final int count) throws Exception {
+        writeRecords(date, first, count, null);
+    }
+
+    private void writeRecords(final String date, final int first, final int count, final ServicesRequestId requestId)
+            throws Exception {
+        final ServicesRollingFileHandler handler = new ServicesRollingFileHandler(new File(logDir, "servicesaudit-"
+                + date + ".log").getPath(), 0, 5, true, 10);
+        handler.setFormatter(new ServicesAuditLogFormatter());
+        for (int i = first; i < first + count; i++) {
+            final ServicesAuditRecord record = ServicesAuditRecord.get().user("user" + (i % 3))
+                    .uri("http://host/EniqEventsServices/SUBSCRIBER/EVENT_ANALYSIS?id=" + i)
+                    .query("select * from EVENT_E_LTE_ERR_RAW where x=" + i).rowCount(i).duration(10);
+            final LogRecord logRecord = ServicesRequestId.newRecord(Level.INFO, record.toMessage(), null, requestId);
+            logRecord.setMillis(BASE_TIME + i * 1000L);
+            handler.publish(logRecord);
+        }
+        handler.close();
+    }
+
+    @Test
+    public void testFindLogFilesOldestFirst() {
+        final List<File> files = ServicesAuditLogSearch.findLogFiles(logDir);
+        assertEquals(2, files.size());
+        assertEquals("servicesaudit-2010_06_01.log.1", files.get(0).getName());
+        assertEquals("servicesaudit-2010_06_01.log.0", files.get(1).getName());
+    }
+
+    @Test
+    public void testSearchByUserInTimeOrder() throws Exception {
+        final int count = search.search(logDir, new ServicesAuditSearchCriteria().user("user1"), collector);
+        assertEquals(67, count);
+        assertEquals(67, found.size());
+        for (int i = 0; i < found.size(); i++) {
+            assertTrue(found.get(i), found.get(i).contains("|user1|")
+                    && found.get(i).contains("id=" + (i * 3 + 1) + "|"));
+        }
+    }
+
+    @Test
+    public void testSearchByUriAndTableIgnoringCase() throws Exception {
+        final int count = search.search(logDir, new ServicesAuditSearchCriteria().uriContains("id=15")
+                .table("event_e_lte_err_raw"), collector);
+        assertEquals(11, count); // 15, 150 - 159
+    }
+
+    @Test
+    public void testFileSearchedInWindows() throws Exception {
+        final ServicesAuditLogSearch windowed = new ServicesAuditLogSearch(new ForkJoinPool(4), 256, 1000);
+        try {
+            assertEquals(67, windowed.search(logDir, new ServicesAuditSearchCriteria().user("user1"), collector));
+            for (int i = 0; i < found.size(); i++) {
+                assertTrue(found.get(i), found.get(i).contains("id=" + (i * 3 + 1) + "|"));
+            }
+        } finally {
+            windowed.shutdown();
+        }
+    }
+
+    @Test
+    public void testUserMustMatchWholeField() throws Exception {
+        assertEquals(0, search.search(logDir, new ServicesAuditSearchCriteria().user("user"), collector));
+    }
+
+    @Test
+    public void testSearchByTimeRange() throws Exception {
+        final int count = search.search(logDir, new ServicesAuditSearchCriteria().timeRange(BASE_TIME + 95000,
+                BASE_TIME + 104000), collector);
+        assertEquals(10, count);
+        assertTrue(found.get(0).contains("id=95|"));
+        assertTrue(found.get(9).contains("id=104|"));
+    }
+
+    @Test
+    public void testTypedRecordWithRequestIdMatchedByField() throws Exception {
+        writeRecords("2010_06_02", 200, 3, ServicesRequestId.next());
+        final int count = search.search(logDir, new ServicesAuditSearchCriteria().user("user2").table(
+                "EVENT_E_LTE_ERR_RAW"), collector);
+        // 2, 5 ... 197 and 200
+        assertEquals(67, count);
+        assertTrue(found.get(66).contains("id=200|"));
+        assertTrue(found.get(66).contains("|req="));
+    }
+}
@@ -20,6 +20,8 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.ericsson.eniq.events.server.logging.stubs.DummyUriInfoImplForLogger;
+
 public class ServicesAuditLoggerTest {
     private static final LogRecord LOG_RECORD = new LogRecord(Level.parse("1000"), "Message");
 
@@ -146,6 +148,20 @@ public class ServicesAuditLoggerTest {
         }
     }
 
+    @Test
+    public void testDetailedWithTypedRecord() throws Exception {
+        final Level origLevel = servicesAuditLogger.getLevel();
+        setLevel(Level.FINE);
+        try {
+            servicesAuditLogger.detailed(Level.INFO,
+                    ServicesAuditRecord.get().user("user1").uri("uri1").query("query1").rowCount(5).duration(20));
+            final String logged = getLogContents(".0");
+            assertTrue(logged.contains("|INFO|user1|uri1|query1|<Null>|<Null>|5|20|<Null>|#]"));
+        } finally {
+            setLevel(origLevel);
+        }
+    }
+
     @Test
     public void testLogRollover() throws Exception {
         final Level origLevel = servicesAuditLogger.getLevel();
@@ -209,4 +225,18 @@ public class ServicesAuditLoggerTest {
         }
         throw new FileNotFoundException(f.getAbsolutePath());
     }
+
+    @Test
+    public void testVarargsEventTakesUriAndUser() throws Exception {
+        final DummyUriInfoImplForLogger uriInfo = new DummyUriInfoImplForLogger(null, "http://host/EniqEventsServices",
+                "SUBBI/1");
+        final ServicesAuditEvent event = ServicesAuditLogger.toEvent(1000L, " user1 ", uriInfo, "select 1");
+        assertEquals(1000L, event.getTimestamp());
+        assertEquals("user1", event.getUser());
+        assertEquals(String.valueOf(uriInfo.getRequestUri()), event.getUri());
+        assertNull(event.getQuery());
+        assertEquals(-1L, event.getDuration());
+        assertNull(ServicesAuditLogger.toEvent(1000L, "user1", "uri"));
+        assertNull(ServicesAuditLogger.toEvent(1000L, uriInfo).getUser());
+    }
 }
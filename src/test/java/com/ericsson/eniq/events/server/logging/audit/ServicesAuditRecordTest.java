@@ -0,0 +1,41 @@
+package com.ericsson.eniq.events.server.logging.audit;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class ServicesAuditRecordTest {
+
+    @Test
+    public void testFieldsWrittenInFixedOrder() {
+        final ServicesAuditRecord record = ServicesAuditRecord.get();
+        record.user("user1").uri("http://host/EniqEventsServices/NETWORK/EVENT_ANALYSIS").query(" select * from t ")
+                .timeRange(1000L, 2000L).rowCount(25).duration(340).failed(false);
+        assertEquals("user1|http://host/EniqEventsServices/NETWORK/EVENT_ANALYSIS|select * from t|1000|2000|25|340|OK",
+                record.toMessage());
+    }
+
+    @Test
+    public void testMissingFieldsWrittenAsNull() {
+        final ServicesAuditRecord record = ServicesAuditRecord.get();
+        record.user("user1");
+        assertEquals("user1|<Null>|<Null>|<Null>|<Null>|<Null>|<Null>|<Null>", record.toMessage());
+    }
+
+    @Test
+    public void testDelimitersAndLineBreaksEscaped() {
+        final ServicesAuditRecord record = ServicesAuditRecord.get();
+        record.query("select a|b\nfrom c\\d");
+        assertEquals("<Null>|<Null>|select a\\|b\\nfrom c\\\\d|<Null>|<Null>|<Null>|<Null>|<Null>", record.toMessage());
+    }
+
+    @Test
+    public void testGetReturnsClearedRecordForSameThread() {
+        final ServicesAuditRecord record = ServicesAuditRecord.get();
+        record.user("user1").rowCount(10);
+        final ServicesAuditRecord next = ServicesAuditRecord.get();
+        assertSame(record, next);
+        assertNull(next.getUser());
+        assertEquals(ServicesAuditRecord.NOT_SET, next.getRowCount());
+    }
+}
@@ -0,0 +1,57 @@
+package com.ericsson.eniq.events.server.logging.audit;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ServicesAuditRollupMergerTest {
+
+    private final File file1 = new File(System.getProperty("user.workspace"), "rollup1.log");
+
+    private final File file2 = new File(System.getProperty("user.workspace"), "rollup2.log");
+
+    @After
+    public void tearDown() {
+        file1.delete();
+        file2.delete();
+    }
+
+    @Test
+    public void testMergeToDay() throws IOException {
+        write(file1, "2010-06-01 10:15|uri|/a\\|b|2|1|400|300\n2010-06-01 10:16|uri|/a\\|b|1|0|50|50\n");
+        write(file2, "2010-06-01 23:59|uri|/a\\|b|4|0|100|40\n2010-06-02 00:00|all|*|1|0|5|5\n");
+        final StringWriter out = new StringWriter();
+        final int lines = ServicesAuditRollupMerger.merge(Arrays.asList(file1, file2),
+                ServicesAuditRollupMerger.Granularity.DAY, out);
+        assertEquals(2, lines);
+        assertEquals("2010-06-01|uri|/a\\|b|7|1|550|300\n2010-06-02|all|*|1|0|5|5\n", out.toString());
+    }
+
+    @Test
+    public void testMergedOutputCanBeMergedAgain() throws IOException {
+        write(file1, "2010-06-01|user|u1|3|1|30|20\n2010-06-02|user|u1|2|0|10|5\n");
+        final StringWriter out = new StringWriter();
+        ServicesAuditRollupMerger.merge(Arrays.asList(file1), ServicesAuditRollupMerger.Granularity.MONTH, out);
+        assertEquals("2010-06|user|u1|5|1|40|20\n", out.toString());
+    }
+
+    @Test(expected = IOException.class)
+    public void testBadLineRejected() throws IOException {
+        write(file1, "not a rollup line\n");
+        ServicesAuditRollupMerger.merge(Arrays.asList(file1), ServicesAuditRollupMerger.Granularity.DAY,
+                new StringWriter());
+    }
+
+    private void write(final File file, final String contents) throws IOException {
+        final FileWriter w = new FileWriter(file);
+        w.write(contents);
+        w.close();
+    }
+}
@@ -0,0 +1,107 @@
+package com.ericsson.eniq.events.server.logging.audit;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ServicesAuditRollupTest {
+
+    private static final long MINUTE = 60000L;
+
+    private static final long START = 1000 * MINUTE;
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = new File(System.getProperty("user.workspace"), "rolluptest");
+        deleteDir();
+    }
+
+    @After
+    public void tearDown() {
+        deleteDir();
+    }
+
+    @Test
+    public void testUriTemplate() {
+        final ServicesAuditRollup rollup = new ServicesAuditRollup(dir);
+        assertEquals("/EniqEventsServices/NETWORK/EVENT_ANALYSIS",
+                rollup.uriTemplate("http://host:18080/EniqEventsServices/NETWORK/EVENT_ANALYSIS?time=30"));
+        assertEquals("/EniqEventsServices/SUBBI/{n}/EVENTS?display=grid",
+                rollup.uriTemplate("http://host/EniqEventsServices/SUBBI/12345/EVENTS"
+                        + "?imsi=240011234567890&display=grid"));
+        assertEquals("/a/b", rollup.uriTemplate("/a/b?x=1"));
+        assertEquals("/", rollup.uriTemplate("http://host"));
+        assertNull(rollup.uriTemplate(null));
+    }
+
+    @Test
+    public void testMinuteWrittenWhenOver() throws IOException {
+        final ServicesAuditRollup rollup = new ServicesAuditRollup(dir);
+        rollup.onEvent(new ServicesAuditEvent(START + 10, "user1", "http://h/a?x=1", null, 1, 100, false));
+        rollup.onEvent(new ServicesAuditEvent(START + 20, "user1", "http://h/a?x=2", null, 1, 300, true));
+        rollup.onEvent(new ServicesAuditEvent(START + 30, null, "http://h/b", null, 1, -1, false));
+        rollup.onTick(START + MINUTE);
+        final File file = rollup.getRollupFile(START);
+        assertFalse("minute should not be written before the flush delay", file.exists());
+
+        rollup.onTick(START + 2 * MINUTE);
+        final List<String> lines = readLines(file);
+        assertEquals(5, lines.size());
+        final String minute = lines.get(0).substring(0, 16);
+        assertTrue(lines.contains(minute + "|all|*|3|1|400|300"));
+        assertTrue(lines.contains(minute + "|uri|/a|2|1|400|300"));
+        assertTrue(lines.contains(minute + "|uri|/b|1|0|0|0"));
+        assertTrue(lines.contains(minute + "|user|user1|2|1|400|300"));
+        assertTrue(lines.contains(minute + "|user|<Null>|1|0|0|0"));
+    }
+
+    @Test
+    public void testKeysOverCapCountedAsOther() throws IOException {
+        final ServicesAuditRollup rollup = new ServicesAuditRollup(dir, 2);
+        for (int i = 0; i < 5; i++) {
+            rollup.onEvent(new ServicesAuditEvent(START + i, "user" + i, "/a", null, 1, 1, false));
+        }
+        rollup.close();
+        final List<String> lines = readLines(rollup.getRollupFile(START));
+        int otherCount = 0;
+        for (final String line : lines) {
+            if (line.contains("|user|<Other>|")) {
+                otherCount++;
+                assertTrue(line.endsWith("|3|0|3|1"));
+            }
+        }
+        assertEquals(1, otherCount);
+    }
+
+    private List<String> readLines(final File file) throws IOException {
+        final List<String> lines = new ArrayList<String>();
+        final BufferedReader br = new BufferedReader(new FileReader(file));
+        String line;
+        while ((line = br.readLine()) != null) {
+            lines.add(line);
+        }
+        br.close();
+        return lines;
+    }
+
+    private void deleteDir() {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (final File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,56 @@
+package com.ericsson.eniq.events.server.logging.audit;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class SpaceSavingTopKTest {
+
+    @Test
+    public void testExactCountsWhenUnderCapacity() {
+        final SpaceSavingTopK sketch = new SpaceSavingTopK(10);
+        for (int i = 0; i < 5; i++) {
+            for (int j = 0; j <= i; j++) {
+                sketch.add("key" + i);
+            }
+        }
+        final SpaceSavingTopK.Entry[] top = sketch.top(3);
+        assertEquals(3, top.length);
+        assertEquals("key4", top[0].getKey());
+        assertEquals(5, top[0].getCount());
+        assertEquals(0, top[0].getError());
+        assertEquals("key3", top[1].getKey());
+        assertEquals("key2", top[2].getKey());
+        assertEquals(15, sketch.getTotal());
+    }
+
+    @Test
+    public void testHeavyHittersSurviveManyRareKeys() {
+        final SpaceSavingTopK sketch = new SpaceSavingTopK(20);
+        for (int i = 0; i < 10000; i++) {
+            sketch.add("rare" + i);
+            if (i % 4 == 0) {
+                sketch.add("heavy1");
+            }
+            if (i % 10 == 0) {
+                sketch.add("heavy2");
+            }
+        }
+        final SpaceSavingTopK.Entry[] top = sketch.top(2);
+        assertEquals("heavy1", top[0].getKey());
+        assertTrue(top[0].getCount() >= 2500);
+        assertTrue(top[0].getCount() - top[0].getError() <= 2500);
+        assertEquals("heavy2", top[1].getKey());
+    }
+
+    @Test
+    public void testClear() {
+        final SpaceSavingTopK sketch = new SpaceSavingTopK(2);
+        sketch.add("a");
+        sketch.add("b");
+        sketch.add("c");
+        sketch.clear();
+        assertEquals(0, sketch.top(5).length);
+        assertEquals(0, sketch.getTotal());
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.logging.performance;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBucketsCoverEveryValue() {
+        long expectedLow = 0;
+        for (int i = 0; i < LatencyHistogram.BUCKET_COUNT; i++) {
+            assertEquals(i, LatencyHistogram.bucketIndex(expectedLow));
+            final long high = LatencyHistogram.highestValueInBucket(i);
+            assertEquals(i, LatencyHistogram.bucketIndex(high));
+            expectedLow = high + 1;
+        }
+        assertEquals(LatencyHistogram.MAX_VALUE + 1, expectedLow);
+    }
+
+    @Test
+    public void testPercentilesWithinRelativeError() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 100000; value++) {
+            histogram.record(value);
+        }
+        assertEquals(100000, histogram.getCount());
+        assertEquals(100000, histogram.getMax());
+        assertWithin(50000, histogram.getValueAtPercentile(50));
+        assertWithin(99000, histogram.getValueAtPercentile(99));
+        assertWithin(99900, histogram.getValueAtPercentile(99.9));
+        assertEquals(100000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void testLargeAndNegativeValues() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(1, histogram.getCount());
+        assertEquals(LatencyHistogram.MAX_VALUE, histogram.getMax());
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getValueAtPercentile(99));
+    }
+
+    @Test
+    public void testWeightedRecordAndMerge() {
+        final LatencyHistogram first = new LatencyHistogram();
+        first.record(100, 3);
+        final LatencyHistogram second = new LatencyHistogram();
+        second.record(5000);
+        first.add(second);
+        assertEquals(4, first.getCount());
+        assertEquals(5000, first.getMax());
+        assertWithin(100, first.getValueAtPercentile(75));
+        assertWithin(5000, first.getValueAtPercentile(100));
+    }
+
+    private static void assertWithin(final long expected, final long actual) {
+        assertTrue(expected + " vs " + actual, Math.abs(actual - expected) <= expected * 0.04);
+    }
+}
@@ -7,6 +7,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.StringWriter;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
@@ -184,6 +185,122 @@ public class ServicePerformanceTraceLoggerTest {
         }
     }
 
+    @Test
+    public void testHistogramSummaryWithRequestLinesOff() throws Exception {
+        final Level origLevel = servicePerformanceTraceLogger.getLevel();
+        setLevel(Level.FINE);
+        servicePerformanceTraceLogger.startHistograms(3600);
+        servicePerformanceTraceLogger.setRequestLinesEnabled(false);
+        try {
+            final ServicePeformanceContextInformation context = new ServicePeformanceContextInformation();
+            context.setPoolName("reader");
+            context.setUriInfo("http://host:8080/EniqEventsServices/NETWORK/EVENT_ANALYSIS?time=30");
+            context.setRequestStartTime(System.currentTimeMillis());
+            context.setRequestEndTime(System.currentTimeMillis());
+            servicePerformanceTraceLogger.detailed(Level.INFO, context);
+            servicePerformanceTraceLogger.writeSummaries();
+
+            final String logged = getLogContents(".0");
+            assertFalse(logged.contains(context.getContextInformation(DELIMITER)));
+            assertTrue(logged, logged.contains("|SUMMARY|"));
+            assertTrue(logged, logged.contains("|reader|/EniqEventsServices/NETWORK/EVENT_ANALYSIS|request|1|"));
+        } finally {
+            servicePerformanceTraceLogger.setRequestLinesEnabled(true);
+            servicePerformanceTraceLogger.stopHistograms();
+            setLevel(origLevel);
+        }
+    }
+
+    @Test
+    public void testGcPauseTimeLogged() throws Exception {
+        final Level origLevel = servicePerformanceTraceLogger.getLevel();
+        setLevel(Level.FINE);
+        servicePerformanceTraceLogger.startGcPauses();
+        try {
+            final ServicePeformanceContextInformation context = new ServicePeformanceContextInformation();
+            context.setPoolName("reader");
+            context.setUriInfo("/EniqEventsServices/NETWORK/EVENT_ANALYSIS");
+            context.setRequestStartTime(System.currentTimeMillis());
+            context.setRequestEndTime(System.currentTimeMillis());
+            servicePerformanceTraceLogger.detailed(Level.INFO, context);
+            servicePerformanceTraceLogger.writeSummaries();
+
+            assertTrue(context.getGcPauseMillis() >= 0);
+            final String logged = getLogContents(".0");
+            assertTrue(logged, logged.contains("|GC|"));
+        } finally {
+            servicePerformanceTraceLogger.stopGcPauses();
+            servicePerformanceTraceLogger.stopHistograms();
+            setLevel(origLevel);
+        }
+    }
+
+    @Test
+    public void testMetricsFileWritten() throws Exception {
+        final File metricsFile = new File(System.getProperty("user.workspace"), "servicesperformance.prom");
+        servicePerformanceTraceLogger.startMetrics(metricsFile, 3600);
+        try {
+            final ServicePeformanceContextInformation context = new ServicePeformanceContextInformation();
+            context.setPoolName("reader");
+            context.setUriInfo("/EniqEventsServices/NETWORK/EVENT_ANALYSIS");
+            context.setRequestStartTime(System.currentTimeMillis());
+            context.setRequestEndTime(System.currentTimeMillis());
+            servicePerformanceTraceLogger.detailed(Level.INFO, context);
+
+            final StringWriter out = new StringWriter();
+            servicePerformanceTraceLogger.getMetrics().write(out);
+            assertTrue(out.toString(), out.toString().contains(
+                    "eniq_events_services_requests_total{pool=\"reader\",uri=\"/EniqEventsServices/NETWORK/"
+                            + "EVENT_ANALYSIS\"} 1"));
+        } finally {
+            servicePerformanceTraceLogger.stopMetrics();
+            metricsFile.delete();
+        }
+    }
+
+    @Test
+    public void testConcurrentRequestsAllRecorded() throws Exception {
+        final File metricsFile = new File(System.getProperty("user.workspace"), "servicesperformance.prom");
+        servicePerformanceTraceLogger.startMetrics(metricsFile, 3600);
+        servicePerformanceTraceLogger.startHistograms(3600);
+        try {
+            final Thread[] threads = new Thread[4];
+            for (int t = 0; t < threads.length; t++) {
+                threads[t] = new Thread() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < 1000; i++) {
+                            final ServicePeformanceContextInformation context =
+                                    new ServicePeformanceContextInformation();
+                            context.setPoolName("reader");
+                            context.setUriInfo("/EniqEventsServices/SUBBI/" + i + "/EVENTS");
+                            context.setRequestStartTime(System.currentTimeMillis());
+                            context.setRequestEndTime(System.currentTimeMillis());
+                            servicePerformanceTraceLogger.detailed(Level.INFO, context);
+                        }
+                    }
+                };
+                threads[t].start();
+            }
+            for (final Thread thread : threads) {
+                thread.join();
+            }
+
+            final StringWriter out = new StringWriter();
+            servicePerformanceTraceLogger.getMetrics().write(out);
+            assertTrue(out.toString(), out.toString().contains(
+                    "eniq_events_services_requests_total{pool=\"reader\",uri=\"/EniqEventsServices/SUBBI/{n}/"
+                            + "EVENTS\"} 4000"));
+            final String summary = servicePerformanceTraceLogger.getHistograms().rotate(System.currentTimeMillis())
+                    .get(0);
+            assertTrue(summary, summary.contains("|reader|/EniqEventsServices/SUBBI/{n}/EVENTS|request|4000|"));
+        } finally {
+            servicePerformanceTraceLogger.stopHistograms();
+            servicePerformanceTraceLogger.stopMetrics();
+            metricsFile.delete();
+        }
+    }
+
     @Test
     public void testLogFileNotCreatedWhenLoggerIsOff() {
         final Level origLevel = servicePerformanceTraceLogger.getLevel();
@@ -0,0 +1,73 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.logging.performance;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ServicesGcPausesTest {
+
+    @Test
+    public void testOverlap() {
+        final ServicesGcPauses pauses = new ServicesGcPauses();
+        pauses.addPause(100, 110);
+        pauses.addPause(200, 250);
+        pauses.addPause(300, 305);
+        assertEquals(0, pauses.overlapMillis(0, 100));
+        assertEquals(10, pauses.overlapMillis(0, 150));
+        assertEquals(5, pauses.overlapMillis(105, 150));
+        assertEquals(65, pauses.overlapMillis(0, 400));
+        assertEquals(42, pauses.overlapMillis(210, 302));
+        assertEquals(20, pauses.overlapMillis(220, 240));
+        assertEquals(0, pauses.overlapMillis(260, 290));
+        assertEquals(0, pauses.overlapMillis(400, 300));
+    }
+
+    @Test
+    public void testOverlappingPausesCut() {
+        final ServicesGcPauses pauses = new ServicesGcPauses();
+        pauses.addPause(100, 120);
+        pauses.addPause(110, 130);
+        assertEquals(30, pauses.overlapMillis(0, 200));
+        assertEquals(30, pauses.getTotalPauseMillis());
+    }
+
+    @Test
+    public void testOnlyPausesStillInTheRingCount() {
+        final ServicesGcPauses pauses = new ServicesGcPauses(4);
+        for (int i = 0; i < 10; i++) {
+            pauses.addPause(i * 100, i * 100 + 10);
+        }
+        assertEquals(10, pauses.getPauseCount());
+        // the last three pauses, the slot of the oldest is the next one written
+        assertEquals(30, pauses.overlapMillis(0, 1000));
+        assertEquals(20, pauses.overlapMillis(800, 1000));
+    }
+
+    @Test
+    public void testSummary() {
+        final ServicesGcPauses pauses = new ServicesGcPauses();
+        pauses.addPause(100, 110);
+        pauses.recordRequest(50, 10);
+        pauses.recordRequest(20, 0);
+        final String summary = pauses.rotate(System.currentTimeMillis());
+        assertTrue(summary, summary.startsWith(ServicesGcPauses.GC_SUMMARY + "|"));
+        assertTrue(summary, summary.endsWith("|2|1|70|10|1|10"));
+        assertTrue(pauses.rotate(System.currentTimeMillis()).endsWith("|0|0|0|0|0|0"));
+    }
+
+    @Test
+    public void testConcurrentCollectionsAreNotPauses() {
+        assertTrue(ServicesGcPauses.isPause("PS Scavenge"));
+        assertTrue(ServicesGcPauses.isPause("G1 Young Generation"));
+        assertFalse(ServicesGcPauses.isPause("ConcurrentMarkSweep"));
+        assertFalse(ServicesGcPauses.isPause("G1 Concurrent GC"));
+        assertFalse(ServicesGcPauses.isPause("ZGC Cycles"));
+    }
+}
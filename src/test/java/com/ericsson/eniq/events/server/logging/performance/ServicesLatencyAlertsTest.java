@@ -0,0 +1,114 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.logging.performance;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.Notification;
+import javax.management.NotificationListener;
+
+import org.junit.Test;
+
+public class ServicesLatencyAlertsTest {
+
+    private static final long NOW = 1275386400000L;
+
+    private static final long MICROS_IN_MILLI = 1000L;
+
+    private final ServicesLatencyAlerts alerts = new ServicesLatencyAlerts(2.0);
+
+    private void warmUp() {
+        for (int i = 0; i < ServicesLatencyAlerts.WARM_UP_INTERVALS; i++) {
+            assertNull(alerts.interval(NOW, "dwhrep", "/A", 100, (100 + i % 3) * MICROS_IN_MILLI));
+        }
+    }
+
+    @Test
+    public void testAlertOnceWhileOver() {
+        final List<Notification> notifications = new ArrayList<Notification>();
+        alerts.addNotificationListener(new NotificationListener() {
+            @Override
+            public void handleNotification(final Notification notification, final Object handback) {
+                notifications.add(notification);
+            }
+        }, null, null);
+        warmUp();
+        assertNull(alerts.interval(NOW, "dwhrep", "/A", 100, 150 * MICROS_IN_MILLI));
+        final String alert = alerts.interval(NOW, "dwhrep", "/A", 100, 400 * MICROS_IN_MILLI);
+        assertTrue(alert, alert.startsWith(ServicesLatencyAlerts.ALERT + "|"));
+        assertTrue(alert, alert.contains("|dwhrep|/A|400.000|"));
+        assertTrue(alert, alert.endsWith("|100"));
+        assertEquals(1, notifications.size());
+        assertEquals(ServicesLatencyAlerts.ALERT_NOTIFICATION, notifications.get(0).getType());
+        assertEquals(alert, notifications.get(0).getMessage());
+
+        // still over, no new alert until it has been back under
+        assertNull(alerts.interval(NOW, "dwhrep", "/A", 100, 450 * MICROS_IN_MILLI));
+        assertNull(alerts.interval(NOW, "dwhrep", "/A", 100, 100 * MICROS_IN_MILLI));
+        assertTrue(alerts.interval(NOW, "dwhrep", "/A", 100, 900 * MICROS_IN_MILLI) != null);
+        assertEquals(2, alerts.getAlertCount());
+        assertEquals(2, notifications.size());
+    }
+
+    @Test
+    public void testQuietIntervalsAndKeysLeftOut() {
+        warmUp();
+        assertNull(alerts.interval(NOW, "dwhrep", "/A", ServicesLatencyAlerts.MIN_REQUESTS - 1,
+                1000 * MICROS_IN_MILLI));
+        // a new key has no baseline yet
+        assertNull(alerts.interval(NOW, "dwhrep", "/B", 100, 1000 * MICROS_IN_MILLI));
+        final String[] baselines = alerts.getBaselines();
+        assertEquals(2, baselines.length);
+        assertTrue(baselines[0], baselines[0].startsWith("dwhrep|/A|10|"));
+        assertTrue(baselines[1], baselines[1].equals("dwhrep|/B|1|1000.000|0.000|false"));
+    }
+
+    @Test
+    public void testIdleKeysExpireAndFullTableCounted() {
+        for (int i = 0; i < ServicesLatencyAlerts.MAX_KEYS; i++) {
+            alerts.interval(NOW, "dwhrep", "/" + i, 100, 100 * MICROS_IN_MILLI);
+        }
+        assertNull(alerts.interval(NOW, "dwhrep", "/new", 100, 100 * MICROS_IN_MILLI));
+        assertEquals(1, alerts.getUnjudgedCount());
+        assertEquals(ServicesLatencyAlerts.MAX_KEYS, alerts.getBaselines().length);
+        // only /0 keeps getting requests, the other keys go idle
+        for (int interval = 1; interval <= ServicesLatencyAlerts.IDLE_INTERVALS + 1; interval++) {
+            alerts.interval(NOW + interval, "dwhrep", "/0", ServicesLatencyAlerts.MIN_REQUESTS - 1,
+                    100 * MICROS_IN_MILLI);
+        }
+        assertEquals(1, alerts.getBaselines().length);
+        alerts.interval(NOW + ServicesLatencyAlerts.IDLE_INTERVALS + 2, "dwhrep", "/new", 100, 100 * MICROS_IN_MILLI);
+        assertEquals(2, alerts.getBaselines().length);
+        assertEquals(1, alerts.getUnjudgedCount());
+    }
+
+    @Test
+    public void testAlertLinesFollowTheSummaries() {
+        final ServicesPerformanceHistograms histograms = new ServicesPerformanceHistograms();
+        histograms.setAlerts(alerts);
+        for (int interval = 0; interval <= ServicesLatencyAlerts.WARM_UP_INTERVALS; interval++) {
+            final long millis = interval < ServicesLatencyAlerts.WARM_UP_INTERVALS ? 100 : 1000;
+            for (int i = 0; i < ServicesLatencyAlerts.MIN_REQUESTS; i++) {
+                final ServicePeformanceContextInformation context = new ServicePeformanceContextInformation();
+                context.restoreTimes(NOW, NOW + millis, ServicePeformanceContextInformation.NOT_SET,
+                        ServicePeformanceContextInformation.NOT_SET);
+                histograms.record("dwhrep", "/A", context);
+            }
+            final List<String> lines = histograms.rotate(NOW + interval);
+            final String last = lines.get(lines.size() - 1);
+            if (interval < ServicesLatencyAlerts.WARM_UP_INTERVALS) {
+                assertTrue(last, last.startsWith(ServicesPerformanceHistograms.SUMMARY));
+            } else {
+                assertTrue(last, last.startsWith(ServicesLatencyAlerts.ALERT + "|"));
+            }
+        }
+    }
+}
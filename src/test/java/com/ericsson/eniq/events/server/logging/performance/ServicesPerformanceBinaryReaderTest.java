@@ -0,0 +1,180 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.logging.performance;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.ericsson.eniq.events.server.logging.ServicesRequestId;
+
+public class ServicesPerformanceBinaryReaderTest {
+
+    private static final long NOW = 1275386400000L;
+
+    private final File file = new File(System.getProperty("user.workspace"), "trace.bin");
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testRecordsReadBackAsWritten() throws IOException {
+        final ServicePeformanceContextInformation full = fullContext();
+        final ServicePeformanceContextInformation empty = new ServicePeformanceContextInformation();
+        final ServicesPerformanceBinaryWriter writer = new ServicesPerformanceBinaryWriter(file);
+        writer.write(NOW, 12, Level.INFO, full);
+        writer.write(NOW + 5, 13, Level.FINE, empty);
+        writer.write(NOW + 9, 12, Level.INFO, full);
+        writer.close();
+
+        final ServicesPerformanceBinaryReader reader = new ServicesPerformanceBinaryReader(new FileInputStream(file));
+        final ServicePeformanceContextInformation read = new ServicePeformanceContextInformation();
+        try {
+            assertTrue(reader.next(read));
+            assertEquals(full.getContextInformation("|"), read.getContextInformation("|"));
+            assertEquals(NOW, reader.getLogTime());
+            assertEquals(12, reader.getThreadId());
+            assertEquals(Level.INFO, reader.getLevel());
+            assertTrue(reader.next(read));
+            assertEquals(empty.getContextInformation("|"), read.getContextInformation("|"));
+            assertEquals(Level.FINE, reader.getLevel());
+            assertTrue(reader.next(read));
+            assertEquals(full.getContextInformation("|"), read.getContextInformation("|"));
+            assertEquals(NOW + 9, reader.getLogTime());
+            assertFalse(reader.next(read));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testRequestIdReadBack() throws IOException {
+        final ServicePeformanceContextInformation full = fullContext();
+        final ServicesRequestId requestId = ServicesRequestId.next();
+        full.setRequestId(requestId);
+        final ServicesPerformanceBinaryWriter writer = new ServicesPerformanceBinaryWriter(file);
+        writer.write(NOW, 12, Level.INFO, full);
+        writer.write(NOW + 1, 12, Level.INFO, new ServicePeformanceContextInformation());
+        writer.close();
+
+        final ServicesPerformanceBinaryReader reader = new ServicesPerformanceBinaryReader(new FileInputStream(file));
+        final ServicePeformanceContextInformation read = new ServicePeformanceContextInformation();
+        try {
+            assertTrue(reader.next(read));
+            assertEquals(requestId.toString(), String.valueOf(read.getRequestId()));
+            assertEquals(requestId.toString(), String.valueOf(ServicesRequestId.fromRecord(reader.toLogRecord(read))));
+            assertTrue(reader.next(read));
+            assertNull(read.getRequestId());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testTextAndCsv() throws IOException {
+        final ServicePeformanceContextInformation full = fullContext();
+        final ServicesPerformanceBinaryWriter writer = new ServicesPerformanceBinaryWriter(file);
+        writer.write(NOW, 12, Level.INFO, full);
+        writer.close();
+
+        final LogRecord record = new LogRecord(Level.INFO, full.getContextInformation("|"));
+        record.setMillis(NOW);
+        record.setThreadID(12);
+        final StringWriter text = new StringWriter();
+        ServicesPerformanceBinaryReader reader = new ServicesPerformanceBinaryReader(new FileInputStream(file));
+        assertEquals(1, reader.writeText(text));
+        reader.close();
+        assertEquals(new ServicesPerformanceTraceLogFormatter().format(record), text.toString());
+
+        final StringWriter csv = new StringWriter();
+        reader = new ServicesPerformanceBinaryReader(new FileInputStream(file));
+        assertEquals(1, reader.writeCsv(csv, true));
+        reader.close();
+        final String[] lines = csv.toString().split("\n");
+        assertEquals(ServicesPerformanceBinaryReader.CSV_HEADER, lines[0]);
+        assertTrue(lines[1], lines[1].startsWith(NOW + ",12,INFO,reader,"));
+        assertTrue(lines[1], lines[1].contains(",\"query:imsi=1500:"));
+    }
+
+    @Test
+    public void testReopenedFileAndFullDictionary() throws IOException {
+        final ServicePeformanceContextInformation full = fullContext();
+        ServicesPerformanceBinaryWriter writer = new ServicesPerformanceBinaryWriter(file, 2);
+        writer.write(NOW, 1, Level.INFO, full);
+        writer.close();
+        writer = new ServicesPerformanceBinaryWriter(file, 2);
+        writer.write(NOW + 1, 1, Level.INFO, full);
+        writer.close();
+
+        final ServicesPerformanceBinaryReader reader = new ServicesPerformanceBinaryReader(new FileInputStream(file));
+        final ServicePeformanceContextInformation read = new ServicePeformanceContextInformation();
+        assertTrue(reader.next(read));
+        assertTrue(reader.next(read));
+        assertEquals(full.getContextInformation("|"), read.getContextInformation("|"));
+        assertEquals(NOW + 1, reader.getLogTime());
+        assertFalse(reader.next(read));
+        reader.close();
+    }
+
+    @Test
+    public void testRecordCutShortEndsTheStream() throws IOException {
+        final ServicesPerformanceBinaryWriter writer = new ServicesPerformanceBinaryWriter(file);
+        writer.write(NOW, 1, Level.INFO, fullContext());
+        writer.write(NOW, 1, Level.INFO, fullContext());
+        writer.close();
+        final RandomAccessFile truncate = new RandomAccessFile(file, "rw");
+        truncate.setLength(file.length() - 3);
+        truncate.close();
+
+        final ServicesPerformanceBinaryReader reader = new ServicesPerformanceBinaryReader(new FileInputStream(file));
+        final ServicePeformanceContextInformation read = new ServicePeformanceContextInformation();
+        assertTrue(reader.next(read));
+        assertFalse(reader.next(read));
+        reader.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void testOtherFilesRejected() throws IOException {
+        final RandomAccessFile other = new RandomAccessFile(file, "rw");
+        other.writeBytes("[#|2010-06-01");
+        other.close();
+        new ServicesPerformanceBinaryReader(new FileInputStream(file));
+    }
+
+    static ServicePeformanceContextInformation fullContext() {
+        final ServicePeformanceContextInformation context = new ServicePeformanceContextInformation();
+        context.setPoolName("reader");
+        context.setUriInfo("http://host:8080/EniqEventsServices/SUBBI/EVENTS?imsi=240011234567890&display=grid");
+        context.setInterval(30);
+        context.restoreTimes(NOW - 1200, NOW - 3, NOW - 900, NOW - 100);
+        context.restorePhase("query:imsi", 0, 1500000, 900000, 40960);
+        context.restorePhase("fetch", 1, 600000, ServicePeformanceContextInformation.NOT_SET, 1024);
+        context.addQueryExecution("reader", ServicePeformanceContextInformation.queryTemplateId("select 1"),
+                120000, 800000, 600000, 200);
+        context.addQueryExecution("reader", 0, ServicePeformanceContextInformation.NOT_SET, 5000,
+                ServicePeformanceContextInformation.NOT_SET, ServicePeformanceContextInformation.NOT_SET);
+        context.restoreDropped(1, 2);
+        context.restoreConnections(2, 40210000, 12, 20);
+        context.restoreResources(1100000, 52000, 640);
+        context.setGcPauseMillis(7);
+        context.setSampleWeight(100);
+        return context;
+    }
+}
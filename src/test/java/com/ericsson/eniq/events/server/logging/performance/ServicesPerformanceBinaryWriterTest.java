@@ -0,0 +1,148 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.logging.performance;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ServicesPerformanceBinaryWriterTest {
+
+    private static final int COST_RECORDS = 20000;
+
+    private final File file = new File(System.getProperty("user.workspace"), "size.bin");
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testSmallerThanText() throws IOException {
+        final ServicePeformanceContextInformation context = ServicesPerformanceBinaryReaderTest.fullContext();
+        final ServicesPerformanceTraceLogFormatter formatter = new ServicesPerformanceTraceLogFormatter();
+        final ServicesPerformanceBinaryWriter writer = new ServicesPerformanceBinaryWriter(file);
+        final int records = 1000;
+        long textSize = 0;
+        for (int i = 0; i < records; i++) {
+            writer.write(1275386400000L + i, 12, Level.INFO, context);
+            final LogRecord record = new LogRecord(Level.INFO, context.getContextInformation("|"));
+            textSize += formatter.format(record).length();
+        }
+        writer.close();
+        assertTrue(file.length() + " bytes against " + textSize, file.length() * 3 < textSize);
+    }
+
+    /**
+     * Times the text path, the line formatted and written through a Writer as the FileHandler does, against the
+     * binary one for the same records, after a warm up of each. Prints the cost per record of both.
+     */
+    @Test
+    public void testWriteCostAgainstText() throws IOException {
+        final ServicePeformanceContextInformation context = ServicesPerformanceBinaryReaderTest.fullContext();
+        final File textFile = new File(System.getProperty("user.workspace"), "cost.log");
+        try {
+            long textNanos = Long.MAX_VALUE;
+            long binaryNanos = Long.MAX_VALUE;
+            for (int run = 0; run < 5; run++) {
+                textNanos = Math.min(textNanos, writeText(textFile, context));
+                binaryNanos = Math.min(binaryNanos, writeBinary(context));
+            }
+            System.out.println("Trace write cost per record: text " + textNanos / COST_RECORDS + "ns, binary "
+                    + binaryNanos / COST_RECORDS + "ns");
+            assertTrue(binaryNanos + "ns against " + textNanos + "ns", binaryNanos < textNanos);
+        } finally {
+            textFile.delete();
+        }
+    }
+
+    private static long writeText(final File textFile, final ServicePeformanceContextInformation context)
+            throws IOException {
+        final ServicesPerformanceTraceLogFormatter formatter = new ServicesPerformanceTraceLogFormatter();
+        final Writer out = new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(textFile)));
+        final long start = System.nanoTime();
+        try {
+            for (int i = 0; i < COST_RECORDS; i++) {
+                final LogRecord record = new LogRecord(Level.INFO, context.getContextInformation("|"));
+                record.setMillis(1275386400000L + i);
+                out.write(formatter.format(record));
+            }
+        } finally {
+            out.close();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private long writeBinary(final ServicePeformanceContextInformation context) throws IOException {
+        final ServicesPerformanceBinaryWriter writer = new ServicesPerformanceBinaryWriter(file);
+        final long start = System.nanoTime();
+        try {
+            for (int i = 0; i < COST_RECORDS; i++) {
+                writer.write(1275386400000L + i, 12, Level.INFO, context);
+            }
+        } finally {
+            writer.close();
+        }
+        return System.nanoTime() - start;
+    }
+
+    @Test
+    public void testLargestBodyWrittenWhole() throws IOException {
+        final ServicePeformanceContextInformation context = ServicesPerformanceBinaryReaderTest.fullContext();
+        // no dictionary, so the records don't refer to the string defined below
+        final ServicesPerformanceBinaryWriter writer = new ServicesPerformanceBinaryWriter(file, 0);
+        writer.write(1275386400000L, 12, Level.INFO, context);
+        // a body bigger than the buffer less a header: id 0, 3 byte length, string
+        final ByteBuffer largest = ByteBuffer.allocate(ServicesPerformanceBinaryWriter.MAX_BODY);
+        ServicesPerformanceBinaryWriter.putVarint(largest, 0);
+        ServicesPerformanceBinaryWriter.putVarint(largest, ServicesPerformanceBinaryWriter.MAX_BODY - 4);
+        largest.position(largest.capacity());
+        writer.writeRecord(ServicesPerformanceBinaryWriter.DICTIONARY, 0, largest);
+        writer.write(1275386400001L, 12, Level.INFO, context);
+        writer.close();
+
+        final ServicesPerformanceBinaryReader reader = new ServicesPerformanceBinaryReader(new FileInputStream(file));
+        try {
+            final ServicePeformanceContextInformation read = new ServicePeformanceContextInformation();
+            assertTrue(reader.next(read));
+            assertTrue(reader.next(read));
+            assertEquals(context.getContextInformation("|"), read.getContextInformation("|"));
+            assertFalse(reader.next(read));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testVarints() {
+        final ByteBuffer buffer = ByteBuffer.allocate(64);
+        final long[] values = { 0, 1, -1, 63, -64, 64, 300, Long.MAX_VALUE, Long.MIN_VALUE };
+        for (final long value : values) {
+            ServicesPerformanceBinaryWriter.putZigZag(buffer, value);
+        }
+        buffer.flip();
+        // zigzag: 1 -> 2, -1 -> 1, one byte each
+        assertEquals(2, buffer.get(1));
+        assertEquals(1, buffer.get(2));
+        for (final long value : values) {
+            assertEquals(value, ServicesPerformanceBinaryReader.getZigZag(buffer));
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.logging.performance;
+
+import static com.ericsson.eniq.events.server.logging.performance.ServicesPerformanceColumnarWriter.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ServicesPerformanceColumnarExportTest {
+
+    private static final long NOW = 1275386400000L;
+
+    private static final String PREFIX = "servicesperformancetrace";
+
+    private final File dir = new File(System.getProperty("user.workspace"), "columnarExport");
+
+    private final ServicesPerformanceColumnarExport export = new ServicesPerformanceColumnarExport(dir, PREFIX,
+            new ServicesUriNormaliser(Collections.singleton("display")));
+
+    private final ServicesPerformanceTraceLogFormatter formatter = new ServicesPerformanceTraceLogFormatter();
+
+    @Before
+    public void setUp() {
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        for (final File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testDayExportedInOrder() throws IOException {
+        // generation 1 is older than generation 0
+        writeLog("2010_06_01.log.1", 0, 1);
+        writeLog("2010_06_01.log.0", 2, 3);
+        final ServicesPerformanceBinaryWriter binary = new ServicesPerformanceBinaryWriter(new File(dir, PREFIX
+                + "-2010_06_01.bin"));
+        binary.write(NOW, 1, Level.INFO, context(4));
+        binary.close();
+        writeLog("2010_06_02.log.0", 10, 11);
+
+        assertEquals(Arrays.asList("2010_06_01", "2010_06_02"), export.pendingDays("2010_06_03"));
+        assertEquals(Arrays.asList("2010_06_01"), export.pendingDays("2010_06_02"));
+        assertEquals(5, export.exportDay("2010_06_01"));
+        assertEquals(Collections.emptyList(), export.pendingDays("2010_06_02"));
+        assertFalse(new File(dir, PREFIX + "-2010_06_01.col.tmp").exists());
+
+        final ServicesPerformanceColumnarReader reader = new ServicesPerformanceColumnarReader(
+                export.columnarFile("2010_06_01"));
+        try {
+            final List<long[]> rows = new ArrayList<long[]>();
+            reader.scan(new ServicesPerformanceColumnarReader.Query().columns(START, DURATION, QUERY, GC_PAUSE,
+                    WEIGHT, URI), new ServicesPerformanceColumnarReader.RowHandler() {
+                @Override
+                public void row(final long[] row) {
+                    rows.add(row.clone());
+                }
+            });
+            assertEquals(5, rows.size());
+            for (int i = 0; i < rows.size(); i++) {
+                assertEquals(NOW + i * 1000L, rows.get(i)[START]);
+                assertEquals(100 + i, rows.get(i)[DURATION]);
+                assertEquals(20, rows.get(i)[QUERY]);
+                assertEquals(i, rows.get(i)[GC_PAUSE]);
+                assertEquals(2, rows.get(i)[WEIGHT]);
+            }
+            assertEquals(Arrays.asList("/EniqEventsServices/NETWORK?display=grid"), reader.getUris());
+        } finally {
+            reader.close();
+        }
+    }
+
+    private ServicePeformanceContextInformation context(final int i) {
+        final ServicePeformanceContextInformation context = new ServicePeformanceContextInformation();
+        context.setPoolName("dwhrep");
+        context.setUriInfo("/EniqEventsServices/NETWORK?display=grid&time=" + i);
+        final long start = NOW + i * 1000L;
+        context.restoreTimes(start, start + 100 + i, start + 10, start + 30);
+        context.setSampleWeight(2);
+        context.setGcPauseMillis(i);
+        return context;
+    }
+
+    private void writeLog(final String suffix, final int first, final int last) throws IOException {
+        final Writer out = new FileWriter(new File(dir, PREFIX + "-" + suffix));
+        try {
+            out.write(formatter.format(new LogRecord(Level.INFO, ServicesPerformanceHistograms.SUMMARY
+                    + "|2010-06-01 11:00:00.000|dwhrep|/EniqEventsServices/NETWORK|total|10|1|1|1|1|1")));
+            for (int i = first; i <= last; i++) {
+                out.write(formatter.format(new LogRecord(Level.INFO, context(i).getContextInformation("|"))));
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
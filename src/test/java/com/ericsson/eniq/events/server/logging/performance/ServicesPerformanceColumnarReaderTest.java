@@ -0,0 +1,127 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.logging.performance;
+
+import static com.ericsson.eniq.events.server.logging.performance.ServicesPerformanceColumnarWriter.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ServicesPerformanceColumnarReaderTest {
+
+    private static final long NOW = 1275386400000L;
+
+    private static final long HOUR = 3600 * 1000L;
+
+    private final File file = new File(System.getProperty("user.workspace"), "trace.col");
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    /**
+     * Four hours of requests, one a second, alternating between two URIs, in blocks of 1000 rows
+     */
+    private void writeFile() throws IOException {
+        final ServicesPerformanceColumnarWriter writer = new ServicesPerformanceColumnarWriter(file, 1000);
+        for (int i = 0; i < 4 * 3600; i++) {
+            final String uri = i % 2 == 0 ? "/A" : "/B";
+            writer.add(i < 7200 ? "dwhrep" : "repdb", uri, NOW + i * 1000L, i % 100, i % 2 == 0 ? 5 : -1, -1,
+                    uri.equals("/B") ? 3 : 1);
+        }
+        writer.close();
+    }
+
+    @Test
+    public void testRowsReadBackAsWritten() throws IOException {
+        writeFile();
+        final ServicesPerformanceColumnarReader reader = new ServicesPerformanceColumnarReader(file);
+        try {
+            assertEquals(4 * 3600, reader.getRowCount());
+            assertEquals(15, reader.getBlockCount());
+            final List<long[]> rows = new ArrayList<long[]>();
+            reader.scan(new ServicesPerformanceColumnarReader.Query().columns(START, DURATION, QUERY, GC_PAUSE,
+                    WEIGHT, POOL, URI), new ServicesPerformanceColumnarReader.RowHandler() {
+                @Override
+                public void row(final long[] row) {
+                    rows.add(row.clone());
+                }
+            });
+            assertEquals(4 * 3600, rows.size());
+            final long[] row = rows.get(7201);
+            assertEquals(NOW + 7201000L, row[START]);
+            assertEquals(1, row[DURATION]);
+            assertEquals(-1, row[QUERY]);
+            assertEquals(-1, row[GC_PAUSE]);
+            assertEquals(3, row[WEIGHT]);
+            assertEquals("repdb", reader.getPools().get((int) row[POOL]));
+            assertEquals("/B", reader.getUris().get((int) row[URI]));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testBlocksOutsideTheQuerySkipped() throws IOException {
+        writeFile();
+        final ServicesPerformanceColumnarReader reader = new ServicesPerformanceColumnarReader(file);
+        try {
+            final Map<Long, LatencyHistogram> hours = new TreeMap<Long, LatencyHistogram>();
+            final long matched = reader.durations(new ServicesPerformanceColumnarReader.Query().uri("/B").between(
+                    NOW + HOUR, NOW + 2 * HOUR), HOUR, hours);
+            assertEquals(1800, matched);
+            assertEquals(1, hours.size());
+            assertEquals(3 * 1800, hours.get(Long.valueOf(NOW + HOUR - (NOW + HOUR) % HOUR)).getCount());
+            // hour one is rows 3600 to 7199, in blocks 3 to 7
+            assertEquals(5, reader.getBlocksRead());
+            assertEquals(10, reader.getBlocksSkipped());
+
+            assertEquals(2 * 3600, reader.scan(new ServicesPerformanceColumnarReader.Query().pool("repdb"),
+                    new ServicesPerformanceColumnarReader.RowHandler() {
+                        @Override
+                        public void row(final long[] row) {
+                            assertEquals(1, row[POOL]);
+                        }
+                    }));
+            assertEquals(0, reader.scan(new ServicesPerformanceColumnarReader.Query().uri("/C"), null));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testFileWithoutFooterRejected() throws IOException {
+        writeFile();
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 1);
+        raf.close();
+        try {
+            new ServicesPerformanceColumnarReader(file).close();
+            fail("A cut file must not be read");
+        } catch (final IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("footer"));
+        }
+    }
+
+    @Test
+    public void testColumnarFileSmallerThanText() throws IOException {
+        writeFile();
+        // the text line of a request is well over 100 bytes
+        assertTrue(file.length() + " bytes", file.length() < 4 * 3600 * 20);
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.logging.performance;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ericsson.eniq.events.server.logging.ServicesRequestId;
+
+public class ServicesPerformanceExecutorsTest {
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = ServicesPerformanceExecutors.wrap(Executors.newFixedThreadPool(4));
+        ServicesPerformanceThreadLocalHolder.releaseAllResources();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        ServicesPerformanceThreadLocalHolder.releaseAllResources();
+    }
+
+    @Test
+    public void testWorkerPhasesMergedIntoRequest() throws Exception {
+        ServicesPerformanceThreadLocalHolder.beginPhase("fanout");
+        final List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int i = 0; i < 3; i++) {
+            results.add(executor.submit(ServicesPerformanceExecutors.wrap("query:node" + i, new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    ServicesPerformanceThreadLocalHolder.beginPhase("fetch");
+                    ServicesPerformanceThreadLocalHolder.endPhase();
+                    return 1;
+                }
+            })));
+        }
+        for (final Future<Integer> result : results) {
+            assertEquals(Integer.valueOf(1), result.get());
+        }
+        ServicesPerformanceThreadLocalHolder.endPhase();
+
+        final ServicePeformanceContextInformation context = ServicesPerformanceThreadLocalHolder.getContextInfo();
+        // formatting the line leaves the phases as they are, they are merged when the request ends
+        context.getContextInformation("|");
+        assertEquals(1, context.getPhaseCount());
+        context.mergeChildPhases();
+        assertEquals(7, context.getPhaseCount());
+        assertEquals("fanout", context.getPhaseName(0));
+        int tasks = 0;
+        for (int i = 1; i < context.getPhaseCount(); i++) {
+            if (context.getPhaseName(i).startsWith("query:node")) {
+                assertEquals(1, context.getPhaseDepth(i));
+                assertEquals("fetch", context.getPhaseName(i + 1));
+                assertEquals(2, context.getPhaseDepth(i + 1));
+                tasks++;
+            }
+        }
+        assertEquals(3, tasks);
+    }
+
+    @Test
+    public void testInvokeAnyWrapsOnce() throws Exception {
+        final Callable<Integer> task = new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return 1;
+            }
+        };
+        assertEquals(Integer.valueOf(1), executor.invokeAny(Collections.singletonList(task)));
+
+        final ServicePeformanceContextInformation context = ServicesPerformanceThreadLocalHolder.getContextInfo();
+        context.mergeChildPhases();
+        assertEquals(1, context.getPhaseCount());
+        assertEquals(ServicesPerformanceExecutors.DEFAULT_TASK_NAME, context.getPhaseName(0));
+        assertEquals(0, context.getPhaseDepth(0));
+    }
+
+    @Test
+    public void testInvokeAllKeepsTaskNames() throws Exception {
+        final List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        for (int i = 0; i < 2; i++) {
+            tasks.add(ServicesPerformanceExecutors.wrap("query:node" + i, new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return 1;
+                }
+            }));
+        }
+        for (final Future<Integer> result : executor.invokeAll(tasks)) {
+            assertEquals(Integer.valueOf(1), result.get());
+        }
+
+        final ServicePeformanceContextInformation context = ServicesPerformanceThreadLocalHolder.getContextInfo();
+        context.mergeChildPhases();
+        assertEquals(2, context.getPhaseCount());
+        final List<String> names = Arrays.asList(context.getPhaseName(0), context.getPhaseName(1));
+        assertTrue(names.toString(), names.contains("query:node0") && names.contains("query:node1"));
+        assertEquals(0, context.getPhaseDepth(0));
+        assertEquals(0, context.getPhaseDepth(1));
+    }
+
+    @Test
+    public void testTaskLogsUnderRequestId() throws Exception {
+        ServicesPerformanceThreadLocalHolder.setRequestStartTime(System.currentTimeMillis());
+        final ServicesRequestId requestId = ServicesPerformanceThreadLocalHolder.getRequestId();
+        assertNotNull(requestId);
+        final Future<ServicesRequestId> seen = executor.submit(ServicesPerformanceExecutors.wrap("task",
+                new Callable<ServicesRequestId>() {
+                    @Override
+                    public ServicesRequestId call() {
+                        return ServicesPerformanceThreadLocalHolder.getRequestId();
+                    }
+                }));
+        assertSame(requestId, seen.get());
+        ServicesPerformanceThreadLocalHolder.releaseAllResources();
+        assertNull(ServicesPerformanceThreadLocalHolder.getRequestId());
+    }
+
+    @Test
+    public void testPhasesFromEarlierRequestNotMerged() throws Exception {
+        final Runnable task = ServicesPerformanceExecutors.wrap(new Runnable() {
+            @Override
+            public void run() {
+                // nothing to do
+            }
+        });
+        ServicesPerformanceThreadLocalHolder.releaseAllResources();
+        executor.submit(task).get();
+        final ServicePeformanceContextInformation context = ServicesPerformanceThreadLocalHolder.getContextInfo();
+        context.mergeChildPhases();
+        assertEquals(0, context.getPhaseCount());
+    }
+
+    @Test
+    public void testTaskRunOnRequestThread() {
+        ServicesPerformanceExecutors.wrap("inline", new Runnable() {
+            @Override
+            public void run() {
+                ServicesPerformanceThreadLocalHolder.beginPhase("inner");
+                ServicesPerformanceThreadLocalHolder.endPhase();
+            }
+        }).run();
+        final ServicePeformanceContextInformation context = ServicesPerformanceThreadLocalHolder.getContextInfo();
+        assertEquals(2, context.getPhaseCount());
+        assertEquals(1, context.getPhaseDepth(1));
+    }
+}
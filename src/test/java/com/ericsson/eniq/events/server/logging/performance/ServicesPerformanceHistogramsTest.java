@@ -0,0 +1,114 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.logging.performance;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class ServicesPerformanceHistogramsTest {
+
+    @Test
+    public void testSummaryPerKey() {
+        final ServicesPerformanceHistograms histograms = new ServicesPerformanceHistograms();
+        histograms.record("reader", "/a", context());
+        histograms.record("reader", "/a", context());
+        histograms.record("writer", "/b", context());
+        final List<String> lines = histograms.rotate(System.currentTimeMillis());
+        assertEquals(2, lines.size());
+        for (final String line : lines) {
+            final String[] fields = line.split("\\|");
+            assertEquals(ServicesPerformanceHistograms.SUMMARY, fields[0]);
+            assertEquals(ServicesPerformanceHistograms.REQUEST_METRIC, fields[4]);
+            assertEquals(fields[2].equals("reader") ? "2" : "1", fields[5]);
+            assertEquals(11, fields.length);
+        }
+        assertTrue("keys with no requests are not summarised", histograms.rotate(System.currentTimeMillis()).isEmpty());
+    }
+
+    @Test
+    public void testKeysOverMaximumCountedAsOther() {
+        final ServicesPerformanceHistograms histograms = new ServicesPerformanceHistograms(2);
+        for (int i = 0; i < 5; i++) {
+            histograms.record("reader", "/uri" + i, context());
+        }
+        final List<String> lines = histograms.rotate(System.currentTimeMillis());
+        assertEquals(3, lines.size());
+        boolean other = false;
+        for (final String line : lines) {
+            if (line.contains("|reader|" + ServicesPerformanceHistograms.OTHER_KEY + "|request|3|")) {
+                other = true;
+            }
+        }
+        assertTrue(lines.toString(), other);
+    }
+
+    @Test
+    public void testNoRecordsLostWhileRotating() throws Exception {
+        final ServicesPerformanceHistograms histograms = new ServicesPerformanceHistograms();
+        final int threads = 4;
+        final int perThread = 20000;
+        final CountDownLatch done = new CountDownLatch(threads);
+        final ServicePeformanceContextInformation context = context();
+        for (int t = 0; t < threads; t++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        histograms.record("reader", "/a", context);
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        final AtomicLong total = new AtomicLong();
+        while (done.getCount() > 0) {
+            addCounts(histograms.rotate(System.currentTimeMillis()), total);
+        }
+        addCounts(histograms.rotate(System.currentTimeMillis()), total);
+        assertEquals(threads * perThread, total.get());
+    }
+
+    @Test
+    public void testResourcesSummarised() {
+        final ServicesPerformanceHistograms histograms = new ServicesPerformanceHistograms();
+        ServicesThreadResources.setEnabled(true);
+        try {
+            histograms.record("reader", "/a", context());
+        } finally {
+            ServicesThreadResources.setEnabled(false);
+        }
+        histograms.record("reader", "/a", context());
+        final String lines = histograms.rotate(System.currentTimeMillis()).toString();
+        assertTrue(lines, lines.contains("|reader|/a|request|2|"));
+        assertTrue(lines, lines.contains("|reader|/a|cpu|1|"));
+        assertTrue(lines, lines.contains("|reader|/a|alloc|1|"));
+    }
+
+    @Test
+    public void testAppendMillis() {
+        final StringBuilder sb = new StringBuilder();
+        ServicesPerformanceHistograms.appendMillis(sb, 12005);
+        assertEquals("12.005", sb.toString());
+    }
+
+    private static void addCounts(final List<String> lines, final AtomicLong total) {
+        for (final String line : lines) {
+            total.addAndGet(Long.parseLong(line.split("\\|")[5]));
+        }
+    }
+
+    private static ServicePeformanceContextInformation context() {
+        final ServicePeformanceContextInformation context = new ServicePeformanceContextInformation();
+        context.setRequestStartTime(System.currentTimeMillis());
+        context.setRequestEndTime(System.currentTimeMillis());
+        return context;
+    }
+}
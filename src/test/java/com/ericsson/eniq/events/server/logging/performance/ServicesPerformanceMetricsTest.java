@@ -0,0 +1,124 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.logging.performance;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ServicesPerformanceMetricsTest {
+
+    private static final long NANOS_IN_MILLI = 1000000L;
+
+    private final File file = new File(System.getProperty("user.workspace"), "servicesperformance.prom");
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testCountersAndBuckets() throws IOException {
+        final ServicesPerformanceMetrics metrics = new ServicesPerformanceMetrics();
+        metrics.record("dwhrep", "/A", 3 * NANOS_IN_MILLI, false);
+        metrics.record("dwhrep", "/A", 700 * NANOS_IN_MILLI, true);
+        metrics.record("dwhrep", "/A", 90000 * NANOS_IN_MILLI, false);
+        final String text = write(metrics);
+        final String labels = "{pool=\"dwhrep\",uri=\"/A\"";
+        assertTrue(text, text.contains("# TYPE eniq_events_services_requests counter\n"));
+        assertTrue(text, text.contains("eniq_events_services_requests_total" + labels + "} 3\n"));
+        assertTrue(text, text.contains("eniq_events_services_request_failures_total" + labels + "} 1\n"));
+        assertTrue(text, text.contains("eniq_events_services_request_duration_seconds_bucket" + labels
+                + ",le=\"0.005\"} 1\n"));
+        assertTrue(text, text.contains("eniq_events_services_request_duration_seconds_bucket" + labels
+                + ",le=\"0.5\"} 1\n"));
+        assertTrue(text, text.contains("eniq_events_services_request_duration_seconds_bucket" + labels
+                + ",le=\"1.0\"} 2\n"));
+        assertTrue(text, text.contains("eniq_events_services_request_duration_seconds_bucket" + labels
+                + ",le=\"60.0\"} 2\n"));
+        assertTrue(text, text.contains("eniq_events_services_request_duration_seconds_bucket" + labels
+                + ",le=\"+Inf\"} 3\n"));
+        assertTrue(text, text.contains("eniq_events_services_request_duration_seconds_sum" + labels + "} 90.703\n"));
+        assertTrue(text, text.contains("eniq_events_services_request_duration_seconds_count" + labels + "} 3\n"));
+        assertTrue(text, text.contains("eniq_events_services_requests_in_flight "));
+        assertTrue(text, text.endsWith("# EOF\n"));
+    }
+
+    @Test
+    public void testLabelValuesEscaped() throws IOException {
+        final ServicesPerformanceMetrics metrics = new ServicesPerformanceMetrics();
+        metrics.record("dwhrep", "/A?q=\"x\\y\"", 1, false);
+        assertTrue(write(metrics).contains("uri=\"/A?q=\\\"x\\\\y\\\"\"} 1\n"));
+    }
+
+    @Test
+    public void testSeriesCapped() throws IOException {
+        final ServicesPerformanceMetrics metrics = new ServicesPerformanceMetrics(2);
+        metrics.record("dwhrep", "/A", 1, false);
+        metrics.record("dwhrep", "/B", 1, false);
+        metrics.record("dwhrep", "/C", 1, false);
+        metrics.record("dwhrep", "/D", 1, false);
+        final String text = write(metrics);
+        assertFalse(text, text.contains("/C"));
+        assertTrue(text, text.contains("eniq_events_services_requests_total{pool=\"dwhrep\",uri=\""
+                + ServicesPerformanceHistograms.OTHER_KEY + "\"} 2\n"));
+    }
+
+    @Test
+    public void testRequestsInFlight() {
+        final long before = ServicesPerformanceMetrics.getInFlight();
+        final ServicePeformanceContextInformation first = new ServicePeformanceContextInformation();
+        final ServicePeformanceContextInformation second = new ServicePeformanceContextInformation();
+        first.setRequestStartTime(System.currentTimeMillis());
+        second.setRequestStartTime(System.currentTimeMillis());
+        assertEquals(before + 2, ServicesPerformanceMetrics.getInFlight());
+        first.setRequestEndTime(System.currentTimeMillis());
+        first.reset();
+        assertEquals(before + 1, ServicesPerformanceMetrics.getInFlight());
+        // abandoned without an end time
+        second.reset();
+        assertEquals(before, ServicesPerformanceMetrics.getInFlight());
+    }
+
+    @Test
+    public void testFileReplacedWhole() throws IOException {
+        final ServicesPerformanceMetrics metrics = new ServicesPerformanceMetrics();
+        metrics.record("dwhrep", "/A", 1, false);
+        metrics.writeFile(file);
+        metrics.record("dwhrep", "/A", 1, false);
+        metrics.writeFile(file);
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+        final BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            String last = null;
+            boolean counted = false;
+            while ((line = reader.readLine()) != null) {
+                counted |= line.equals("eniq_events_services_requests_total{pool=\"dwhrep\",uri=\"/A\"} 2");
+                last = line;
+            }
+            assertTrue(counted);
+            assertEquals("# EOF", last);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static String write(final ServicesPerformanceMetrics metrics) throws IOException {
+        final StringWriter out = new StringWriter();
+        metrics.write(out);
+        return out.toString();
+    }
+}
@@ -0,0 +1,70 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.logging.performance;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class ServicesPerformanceSamplerTest {
+
+    @Test
+    public void testFailedAndSlowRequestsKept() throws Exception {
+        final ServicesPerformanceSampler sampler = new ServicesPerformanceSampler(5, Integer.MAX_VALUE, null);
+        final ServicePeformanceContextInformation failed = context(0);
+        failed.setFailed(true);
+        assertEquals(1, sampler.sampleWeight(failed, "/a"));
+        assertEquals(1, sampler.sampleWeight(context(10), "/a"));
+    }
+
+    @Test
+    public void testFastRequestsSampledWithWeight() {
+        final ServicesPerformanceSampler sampler = new ServicesPerformanceSampler(60000, 10, null);
+        long weights = 0;
+        final int requests = 20000;
+        for (int i = 0; i < requests; i++) {
+            final long weight = sampler.sampleWeight(context(0), "/a");
+            assertTrue(weight == ServicesPerformanceSampler.DROP || weight == 10);
+            weights += weight;
+        }
+        assertEquals(requests, sampler.getKeptCount() + sampler.getDroppedCount());
+        assertTrue("weights should add up to about the request count: " + weights,
+                Math.abs(weights - requests) < requests / 10);
+    }
+
+    @Test
+    public void testAdaptiveThresholdFromLastInterval() throws Exception {
+        final ServicesPerformanceHistograms histograms = new ServicesPerformanceHistograms();
+        final ServicesPerformanceSampler sampler = new ServicesPerformanceSampler(60000, Integer.MAX_VALUE,
+                histograms);
+        final ServicePeformanceContextInformation slow = context(20);
+        assertEquals("no p99 yet, fixed threshold applies", ServicesPerformanceSampler.DROP,
+                sampler.sampleWeight(slow, "/a"));
+        histograms.record("reader", "/a", context(1));
+        histograms.rotate(System.currentTimeMillis());
+        assertEquals(1, sampler.sampleWeight(slow, "/a"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidSampleRate() {
+        new ServicesPerformanceSampler(1, 0, null);
+    }
+
+    private static ServicePeformanceContextInformation context(final long sleepMillis) {
+        final ServicePeformanceContextInformation context = new ServicePeformanceContextInformation();
+        context.setPoolName("reader");
+        context.setRequestStartTime(System.currentTimeMillis());
+        if (sleepMillis > 0) {
+            try {
+                Thread.sleep(sleepMillis);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        context.setRequestEndTime(System.currentTimeMillis());
+        return context;
+    }
+}
@@ -6,10 +6,16 @@
 package com.ericsson.eniq.events.server.logging.performance;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static  com.ericsson.eniq.events.server.logging.performance.ServicesPerformanceThreadLocalHolder.*;
 
 import java.io.IOException;
+import java.text.SimpleDateFormat;
 import java.util.Calendar;
+import java.util.Date;
 
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -60,4 +66,190 @@ public class ServicesPerformanceThreadLocalHolderTest {
         assertEquals(contxtInfo.getContextInformation(DELIMITER),getContextInfo().getContextInformation(DELIMITER));
         releaseAllResources();
     }
+
+    @Test
+    public void testContextInformationFormat() {
+        final SimpleDateFormat simpleDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        final String start = simpleDateFormat.format(new Date(reqStrtTime));
+        final String end = simpleDateFormat.format(new Date(reqEndTime));
+        final ServicePeformanceContextInformation info = new ServicePeformanceContextInformation();
+        info.setPoolName(poolName);
+        info.setRequestStartTime(reqStrtTime);
+        info.setRequestEndTime(reqEndTime);
+        info.setUriInfo(url);
+        // the fields after the uri only go up to the last one with a value
+        assertEquals(poolName + "|" + start + "|" + end + "|||0|" + url, info.getContextInformation(DELIMITER));
+        info.setSampleWeight(3);
+        assertEquals(poolName + "|" + start + "|" + end + "|||0|" + url + "||3", info.getContextInformation(DELIMITER));
+        assertEquals(ServicePeformanceContextInformation.NOT_SET, info.getQueryExecutionDurationNanos());
+        assertTrue(info.getRequestDurationNanos() >= 0);
+    }
+
+    @Test
+    public void testNestedPhases() {
+        beginPhase("query:imsi-agg");
+        beginPhase("fetch");
+        endPhase();
+        endPhase();
+        beginPhase("json|serialise");
+        final ServicePeformanceContextInformation info = getContextInfo();
+        assertEquals(3, info.getPhaseCount());
+        assertEquals(1, info.getPhaseDepth(1));
+        assertTrue(info.getPhaseDurationNanos(0) >= info.getPhaseDurationNanos(1));
+        assertEquals(ServicePeformanceContextInformation.NOT_SET, info.getPhaseDurationNanos(2));
+        final String line = info.getContextInformation(DELIMITER);
+        final String[] fields = line.split("\\|");
+        final String phases = fields[7];
+        assertTrue(phases, phases.matches("query:imsi-agg=\\d+,>fetch=\\d+,json_serialise=-1"));
+        releaseAllResources();
+    }
+
+    @Test
+    public void testPhasesOverMaximumCounted() {
+        for (int i = 0; i < ServicePeformanceContextInformation.MAX_PHASES + 2; i++) {
+            beginPhase("p");
+            endPhase();
+        }
+        final String line = getContextInfo().getContextInformation(DELIMITER);
+        assertTrue(line, line.matches(".*,p=\\d+,\\+2"));
+        releaseAllResources();
+    }
+
+    @Test
+    public void testContextReusedAfterRelease() {
+        setPoolName(poolName);
+        setRequestStartTime(reqStrtTime);
+        beginPhase("p");
+        final ServicePeformanceContextInformation info = getContextInfo();
+        releaseAllResources();
+        assertSame(info, getContextInfo());
+        assertTrue(info.isClear());
+        assertEquals("|||||0|", info.getContextInformation(DELIMITER));
+    }
+
+    @Test
+    public void testContextRemovedOnceReuseStopped() {
+        setRequestStartTime(reqStrtTime);
+        final ServicePeformanceContextInformation info = getContextInfo();
+        stopReuse();
+        try {
+            releaseAllResources();
+            assertTrue(info.isClear());
+            assertNotSame(info, getContextInfo());
+        } finally {
+            startReuse();
+        }
+        final ServicePeformanceContextInformation next = getContextInfo();
+        releaseAllResources();
+        assertSame(next, getContextInfo());
+    }
+
+    @Test
+    public void testLeakedContextDetected() {
+        final long leaks = getLeakedContextCount();
+        setRequestStartTime(reqStrtTime);
+        setUriInfo(url);
+        // no releaseAllResources, the next request on the thread finds the context in use
+        setRequestStartTime(reqStrtTime);
+        assertEquals(leaks + 1, getLeakedContextCount());
+        assertEquals("", getContextInfo().getUriInfo());
+        releaseAllResources();
+    }
+
+    @Test
+    public void testQueryExecutionsRecorded() {
+        setPoolName(poolName);
+        setQueryExecutionStartTime(queryStrtTime);
+        setQueryExecutionEndTime(queryEndTime);
+        final int templateId = ServicePeformanceContextInformation.queryTemplateId("select * from t where a = 1");
+        addQueryExecution("writer", templateId, 2000, 3000000, 1000000, 25);
+        final ServicePeformanceContextInformation info = getContextInfo();
+        assertEquals(2, info.getQueryCount());
+        final String line = info.getContextInformation(DELIMITER);
+        final String queries = line.split("\\|", -1)[9];
+        assertTrue(queries, queries.matches("reader/=:\\d+::,writer/" + Integer.toHexString(templateId)
+                + "=2:3000:1000:25"));
+        releaseAllResources();
+        assertEquals(0, getContextInfo().getQueryCount());
+    }
+
+    @Test
+    public void testConnectionWaitSeparatedFromExecution() {
+        final ServicesPoolGauges.PoolGauge gauge = ServicesPoolGauges.getInstance().getGauge("holderTestPool");
+        final ServicePeformanceContextInformation info = getContextInfo();
+        beginConnectionAcquire("holderTestPool");
+        assertEquals(1, gauge.getWaiting());
+        endConnectionAcquire();
+        assertEquals(0, gauge.getWaiting());
+        assertEquals(1, gauge.getActive());
+        setQueryExecutionStartTime(queryStrtTime);
+        setQueryExecutionEndTime(queryEndTime);
+        assertEquals(info.getConnectionWaitNanos(), info.getQueryWaitNanos(0));
+        releaseConnection();
+        assertEquals(0, gauge.getActive());
+        beginConnectionAcquire("holderTestPool");
+        endConnectionAcquire();
+        final String line = info.getContextInformation(DELIMITER);
+        assertTrue(line, line.startsWith("holderTestPool|"));
+        assertTrue(line, line.matches(".*\\|2:\\d+:1:0"));
+        assertEquals(2, gauge.getAcquires());
+        // a connection not released by the request is taken off the gauge when the context is released
+        releaseAllResources();
+        assertEquals(0, gauge.getActive());
+        assertTrue(info.isClear());
+    }
+
+    @Test
+    public void testFailedConnectionAcquireNotCounted() {
+        final ServicesPoolGauges.PoolGauge gauge = ServicesPoolGauges.getInstance().getGauge("holderFailPool");
+        beginConnectionAcquire("holderFailPool");
+        failConnectionAcquire();
+        assertEquals(0, gauge.getWaiting());
+        assertEquals(0, gauge.getActive());
+        assertEquals(0, getContextInfo().getConnectionAcquireCount());
+        releaseAllResources();
+    }
+
+    @Test
+    public void testResourcesCaptured() {
+        ServicesThreadResources.setEnabled(true);
+        try {
+            final ServicePeformanceContextInformation info = new ServicePeformanceContextInformation();
+            info.setRequestStartTime(reqStrtTime);
+            info.beginPhase("transform");
+            final StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 1000; i++) {
+                sb.append(i);
+            }
+            info.endPhase();
+            info.setRequestEndTime(reqEndTime);
+            assertTrue(info.getRequestCpuNanos() >= info.getPhaseCpuNanos(0));
+            assertTrue(info.getPhaseAllocatedBytes(0) > 0);
+            assertTrue(info.getRequestAllocatedBytes() >= info.getPhaseAllocatedBytes(0));
+            final String[] fields = info.getContextInformation(DELIMITER).split("\\|", -1);
+            assertTrue(fields[7], fields[7].matches("transform=\\d+:\\d+:\\d+"));
+            assertTrue(fields[11], fields[11].matches("\\d+:\\d+:\\d+"));
+            final long captures = ServicesThreadResources.getCaptureCount();
+            info.reset();
+            assertEquals(captures + 4, ServicesThreadResources.getCaptureCount());
+        } finally {
+            ServicesThreadResources.setEnabled(false);
+        }
+        final ServicePeformanceContextInformation info = new ServicePeformanceContextInformation();
+        info.setRequestStartTime(reqStrtTime);
+        info.setRequestEndTime(reqEndTime);
+        assertEquals(ServicePeformanceContextInformation.NOT_SET, info.getRequestCpuNanos());
+        assertEquals(7, info.getContextInformation(DELIMITER).split("\\|", -1).length);
+    }
+
+    @Test
+    public void testQueryTemplateIdIgnoresLiterals() {
+        final int id = ServicePeformanceContextInformation
+                .queryTemplateId("select * from t1 where a = 'x''y' and b = 42");
+        assertEquals(id, ServicePeformanceContextInformation
+                .queryTemplateId("SELECT *  from t1\n where a = 'z' and b = 7.5"));
+        assertFalse(id == ServicePeformanceContextInformation
+                .queryTemplateId("select * from t2 where a = 'x' and b = 1"));
+        assertEquals(0, ServicePeformanceContextInformation.queryTemplateId(null));
+    }
 }
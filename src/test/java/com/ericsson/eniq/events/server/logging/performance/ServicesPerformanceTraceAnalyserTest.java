@@ -0,0 +1,105 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.logging.performance;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.ericsson.eniq.events.server.logging.ServicesLogTimestamp;
+
+public class ServicesPerformanceTraceAnalyserTest {
+
+    private static final long NOW = 1275386400000L;
+
+    private static final String FAST_URI = "/EniqEventsServices/NETWORK/EVENT_ANALYSIS?display=grid";
+
+    private static final String SLOW_URI = "/EniqEventsServices/SUBSCRIBER/RANKING?display=chart";
+
+    private final File file = new File(System.getProperty("user.workspace"), "servicesperformancetrace-test.log");
+
+    private final ServicesPerformanceTraceLogFormatter formatter = new ServicesPerformanceTraceLogFormatter();
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testRecordsAcrossChunksCountedOnce() throws IOException {
+        final Writer out = new FileWriter(file);
+        try {
+            for (int i = 1; i <= 10; i++) {
+                out.write(line(FAST_URI, NOW + i * 1000, i * 100, 1));
+            }
+            out.write(formatter.format(new LogRecord(Level.INFO, ServicesPerformanceHistograms.SUMMARY
+                    + "|2010-06-01 11:00:00.000|dwhrep|" + FAST_URI + "|total|10|1|1|1|1|1")));
+            out.write(line(SLOW_URI, NOW + 70000, 5000, 4));
+        } finally {
+            out.close();
+        }
+        for (final int chunkSize : new int[] { 37, 100, 1000, ServicesPerformanceTraceAnalyser.DEFAULT_CHUNK_SIZE }) {
+            final ServicesPerformanceTraceAnalyser.Result result = new ServicesPerformanceTraceAnalyser(3, 2,
+                    "display", chunkSize).analyse(Arrays.asList(file));
+            assertEquals(11, result.getRecords());
+            assertEquals(1, result.getSkipped());
+            assertEquals(file.length(), result.getBytes());
+
+            final StringWriter report = new StringWriter();
+            result.write(report);
+            final List<String> lines = lines(report.toString());
+            assertEquals("URI|dwhrep|" + FAST_URI + "|10", lines.get(0).substring(0, lines.get(0).indexOf("|10|") + 3));
+            assertTrue(lines.get(0), lines.get(0).endsWith("|1000.000"));
+            assertTrue(lines.get(1), lines.get(1).startsWith("URI|dwhrep|" + SLOW_URI + "|4|"));
+            assertEquals("THROUGHPUT|2010-06-01 " + minute(NOW) + "|10|550", lines.get(2));
+            assertEquals("THROUGHPUT|2010-06-01 " + minute(NOW + 60000) + "|4|5000", lines.get(3));
+            assertTrue(lines.get(4), lines.get(4).startsWith("SLOW|5000|[#|"));
+            assertTrue(lines.get(4), lines.get(4).contains(SLOW_URI));
+            assertTrue(lines.get(5), lines.get(5).startsWith("SLOW|1000|[#|"));
+            assertTrue(lines.get(6), lines.get(6).startsWith("PARSE|" + file.length() + "|11|1|"));
+            assertEquals(7, lines.size());
+        }
+    }
+
+    private String line(final String uri, final long end, final long duration, final long weight) {
+        final ServicePeformanceContextInformation context = new ServicePeformanceContextInformation();
+        context.setPoolName("dwhrep");
+        context.setUriInfo(uri);
+        context.restoreTimes(end - duration, end, ServicePeformanceContextInformation.NOT_SET,
+                ServicePeformanceContextInformation.NOT_SET);
+        context.setSampleWeight(weight);
+        final LogRecord record = new LogRecord(Level.INFO, context.getContextInformation("|"));
+        record.setMillis(end);
+        return formatter.format(record);
+    }
+
+    private static String minute(final long millis) {
+        return ServicesLogTimestamp.format(millis).substring(11, 16);
+    }
+
+    private static List<String> lines(final String text) {
+        final List<String> lines = new ArrayList<String>();
+        for (final String line : text.split("\r?\n")) {
+            if (line.length() > 0) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,45 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.logging.performance;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class ServicesPoolGaugesTest {
+
+    @Test
+    public void testGaugesReported() {
+        final ServicesPoolGauges gauges = new ServicesPoolGauges();
+        final ServicesPoolGauges.PoolGauge writer = gauges.getGauge("writer");
+        final ServicesPoolGauges.PoolGauge reader = gauges.getGauge("reader");
+        assertSame(reader, gauges.getGauge("reader"));
+        reader.acquireStarted();
+        reader.acquireStarted();
+        reader.acquired(3000000);
+        reader.acquired(1000000);
+        writer.acquireStarted();
+        assertArrayEquals(new String[] { "reader|2|0|2|4000|3000", "writer|0|1|0|0|0" }, gauges.getPools());
+        assertEquals(2, gauges.getTotalActive());
+        assertEquals(1, gauges.getTotalWaiting());
+        reader.released();
+        writer.acquireAbandoned();
+        assertEquals(1, gauges.getTotalActive());
+        assertEquals(0, gauges.getTotalWaiting());
+    }
+
+    @Test
+    public void testPoolsOverMaximumShareOneGauge() {
+        final ServicesPoolGauges gauges = new ServicesPoolGauges();
+        for (int i = 0; i < ServicesPoolGauges.MAX_POOLS; i++) {
+            gauges.getGauge("pool" + i);
+        }
+        assertEquals(ServicesPoolGauges.OTHER, gauges.getGauge("one more").getName());
+        assertSame(gauges.getGauge("one more"), gauges.getGauge("and another"));
+    }
+}
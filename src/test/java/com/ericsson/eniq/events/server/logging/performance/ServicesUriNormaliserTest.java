@@ -0,0 +1,46 @@
+/**
+ * -----------------------------------------------------------------------
+ *     Copyright (C) 2010 LM Ericsson Limited.  All rights reserved.
+ * -----------------------------------------------------------------------
+ */
+package com.ericsson.eniq.events.server.logging.performance;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class ServicesUriNormaliserTest {
+
+    private final ServicesUriNormaliser normaliser = new ServicesUriNormaliser(
+            ServicesUriNormaliser.parseWhitelist("display, type"));
+
+    @Test
+    public void testHighCardinalityValuesReplaced() {
+        assertEquals("/EniqEventsServices/SUBBI/{n}/EVENTS?display=grid",
+                normaliser.normalise("http://host:8080/EniqEventsServices/SUBBI/12345/EVENTS"
+                        + "?imsi=240011234567890&display=grid&time=30"));
+        assertEquals("/EniqEventsServices/NODE/{id}?display={n}&type=BSC",
+                normaliser.normalise("/EniqEventsServices/NODE/a1b2c3d4e5f6?type=BSC&display=2010-06-01"));
+        assertEquals("/EniqEventsServices/NETWORK/EVENT_ANALYSIS",
+                normaliser.normalise("http://host/EniqEventsServices/NETWORK/EVENT_ANALYSIS?time=30"));
+        assertEquals("/", normaliser.normalise("http://host"));
+        assertEquals("", normaliser.normalise(null));
+    }
+
+    @Test
+    public void testSameKeyForDifferentValues() {
+        assertSame(normaliser.normalise("/a/1?display=x"), normaliser.normalise("/a/1?display=x"));
+        assertEquals(normaliser.normalise("/a/1"), normaliser.normalise("/a/2"));
+    }
+
+    @Test
+    public void testKeysOverLimitGoToOther() {
+        final ServicesUriNormaliser limited = new ServicesUriNormaliser(
+                ServicesUriNormaliser.parseWhitelist(null), 2, 2);
+        assertEquals("/a", limited.normalise("/a"));
+        assertEquals("/b", limited.normalise("/b"));
+        assertEquals(ServicesUriNormaliser.OTHER, limited.normalise("/c"));
+        assertEquals("/a", limited.normalise("http://host/a"));
+        assertEquals(2, limited.getKeyCount());
+    }
+}